@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.channels;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writes 16 MB through a TaggedOutputChannel into /dev/null, i.e. real
+ * write system calls, with different channel buffer sizes. The secondary
+ * result writeCalls is the number of system calls of one operation summed
+ * over the measurement iterations (JMH sums event counters), i.e. divide
+ * it by Cnt.
+ *
+ * small: file list entry or block checksum sized puts
+ * literal: 32 KB literal data tokens (gathering writes)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChannelBufferBenchmark
+{
+    private static final int TOTAL_SIZE = 16 * 1024 * 1024;
+    private static final int LITERAL_SIZE = 32 * 1024;
+    private static final int SMALL_SIZE = 60;
+
+    @Param({ "8192", "262144" })
+    public int _bufferSize;
+
+    private FileChannel _devNull;
+    private CountingChannel _sink;
+    private byte[] _literal;
+
+    // the number of write calls of the last operation
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Counters
+    {
+        public long writeCalls;
+    }
+
+    private static class CountingChannel implements GatheringByteChannel
+    {
+        private final FileChannel _channel;
+        private long _numCalls;
+
+        CountingChannel(FileChannel channel)
+        {
+            _channel = channel;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return _channel.isOpen();
+        }
+
+        @Override
+        public void close() {}
+
+        @Override
+        public int write(ByteBuffer src) throws IOException
+        {
+            _numCalls++;
+            return _channel.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length)
+            throws IOException
+        {
+            _numCalls++;
+            return _channel.write(srcs, offset, length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException
+        {
+            return write(srcs, 0, srcs.length);
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException
+    {
+        _devNull = FileChannel.open(Paths.get("/dev/null"),
+                                    StandardOpenOption.WRITE);
+        _sink = new CountingChannel(_devNull);
+        _literal = new byte[LITERAL_SIZE];
+        new Random(4711).nextBytes(_literal);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        _devNull.close();
+    }
+
+    @Benchmark
+    public long small(Counters counters) throws ChannelException
+    {
+        TaggedOutputChannel out = new TaggedOutputChannel(_sink, _bufferSize);
+        long numCalls = _sink._numCalls;
+        for (int i = 0; i < TOTAL_SIZE; i += SMALL_SIZE + 4) {
+            out.putInt(i);
+            out.put(_literal, i % 1024, SMALL_SIZE);
+        }
+        out.flush();
+        counters.writeCalls = _sink._numCalls - numCalls;
+        return out.numBytesWritten();
+    }
+
+    @Benchmark
+    public long literal(Counters counters) throws ChannelException
+    {
+        TaggedOutputChannel out = new TaggedOutputChannel(_sink, _bufferSize);
+        long numCalls = _sink._numCalls;
+        for (int i = 0; i < TOTAL_SIZE; i += LITERAL_SIZE + 4) {
+            out.putInt(LITERAL_SIZE);
+            out.put(_literal, 0, LITERAL_SIZE);
+        }
+        out.flush();
+        counters.writeCalls = _sink._numCalls - numCalls;
+        return out.numBytesWritten();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.filelist;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.perlundq.yajsync.util.FileOps;
+import com.github.perlundq.yajsync.util.SortedArray;
+
+/**
+ * Collecting the files of one directory, in the order they are listed, into
+ * a sorted SortedArray (as SegmentBuilder does) and looking them up (as
+ * Receiver.deleteUnmatchedFile does), compared with the previous sorted
+ * insertion into a LinkedList. The latter is quadratic and is only run
+ * with 10k files.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SegmentBuilderBenchmark
+{
+    private static List<FileInfo> newFiles(int numFiles)
+    {
+        Random random = new Random(4711);
+        RsyncFileAttributes attrs =
+            new RsyncFileAttributes(FileOps.S_IFREG | 0644, 0, 0,
+                                    User.whoami(), Group.whoami());
+        Path root = Paths.get("/path/to/module/root");
+        List<FileInfo> result = new ArrayList<>(numFiles);
+        for (int i = 0; i < numFiles; i++) {
+            String name = String.format("file-%08x", random.nextInt());
+            Path p = Paths.get(name);
+            result.add(new FileInfo(root.resolve(p), p, name.getBytes(),
+                                    attrs));
+        }
+        return result;
+    }
+
+    @State(Scope.Benchmark)
+    public static class Files
+    {
+        @Param({ "10000", "100000", "1000000" })
+        public int _numFiles;
+
+        List<FileInfo> _files;
+        SortedArray<FileInfo> _sorted;
+
+        @Setup
+        public void setup()
+        {
+            _files = newFiles(_numFiles);
+            _sorted = new SortedArray<>();
+            for (FileInfo f : _files) {
+                _sorted.add(f);
+            }
+            _sorted.sort();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class FewFiles
+    {
+        @Param({ "10000" })
+        public int _numFiles;
+
+        List<FileInfo> _files;
+
+        @Setup
+        public void setup()
+        {
+            _files = newFiles(_numFiles);
+        }
+    }
+
+    @Benchmark
+    public SortedArray<FileInfo> addAndSort(Files state)
+    {
+        SortedArray<FileInfo> result = new SortedArray<>();
+        for (FileInfo f : state._files) {
+            result.add(f);
+        }
+        result.sort();
+        return result;
+    }
+
+    @Benchmark
+    public int containsAll(Files state)
+    {
+        int count = 0;
+        for (FileInfo f : state._files) {
+            if (state._sorted.contains(f)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // the previous SortedList.add
+    @Benchmark
+    public List<FileInfo> linkedListInsert(FewFiles state)
+    {
+        LinkedList<FileInfo> result = new LinkedList<>();
+        for (FileInfo f : state._files) {
+            int i = Collections.binarySearch(result, f);
+            result.add(i > -1 ? i : -i - 1, f);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.io;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.perlundq.yajsync.util.Environment;
+
+/**
+ * Scans a whole file with FileView the same way as Sender does when there
+ * are no matches, i.e. sliding the window one byte at a time and the whole
+ * window each time the buffer is full, both read into a buffer and memory
+ * mapped.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FileViewBenchmark
+{
+    private static final int FILE_SIZE = 8 * 1024 * 1024;
+    private static final int BLOCK_FACTOR = 10;
+
+    @Param({ "700", "8192" })
+    public int _blockLength;
+
+    @Param({ "false", "true" })
+    public boolean _isMapped;
+
+    private Path _path;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        _path = Files.createTempFile("fileview", ".bench");
+        byte[] data = new byte[FILE_SIZE];
+        new Random(4711).nextBytes(data);
+        Files.write(_path, data);
+        Environment.setMapThreshold(_isMapped ? 0 : Long.MAX_VALUE);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        Files.deleteIfExists(_path);
+    }
+
+    @Benchmark
+    public long slideByteByByte() throws FileViewReadError
+    {
+        long sum = 0;
+        try (FileView fv = new FileView(_path, FILE_SIZE, _blockLength,
+                                        _blockLength * BLOCK_FACTOR)) {
+            fv.setMarkRelativeToStart(0);
+            while (fv.windowLength() > 0) {
+                sum += fv.valueAt(fv.startOffset());
+                if (fv.isFull()) {
+                    fv.setMarkRelativeToStart(fv.windowLength());
+                    fv.slide(fv.windowLength());
+                } else {
+                    fv.slide(1);
+                }
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long slideBlockByBlock() throws FileViewReadError
+    {
+        long sum = 0;
+        try (FileView fv = new FileView(_path, FILE_SIZE, _blockLength,
+                                        _blockLength)) {
+            while (fv.windowLength() > 0) {
+                sum += fv.valueAt(fv.startOffset());
+                fv.slide(fv.windowLength());
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.perlundq.yajsync.util.Multimap;
+
+/**
+ * Compares candidate chunk lookups of the open addressing index in Checksum
+ * with the previous boxed Multimap based implementation, using a probe
+ * sequence resembling Sender's byte by byte scan, i.e. mostly misses.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChecksumLookupBenchmark
+{
+    private static final int BLOCK_LENGTH = 4096;
+    private static final int DIGEST_LENGTH = 2;
+    private static final int NUM_PROBES = 1 << 16;
+
+    // the previous Multimap based lookup path of Checksum, kept for
+    // comparison
+    private static final class MultimapIndex
+    {
+        private static final class Chunk
+        {
+            final int _length;
+            final int _chunkIndex;
+
+            Chunk(int length, int chunkIndex)
+            {
+                _length = length;
+                _chunkIndex = chunkIndex;
+            }
+        }
+
+        private static final Iterable<Chunk> EMPTY_ITERABLE =
+            new Iterable<Chunk>() {
+            @Override
+            public Iterator<Chunk> iterator() {
+                return Collections.emptyIterator();
+            }
+        };
+
+        private final Multimap<Integer, Chunk> _sums;
+
+        MultimapIndex(int chunkCount)
+        {
+            _sums = new Multimap<>(chunkCount);
+        }
+
+        void add(int rolling, int chunkIndex)
+        {
+            _sums.put(rolling, new Chunk(BLOCK_LENGTH, chunkIndex));
+        }
+
+        private int closeIndexOf(List<Chunk> chunks, int chunkIndex)
+        {
+            int i_left = 0;
+            int i_right = chunks.size() - 1;
+            while (i_left <= i_right) {
+                int i_middle = i_left + (i_right - i_left) / 2;
+                int chunkIndex_m = chunks.get(i_middle)._chunkIndex;
+                if (chunkIndex_m == chunkIndex) {
+                    return i_middle;
+                } else if (chunkIndex_m < chunkIndex) {
+                    i_left = i_middle + 1;
+                } else {
+                    i_right = i_middle - 1;
+                }
+            }
+            return Math.min(i_left, chunks.size() - 1);
+        }
+
+        Iterable<Chunk> getCandidateChunks(int rolling,
+                                           final int length,
+                                           final int preferredChunkIndex)
+        {
+            final List<Chunk> chunks = _sums.get(rolling);
+            if (chunks.isEmpty()) {
+                return EMPTY_ITERABLE;
+            }
+            return new Iterable<Chunk>() {
+                int it_index = 0;
+                int initialIndex = closeIndexOf(chunks, preferredChunkIndex);
+                boolean isInitial = true;
+
+                @Override
+                public Iterator<Chunk> iterator() {
+                    return new Iterator<Chunk>() {
+
+                        private int nextIndex() {
+                            for (int i = it_index; i < chunks.size(); i++) {
+                                if (i != initialIndex &&
+                                    chunks.get(i)._length == length) {
+                                    return i;
+                                }
+                            }
+                            return chunks.size();
+                        }
+
+                        @Override
+                        public boolean hasNext() {
+                            if (isInitial) {
+                                return true;
+                            }
+                            it_index = nextIndex();
+                            return it_index < chunks.size();
+                        }
+
+                        @Override
+                        public Chunk next() {
+                            Chunk c;
+                            if (isInitial) {
+                                c = chunks.get(initialIndex);
+                                isInitial = false;
+                            } else {
+                                c = chunks.get(it_index);
+                                it_index++;
+                            }
+                            return c;
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    @Param({ "1024", "262144" })
+    public int _numChunks;
+
+    @Param({ "0.01", "0.5" })
+    public double _hitRatio;
+
+    private Checksum _checksum;
+    private MultimapIndex _multimapIndex;
+    private int[] _probes;
+
+    @Setup
+    public void setup() throws Checksum.ChunkOverflow
+    {
+        Random random = new Random(4711);
+        Checksum.Header header =
+            new Checksum.Header(BLOCK_LENGTH, DIGEST_LENGTH,
+                                (long) BLOCK_LENGTH * _numChunks);
+        _checksum = new Checksum(header);
+        _multimapIndex = new MultimapIndex(_numChunks);
+        int[] rollings = new int[_numChunks];
+        byte[] digest = new byte[DIGEST_LENGTH];
+        for (int i = 0; i < _numChunks; i++) {
+            rollings[i] = random.nextInt();
+            random.nextBytes(digest);
+            _checksum.addChunkInformation(rollings[i], digest);
+            _multimapIndex.add(rollings[i], i);
+        }
+        _probes = new int[NUM_PROBES];
+        for (int i = 0; i < NUM_PROBES; i++) {
+            if (random.nextDouble() < _hitRatio) {
+                _probes[i] = rollings[random.nextInt(_numChunks)];
+            } else {
+                _probes[i] = random.nextInt();
+            }
+        }
+    }
+
+    @Benchmark
+    public int openAddressing()
+    {
+        int sum = 0;
+        for (int rolling : _probes) {
+            sum += _checksum.firstCandidate(rolling, BLOCK_LENGTH, 0);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int multimap()
+    {
+        int sum = 0;
+        for (int rolling : _probes) {
+            for (MultimapIndex.Chunk chunk :
+                     _multimapIndex.getCandidateChunks(rolling, BLOCK_LENGTH,
+                                                       0)) {
+                sum += chunk._chunkIndex;
+                break;
+            }
+        }
+        return sum;
+    }
+}
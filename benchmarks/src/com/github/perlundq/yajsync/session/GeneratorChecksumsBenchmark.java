@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.perlundq.yajsync.channels.ChannelException;
+import com.github.perlundq.yajsync.filelist.FileInfo;
+import com.github.perlundq.yajsync.filelist.RsyncFileAttributes;
+import com.github.perlundq.yajsync.util.BitOps;
+import com.github.perlundq.yajsync.util.StrongChecksum;
+
+/**
+ * Generates the block checksums of a basis file the way Generator does
+ * for a file to be transferred, by the generator thread only
+ * (_numThreads == 1) and in parallel by a pool of checksum threads. The
+ * output is discarded.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class GeneratorChecksumsBenchmark
+{
+    private static final int FILE_SIZE = 64 * 1024 * 1024;
+
+    @Param({ "1", "2", "4" })
+    public int _numThreads;
+
+    @Param({ "md5", "xxh64" })
+    public String _checksumName;
+
+    private Path _path;
+    private FileInfo _fileInfo;
+    private RsyncFileAttributes _attrs;
+    private Generator _generator;
+
+    private static final class NullChannel implements WritableByteChannel
+    {
+        @Override
+        public int write(ByteBuffer src)
+        {
+            int length = src.remaining();
+            src.position(src.limit());
+            return length;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException
+    {
+        _path = Files.createTempFile("checksums", ".bench");
+        byte[] data = new byte[FILE_SIZE];
+        new Random(4711).nextBytes(data);
+        Files.write(_path, data);
+        _attrs = RsyncFileAttributes.stat(_path);
+        _fileInfo = new FileInfo(_path, _path.getFileName(),
+                                 _path.getFileName().toString().getBytes(),
+                                 _attrs);
+        _generator = Generator.newServerInstance(
+            new NullChannel(), Charset.forName("UTF-8"),
+            BitOps.toLittleEndianBuf(4711)).
+            setStrongChecksum(
+                StrongChecksum.fromProtocolNameOrNull(_checksumName)).
+            setNumChecksumThreads(_numThreads);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        Files.deleteIfExists(_path);
+    }
+
+    @Benchmark
+    public void generate() throws ChannelException
+    {
+        _generator.sendItemizeAndChecksumsAndFlush(1, _fileInfo, _attrs);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.text;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding of file names, which is done once per file list
+ * entry by both the sender and the receiver.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TextCodingBenchmark
+{
+    @Param({ "src/main/com/github/perlundq/yajsync/text/TextEncoder.java",
+             "Bilder/Sommar 2014/Åre - fjällstugan (Ölands-kopia) 04.jpg" })
+    public String _fileName;
+
+    private TextEncoder _encoder;
+    private TextDecoder _decoder;
+    private byte[] _encoded;
+
+    @Setup
+    public void setup()
+    {
+        _encoder = TextEncoder.newStrict(StandardCharsets.UTF_8);
+        _decoder = TextDecoder.newStrict(StandardCharsets.UTF_8);
+        _encoded = _encoder.encode(_fileName);
+    }
+
+    @Benchmark
+    public byte[] encode()
+    {
+        return _encoder.encode(_fileName);
+    }
+
+    @Benchmark
+    public String decode()
+    {
+        return _decoder.decode(ByteBuffer.wrap(_encoded));
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.util;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares seeded block digests of the previous slice and digest() path
+ * with the scratch buffer path used by Generator and Sender. One operation
+ * is one block, run with -prof gc to see the allocation rate per block
+ * (gc.alloc.rate.norm), e.g.:
+ *
+ *     java -jar target/benchmarks.jar BlockDigestBenchmark -prof gc
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BlockDigestBenchmark
+{
+    private static final int BLOCK_LENGTH = 2048;
+    private static final int NUM_BLOCKS = 64;
+    private static final int DIGEST_LENGTH = 2;
+
+    @Param({ "xxh64", "md5", "md4" })
+    public String _checksumName;
+
+    @Param({ "false", "true" })
+    public boolean _isDirect;
+
+    private ByteBuffer _buf;
+    private MessageDigest _md;
+    private byte[] _scratch;
+    private byte[] _peerDigest;
+    private int _blockIndex;
+
+    @Setup
+    public void setup()
+    {
+        StrongChecksum checksum =
+            StrongChecksum.fromProtocolNameOrNull(_checksumName);
+        byte[] data = new byte[BLOCK_LENGTH * NUM_BLOCKS];
+        new Random(4711).nextBytes(data);
+        _buf = _isDirect ? ByteBuffer.allocateDirect(data.length)
+                         : ByteBuffer.allocate(data.length);
+        _buf.put(data).flip();
+        _md = checksum.newBlockDigest(BitOps.toLittleEndianBuf(4711));
+        _scratch = new byte[checksum.digestLength()];
+        _peerDigest = new byte[DIGEST_LENGTH];
+    }
+
+    private int nextBlockOffset()
+    {
+        _blockIndex = (_blockIndex + 1) % NUM_BLOCKS;
+        return _blockIndex * BLOCK_LENGTH;
+    }
+
+    private boolean isEqualToPeer(byte[] digest)
+    {
+        for (int i = 0; i < _peerDigest.length; i++) {
+            if (_peerDigest[i] != digest[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Benchmark
+    public boolean sliceAndDigest()
+    {
+        int offset = nextBlockOffset();
+        _md.update(Util.slice(_buf, offset, offset + BLOCK_LENGTH));
+        return isEqualToPeer(_md.digest());
+    }
+
+    @Benchmark
+    public boolean scratchBuffer()
+    {
+        int offset = nextBlockOffset();
+        StrongChecksum.update(_md, _buf, offset, offset + BLOCK_LENGTH);
+        StrongChecksum.digestInto(_md, _scratch);
+        return isEqualToPeer(_scratch);
+    }
+}
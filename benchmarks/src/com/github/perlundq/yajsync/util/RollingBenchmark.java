@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.util;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rolling checksum of one block (Rolling.compute) of heap and direct
+ * buffers, compared with the previous manually unrolled implementation,
+ * and the byte by byte rolling update of Sender's scan (subtract + add)
+ * compared with RollingScanner.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RollingBenchmark
+{
+    private static final int OFFSET = 3;
+
+    @Param({ "700", "8192", "131072" })
+    public int _blockLength;
+
+    private byte[] _array;
+    private ByteBuffer _arrayBuffer;
+    private ByteBuffer _direct;
+    private RollingScanner.Filter _filter;
+    private RollingScanner _scanner;
+
+    @Setup
+    public void setup()
+    {
+        _array = new byte[OFFSET + 2 * _blockLength];
+        new Random(4711).nextBytes(_array);
+        _direct = ByteBuffer.allocateDirect(_array.length);
+        _direct.put(_array).flip();
+        _arrayBuffer = ByteBuffer.wrap(_array);
+
+        // a tag table with about 1% of the tags set, similar to
+        // Checksum.mayContain
+        final long[] tagTable = new long[1 << 10];
+        Random random = new Random(17);
+        for (int i = 0; i < 650; i++) {
+            int tag = random.nextInt(1 << 16);
+            tagTable[tag >>> 6] |= 1L << tag;
+        }
+        _filter = new RollingScanner.Filter() {
+            @Override
+            public boolean mayContain(int rolling)
+            {
+                int tag = ((rolling & 0xFFFF) + (rolling >>> 16)) & 0xFFFF;
+                return (tagTable[tag >>> 6] & (1L << tag)) != 0;
+            }
+        };
+        _scanner = new RollingScanner(_filter);
+    }
+
+    // the previous implementation of Rolling.compute, kept for comparison
+    private static int unrolledCompute(byte[] buf, int offset, int length)
+    {
+        int low16 = 0;
+        int high16 = 0;
+        int idx;
+        for (idx = 0; idx < length - 4; idx += 4) {
+            high16 += 4 * (buf[offset + idx + 0] + low16) +
+                      3 * buf[offset + idx + 1] +
+                      2 * buf[offset + idx + 2] +
+                      buf[offset + idx + 3];
+            low16 += buf[offset + idx + 0] + buf[offset + idx + 1] +
+                     buf[offset + idx + 2] + buf[offset + idx + 3];
+        }
+        for (; idx < length; idx++) {
+            low16 += buf[offset + idx];
+            high16 += low16;
+        }
+        return (low16 & 0xFFFF) | (high16 << 16);
+    }
+
+    @Benchmark
+    public int computeArray()
+    {
+        return Rolling.compute(_array, OFFSET, _blockLength);
+    }
+
+    @Benchmark
+    public int computeDirect()
+    {
+        return Rolling.compute(_direct, OFFSET, _blockLength);
+    }
+
+    @Benchmark
+    public int computeUnrolled()
+    {
+        return unrolledCompute(_array, OFFSET, _blockLength);
+    }
+
+    /**
+     * Rolls the checksum one block forward, one byte at a time, checking
+     * each window against a sparse tag table, i.e. the cost per block of a
+     * scan without (hardly) any matches.
+     */
+    @Benchmark
+    public int rollOneBlock()
+    {
+        int rolling = Rolling.compute(_array, OFFSET, _blockLength);
+        int numHits = 0;
+        for (int i = OFFSET; i < OFFSET + _blockLength; i++) {
+            if (_filter.mayContain(rolling)) {
+                numHits++;
+            }
+            rolling = Rolling.subtract(rolling, _blockLength, _array[i]);
+            rolling = Rolling.add(rolling, _array[i + _blockLength]);
+        }
+        return rolling + numHits;
+    }
+
+    /**
+     * The same as rollOneBlock using RollingScanner.
+     */
+    @Benchmark
+    public int scanOneBlock()
+    {
+        int rolling = Rolling.compute(_array, OFFSET, _blockLength);
+        int numHits = 0;
+        int offset = OFFSET;
+        int remaining = _blockLength;
+        while (remaining > 0) {
+            int numSteps = _scanner.scan(_arrayBuffer, offset, _blockLength,
+                                         remaining, rolling);
+            rolling = _scanner.rolling();
+            offset += numSteps;
+            remaining -= numSteps;
+            if (remaining > 0) { // stopped at a possible hit, step past it
+                numHits++;
+                rolling = Rolling.subtract(rolling, _blockLength,
+                                           _array[offset]);
+                rolling = Rolling.add(rolling, _array[offset + _blockLength]);
+                offset++;
+                remaining--;
+            }
+        }
+        return rolling + numHits;
+    }
+}
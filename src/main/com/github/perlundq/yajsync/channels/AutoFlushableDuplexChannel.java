@@ -34,6 +34,14 @@ public class AutoFlushableDuplexChannel extends BufferedDuplexChannel
         return super.get(numBytes);
     }
 
+    @Override
+    public void get(byte[] dst, int offset, int length)
+        throws ChannelException
+    {
+        flush();
+        super.get(dst, offset, length);
+    }
+
     @Override
     public byte getByte() throws ChannelException
     {
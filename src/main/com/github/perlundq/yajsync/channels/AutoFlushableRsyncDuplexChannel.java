@@ -60,6 +60,35 @@ public class AutoFlushableRsyncDuplexChannel extends AutoFlushableDuplexChannel
         return _inChannel.decodeIndex();
     }
 
+    /**
+     * @throws IllegalArgumentException if bufferSize is out of range, see
+     *         BufferedOutputChannel.setBufferSize
+     */
+    public void setBufferSize(int bufferSize)
+    {
+        _inChannel.setBufferSize(bufferSize);
+        _outChannel.setBufferSize(bufferSize);
+    }
+
+    /**
+     * @throws IllegalArgumentException if maxBufferSize is out of range, see
+     *         BufferedOutputChannel.setMaxBufferSize
+     */
+    public void setMaxBufferSize(int maxBufferSize)
+    {
+        _outChannel.setMaxBufferSize(maxBufferSize);
+    }
+
+    /**
+     * Limit data in both directions, with the same limiter, i.e. the limit
+     * applies to the sum of data read and written.
+     */
+    public void setRateLimiter(RateLimiter rateLimiter)
+    {
+        _inChannel.setRateLimiter(rateLimiter);
+        _outChannel.setRateLimiter(rateLimiter);
+    }
+
     public int numBytesAvailable()
     {
         return _inChannel.numBytesAvailable();
@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.WritableByteChannel;
 
 import com.github.perlundq.yajsync.util.Consts;
@@ -32,29 +33,105 @@ import com.github.perlundq.yajsync.util.Util;
 
 public class BufferedOutputChannel implements Bufferable
 {
-    private static final int DEFAULT_BUF_SIZE = 8 * 1024;
+    // grow the buffer after this many consecutive flushes of an (almost)
+    // full buffer, if adaptive
+    private static final int NUM_FULL_FLUSHES_BEFORE_GROWING = 4;
     private final WritableByteChannel _sinkChannel;
-    protected final ByteBuffer _buffer;
+    protected ByteBuffer _buffer;
+    private int _bufferSize;
+    private int _maxBufferSize;
+    private int _numFullFlushes;
     private long _numBytesWritten;
+    private RateLimiter _rateLimiter;
 
     public BufferedOutputChannel(WritableByteChannel sock)
     {
-        this(sock, DEFAULT_BUF_SIZE);
+        this(sock, Consts.DEFAULT_CHANNEL_BUF_SIZE);
     }
 
     public BufferedOutputChannel(WritableByteChannel sock, int bufferSize)
     {
         _sinkChannel = sock;
+        _bufferSize = bufferSize;
+        _maxBufferSize = bufferSize;
+        _buffer = allocate(bufferSize);
+    }
+
+    private static ByteBuffer allocate(int bufferSize)
+    {
+        ByteBuffer buffer;
         if (Environment.isAllocateDirect()) {
-            _buffer = ByteBuffer.allocateDirect(bufferSize);
+            buffer = ByteBuffer.allocateDirect(bufferSize);
         } else {
-            _buffer = ByteBuffer.allocate(bufferSize);
+            buffer = ByteBuffer.allocate(bufferSize);
         }
-        _buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    static void checkBufferSize(int bufferSize)
+    {
+        if (bufferSize < Consts.MIN_CHANNEL_BUF_SIZE ||
+            bufferSize > Consts.MAX_CHANNEL_BUF_SIZE) {
+            throw new IllegalArgumentException(String.format(
+                "buffer size %d out of range (%d <= size <= %d)",
+                bufferSize, Consts.MIN_CHANNEL_BUF_SIZE,
+                Consts.MAX_CHANNEL_BUF_SIZE));
+        }
+    }
+
+    /**
+     * Change the size of the buffer, now if nothing is buffered, otherwise
+     * on the next flush.
+     *
+     * @throws IllegalArgumentException if bufferSize is less than
+     *         Consts.MIN_CHANNEL_BUF_SIZE or greater than
+     *         Consts.MAX_CHANNEL_BUF_SIZE
+     */
+    public void setBufferSize(int bufferSize)
+    {
+        checkBufferSize(bufferSize);
+        _bufferSize = bufferSize;
+        if (numBytesBuffered() == 0) {
+            resizeIfRequested();
+        }
+    }
+
+    /**
+     * Let the buffer grow adaptively up to maxBufferSize, by doubling its
+     * size each time a number of consecutive writes have (almost) filled
+     * it. There is no growth if maxBufferSize is not greater than the
+     * current buffer size.
+     *
+     * @throws IllegalArgumentException if maxBufferSize is less than
+     *         Consts.MIN_CHANNEL_BUF_SIZE or greater than
+     *         Consts.MAX_CHANNEL_BUF_SIZE
+     */
+    public void setMaxBufferSize(int maxBufferSize)
+    {
+        checkBufferSize(maxBufferSize);
+        _maxBufferSize = maxBufferSize;
+    }
+
+    public int bufferSize()
+    {
+        return _buffer.capacity();
+    }
+
+    /**
+     * Limit the rate of all data written from now on, or remove the limit
+     * if rateLimiter is null.
+     */
+    public void setRateLimiter(RateLimiter rateLimiter)
+    {
+        _rateLimiter = rateLimiter;
     }
 
     public void send(ByteBuffer buf) throws ChannelException
     {
+        if (_rateLimiter != null) {
+            sendLimited(buf);
+            return;
+        }
         try {
             while (buf.hasRemaining()) {
                 int count = _sinkChannel.write(buf);
@@ -71,13 +148,118 @@ public class BufferedOutputChannel implements Bufferable
         }
     }
 
+    /**
+     * Write buf in slices of at most the chunk size of the rate limiter,
+     * acquiring each one before writing it.
+     */
+    private void sendLimited(ByteBuffer buf) throws ChannelException
+    {
+        try {
+            while (buf.hasRemaining()) {
+                int length = Math.min(buf.remaining(),
+                                      _rateLimiter.chunkSize());
+                _rateLimiter.acquire(length);
+                ByteBuffer slice = Util.slice(buf, buf.position(),
+                                              buf.position() + length);
+                while (slice.hasRemaining()) {
+                    int count = _sinkChannel.write(slice);
+                    if (count <= 0) {
+                        throw new ChannelEOFException(String.format(
+                            "channel write unexpectedly returned %d (EOF)",
+                            count));
+                    }
+                    _numBytesWritten += count;
+                }
+                buf.position(slice.position());
+            }
+        } catch (InterruptedException | ClosedByInterruptException e) {
+            throw new RuntimeInterruptException(e);
+        } catch (IOException e) {
+            throw new ChannelException(e);
+        }
+    }
+
+    /**
+     * Write all of srcs in as few calls to the sink channel as possible, in
+     * one gathering write if isGatheringSink() and the rate is not limited.
+     */
+    protected void send(ByteBuffer... srcs) throws ChannelException
+    {
+        if (!isGatheringSink() || _rateLimiter != null) {
+            for (ByteBuffer src : srcs) {
+                send(src);
+            }
+            return;
+        }
+        GatheringByteChannel sink = (GatheringByteChannel) _sinkChannel;
+        long numBytesRemaining = 0;
+        for (ByteBuffer src : srcs) {
+            numBytesRemaining += src.remaining();
+        }
+        try {
+            while (numBytesRemaining > 0) {
+                long count = sink.write(srcs);
+                if (count <= 0) {
+                    throw new ChannelEOFException(String.format(
+                        "channel write unexpectedly returned %d (EOF)", count));
+                }
+                _numBytesWritten += count;
+                numBytesRemaining -= count;
+            }
+        } catch (ClosedByInterruptException e) {
+            throw new RuntimeInterruptException(e);
+        } catch (IOException e) {
+            throw new ChannelException(e);
+        }
+    }
+
+    protected boolean isGatheringSink()
+    {
+        return _sinkChannel instanceof GatheringByteChannel;
+    }
+
     @Override
     public void flush() throws ChannelException
     {
         if (numBytesBuffered() > 0) {
+            int numBytes = _buffer.position();
             _buffer.flip();
             send(_buffer);
             _buffer.clear();
+            flushed(numBytes);
+        }
+    }
+
+    /**
+     * Must be called with an empty buffer after writing numBytes, which may
+     * be more than the size of the buffer for gathering writes.
+     */
+    protected void flushed(int numBytes)
+    {
+        assert _buffer.position() == 0;
+        if (_maxBufferSize > _bufferSize) {
+            int capacity = _buffer.capacity();
+            if (numBytes >= capacity - capacity / 4) {
+                _numFullFlushes++;
+            } else {
+                _numFullFlushes = 0;
+            }
+            if (_numFullFlushes >= NUM_FULL_FLUSHES_BEFORE_GROWING) {
+                _bufferSize = Math.min(2 * _bufferSize, _maxBufferSize);
+                _numFullFlushes = 0;
+            }
+        }
+        resizeIfRequested();
+    }
+
+    private void resizeIfRequested()
+    {
+        if (_buffer.capacity() != _bufferSize &&
+            _buffer.position() <= _bufferSize) {
+            ByteBuffer buffer = allocate(_bufferSize);
+            _buffer.flip();
+            buffer.put(_buffer);
+            _buffer = buffer;
         }
     }
 
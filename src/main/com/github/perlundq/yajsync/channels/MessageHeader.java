@@ -23,7 +23,7 @@ package com.github.perlundq.yajsync.channels;
 public class MessageHeader
 {
     private static final int MSG_TYPE_OFFSET = 7;
-    private static final int MSG_MAX_LENGTH = 0xFFFFFF;
+    static final int MSG_MAX_LENGTH = 0xFFFFFF;
     private final MessageCode _code;
     private final int _length;
 
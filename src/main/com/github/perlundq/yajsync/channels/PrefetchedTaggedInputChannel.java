@@ -31,14 +31,14 @@ import com.github.perlundq.yajsync.util.Util;
 
 public class PrefetchedTaggedInputChannel extends TaggedInputChannel
 {
-    private static final int DEFAULT_BUF_SIZE = 8 * 1024; // TODO: make buffer size configurable
-    private final ByteBuffer _buf;                                              // never flipped, never marked and its limit is never changed
+    private ByteBuffer _buf;                                                    // never flipped, never marked and its limit is never changed
+    private int _bufferSize;
     private int _readIndex = 0;
 
     public PrefetchedTaggedInputChannel(ReadableByteChannel sock,
                                         MessageHandler handler)
     {
-        this(sock, handler, DEFAULT_BUF_SIZE);
+        this(sock, handler, Consts.DEFAULT_CHANNEL_BUF_SIZE);
     }
 
     public PrefetchedTaggedInputChannel(ReadableByteChannel sock,
@@ -46,12 +46,43 @@ public class PrefetchedTaggedInputChannel extends TaggedInputChannel
                                         int bufferSize)
     {
         super(sock, handler);
+        _bufferSize = bufferSize;
+        _buf = allocate(bufferSize);
+    }
+
+    private static ByteBuffer allocate(int bufferSize)
+    {
+        ByteBuffer buf;
         if (Environment.isAllocateDirect()) {
-            _buf = ByteBuffer.allocateDirect(bufferSize);
+            buf = ByteBuffer.allocateDirect(bufferSize);
         } else {
-            _buf = ByteBuffer.allocate(bufferSize);
+            buf = ByteBuffer.allocate(bufferSize);
         }
-        _buf.order(ByteOrder.LITTLE_ENDIAN);
+        return buf.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Change the size of the buffer, now if all prefetched data fits into
+     * the new buffer, otherwise later when it does.
+     *
+     * @throws IllegalArgumentException if bufferSize is less than
+     *         Consts.MIN_CHANNEL_BUF_SIZE or greater than
+     *         Consts.MAX_CHANNEL_BUF_SIZE
+     */
+    public void setBufferSize(int bufferSize)
+    {
+        BufferedOutputChannel.checkBufferSize(bufferSize);
+        _bufferSize = bufferSize;
+        resizeIfRequested(0);
+    }
+
+    /**
+     * @return the maximum number of bytes which may be requested with
+     *         get(int)
+     */
+    public int bufferSize()
+    {
+        return _buf.capacity();
     }
 
     @Override
@@ -146,9 +177,22 @@ public class PrefetchedTaggedInputChannel extends TaggedInputChannel
         return nextReadableSlice(numBytesPrefetched());
     }
 
+    private void resizeIfRequested(int minBufferSize)
+    {
+        if (_buf.capacity() != _bufferSize &&
+            numBytesPrefetched() <= _bufferSize &&
+            minBufferSize <= _bufferSize) {
+            ByteBuffer buf = allocate(_bufferSize);
+            buf.put(readableSlice());
+            _buf = buf;
+            _readIndex = 0;
+        }
+    }
+
     private void ensureSpaceFor(int numBytes)
     {
         assert numBytes >= 0;
+        resizeIfRequested(numBytes);
         assert numBytes <= _buf.limit();
         if (_readIndex + numBytes > _buf.limit()) {
             ByteBuffer prefetched = readableSlice();
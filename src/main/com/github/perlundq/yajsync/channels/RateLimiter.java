@@ -0,0 +1,118 @@
+/*
+ * Bandwidth limiting of channels
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.channels;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket limiting the number of bytes per second passing through
+ * the channels sharing it, in the form of the generic cell rate
+ * algorithm: each acquire reserves the next free slot of time needed for
+ * its bytes at the rate, and waits for the start of that slot. The bucket
+ * thereby holds at most one acquire worth of tokens and does not save up
+ * for bursts while idle.
+ *
+ * Channels acquire at most chunkSize() bytes at a time, so that data flows
+ * in short and evenly paced slices rather than in bursts of a full buffer
+ * followed by long sleeps.
+ *
+ * A limiter may have a parent shared by several limiters, e.g. a limit per
+ * session within a total limit per module. Acquiring is lock-free.
+ */
+public final class RateLimiter
+{
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    // the time it takes to pass one chunk at the rate
+    private static final long CHUNK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final int MIN_CHUNK_SIZE = 512;
+
+    private final long _bytesPerSecond;
+    private final RateLimiter _parent;
+    private final int _chunkSize;
+    // the end of the last reserved slot
+    private final AtomicLong _nextFreeTime = new AtomicLong(System.nanoTime());
+
+    /**
+     * @param parent another limiter to acquire from as well, or null
+     * @throws IllegalArgumentException if bytesPerSecond is not positive
+     */
+    public RateLimiter(long bytesPerSecond, RateLimiter parent)
+    {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException(String.format(
+                "invalid rate: %d bytes per second", bytesPerSecond));
+        }
+        _bytesPerSecond = bytesPerSecond;
+        _parent = parent;
+        long chunkSize = Math.max(MIN_CHUNK_SIZE,
+                                  bytesPerSecond * CHUNK_NANOS /
+                                  NANOS_PER_SECOND);
+        if (parent != null) {
+            chunkSize = Math.min(chunkSize, parent.chunkSize());
+        }
+        _chunkSize = (int) Math.min(Integer.MAX_VALUE, chunkSize);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s(bytesPerSecond=%d, parent=%s)",
+                             getClass().getSimpleName(), _bytesPerSecond,
+                             _parent);
+    }
+
+    public long bytesPerSecond()
+    {
+        return _bytesPerSecond;
+    }
+
+    /**
+     * @return the maximum number of bytes to acquire at a time
+     */
+    public int chunkSize()
+    {
+        return _chunkSize;
+    }
+
+    /**
+     * Waits until numBytes may pass at the rate of this limiter and its
+     * parents.
+     */
+    public void acquire(int numBytes) throws InterruptedException
+    {
+        assert numBytes >= 0;
+        long cost = numBytes * NANOS_PER_SECOND / _bytesPerSecond;
+        long now = System.nanoTime();
+        long start;
+        while (true) {
+            long nextFreeTime = _nextFreeTime.get();
+            start = now - nextFreeTime > 0 ? now : nextFreeTime;
+            if (_nextFreeTime.compareAndSet(nextFreeTime, start + cost)) {
+                break;
+            }
+        }
+        if (start - now > 0) {
+            TimeUnit.NANOSECONDS.sleep(start - now);
+        }
+        if (_parent != null) {
+            _parent.acquire(numBytes);
+        }
+    }
+}
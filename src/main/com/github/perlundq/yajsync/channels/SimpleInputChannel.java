@@ -28,6 +28,7 @@ import java.nio.channels.ReadableByteChannel;
 import com.github.perlundq.yajsync.util.Consts;
 import com.github.perlundq.yajsync.util.Environment;
 import com.github.perlundq.yajsync.util.RuntimeInterruptException;
+import com.github.perlundq.yajsync.util.Util;
 
 public class SimpleInputChannel implements Readable
 {
@@ -37,6 +38,7 @@ public class SimpleInputChannel implements Readable
     private final ByteBuffer _charBuf;
     private final ByteBuffer _intBuf;
     private long _numBytesRead;
+    private RateLimiter _rateLimiter;
 
     public SimpleInputChannel(ReadableByteChannel sock)
     {
@@ -115,8 +117,21 @@ public class SimpleInputChannel implements Readable
         return _numBytesRead;
     }
 
+    /**
+     * Limit the rate of all data read from now on, or remove the limit if
+     * rateLimiter is null.
+     */
+    public void setRateLimiter(RateLimiter rateLimiter)
+    {
+        _rateLimiter = rateLimiter;
+    }
+
     protected void get(ByteBuffer dst) throws ChannelException
     {
+        if (_rateLimiter != null) {
+            getLimited(dst);
+            return;
+        }
         try {
             while (dst.hasRemaining()) {
                 int count = _sourceChannel.read(dst);
@@ -135,6 +150,37 @@ public class SimpleInputChannel implements Readable
         }
     }
 
+    /**
+     * Read into dst in slices of at most the chunk size of the rate limiter,
+     * acquiring what was read after each read. A read may return less than
+     * a chunk, so acquiring before would overcharge slow peers.
+     */
+    private void getLimited(ByteBuffer dst) throws ChannelException
+    {
+        try {
+            while (dst.hasRemaining()) {
+                int length = Math.min(dst.remaining(),
+                                      _rateLimiter.chunkSize());
+                ByteBuffer slice = Util.slice(dst, dst.position(),
+                                              dst.position() + length);
+                int count = _sourceChannel.read(slice);
+                if (count <= 0) {
+                    throw new ChannelEOFException(String.format(
+                        "channel read unexpectedly returned %d (EOF)", count));
+                }
+                _numBytesRead += count;
+                dst.position(slice.position());
+                _rateLimiter.acquire(count);
+            }
+        } catch (EOFException e) {
+            throw new ChannelEOFException(e);
+        } catch (InterruptedException | ClosedByInterruptException e) {
+            throw new RuntimeInterruptException(e);
+        } catch (IOException e) {
+            throw new ChannelException(e);
+        }
+    }
+
     public void close() throws ChannelException
     {
         try {
@@ -48,6 +48,16 @@ public class TaggedInputChannel extends SimpleInputChannel
         }
     }
 
+    /**
+     * Also limits the rate of message headers and non-data messages.
+     */
+    @Override
+    public void setRateLimiter(RateLimiter rateLimiter)
+    {
+        super.setRateLimiter(rateLimiter);
+        _inputChannel.setRateLimiter(rateLimiter);
+    }
+
     public int numBytesAvailable()
     {
         return _readAmountAvailable;
@@ -20,9 +20,11 @@
  */
 package com.github.perlundq.yajsync.channels;
 
+import java.nio.ByteBuffer;
 import java.nio.channels.WritableByteChannel;
 
 import com.github.perlundq.yajsync.util.Consts;
+import com.github.perlundq.yajsync.util.Util;
 
 public class TaggedOutputChannel extends BufferedOutputChannel
                                  implements Taggable
@@ -64,6 +66,40 @@ public class TaggedOutputChannel extends BufferedOutputChannel
         updateTagOffsetAndBufPos(_buffer.position());
     }
 
+    /**
+     * Data which would not fit into the remaining buffer is not copied but
+     * written together with the buffered data in one gathering write, using
+     * one tag for both. It is still copied if the buffer is direct and src
+     * is not, since the JDK then copies src into a temporary direct buffer
+     * anyway.
+     */
+    @Override
+    public void put(ByteBuffer src) throws ChannelException
+    {
+        if (!isGatheringSink() || src.remaining() <= _buffer.remaining() ||
+            _buffer.isDirect() && !src.isDirect()) {
+            super.put(src);
+            return;
+        }
+        while (src.hasRemaining()) {
+            int numBytesUntagged = numBytesUntagged();
+            int length = Math.min(src.remaining(),
+                                  MessageHeader.MSG_MAX_LENGTH -
+                                  numBytesUntagged);
+            putMessageHeader(_tag_offset,
+                             new MessageHeader(MessageCode.DATA,
+                                               numBytesUntagged + length));
+            ByteBuffer data = Util.slice(src, src.position(),
+                                         src.position() + length);
+            _buffer.flip();
+            send(_buffer, data);
+            src.position(data.position());
+            _buffer.clear();
+            flushed(numBytesUntagged + length + TAG_SIZE);
+            updateTagOffsetAndBufPos(DEFAULT_TAG_OFFSET);
+        }
+    }
+
     @Override
     public void flush() throws ChannelException
     {
@@ -28,6 +28,15 @@ public class StandardServerChannel implements ServerChannel
         _sock = sock;
     }
 
+    /**
+     * @return the underlying channel, e.g. for registering it with a
+     *         Selector
+     */
+    public ServerSocketChannel socketChannel()
+    {
+        return _sock;
+    }
+
     @Override
     public void close() throws IOException
     {
@@ -0,0 +1,395 @@
+/*
+ * File index to file information map stored in primitive arrays
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.filelist;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.github.perlundq.yajsync.text.Text;
+
+/**
+ * The files of a segment stored column wise: path name bytes and file names
+ * in a byte arena, attributes in parallel primitive arrays and users,
+ * groups and parent directories interned in tables of their own, i.e.
+ * about 50 bytes per file in addition to its name instead of the several
+ * hundreds of a FileInfo with its Paths in a TreeMap.
+ *
+ * A FileInfo (and its Paths) is created for each lookup, the last one is
+ * cached since the sender looks up the same file several times in a row.
+ * Flags set on them (e.g. FileInfo.setIsTransferred) are not kept. Files
+ * whose paths may not be recreated from their parent directory and file
+ * name are kept as they are.
+ *
+ * Entries are put in increasing index order, and may then be looked up,
+ * iterated and removed, but not put again.
+ */
+final class CompactFileMap extends AbstractMap<Integer, FileInfo>
+{
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+    private static final int MIN_CHUNK_SIZE = 1024;
+    private static final int MAX_CHUNK_SIZE = 1 << 20;
+    private static final int NOT_COMPACT = -1;
+    private static final int NAME_IN_PATH_NAME = -1;
+
+    private static final class Interner<T>
+    {
+        private final List<T> _values = new ArrayList<>();
+        private final Map<T, Integer> _indices = new HashMap<>();
+        private int _lastIndex = -1;
+
+        int indexOf(T value)
+        {
+            if (_lastIndex >= 0 && value.equals(_values.get(_lastIndex))) {
+                return _lastIndex;
+            }
+            Integer index = _indices.get(value);
+            if (index == null) {
+                index = _values.size();
+                _values.add(value);
+                _indices.put(value, index);
+            }
+            _lastIndex = index;
+            return index;
+        }
+
+        T get(int index)
+        {
+            return _values.get(index);
+        }
+    }
+
+    private final List<byte[]> _chunks = new ArrayList<>();
+    private int _chunkPosition;
+    private final Interner<List<Path>> _parents = new Interner<>();
+    private final Interner<User> _users = new Interner<>();
+    private final Interner<Group> _groups = new Interner<>();
+    private final Map<Integer, FileInfo> _others = new HashMap<>();
+    private final BitSet _isPresent = new BitSet();
+
+    private long[] _offsets;       // chunk index << 32 | position in chunk
+    private int[] _pathNameLengths;
+    private int[] _nameLengths;
+    private int[] _parentIndices;
+    private int[] _modes;
+    private long[] _sizes;
+    private long[] _lastModified;
+    private int[] _userIndices;
+    private int[] _groupIndices;
+
+    private int _firstIndex = -1;
+    private int _lastIndex = -1;
+    private int _size;
+    private int _cachedIndex = -1;
+    private FileInfo _cachedFileInfo;
+
+    /**
+     * @param capacity the expected number of entries
+     */
+    CompactFileMap(int capacity)
+    {
+        assert capacity >= 0;
+        _offsets = new long[capacity];
+        _pathNameLengths = new int[capacity];
+        _nameLengths = new int[capacity];
+        _parentIndices = new int[capacity];
+        _modes = new int[capacity];
+        _sizes = new long[capacity];
+        _lastModified = new long[capacity];
+        _userIndices = new int[capacity];
+        _groupIndices = new int[capacity];
+    }
+
+    @Override
+    public FileInfo put(Integer index, FileInfo fileInfo)
+    {
+        assert index > _lastIndex;
+        if (_firstIndex < 0) {
+            _firstIndex = index;
+        }
+        int slot = index - _firstIndex;
+        ensureCapacity(slot + 1);
+        if (!putCompact(slot, fileInfo)) {
+            _parentIndices[slot] = NOT_COMPACT;
+            _others.put(index, fileInfo);
+        }
+        _isPresent.set(slot);
+        _size++;
+        _lastIndex = index;
+        return null;
+    }
+
+    private boolean putCompact(int slot, FileInfo fileInfo)
+    {
+        Path path = fileInfo.path();
+        Path normalizedPath = fileInfo.normalizedPath();
+        if (path == null || normalizedPath == null ||
+            path.getFileName() == null ||
+            !path.getFileName().equals(normalizedPath.getFileName()))
+        {
+            return false;
+        }
+        String name = path.getFileName().toString();
+        if (name.indexOf('\uFFFD') >= 0) { // might not be decoded as it was
+            return false;
+        }
+
+        byte[] pathNameBytes = fileInfo.pathNameBytes();
+        byte[] nameBytes = name.getBytes(CHARSET);
+        boolean isNameInPathName = isLastComponent(nameBytes, pathNameBytes);
+        int length = pathNameBytes.length +
+                     (isNameInPathName ? 0 : nameBytes.length);
+        if (length > MAX_CHUNK_SIZE) {
+            return false;
+        }
+        byte[] chunk = _chunks.isEmpty() ? null
+                                         : _chunks.get(_chunks.size() - 1);
+        if (chunk == null || _chunkPosition + length > chunk.length) {
+            // grow chunks gradually since most segments are small
+            int chunkSize = chunk == null ? MIN_CHUNK_SIZE
+                                          : Math.min(MAX_CHUNK_SIZE,
+                                                     2 * chunk.length);
+            chunk = new byte[Math.max(length, chunkSize)];
+            _chunks.add(chunk);
+            _chunkPosition = 0;
+        }
+        System.arraycopy(pathNameBytes, 0, chunk, _chunkPosition,
+                         pathNameBytes.length);
+        if (!isNameInPathName) {
+            System.arraycopy(nameBytes, 0, chunk,
+                             _chunkPosition + pathNameBytes.length,
+                             nameBytes.length);
+        }
+
+        _offsets[slot] = (long) (_chunks.size() - 1) << 32 | _chunkPosition;
+        _chunkPosition += length;
+        _pathNameLengths[slot] = pathNameBytes.length;
+        _nameLengths[slot] = isNameInPathName ? NAME_IN_PATH_NAME
+                                              : nameBytes.length;
+        // NOTE: the parent of normalizedPath may be null
+        _parentIndices[slot] =
+            _parents.indexOf(Arrays.asList(path.getParent(),
+                                           normalizedPath.getParent()));
+        RsyncFileAttributes attrs = fileInfo.attrs();
+        _modes[slot] = attrs.mode();
+        _sizes[slot] = attrs.size();
+        _lastModified[slot] = attrs.lastModifiedTime();
+        _userIndices[slot] = _users.indexOf(attrs.user());
+        _groupIndices[slot] = _groups.indexOf(attrs.group());
+        return true;
+    }
+
+    // NOTE: a trailing slash of pathNameBytes is ignored
+    private static boolean isLastComponent(byte[] name, byte[] pathNameBytes)
+    {
+        int end = pathNameBytes.length;
+        if (end > 0 && pathNameBytes[end - 1] == Text.ASCII_SLASH) {
+            end--;
+        }
+        int start = end - name.length;
+        if (start < 0 ||
+            start > 0 && pathNameBytes[start - 1] != Text.ASCII_SLASH)
+        {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (pathNameBytes[start + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void ensureCapacity(int capacity)
+    {
+        if (capacity <= _offsets.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, 2 * _offsets.length);
+        _offsets = Arrays.copyOf(_offsets, newCapacity);
+        _pathNameLengths = Arrays.copyOf(_pathNameLengths, newCapacity);
+        _nameLengths = Arrays.copyOf(_nameLengths, newCapacity);
+        _parentIndices = Arrays.copyOf(_parentIndices, newCapacity);
+        _modes = Arrays.copyOf(_modes, newCapacity);
+        _sizes = Arrays.copyOf(_sizes, newCapacity);
+        _lastModified = Arrays.copyOf(_lastModified, newCapacity);
+        _userIndices = Arrays.copyOf(_userIndices, newCapacity);
+        _groupIndices = Arrays.copyOf(_groupIndices, newCapacity);
+    }
+
+    private FileInfo materialize(int slot)
+    {
+        if (_parentIndices[slot] == NOT_COMPACT) {
+            return _others.get(slot + _firstIndex);
+        }
+        byte[] chunk = _chunks.get((int) (_offsets[slot] >>> 32));
+        int offset = (int) _offsets[slot];
+        byte[] pathNameBytes = Arrays.copyOfRange(
+            chunk, offset, offset + _pathNameLengths[slot]);
+        String name;
+        if (_nameLengths[slot] == NAME_IN_PATH_NAME) {
+            int end = offset + pathNameBytes.length;
+            if (chunk[end - 1] == Text.ASCII_SLASH) {
+                end--;
+            }
+            int start = end;
+            while (start > offset && chunk[start - 1] != Text.ASCII_SLASH) {
+                start--;
+            }
+            name = new String(chunk, start, end - start, CHARSET);
+        } else {
+            name = new String(chunk, offset + pathNameBytes.length,
+                              _nameLengths[slot], CHARSET);
+        }
+
+        List<Path> parents = _parents.get(_parentIndices[slot]);
+        Path path = parents.get(0).resolve(name);
+        Path normalizedPath = parents.get(1) == null
+            ? path.getFileSystem().getPath(name)
+            : parents.get(1).resolve(name);
+        RsyncFileAttributes attrs =
+            new RsyncFileAttributes(_modes[slot], _sizes[slot],
+                                    _lastModified[slot],
+                                    _users.get(_userIndices[slot]),
+                                    _groups.get(_groupIndices[slot]));
+        return new FileInfo(path, normalizedPath, pathNameBytes, attrs);
+    }
+
+    private int slotOf(Object key)
+    {
+        if (!(key instanceof Integer) || _firstIndex < 0) {
+            return -1;
+        }
+        int index = (Integer) key;
+        if (index < _firstIndex || index > _lastIndex) {
+            return -1;
+        }
+        return index - _firstIndex;
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        int slot = slotOf(key);
+        return slot >= 0 && _isPresent.get(slot);
+    }
+
+    @Override
+    public FileInfo get(Object key)
+    {
+        if (!containsKey(key)) {
+            return null;
+        }
+        int index = (Integer) key;
+        if (index != _cachedIndex) {
+            _cachedFileInfo = materialize(index - _firstIndex);
+            _cachedIndex = index;
+        }
+        return _cachedFileInfo;
+    }
+
+    @Override
+    public FileInfo remove(Object key)
+    {
+        FileInfo fileInfo = get(key);
+        if (fileInfo != null) {
+            _isPresent.clear(slotOf(key));
+            _others.remove(key);
+            _size--;
+            _cachedIndex = -1;
+            _cachedFileInfo = null;
+        }
+        return fileInfo;
+    }
+
+    @Override
+    public void clear()
+    {
+        _isPresent.clear();
+        _others.clear();
+        _size = 0;
+        _cachedIndex = -1;
+        _cachedFileInfo = null;
+    }
+
+    @Override
+    public int size()
+    {
+        return _size;
+    }
+
+    @Override
+    public Set<Entry<Integer, FileInfo>> entrySet()
+    {
+        return new AbstractSet<Entry<Integer, FileInfo>>() {
+            @Override
+            public int size()
+            {
+                return _size;
+            }
+
+            @Override
+            public Iterator<Entry<Integer, FileInfo>> iterator()
+            {
+                return new EntryIterator();
+            }
+        };
+    }
+
+    private final class EntryIterator
+        implements Iterator<Entry<Integer, FileInfo>>
+    {
+        private int _nextSlot = _isPresent.nextSetBit(0);
+
+        @Override
+        public boolean hasNext()
+        {
+            return _nextSlot >= 0;
+        }
+
+        @Override
+        public Entry<Integer, FileInfo> next()
+        {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int slot = _nextSlot;
+            _nextSlot = _isPresent.nextSetBit(slot + 1);
+            return new SimpleImmutableEntry<>(slot + _firstIndex,
+                                              materialize(slot));
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -140,6 +140,11 @@ public class FileInfo implements Comparable<FileInfo>
         return _path;
     }
 
+    Path normalizedPath()
+    {
+        return _normalizedPath;
+    }
+
     /**
      * WARNING: the result is undefined if the returned array is modified, it
      * should be considered immutable
@@ -19,10 +19,14 @@
  */
 package com.github.perlundq.yajsync.filelist;
 
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -32,19 +36,43 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.github.perlundq.yajsync.util.Environment;
-import com.github.perlundq.yajsync.util.SortedList;
+import com.github.perlundq.yajsync.util.SortedArray;
 
 public class Filelist
 {
+    /**
+     * Collects the files of a segment. A builder with a spill threshold
+     * writes the files collected so far as a sorted run to a temporary file
+     * each time it holds that many, so that the files of large directories
+     * need not be held in memory at once. The runs are merged when creating
+     * the segment, which then keeps its files in a temporary file too.
+     * Directories are always kept in memory, as are files which may not be
+     * stored in a temporary file (SpillFile.isStorable).
+     */
     public static class SegmentBuilder
     {
         private FileInfo _directory;
-        private SortedList<FileInfo> _files = new SortedList<>();
-        private SortedList<FileInfo> _directories = new SortedList<>();
+        private SortedArray<FileInfo> _files = new SortedArray<>();
+        private SortedArray<FileInfo> _directories = new SortedArray<>();
+        private int _spillThreshold;
+        private SpilledRuns _runs;
+        private FileSystem _fileSystem;
+        private int _numKept;  // files of _files kept when last spilling
 
         public SegmentBuilder(FileInfo directory)
         {
+            this(directory, 0);
+        }
+
+        /**
+         * @param spillThreshold the number of files to hold in memory before
+         *        spilling them to a temporary file, 0 means never
+         */
+        public SegmentBuilder(FileInfo directory, int spillThreshold)
+        {
+            assert spillThreshold >= 0;
             _directory = directory;
+            _spillThreshold = spillThreshold;
         }
 
         @Override
@@ -80,6 +108,46 @@ public class Filelist
             if (fileInfo.attrs().isDirectory()) {
                 _directories.add(fileInfo);
             }
+            if (_spillThreshold > 0 &&
+                _files.size() - _numKept >= _spillThreshold)
+            {
+                spill(fileInfo);
+            }
+        }
+
+        /**
+         * Spilling is turned off if it fails, keeping all files not yet
+         * spilled in memory.
+         */
+        private void spill(FileInfo fileInfo)
+        {
+            try {
+                if (_runs == null) {
+                    _fileSystem = fileInfo.path() == null
+                                      ? FileSystems.getDefault()
+                                      : fileInfo.path().getFileSystem();
+                    _runs = SpilledRuns.create(_fileSystem);
+                }
+                List<FileInfo> spilled = new ArrayList<>(_files.size());
+                SortedArray<FileInfo> kept = new SortedArray<>();
+                for (FileInfo f : _files) {
+                    if (SpillFile.isStorable(f)) {
+                        spilled.add(f);
+                    } else {
+                        kept.add(f);
+                    }
+                }
+                _runs.add(spilled);
+                _files = kept;
+                _numKept = kept.size();
+            } catch (IOException e) {
+                if (_log.isLoggable(Level.WARNING)) {
+                    _log.warning(String.format(
+                        "failed to spill file list of %s to a temporary " +
+                        "file, keeping it in memory: %s", _directory, e));
+                }
+                _spillThreshold = 0;
+            }
         }
 
         public void addAll(Iterable<FileInfo> fileset)
@@ -91,17 +159,47 @@ public class Filelist
 
         public int size()
         {
-            return _files.size();
+            return _files.size() + (_runs == null ? 0 : _runs.numFiles());
         }
 
-        // O(log n) by SortedList
+        /**
+         * O(log n) once sorted, which it is after the first lookup unless
+         * more files are added
+         *
+         * @throws IllegalStateException if files have been spilled
+         */
         public boolean contains(FileInfo fileInfo)
         {
-            return _files.containsElement(fileInfo);
+            if (_runs != null) {
+                throw new IllegalStateException(
+                    "unable to look up spilled files");
+            }
+            return _files.contains(fileInfo);
+        }
+
+        private boolean isSpilled()
+        {
+            return _runs != null;
+        }
+
+        private Iterator<FileInfo> sortedFiles()
+        {
+            if (_runs == null) {
+                return _files.iterator();
+            }
+            try {
+                return _runs.merge(_files);
+            } catch (IOException e) {
+                throw new SpillException(e);
+            }
         }
 
         private void clear()
         {
+            if (_runs != null) {
+                _runs.close();
+                _runs = null;
+            }
             _directory = null;
             _files = null;
             _directories = null;
@@ -116,22 +214,23 @@ public class Filelist
         private final Map<Integer, FileInfo> _files;
         private long _totalFileSize;
 
-        private Segment(FileInfo directory, int dirIndex, List<FileInfo> files,
+        private Segment(FileInfo directory, int dirIndex, int numFiles,
+                        Iterator<FileInfo> sortedFiles,
                         Map<Integer, FileInfo> map)
         {
             assert dirIndex >= -1;
-            assert files != null;
+            assert sortedFiles != null;
             assert map != null;
             _directory = directory;            // NOTE: might be null
             _dirIndex = dirIndex;
-            _endIndex = dirIndex + files.size();
+            _endIndex = dirIndex + numFiles;
             _files = map;
 
             int index = dirIndex + 1;
-            Collections.sort(files);
             FileInfo prev = null;
 
-            for (FileInfo f : files) {
+            while (sortedFiles.hasNext()) {
+                FileInfo f = sortedFiles.next();
                 if (f.equals(prev)) {
                     if (_log.isLoggable(Level.WARNING)) {
                         Path prevPath = prev.path();
@@ -257,6 +356,13 @@ public class Filelist
         {
             return _files.containsKey(index);
         }
+
+        private void close()
+        {
+            if (_files instanceof SpilledFileMap) {
+                ((SpilledFileMap) _files).close();
+            }
+        }
     }
 
     public static final int DONE   = -1;   // done with segment, may be deleted
@@ -292,7 +398,7 @@ public class Filelist
     }
 
     protected Segment newSegment(SegmentBuilder builder,
-                                 SortedMap<Integer, FileInfo> map)
+                                 Map<Integer, FileInfo> map)
     {
         assert (builder._directory == null) ==
                    (_isRecursive && _nextDirIndex == 0 ||
@@ -309,11 +415,16 @@ public class Filelist
         if (_isRecursive) {
             extractStubDirectories(builder._directories);
         }
-        Segment segment = new Segment(builder._directory,
-                                      _nextDirIndex,
-                                      builder._files,
-                                      map);
-        builder.clear();
+        Segment segment;
+        try {
+            segment = new Segment(builder._directory,
+                                  _nextDirIndex,
+                                  builder.size(),
+                                  builder.sortedFiles(),
+                                  map);
+        } finally {
+            builder.clear();
+        }
         _nextDirIndex = segment._endIndex + 1;
         _segments.add(segment);
         _totalFileSize += segment._totalFileSize;
@@ -321,7 +432,7 @@ public class Filelist
         return segment;
     }
 
-    private void extractStubDirectories(SortedList<FileInfo> directories)
+    private void extractStubDirectories(SortedArray<FileInfo> directories)
     {
         if (_log.isLoggable(Level.FINER)) {
             _log.finer("extracting all stub directories from " + directories);
@@ -343,9 +454,33 @@ public class Filelist
         }
     }
 
+    /**
+     * @throws SpillException on I/O errors of temporary files
+     */
     public Segment newSegment(SegmentBuilder builder)
     {
-        return newSegment(builder, new TreeMap<Integer, FileInfo>());
+        if (builder.isSpilled()) {
+            SpilledFileMap map = null;
+            try {
+                map = SpilledFileMap.create(builder._fileSystem);
+            } catch (IOException e) {
+                if (_log.isLoggable(Level.WARNING)) {
+                    _log.warning(String.format(
+                        "failed to create temporary file for segment of " +
+                        "%s, keeping it in memory: %s",
+                        builder._directory, e));
+                }
+            }
+            if (map != null) {
+                try {
+                    return newSegment(builder, map);
+                } catch (SpillException e) {
+                    map.close();
+                    throw e;
+                }
+            }
+        }
+        return newSegment(builder, new CompactFileMap(builder.size()));
     }
 
     @Override
@@ -406,6 +541,15 @@ public class Filelist
         return _stubDirectories.remove(directoryIndex);
     }
 
+    // sender
+    /**
+     * @return the stub directories not yet expanded, in index order
+     */
+    public Collection<FileInfo> stubDirectories()
+    {
+        return Collections.unmodifiableCollection(_stubDirectories.values());
+    }
+
     // sender receiver
     public boolean isExpandable()
     {
@@ -415,7 +559,19 @@ public class Filelist
     // sender receiver generator
     public Segment deleteFirstSegment()
     {
-        return _segments.remove(0);
+        Segment segment = _segments.remove(0);
+        segment.close();
+        return segment;
+    }
+
+    /**
+     * Releases the temporary files of all segments.
+     */
+    public void close()
+    {
+        for (Segment segment : _segments) {
+            segment.close();
+        }
     }
 
     // sender receiver
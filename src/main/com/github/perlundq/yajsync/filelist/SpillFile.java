@@ -0,0 +1,334 @@
+/*
+ * Temporary file storage of file information
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.filelist;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An append only temporary file of FileInfo records, each one tagged with
+ * an index. Records are appended through a buffer and read back through
+ * cursors, which must not read beyond what has been flushed.
+ *
+ * Paths are stored as strings of the file system they were created with,
+ * files whose paths may not be recreated from them must not be appended,
+ * see isStorable. The file is deleted when closed.
+ */
+final class SpillFile
+{
+    // record header: length of the rest of the record, index
+    static final int HEADER_SIZE = 8;
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+    private static final int WRITE_BUF_SIZE = 64 * 1024;
+
+    private final FileChannel _channel;
+    private final FileSystem _fileSystem;
+    private final ByteBuffer _writeBuf = ByteBuffer.allocate(WRITE_BUF_SIZE);
+    private ByteBuffer _recordBuf = ByteBuffer.allocate(1024);
+    private long _numBytesFlushed;
+
+    private SpillFile(FileChannel channel, FileSystem fileSystem)
+    {
+        _channel = channel;
+        _fileSystem = fileSystem;
+    }
+
+    /**
+     * @param fileSystem the file system of the paths of all records
+     * @throws IOException if failing to create a temporary file
+     */
+    static SpillFile create(FileSystem fileSystem) throws IOException
+    {
+        Path path = Files.createTempFile("yajsync-", ".flist");
+        try {
+            FileChannel channel =
+                FileChannel.open(path, StandardOpenOption.READ,
+                                 StandardOpenOption.WRITE,
+                                 StandardOpenOption.DELETE_ON_CLOSE);
+            return new SpillFile(channel, fileSystem);
+        } catch (IOException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+    }
+
+    void close()
+    {
+        try {
+            _channel.close();
+        } catch (IOException e) {
+            // nothing to do about it, the file is not used any more
+        }
+    }
+
+    /**
+     * @return the number of bytes appended, flushed or not
+     */
+    long size()
+    {
+        return _numBytesFlushed + _writeBuf.position();
+    }
+
+    /**
+     * @return true if the paths of fileInfo are recreated as they are when
+     *         read back, which they might not be if the name of the file
+     *         could not be decoded (e.g. non ASCII names in the C locale)
+     */
+    static boolean isStorable(FileInfo fileInfo)
+    {
+        return isStorable(fileInfo.path()) &&
+               isStorable(fileInfo.normalizedPath());
+    }
+
+    private static boolean isStorable(Path pathOrNull)
+    {
+        return pathOrNull == null ||
+               pathOrNull.toString().indexOf('\uFFFD') < 0;
+    }
+
+    /**
+     * @return the offset of the appended record
+     */
+    long append(int index, FileInfo fileInfo) throws IOException
+    {
+        assert isStorable(fileInfo);
+        long offset = size();
+        ByteBuffer record = encode(index, fileInfo);
+        if (record.remaining() > _writeBuf.remaining()) {
+            flush();
+        }
+        if (record.remaining() > _writeBuf.remaining()) {
+            write(record);
+        } else {
+            _writeBuf.put(record);
+        }
+        return offset;
+    }
+
+    void flush() throws IOException
+    {
+        _writeBuf.flip();
+        write(_writeBuf);
+        _writeBuf.clear();
+    }
+
+    private void write(ByteBuffer buf) throws IOException
+    {
+        while (buf.hasRemaining()) {
+            _numBytesFlushed += _channel.write(buf, _numBytesFlushed);
+        }
+    }
+
+    /**
+     * @return a cursor of the records between offset start and end
+     */
+    Cursor cursor(long start, long end, int bufferSize)
+    {
+        assert start <= end && end <= _numBytesFlushed;
+        return new Cursor(start, end, bufferSize);
+    }
+
+    private ByteBuffer encode(int index, FileInfo fileInfo)
+    {
+        byte[] path = toBytesOrNull(fileInfo.path());
+        byte[] normalizedPath = toBytesOrNull(fileInfo.normalizedPath());
+        byte[] pathNameBytes = fileInfo.pathNameBytes();
+        RsyncFileAttributes attrs = fileInfo.attrs();
+        byte[] userName = attrs.user().name().getBytes(CHARSET);
+        byte[] groupName = attrs.group().name().getBytes(CHARSET);
+
+        int length = HEADER_SIZE + 3 * 4 + lengthOf(path) +
+                     lengthOf(normalizedPath) + pathNameBytes.length +
+                     4 + 8 + 8 + 2 * 4 + userName.length + 2 * 4 +
+                     groupName.length;
+        if (_recordBuf.capacity() < length) {
+            int capacity = Math.max(length, 2 * _recordBuf.capacity());
+            _recordBuf = ByteBuffer.allocate(capacity);
+        }
+        _recordBuf.clear();
+        _recordBuf.putInt(length - 4);
+        _recordBuf.putInt(index);
+        putBytes(path);
+        putBytes(normalizedPath);
+        putBytes(pathNameBytes);
+        _recordBuf.putInt(attrs.mode());
+        _recordBuf.putLong(attrs.size());
+        _recordBuf.putLong(attrs.lastModifiedTime());
+        putBytes(userName);
+        _recordBuf.putInt(attrs.user().id());
+        putBytes(groupName);
+        _recordBuf.putInt(attrs.group().id());
+        _recordBuf.flip();
+        return _recordBuf;
+    }
+
+    private static byte[] toBytesOrNull(Path pathOrNull)
+    {
+        return pathOrNull == null ? null
+                                  : pathOrNull.toString().getBytes(CHARSET);
+    }
+
+    private static int lengthOf(byte[] bytesOrNull)
+    {
+        return bytesOrNull == null ? 0 : bytesOrNull.length;
+    }
+
+    private void putBytes(byte[] bytesOrNull)
+    {
+        if (bytesOrNull == null) {
+            _recordBuf.putInt(-1);
+        } else {
+            _recordBuf.putInt(bytesOrNull.length);
+            _recordBuf.put(bytesOrNull);
+        }
+    }
+
+    private static byte[] getBytesOrNull(ByteBuffer buf)
+    {
+        int length = buf.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] result = new byte[length];
+        buf.get(result);
+        return result;
+    }
+
+    private Path getPathOrNull(ByteBuffer buf)
+    {
+        byte[] bytes = getBytesOrNull(buf);
+        return bytes == null ? null
+                             : _fileSystem.getPath(new String(bytes, CHARSET));
+    }
+
+    private FileInfo decode(ByteBuffer buf)
+    {
+        Path path = getPathOrNull(buf);
+        Path normalizedPath = getPathOrNull(buf);
+        byte[] pathNameBytes = getBytesOrNull(buf);
+        int mode = buf.getInt();
+        long size = buf.getLong();
+        long lastModified = buf.getLong();
+        User user = new User(new String(getBytesOrNull(buf), CHARSET),
+                             buf.getInt());
+        Group group = new Group(new String(getBytesOrNull(buf), CHARSET),
+                                buf.getInt());
+        RsyncFileAttributes attrs =
+            new RsyncFileAttributes(mode, size, lastModified, user, group);
+        return new FileInfo(path, normalizedPath, pathNameBytes, attrs);
+    }
+
+    /**
+     * Sequential reader of records.
+     */
+    final class Cursor
+    {
+        private final long _end;
+        private long _filePosition;  // of the next byte to read into _buf
+        private ByteBuffer _buf;     // always flipped
+        private int _index;
+
+        private Cursor(long start, long end, int bufferSize)
+        {
+            _filePosition = start;
+            _end = end;
+            _buf = ByteBuffer.allocate(bufferSize);
+            _buf.flip();
+        }
+
+        boolean hasNext()
+        {
+            return _buf.hasRemaining() || _filePosition < _end;
+        }
+
+        /**
+         * @return the index of the next record, without consuming it
+         */
+        int peekIndex() throws IOException
+        {
+            ensure(HEADER_SIZE);
+            return _buf.getInt(_buf.position() + 4);
+        }
+
+        void skip() throws IOException
+        {
+            ensure(4);
+            int length = _buf.getInt(_buf.position());
+            ensure(4 + length);
+            _buf.position(_buf.position() + 4 + length);
+        }
+
+        FileInfo next() throws IOException
+        {
+            ensure(4);
+            int length = _buf.getInt();
+            ensure(length);
+            _index = _buf.getInt();
+            return decode(_buf);
+        }
+
+        /**
+         * @return the index of the record last returned by next()
+         */
+        int index()
+        {
+            return _index;
+        }
+
+        private void ensure(int numBytes) throws IOException
+        {
+            if (_buf.remaining() >= numBytes) {
+                return;
+            }
+            if (_buf.capacity() < numBytes) {
+                ByteBuffer buf = ByteBuffer.allocate(numBytes);
+                buf.put(_buf);
+                _buf = buf;
+            } else {
+                _buf.compact();
+            }
+            while (_buf.position() < numBytes) {
+                int length = (int) Math.min(_buf.remaining(),
+                                            _end - _filePosition);
+                if (length <= 0) {
+                    throw new EOFException(String.format(
+                        "truncated record at %d", _filePosition));
+                }
+                ByteBuffer dst = _buf.duplicate();
+                dst.limit(_buf.position() + length);
+                int count = _channel.read(dst, _filePosition);
+                if (count < 0) {
+                    throw new EOFException(String.format(
+                        "unexpected end of file at %d", _filePosition));
+                }
+                _buf.position(dst.position());
+                _filePosition += count;
+            }
+            _buf.flip();
+        }
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * File index to file information map stored in a temporary file
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.filelist;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The files of a segment too large to be kept in memory. Entries are
+ * appended to a SpillFile by put, in increasing index order, and may then
+ * be looked up, iterated (sequentially from the file) and removed, but not
+ * put again.
+ *
+ * In memory there is one bit per index, telling whether it is present, and
+ * the offset of every CHECKPOINT_INTERVAL:th index, so that a lookup reads
+ * at most that many records. The last entry looked up is cached since the
+ * sender looks up the same file several times in a row.
+ *
+ * Values are decoded for each lookup, so flags set on them (e.g.
+ * FileInfo.setIsTransferred) are not kept. Files whose paths may not be
+ * stored in the file (SpillFile.isStorable) are kept as they are. I/O
+ * errors of the temporary file are thrown as SpillException.
+ */
+final class SpilledFileMap extends AbstractMap<Integer, FileInfo>
+{
+    private static final int CHECKPOINT_INTERVAL = 64;
+    private static final int LOOKUP_BUF_SIZE = 4 * 1024;
+    private static final int SCAN_BUF_SIZE = 64 * 1024;
+
+    private final SpillFile _file;
+    private final BitSet _isPresent = new BitSet();
+    private final Map<Integer, FileInfo> _others = new TreeMap<>();
+    private long[] _checkpoints = new long[16];
+    private int _numCheckpoints;
+    private int _firstIndex = -1;
+    private int _lastIndex = -1;
+    private int _size;
+    private boolean _isFlushed;
+    private int _cachedIndex = -1;
+    private FileInfo _cachedFileInfo;
+
+    private SpilledFileMap(SpillFile file)
+    {
+        _file = file;
+    }
+
+    /**
+     * @throws IOException if failing to create a temporary file
+     */
+    static SpilledFileMap create(FileSystem fileSystem) throws IOException
+    {
+        return new SpilledFileMap(SpillFile.create(fileSystem));
+    }
+
+    void close()
+    {
+        clear();
+        _file.close();
+    }
+
+    @Override
+    public FileInfo put(Integer index, FileInfo fileInfo)
+    {
+        assert !_isFlushed;
+        assert index > _lastIndex;
+        if (_firstIndex < 0) {
+            _firstIndex = index;
+        }
+        int slot = index - _firstIndex;
+        if (!SpillFile.isStorable(fileInfo)) {
+            _others.put(index, fileInfo);
+        } else {
+            putSpilled(slot, index, fileInfo);
+        }
+        _isPresent.set(slot);
+        _size++;
+        _lastIndex = index;
+        return null;
+    }
+
+    private void putSpilled(int slot, int index, FileInfo fileInfo)
+    {
+        try {
+            long offset = _file.append(index, fileInfo);
+            while (_numCheckpoints <= slot / CHECKPOINT_INTERVAL) {
+                if (_numCheckpoints == _checkpoints.length) {
+                    _checkpoints = Arrays.copyOf(_checkpoints,
+                                                 2 * _checkpoints.length);
+                }
+                _checkpoints[_numCheckpoints++] = offset;
+            }
+        } catch (IOException e) {
+            throw new SpillException(e);
+        }
+    }
+
+    private int slotOf(Object key)
+    {
+        if (!(key instanceof Integer) || _firstIndex < 0) {
+            return -1;
+        }
+        int index = (Integer) key;
+        if (index < _firstIndex || index > _lastIndex) {
+            return -1;
+        }
+        return index - _firstIndex;
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        int slot = slotOf(key);
+        return slot >= 0 && _isPresent.get(slot);
+    }
+
+    @Override
+    public FileInfo get(Object key)
+    {
+        if (!containsKey(key)) {
+            return null;
+        }
+        int index = (Integer) key;
+        FileInfo other = _others.get(index);
+        if (other != null) {
+            return other;
+        }
+        if (index == _cachedIndex) {
+            return _cachedFileInfo;
+        }
+        try {
+            flushIfWriting();
+            long start = _checkpoints[slotOf(key) / CHECKPOINT_INTERVAL];
+            SpillFile.Cursor cursor = _file.cursor(start, _file.size(),
+                                                   LOOKUP_BUF_SIZE);
+            while (cursor.peekIndex() != index) {
+                cursor.skip();
+            }
+            _cachedFileInfo = cursor.next();
+            _cachedIndex = index;
+            return _cachedFileInfo;
+        } catch (IOException e) {
+            throw new SpillException(e);
+        }
+    }
+
+    @Override
+    public FileInfo remove(Object key)
+    {
+        FileInfo fileInfo = get(key);
+        if (fileInfo != null) {
+            _isPresent.clear(slotOf(key));
+            _others.remove(key);
+            _size--;
+            if ((Integer) key == _cachedIndex) {
+                _cachedIndex = -1;
+                _cachedFileInfo = null;
+            }
+        }
+        return fileInfo;
+    }
+
+    @Override
+    public void clear()
+    {
+        _isPresent.clear();
+        _others.clear();
+        _size = 0;
+        _cachedIndex = -1;
+        _cachedFileInfo = null;
+    }
+
+    @Override
+    public int size()
+    {
+        return _size;
+    }
+
+    private void flushIfWriting() throws IOException
+    {
+        if (!_isFlushed) {
+            _file.flush();
+            _isFlushed = true;
+        }
+    }
+
+    @Override
+    public Set<Entry<Integer, FileInfo>> entrySet()
+    {
+        return new AbstractSet<Entry<Integer, FileInfo>>() {
+            @Override
+            public int size()
+            {
+                return _size;
+            }
+
+            @Override
+            public Iterator<Entry<Integer, FileInfo>> iterator()
+            {
+                return new EntryIterator();
+            }
+        };
+    }
+
+    // merges the entries of the file with those kept in memory, in index
+    // order
+    private final class EntryIterator
+        implements Iterator<Entry<Integer, FileInfo>>
+    {
+        private final SpillFile.Cursor _cursor;
+        // a copy since entries may be removed while iterating
+        private final Iterator<Entry<Integer, FileInfo>> _otherIt =
+            new ArrayList<>(_others.entrySet()).iterator();
+        private boolean _isNextFound;
+        private Entry<Integer, FileInfo> _nextOther;
+
+        private EntryIterator()
+        {
+            try {
+                flushIfWriting();
+            } catch (IOException e) {
+                throw new SpillException(e);
+            }
+            _cursor = _file.cursor(0, _file.size(), SCAN_BUF_SIZE);
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return hasNextInFile() || hasNextOther();
+        }
+
+        private boolean hasNextInFile()
+        {
+            if (_isNextFound) {
+                return true;
+            } else if (_size == 0) {
+                return false;
+            }
+            try {
+                while (_cursor.hasNext()) {
+                    int slot = _cursor.peekIndex() - _firstIndex;
+                    if (_isPresent.get(slot)) {
+                        _isNextFound = true;
+                        return true;
+                    }
+                    _cursor.skip();
+                }
+                return false;
+            } catch (IOException e) {
+                throw new SpillException(e);
+            }
+        }
+
+        private boolean hasNextOther()
+        {
+            while (_nextOther == null && _otherIt.hasNext()) {
+                Entry<Integer, FileInfo> e = _otherIt.next();
+                if (_isPresent.get(e.getKey() - _firstIndex)) {
+                    _nextOther = e;
+                }
+            }
+            return _nextOther != null;
+        }
+
+        @Override
+        public Entry<Integer, FileInfo> next()
+        {
+            boolean isNextInFile = hasNextInFile();
+            boolean isNextOther = hasNextOther();
+            try {
+                if (isNextOther &&
+                    (!isNextInFile ||
+                     _nextOther.getKey() < _cursor.peekIndex()))
+                {
+                    Entry<Integer, FileInfo> e = _nextOther;
+                    _nextOther = null;
+                    return new SimpleImmutableEntry<>(e);
+                } else if (!isNextInFile) {
+                    throw new NoSuchElementException();
+                }
+                _isNextFound = false;
+                FileInfo fileInfo = _cursor.next();
+                return new SimpleImmutableEntry<>(_cursor.index(), fileInfo);
+            } catch (IOException e) {
+                throw new SpillException(e);
+            }
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
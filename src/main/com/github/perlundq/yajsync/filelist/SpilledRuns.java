@@ -0,0 +1,208 @@
+/*
+ * Sorted runs of file information stored in a temporary file
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.filelist;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Sorted runs of files spilled by a SegmentBuilder, merged back into one
+ * sorted sequence by a k-way merge. Equal files of different runs are
+ * returned in the order of their runs, so that the merge is stable if the
+ * runs are sorted stably.
+ *
+ * A merge reads each run through a buffer of its own. If there are more
+ * than MAX_MERGE_WIDTH runs, the first ones are merged into a new run first,
+ * which keeps the memory needed independent of the number of files.
+ */
+final class SpilledRuns
+{
+    private static final int MAX_MERGE_WIDTH = 64;
+    private static final int RUN_BUF_SIZE = 16 * 1024;
+
+    private final SpillFile _file;
+    private final List<long[]> _runs = new ArrayList<>(); // {start, end}
+    private int _numFiles;
+
+    private SpilledRuns(SpillFile file)
+    {
+        _file = file;
+    }
+
+    /**
+     * @throws IOException if failing to create a temporary file
+     */
+    static SpilledRuns create(FileSystem fileSystem) throws IOException
+    {
+        return new SpilledRuns(SpillFile.create(fileSystem));
+    }
+
+    void close()
+    {
+        _file.close();
+    }
+
+    int numFiles()
+    {
+        return _numFiles;
+    }
+
+    /**
+     * Appends sortedFiles as a new run. Nothing is added on failure.
+     */
+    void add(Iterable<FileInfo> sortedFiles) throws IOException
+    {
+        long start = _file.size();
+        int numFiles = 0;
+        for (FileInfo f : sortedFiles) {
+            _file.append(-1, f);
+            numFiles++;
+        }
+        _file.flush();
+        _runs.add(new long[] { start, _file.size() });
+        _numFiles += numFiles;
+    }
+
+    /**
+     * @param lastSortedFiles files sorted but not spilled, added after all
+     *        runs
+     * @return all files in sorted order, the iterator throws SpillException
+     *         on I/O errors
+     */
+    Iterator<FileInfo> merge(Iterable<FileInfo> lastSortedFiles)
+        throws IOException
+    {
+        while (_runs.size() > MAX_MERGE_WIDTH) {
+            List<long[]> first = _runs.subList(0, MAX_MERGE_WIDTH);
+            long start = _file.size();
+            Iterator<FileInfo> it = new MergeIterator(first, null);
+            while (it.hasNext()) {
+                _file.append(-1, it.next());
+            }
+            _file.flush();
+            first.clear();
+            _runs.add(0, new long[] { start, _file.size() });
+        }
+        return new MergeIterator(_runs, lastSortedFiles.iterator());
+    }
+
+    private abstract static class Source
+    {
+        final int _ordinal;
+        FileInfo _head;
+
+        Source(int ordinal)
+        {
+            _ordinal = ordinal;
+        }
+
+        /**
+         * Sets _head to the next file, or to null if there are no more.
+         */
+        abstract void advance() throws IOException;
+    }
+
+    private static final Comparator<Source> SOURCE_ORDER =
+        new Comparator<Source>() {
+            @Override
+            public int compare(Source left, Source right)
+            {
+                int result = left._head.compareTo(right._head);
+                if (result == 0) {
+                    return Integer.compare(left._ordinal, right._ordinal);
+                }
+                return result;
+            }
+        };
+
+    private final class MergeIterator implements Iterator<FileInfo>
+    {
+        private final PriorityQueue<Source> _queue;
+
+        private MergeIterator(List<long[]> runs, Iterator<FileInfo> lastOrNull)
+            throws IOException
+        {
+            _queue = new PriorityQueue<>(runs.size() + 1, SOURCE_ORDER);
+            int ordinal = 0;
+            for (long[] run : runs) {
+                final SpillFile.Cursor cursor =
+                    _file.cursor(run[0], run[1], RUN_BUF_SIZE);
+                offer(new Source(ordinal++) {
+                    @Override
+                    void advance() throws IOException
+                    {
+                        _head = cursor.hasNext() ? cursor.next() : null;
+                    }
+                });
+            }
+            if (lastOrNull != null) {
+                final Iterator<FileInfo> it = lastOrNull;
+                offer(new Source(ordinal) {
+                    @Override
+                    void advance()
+                    {
+                        _head = it.hasNext() ? it.next() : null;
+                    }
+                });
+            }
+        }
+
+        private void offer(Source source) throws IOException
+        {
+            source.advance();
+            if (source._head != null) {
+                _queue.add(source);
+            }
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return !_queue.isEmpty();
+        }
+
+        @Override
+        public FileInfo next()
+        {
+            Source source = _queue.poll();
+            if (source == null) {
+                throw new NoSuchElementException();
+            }
+            FileInfo result = source._head;
+            try {
+                offer(source);
+            } catch (IOException e) {
+                throw new SpillException(e);
+            }
+            return result;
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 /*
  * Slidable file buffer which defers I/O errors until it is closed and
- * provides direct access to buffer contents
+ * provides direct access to buffer contents, optionally backed by memory
+ * mapped regions of the file
  *
  * Copyright (C) 1996-2011 by Andrew Tridgell, Wayne Davison, and others
  * Copyright (C) 2013, 2014 Per Lundqvist
@@ -24,24 +25,54 @@ import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.github.perlundq.yajsync.util.Environment;
 import com.github.perlundq.yajsync.util.RuntimeInterruptException;
 
+/**
+ * A sliding window over the contents of a file. Files of a size of at least
+ * Environment.getMapThreshold() bytes are memory mapped in regions of
+ * MAP_REGION_SIZE bytes (or bufferSize if larger), which are remapped as
+ * the window moves instead of being read into and compacted within a heap
+ * buffer.
+ *
+ * A region is only mapped if the file is still large enough, otherwise the
+ * view continues with a heap buffer, reading the rest of the file with
+ * positional reads like the stream based view. If a mapped file is
+ * truncated concurrently, accessing the truncated part of the mapped
+ * buffer results in an InternalError (SIGBUS), which in compiled code is
+ * thrown asynchronously, i.e. shortly after the failing access. Callers
+ * accessing buffer() or valueAt of a mapped view must therefore catch it
+ * around their whole scan and call setAccessError, and use copyTo for data
+ * which is to be written anywhere, as it reads using the file channel
+ * instead. Either way the view then continues with zeroes and close throws
+ * FileViewReadError as for any other read error.
+ */
 public class FileView implements AutoCloseable
 {
     private static final Logger _log =
         Logger.getLogger(FileView.class.getName());
     public final static int DEFAULT_BLOCK_SIZE = 8 * 1024;
-    private final InputStream _is;
-    private final int _windowLength;  // size of sliding window (<= _buf.length)
-    private final byte[] _buf;
+    public final static int MAP_REGION_SIZE = 64 * 1024 * 1024;
+    private final InputStream _is;        // null unless read using a stream
+    private final FileChannel _channel;   // null unless above threshold
+    private boolean _isMapped;            // false if _channel is read from
+    private final int _windowLength;  // size of sliding window (<= _bufferSize)
+    private final int _bufferSize;    // max number of bytes marked + in window
+    private final long _fileSize;
+    private final int _mapRegionSize;
+    private ByteBuffer _buf;
+    private long _mapPosition = 0;    // file position of _buf offset 0
     private final String _fileName;
     private int _startOffset = 0;
     private int _endOffset = -1;     // length == _endOffset - _startOffset + 1
@@ -52,28 +83,60 @@ public class FileView implements AutoCloseable
 
     public FileView(Path path, long fileSize, int windowLength, int bufferSize)
         throws FileViewOpenFailed
+    {
+        this(path, fileSize, windowLength, bufferSize,
+             Environment.getMapThreshold(), MAP_REGION_SIZE);
+    }
+
+    FileView(Path path, long fileSize, int windowLength, int bufferSize,
+             long mapThreshold, int mapRegionSize)
+        throws FileViewOpenFailed
     {
         assert path != null;
         assert fileSize >= 0;
         assert windowLength >= 0;
         assert bufferSize >= 0;
         assert windowLength <= bufferSize;
+        assert mapRegionSize > 0;
 
+        _mapRegionSize = mapRegionSize;
         try {
             _fileName = path.toString();
+            _fileSize = fileSize;
             _remainingBytes = fileSize;
 
-            if (fileSize > 0) {
+            if (fileSize > 0 && fileSize >= mapThreshold) {
+                _is = null;
+                _channel = FileChannel.open(path, StandardOpenOption.READ);
+                _windowLength = windowLength;
+                _bufferSize = bufferSize;
+                try {
+                    _buf = map(0);
+                    _isMapped = true;
+                } catch (EOFException e) {  // truncated, read what is left
+                    _buf = ByteBuffer.allocate(bufferSize);
+                } catch (IOException e) {
+                    _channel.close();
+                    throw e;
+                }
+                slide(0);
+                assert _startOffset == 0;
+                assert _endOffset >= 0;
+            } else if (fileSize > 0) {
                 _is = Files.newInputStream(path);
+                _channel = null;
                 _windowLength = windowLength;
-                _buf = new byte[bufferSize];
+                _bufferSize = bufferSize;
+                _buf = ByteBuffer.allocate(bufferSize);
                 slide(0);
                 assert _startOffset == 0;
                 assert _endOffset >= 0;
             } else {
                 _is = null;
+                _channel = null;
                 _windowLength = 0;
-                _buf = new byte[0];
+                _bufferSize = 0;
+                _buf = ByteBuffer.allocate(0);
             }
 
         } catch (FileNotFoundException | NoSuchFileException e) { // TODO: which exception should we really catch
@@ -83,28 +146,50 @@ public class FileView implements AutoCloseable
         }
     }
 
+    /**
+     * Opens path for reading with a plain file channel instead of a view,
+     * e.g. for only computing its checksum.
+     *
+     * @throws FileViewNotFound if path does not exist
+     * @throws FileViewOpenFailed if failing to open path for any other reason
+     */
+    public static FileChannel openChannel(Path path) throws FileViewOpenFailed
+    {
+        try {
+            return FileChannel.open(path, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            throw new FileViewNotFound(e.getMessage());
+        } catch (IOException e) {
+            throw new FileViewOpenFailed(e.getMessage());
+        }
+    }
+
     @Override
     public String toString()
     {
         return String.format("%s (fileName=%s, startOffset=%d, markOffset=%d," +
                              " endOffset=%d, windowLength=%d, " +
-                             "prefetchedOffset=%d, remainingBytes=%d)",
+                             "prefetchedOffset=%d, remainingBytes=%d, " +
+                             "isMapped=%s)",
                              this.getClass().getSimpleName(),
                              _fileName, _startOffset, _markOffset, endOffset(),
-                             windowLength(), _readOffset, _remainingBytes);
+                             windowLength(), _readOffset, _remainingBytes,
+                             isMapped());
     }
 
     @Override
     public void close() throws FileViewReadError
     {
-        if (_is != null) {
-            try {
+        try {
+            if (_is != null) {
                 _is.close();
-            } catch (ClosedByInterruptException e) {
-                throw new RuntimeInterruptException(e);
-            } catch (IOException e) {
-                throw new FileViewReadError(e);
+            } else if (_channel != null) {
+                _channel.close();
             }
+        } catch (ClosedByInterruptException e) {
+            throw new RuntimeInterruptException(e);
+        } catch (IOException e) {
+            throw new FileViewReadError(e);
         }
 
         if (_ioError != null) {
@@ -112,16 +197,86 @@ public class FileView implements AutoCloseable
         }
     }
 
-    public byte[] array()
+    /**
+     * @return the buffer holding the data of this view, all offsets of
+     *     this view are absolute offsets into it. The buffer must not be
+     *     modified and its position and limit are undefined. Use
+     *     Util.slice for accessing a range of it.
+     */
+    public ByteBuffer buffer()
     {
         return _buf;
     }
 
+    public boolean isMapped()
+    {
+        return _isMapped;
+    }
+
+    /**
+     * Turns an InternalError thrown when accessing buffer() of a mapped
+     * view (i.e. the file was truncated concurrently) into a read error.
+     * The buffer is replaced with a heap buffer of zeroes and all offsets
+     * may change, the rest of the file is read as zeroes and close throws
+     * FileViewReadError.
+     *
+     * @throws InternalError e if this view is not mapped, i.e. the error
+     *         cannot stem from accessing it
+     */
+    public void setAccessError(InternalError e)
+    {
+        if (!_isMapped) {
+            throw e;
+        }
+        _ioError = new IOException(String.format(
+            "%s truncated while mapped", _fileName), e);
+        unmap();
+    }
+
+    // continue with a heap buffer of zeroes after _ioError
+    private void unmap()
+    {
+        if (_log.isLoggable(Level.WARNING)) {
+            _log.warning(String.format("failed to access mapped %s: %s",
+                                       _fileName, _ioError));
+        }
+        _isMapped = false;
+        // keep the window and any marked data, the remaining prefetched
+        // data is read again (as zeroes)
+        int shiftOffset = firstOffset();
+        _remainingBytes += _readOffset - _endOffset;
+        _readOffset = _endOffset;
+        _buf = ByteBuffer.allocate(_bufferSize);
+        shiftOffsets(shiftOffset);
+    }
+
+    /**
+     * Copies length bytes at offset into dst. If this view is mapped they
+     * are read from the file instead, with zeroes if it was truncated
+     * concurrently, in which case all offsets may change as with
+     * setAccessError.
+     */
+    public void copyTo(int offset, byte[] dst, int dstOffset, int length)
+    {
+        assert offset >= firstOffset();
+        assert offset + length <= _endOffset + 1;
+        if (_isMapped) {
+            readFully(_mapPosition + offset, dst, dstOffset, length);
+            if (_ioError != null) {
+                unmap();
+            }
+        } else {
+            ByteBuffer src = _buf.duplicate();
+            src.limit(offset + length).position(offset);
+            src.get(dst, dstOffset, length);
+        }
+    }
+
     // TODO: the names startOffset and firstOffset are confusingly similar
     public int startOffset()
     {
         assert _startOffset >= 0;
-        assert _startOffset <= _buf.length - 1 || _is == null;
+        assert _startOffset <= _buf.capacity() - 1 || _fileSize == 0;
         return _startOffset;
     }
 
@@ -129,7 +284,7 @@ public class FileView implements AutoCloseable
     public int markOffset()
     {
         assert _markOffset >= -1;
-        assert _markOffset <= _buf.length - 1 || _is == null;
+        assert _markOffset <= _buf.capacity() - 1 || _fileSize == 0;
         return _markOffset;
     }
 
@@ -182,23 +337,33 @@ public class FileView implements AutoCloseable
         return _endOffset - firstOffset() + 1;
     }
 
+    /**
+     * @return the number of bytes the window may slide (one byte at a
+     *         time) without reading any more data and without this view
+     *         becoming full, the window length stays the same meanwhile
+     */
+    public int numBytesSlidable()
+    {
+        return Math.min(_readOffset - _endOffset, _bufferSize - totalBytes());
+    }
+
     private int bufferSpaceAvailable()
     {
-        assert _readOffset <= _buf.length - 1;
-        return (_buf.length - 1) - _readOffset;
+        assert _readOffset <= _buf.capacity() - 1;
+        return (_buf.capacity() - 1) - _readOffset;
     }
 
     public byte valueAt(int offset)
     {
         assert offset >= firstOffset();
         assert offset <= _endOffset;
-        return _buf[offset];
+        return _buf.get(offset);
     }
 
     public boolean isFull()
     {
-        assert totalBytes() <= _buf.length;
-        return totalBytes() == _buf.length; // || windowLength() == 0 && _remainingBytes == 0
+        assert totalBytes() <= _bufferSize;
+        return totalBytes() == _bufferSize; // || windowLength() == 0 && _remainingBytes == 0
     }
 
     private void readBetween(int min, int max) throws IOException
@@ -208,8 +373,14 @@ public class FileView implements AutoCloseable
         assert max <= bufferSpaceAvailable();
 
         int numBytesRead = 0;
+        if (isMapped()) {
+            // all data of the mapped region is already available
+            numBytesRead = max;
+            _readOffset += max;
+            _remainingBytes -= max;
+        }
         while (numBytesRead < min) {
-            int len = _is.read(_buf, _readOffset + 1 , max - numBytesRead);
+            int len = read(_buf.array(), _readOffset + 1, max - numBytesRead);
             if (len <= 0) {
                 throw new EOFException(String.format("File ended prematurely " +
                                                      "(%d)", len));
@@ -227,12 +398,47 @@ public class FileView implements AutoCloseable
     }
 
 
+    private int read(byte[] dst, int offset, int length) throws IOException
+    {
+        if (_is != null) {
+            return _is.read(dst, offset, length);
+        }
+        // the rest of a file truncated before being mapped
+        return _channel.read(ByteBuffer.wrap(dst, offset, length),
+                             _fileSize - _remainingBytes);
+    }
+
+    // positional reads of the channel fail instead of raising SIGBUS if
+    // the file is truncated, in which case the rest of dst is zeroed
+    private void readFully(long position, byte[] dst, int offset, int length)
+    {
+        ByteBuffer buf = ByteBuffer.wrap(dst, offset, length);
+        try {
+            while (buf.hasRemaining()) {
+                long filePosition = position + buf.position() - offset;
+                if (_channel.read(buf, filePosition) <= 0) {
+                    throw new EOFException(String.format(
+                        "%s truncated to less than %d bytes", _fileName,
+                        filePosition + 1));
+                }
+            }
+        } catch (ClosedByInterruptException e) {
+            throw new RuntimeInterruptException(e);
+        } catch (IOException e) {
+            if (_ioError == null) {
+                _ioError = e;
+            }
+            Arrays.fill(dst, buf.position(), offset + length, (byte) 0);
+        }
+    }
+
     private void readZeroes(int amount)
     {
         assert amount <= _remainingBytes;
         assert amount <= bufferSpaceAvailable();
 
-        Arrays.fill(_buf, _readOffset + 1, _readOffset + 1 + amount, (byte)0);
+        Arrays.fill(_buf.array(), _readOffset + 1, _readOffset + 1 + amount,
+                    (byte)0);
         _readOffset += amount;
         _remainingBytes -= amount;
     }
@@ -245,7 +451,8 @@ public class FileView implements AutoCloseable
      * _markOffset position relative to _startOffset is left unchanged
      * _errorOffset might be set if an IO error occurred
      * _readOffset will be >= _endOffset and marks the position of the last available prefetched byte
-     * read data might be compacted if there's not enough room left in the buffer
+     * read data might be compacted (or remapped) if there's not enough room
+     * left in the buffer
      */
     public void slide(int slideAmount)
     {
@@ -271,7 +478,11 @@ public class FileView implements AutoCloseable
 
         if (minBytesToRead > 0) {
             if (minBytesToRead > bufferSpaceAvailable()) {
-                compact();
+                if (isMapped()) {
+                    remap();
+                } else {
+                    compact();
+                }
             }
 
             int saveOffset = _readOffset;
@@ -298,22 +509,22 @@ public class FileView implements AutoCloseable
         assert _endOffset <= _readOffset;
     }
 
-    private void compact()
+    // @throws EOFException if the file is no longer large enough, which
+    //         would make accessing the mapped buffer fail
+    private ByteBuffer map(long position) throws IOException
     {
-        assert numBytesPrefetched() >= 0;
-        assert totalBytes() >= 0; // unless we'd support skipping
-
-        int shiftOffset = firstOffset();
-        int numShifts = numBytesMarked() + numBytesPrefetched();
-
-        if (_log.isLoggable(Level.FINEST)) {
-            _log.finest(String.format(
-                "compact of %s before - buf[%d] %d bytes to buf[0], " +
-                "buf.length = %d",
-                this, shiftOffset, numShifts, _buf.length));
+        long size = Math.min(Math.max(_mapRegionSize, _bufferSize),
+                             _fileSize - position);
+        long currentSize = _channel.size();
+        if (currentSize < position + size) {
+            throw new EOFException(String.format(
+                "%s truncated to %d bytes", _fileName, currentSize));
         }
+        return _channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
 
-        System.arraycopy(_buf, shiftOffset, _buf, 0, numShifts);
+    private void shiftOffsets(int shiftOffset)
+    {
         _startOffset -= shiftOffset;
         _endOffset -= shiftOffset;
         _readOffset -= shiftOffset;
@@ -325,6 +536,61 @@ public class FileView implements AutoCloseable
         assert _endOffset >= -1;
         assert _readOffset >= -1;
         assert _markOffset >= -1;
+    }
+
+    // map a new region starting at firstOffset(), if mapping fails we
+    // continue with a heap buffer, which is then filled with the rest of a
+    // truncated file or zeroes as with any other read error
+    private void remap()
+    {
+        assert numBytesPrefetched() >= 0;
+        assert totalBytes() >= 0; // unless we'd support skipping
+
+        int shiftOffset = firstOffset();
+        long position = _mapPosition + shiftOffset;
+
+        if (_log.isLoggable(Level.FINEST)) {
+            _log.finest(String.format("remap of %s at file position %d",
+                                      this, position));
+        }
+
+        try {
+            _buf = map(position);
+            _mapPosition = position;
+            shiftOffsets(shiftOffset);
+        } catch (ClosedByInterruptException e) {
+            throw new RuntimeInterruptException(e);
+        } catch (IOException e) {
+            if (!(e instanceof EOFException)) {
+                _ioError = e;
+            }
+            _isMapped = false;
+            int numShifts = numBytesMarked() + numBytesPrefetched();
+            _buf = ByteBuffer.allocate(_bufferSize);
+            // not copied from the current region in case it is truncated
+            readFully(position, _buf.array(), 0, numShifts);
+            shiftOffsets(shiftOffset);
+        }
+    }
+
+    private void compact()
+    {
+        assert numBytesPrefetched() >= 0;
+        assert totalBytes() >= 0; // unless we'd support skipping
+
+        int shiftOffset = firstOffset();
+        int numShifts = numBytesMarked() + numBytesPrefetched();
+
+        if (_log.isLoggable(Level.FINEST)) {
+            _log.finest(String.format(
+                "compact of %s before - buf[%d] %d bytes to buf[0], " +
+                "buf.length = %d",
+                this, shiftOffset, numShifts, _buf.capacity()));
+        }
+
+        System.arraycopy(_buf.array(), shiftOffset, _buf.array(), 0,
+                         numShifts);
+        shiftOffsets(shiftOffset);
 
         if (_log.isLoggable(Level.FINEST)) {
             _log.finest(String.format("compacted %d bytes, result after: %s",
@@ -0,0 +1,135 @@
+/*
+ * Attributes of local files read ahead of the generator
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import com.github.perlundq.yajsync.filelist.RsyncFileAttributes;
+
+/**
+ * The attributes of the local files of a segment, read in the background
+ * in chunks of CHUNK_SIZE files submitted in index order, so that the
+ * generator may start with the first files while the rest are still being
+ * read.
+ */
+final class AttributesPrefetch
+{
+    private static final int CHUNK_SIZE = 256;
+
+    private final int[] _indices;                // sorted
+    private final Path[] _paths;
+    private final RsyncFileAttributes[] _attrs;  // null if not existing
+    private final IOException[] _errors;
+    private final ForkJoinTask<?>[] _chunks;
+    private final long _generation;
+
+    /**
+     * @param indices file indices in increasing order
+     * @param paths the local path of each file index
+     * @param generation an opaque value of the caller for telling whether
+     *        the attributes are still valid
+     */
+    AttributesPrefetch(ForkJoinPool pool, int[] indices, Path[] paths,
+                       long generation)
+    {
+        assert indices.length == paths.length;
+        _indices = indices;
+        _paths = paths;
+        _generation = generation;
+        _attrs = new RsyncFileAttributes[indices.length];
+        _errors = new IOException[indices.length];
+        _chunks = new ForkJoinTask<?>[(indices.length + CHUNK_SIZE - 1) /
+                                      CHUNK_SIZE];
+        for (int i = 0; i < _chunks.length; i++) {
+            _chunks[i] = pool.submit(new StatAction(i * CHUNK_SIZE));
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private final class StatAction extends RecursiveAction
+    {
+        private final int _start;
+
+        StatAction(int start)
+        {
+            _start = start;
+        }
+
+        @Override
+        protected void compute()
+        {
+            int end = Math.min(_start + CHUNK_SIZE, _indices.length);
+            for (int i = _start; i < end; i++) {
+                try {
+                    _attrs[i] = RsyncFileAttributes.statIfExists(_paths[i]);
+                } catch (IOException e) {
+                    _errors[i] = e;
+                }
+            }
+        }
+    }
+
+    long generation()
+    {
+        return _generation;
+    }
+
+    boolean contains(int index)
+    {
+        return Arrays.binarySearch(_indices, index) >= 0;
+    }
+
+    /**
+     * Waits for the attributes of the file with index to be read if they
+     * have not been already.
+     *
+     * @return the attributes of the local file of index, null if it does
+     *         not exist
+     * @throws IOException the error of reading them
+     * @throws IllegalArgumentException if index is not prefetched
+     */
+    RsyncFileAttributes statIfExists(int index) throws IOException
+    {
+        int i = Arrays.binarySearch(_indices, index);
+        if (i < 0) {
+            throw new IllegalArgumentException(String.format(
+                "attributes of index %d are not prefetched", index));
+        }
+        _chunks[i / CHUNK_SIZE].join();
+        if (_errors[i] != null) {
+            throw _errors[i];
+        }
+        return _attrs[i];
+    }
+
+    /**
+     * Cancels reading the attributes of those chunks not started yet.
+     */
+    void cancel()
+    {
+        for (ForkJoinTask<?> chunk : _chunks) {
+            chunk.cancel(false);
+        }
+    }
+}
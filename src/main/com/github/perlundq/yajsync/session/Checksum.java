@@ -19,14 +19,11 @@
  */
 package com.github.perlundq.yajsync.session;
 
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.List;
-import java.util.NoSuchElementException;
+import java.util.Arrays;
 
-import com.github.perlundq.yajsync.util.Multimap;
+import com.github.perlundq.yajsync.util.RollingScanner;
 
-class Checksum
+class Checksum implements RollingScanner.Filter
 {
     @SuppressWarnings("serial")
     public static class ChunkOverflow extends Exception {
@@ -35,38 +32,6 @@ class Checksum
         }
     }
 
-    public static class Chunk {
-
-        private final byte[] _md5sum;
-        private final int _length;
-        private final int _chunkIndex;
-
-        private Chunk(int length, byte[] md5sum, int chunkIndex)
-        {
-            assert length >= 0;
-            assert md5sum != null;
-            assert md5sum.length > 0;
-            _length = length;
-            _md5sum = md5sum;
-            _chunkIndex = chunkIndex;
-        }
-
-        public byte[] md5Checksum()
-        {
-            return _md5sum;
-        }
-
-        public int length()
-        {
-            return _length;
-        }
-
-        public int chunkIndex()
-        {
-            return _chunkIndex;
-        }
-    }
-
     public static class Header {
         private final int _blockLength;     // sum_struct.blength
         private final int _digestLength;    // sum_struct.s2length
@@ -175,23 +140,57 @@ class Checksum
 
     public static final int MIN_DIGEST_LENGTH = 2;
     public static final int MAX_DIGEST_LENGTH = 16;
+    public static final int NO_CHUNK = -1;
 
     private static final int MAX_CHECKSUM_BLOCK_LENGTH = 1 << 17;
-    private static final Iterable<Chunk> EMPTY_ITERABLE =
-        new Iterable<Chunk>() {
-        @Override
-        public Iterator<Chunk> iterator() {
-            return Collections.emptyIterator();
-        }
-    };
+    private static final int MAX_TABLE_CAPACITY = 1 << 30;
+    private static final int NO_SLOT = -1;
+    private static final int TAG_TABLE_SIZE = 1 << 16;
 
     private final Header _header;
-    private final Multimap<Integer, Chunk> _sums;
-
+    private final int[] _rollings;
+    private final byte[] _digests;  // _header.digestLength() bytes per chunk
+    private int _numChunks;
+    // bitmap of the 16 bit tags of all rolling checksums, see tagOf
+    private final long[] _tagTable;
+
+    /*
+     * Open addressing index from rolling checksum to the chunks having that
+     * rolling checksum, built lazily on first lookup. _orderedChunks holds
+     * the chunk indices grouped by slot and in ascending order within a slot,
+     * _slotStarts[slot] is the offset of the first chunk of slot and
+     * _slotLengths[slot] the number of chunks (0 for an empty slot).
+     */
+    private int[] _slotKeys;
+    private int[] _slotStarts;
+    private int[] _slotLengths;
+    private int[] _orderedChunks;
+    private int _mask;
+
+    // candidate cursor state of firstCandidate/nextCandidate
+    private int _probeNext;
+    private int _probeEnd;
+    private int _probeInitial;
+    private int _probeLength;
+
+    /**
+     * @throws RsyncProtocolException if the total size of all chunk digests
+     *     does not fit in a byte array
+     */
     public Checksum(Header header)
     {
+        long digestsSize = (long) header.chunkCount() * header.digestLength();
+        if (digestsSize > Integer.MAX_VALUE - 8) {
+            throw new RsyncProtocolException(String.format(
+                "Error: checksum information for %d chunks of digest " +
+                "length %d is too large", header.chunkCount(),
+                header.digestLength()));
+        }
         _header = header;
-        _sums = new Multimap<>(header.chunkCount());
+        _rollings = new int[header.chunkCount()];
+        _digests = new byte[(int) digestsSize];
+        _tagTable = new long[header.chunkCount() > 0 ? TAG_TABLE_SIZE / 64
+                                                     : 0];
     }
 
     @Override
@@ -215,33 +214,122 @@ class Checksum
         assert md5sum != null;
         assert md5sum.length >= MIN_DIGEST_LENGTH &&
                md5sum.length <= MAX_DIGEST_LENGTH;
-        assert _sums.size() <= _header._chunkCount - 1;
+        assert md5sum.length == _header._digestLength;
+        assert _numChunks <= _header._chunkCount - 1;
+        assert _slotKeys == null : "index is already built";
+
+        int chunkIndex = _numChunks;
+        _rollings[chunkIndex] = rolling;
+        System.arraycopy(md5sum, 0, _digests,
+                         chunkIndex * _header._digestLength,
+                         _header._digestLength);
+        _numChunks++;
+        int tag = tagOf(rolling);
+        _tagTable[tag >>> 6] |= 1L << tag;
+    }
+
+    // same as rsync's gettag, i.e. the sum of the two 16 bit halves of the
+    // rolling checksum
+    private static int tagOf(int rolling)
+    {
+        return ((rolling & 0xFFFF) + (rolling >>> 16)) & 0xFFFF;
+    }
+
+    /**
+     * Cheap pre-filter in front of firstCandidate: return false if there
+     * definitely are no chunks with rolling checksum rolling.
+     */
+    @Override
+    public boolean mayContain(int rolling)
+    {
+        if (_numChunks == 0) {
+            return false;
+        }
+        int tag = tagOf(rolling);
+        return (_tagTable[tag >>> 6] & (1L << tag)) != 0;
+    }
 
-        int chunkIndex = _sums.size();
-        int chunkLength = chunkLengthFor(chunkIndex);
-        Chunk chunk = new Chunk(chunkLength, md5sum, chunkIndex);
-        _sums.put(rolling, chunk);
+    private static int tableCapacityFor(int numChunks)
+    {
+        int capacity = 2;
+        while (capacity < MAX_TABLE_CAPACITY && capacity < 2L * numChunks) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static int hash(int rolling)
+    {
+        int h = rolling * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void buildIndex()
+    {
+        int capacity = tableCapacityFor(_numChunks);
+        int mask = capacity - 1;
+        int[] keys = new int[capacity];
+        int[] lengths = new int[capacity];
+        int[] chunkSlots = new int[_numChunks];
+
+        for (int i = 0; i < _numChunks; i++) {
+            int rolling = _rollings[i];
+            int slot = hash(rolling) & mask;
+            while (lengths[slot] > 0 && keys[slot] != rolling) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = rolling;
+            lengths[slot]++;
+            chunkSlots[i] = slot;
+        }
+
+        // starts[slot] is first set to the end offset of slot and then
+        // decremented once for every chunk placed, filling each slot from the
+        // back so that chunk indices end up in ascending order
+        int[] starts = new int[capacity];
+        int offset = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            offset += lengths[slot];
+            starts[slot] = offset;
+        }
+        int[] orderedChunks = new int[_numChunks];
+        for (int i = _numChunks - 1; i >= 0; i--) {
+            orderedChunks[--starts[chunkSlots[i]]] = i;
+        }
+
+        _mask = mask;
+        _slotKeys = keys;
+        _slotLengths = lengths;
+        _slotStarts = starts;
+        _orderedChunks = orderedChunks;
     }
 
-    // retrieve a close index for the chunk with the supplied chunk index
-    private int closeIndexOf(List<Chunk> chunks, int chunkIndex)
+    private int slotOf(int rolling)
     {
-        int idx = binarySearch(chunks, chunkIndex);
-        if (idx < 0) {
-            int insertionPoint = - idx - 1;
-            return Math.min(insertionPoint, chunks.size() - 1);
+        if (_slotKeys == null) {
+            buildIndex();
         }
-        return idx;
+        int slot = hash(rolling) & _mask;
+        while (_slotLengths[slot] > 0) {
+            if (_slotKeys[slot] == rolling) {
+                return slot;
+            }
+            slot = (slot + 1) & _mask;
+        }
+        return NO_SLOT;
     }
 
-    private int binarySearch(List<Chunk> chunks, int chunkIndex)
+    // return the position of the first chunk in _orderedChunks[start, end)
+    // with a chunk index greater than or equal to chunkIndex, or end - 1 if
+    // there is no such chunk
+    private int closePositionOf(int start, int end, int chunkIndex)
     {
-        int i_left = 0;
-        int i_right = chunks.size() - 1;
+        int i_left = start;
+        int i_right = end - 1;
 
         while (i_left <= i_right) {
-            int i_middle = i_left + (i_right - i_left) / 2;                     // i_middle < i_right and i_middle >= i_left
-            int chunkIndex_m = chunks.get(i_middle).chunkIndex();
+            int i_middle = i_left + (i_right - i_left) / 2;
+            int chunkIndex_m = _orderedChunks[i_middle];
             if (chunkIndex_m == chunkIndex) {
                 return i_middle;
             } else if (chunkIndex_m < chunkIndex) {
@@ -250,79 +338,78 @@ class Checksum
                 i_right = i_middle - 1;
             }
         }
-        /*
-         * return i_left as the insertion point - the first index with a chunk
-         * index greater than chunkIndex.
-         * i_left >= 0 and i_left <= chunks.size()
-         */
-        return - i_left - 1;
+        return Math.min(i_left, end - 1);
+    }
+
+    /**
+     * Return the index of the first chunk having rolling checksum rolling and
+     * a chunk length of length, or NO_CHUNK if there is no such chunk. The
+     * chunk with index preferredChunkIndex (or the closest one following it)
+     * is returned first if it is a candidate. The remaining candidates are
+     * retrieved by repeatedly calling nextCandidate().
+     *
+     * Lookups do not allocate any memory but share cursor state, so an
+     * instance must not be probed concurrently.
+     */
+    public int firstCandidate(int rolling, int length, int preferredChunkIndex)
+    {
+        int slot = slotOf(rolling);
+        if (slot == NO_SLOT) {
+            _probeNext = _probeEnd = 0;
+            return NO_CHUNK;
+        }
+        int start = _slotStarts[slot];
+        _probeNext = start;
+        _probeEnd = start + _slotLengths[slot];
+        _probeLength = length;
+        _probeInitial = closePositionOf(start, _probeEnd, preferredChunkIndex);
+        int chunkIndex = _orderedChunks[_probeInitial];
+        if (chunkLengthFor(chunkIndex) == length) {
+            return chunkIndex;
+        }
+        return nextCandidate();
     }
 
-    public Iterable<Chunk> getCandidateChunks(int rolling,
-                                              final int length,
-                                              final int preferredChunkIndex)
+    /**
+     * Return the index of the next candidate chunk of the latest call to
+     * firstCandidate or NO_CHUNK if there are no more candidates.
+     */
+    public int nextCandidate()
     {
-        final List<Chunk> chunks = _sums.get(rolling);
-        // Optimization to avoid allocating tons of empty iterators for non
-        // matching entries on large files:
-        if (chunks.isEmpty()) {
-            return EMPTY_ITERABLE;
+        while (_probeNext < _probeEnd) {
+            int position = _probeNext++;
+            int chunkIndex = _orderedChunks[position];
+            if (position != _probeInitial &&
+                chunkLengthFor(chunkIndex) == _probeLength) {
+                return chunkIndex;
+            }
         }
+        return NO_CHUNK;
+    }
 
-        // return an Iterable which filters out chunks with non matching length
-        // and starts with preferredIndex (or close to preferredIndex)
-        return new Iterable<Chunk>() {
-            int it_index = 0;
-            int initialIndex = closeIndexOf(chunks, preferredChunkIndex);
-            boolean isInitial = true;
-
-            @Override
-            public Iterator<Chunk> iterator() {
-                return new Iterator<Chunk>() {
-
-                    private int nextIndex() {
-                        for (int i = it_index; i < chunks.size(); i++) {
-                            if (i != initialIndex &&
-                                chunks.get(i).length() == length) {
-                                return i;
-                            }
-                        }
-                        return chunks.size();
-                    }
-
-                    @Override
-                    public boolean hasNext() {
-                        if (isInitial) {
-                            return true;
-                        }
-                        it_index = nextIndex();
-                        return it_index < chunks.size();
-                    }
-
-                    @Override
-                    public Chunk next() {
-                        try {
-                            Chunk c;
-                            if (isInitial) {
-                                c = chunks.get(initialIndex);
-                                isInitial = false;
-                            } else {
-                                c = chunks.get(it_index);
-                                it_index++;
-                            }
-                            return c;
-                        } catch (IndexOutOfBoundsException e) {
-                            throw new NoSuchElementException(e.getMessage());
-                        }
-                    }
-
-                    @Override
-                    public void remove() {
-                        throw new UnsupportedOperationException();
-                    }
-                };
+    /**
+     * Compare the peer's digest of chunk chunkIndex with the first
+     * header().digestLength() bytes of digest without copying.
+     */
+    public boolean isDigestEqual(int chunkIndex, byte[] digest)
+    {
+        assert chunkIndex >= 0 && chunkIndex < _numChunks;
+        assert digest.length >= _header._digestLength;
+        int offset = chunkIndex * _header._digestLength;
+        for (int i = 0; i < _header._digestLength; i++) {
+            if (_digests[offset + i] != digest[i]) {
+                return false;
             }
-        };
+        }
+        return true;
+    }
+
+    public byte[] digestOf(int chunkIndex)
+    {
+        assert chunkIndex >= 0 && chunkIndex < _numChunks;
+        int offset = chunkIndex * _header._digestLength;
+        return Arrays.copyOfRange(_digests, offset,
+                                  offset + _header._digestLength);
     }
 
     public Header header()
@@ -32,6 +32,7 @@ import com.github.perlundq.yajsync.channels.ChannelException;
 import com.github.perlundq.yajsync.security.RsyncAuthContext;
 import com.github.perlundq.yajsync.text.TextConversionException;
 import com.github.perlundq.yajsync.util.BitOps;
+import com.github.perlundq.yajsync.util.StrongChecksum;
 
 public class ClientSessionConfig extends SessionConfig
 {
@@ -46,6 +47,8 @@ public class ClientSessionConfig extends SessionConfig
     private boolean _isSafeFileList;
     private final PrintStream _out;
     private final PrintStream _err;
+    private StrongChecksum _checksumChoice;
+    private boolean _isCompress;
 
     /**
      * @throws IllegalArgumentException if charset is not supported
@@ -60,6 +63,24 @@ public class ClientSessionConfig extends SessionConfig
         _err = stderr;
     }
 
+    /**
+     * Use checksum instead of negotiating the strong checksum with peer. A
+     * null value (the default) means negotiate.
+     */
+    public void setChecksumChoice(StrongChecksum checksum)
+    {
+        _checksumChoice = checksum;
+    }
+
+    /**
+     * Must be set if file data is to be compressed, since the compression
+     * is negotiated with peer as well.
+     */
+    public void setIsCompress(boolean isCompress)
+    {
+        _isCompress = isCompress;
+    }
+
     /**
      * @throws IllegalArgumentException if charset is not supported
      * @throws RsyncProtocolException if we or peer fails to adhere to the rsync
@@ -83,6 +104,11 @@ public class ClientSessionConfig extends SessionConfig
             assert !moduleName.isEmpty();
             sendArguments(args);
             receiveCompatibilities();
+            if (_isVarintFileListFlags) {
+                negotiateStrings(_checksumChoice, _isCompress, true);
+            } else if (_checksumChoice != null) {
+                _strongChecksum = _checksumChoice;
+            }
             receiveChecksumSeed();
             return _status;
         } catch (TextConversionException e) {
@@ -167,7 +193,7 @@ public class ClientSessionConfig extends SessionConfig
 
     private void receiveCompatibilities() throws ChannelException
     {
-        byte flags = _peerConnection.getByte();
+        int flags = receiveVarint();
         if (_log.isLoggable(Level.FINER)) {
             _log.finer("< (peer supports) " + flags);
         }
@@ -177,6 +203,8 @@ public class ClientSessionConfig extends SessionConfig
                                              "incremental recurse");
         }
         _isSafeFileList = (flags & RsyncCompatibilities.CF_SAFE_FLIST) != 0;
+        _isVarintFileListFlags =
+            (flags & RsyncCompatibilities.CF_VARINT_FLIST_FLAGS) != 0;
     }
 
     private void receiveChecksumSeed() throws ChannelException
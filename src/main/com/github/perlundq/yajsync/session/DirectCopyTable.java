@@ -0,0 +1,51 @@
+/*
+ * Source files handed from an in-process Sender to an in-process Receiver
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Used by RsyncLocal when Sender and Receiver run in the same process. For
+ * files without a basis (checksum block length 0) the Sender does not send
+ * any file data, it only registers the source path here before sending the
+ * file index. The Receiver then copies the file directly from the source
+ * path with FileChannel.transferTo, while the Sender reads the file only
+ * for computing its file checksum. All other protocol data (file index,
+ * item flags, checksum header, end of data token and file checksum) is
+ * still exchanged as usual, i.e. the copy is verified by file checksum as
+ * any other transfer.
+ */
+class DirectCopyTable
+{
+    private final ConcurrentMap<Integer, Path> _sourcePaths =
+        new ConcurrentHashMap<>();
+
+    public void put(int index, Path sourcePath)
+    {
+        assert sourcePath != null;
+        _sourcePaths.put(index, sourcePath);
+    }
+
+    public Path removeOrNull(int index)
+    {
+        return _sourcePaths.remove(index);
+    }
+}
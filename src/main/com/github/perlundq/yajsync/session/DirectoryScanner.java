@@ -0,0 +1,457 @@
+/*
+ * Listing and stat of directories, optionally in parallel and ahead of time
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+import com.github.perlundq.yajsync.filelist.RsyncFileAttributes;
+import com.github.perlundq.yajsync.util.RuntimeInterruptException;
+
+/**
+ * Lists directories and stats their entries for Sender, in batches of
+ * BATCH_SIZE entries so that memory use does not depend on the size of
+ * directories.
+ *
+ * With worker threads the entries of each batch are stat:ed in parallel
+ * and directories may be prefetched, i.e. opened and their first batch
+ * read in the background, e.g. the stub directories to be expanded after
+ * the one being expanded. Entries are always returned in the order of
+ * the directory stream, as when listing without worker threads.
+ *
+ * With a FileListSnapshot.Scan the listing of each directory is stored in
+ * the next snapshot, and the listing of a directory unchanged since the
+ * previous snapshot is either read from it instead of the directory
+ * stream, stat:ing all entries as usual, or compared with it in verify
+ * mode.
+ *
+ * Not thread safe, all methods are to be called by the same thread.
+ */
+final class DirectoryScanner implements AutoCloseable
+{
+    private static final int BATCH_SIZE = 1024;
+    private static final int STAT_SPLIT_SIZE = 16;
+    private static final int PREFETCH_PER_THREAD = 4;
+
+    /**
+     * A directory entry and either its attributes or the error of stat.
+     */
+    static final class Entry
+    {
+        private Path _path;
+        private RsyncFileAttributes _attrs;
+        private IOException _statError;
+
+        Path path()
+        {
+            return _path;
+        }
+
+        /**
+         * @throws IOException if failing to stat the entry
+         */
+        RsyncFileAttributes attrs() throws IOException
+        {
+            if (_statError != null) {
+                throw _statError;
+            }
+            return _attrs;
+        }
+
+        private void stat()
+        {
+            _attrs = null;
+            _statError = null;
+            try {
+                _attrs = RsyncFileAttributes.stat(_path);
+            } catch (IOException e) {
+                _statError = e;
+            }
+        }
+    }
+
+    /**
+     * The entries of one directory. An entry returned by nextOrNull is
+     * only valid until the next call.
+     */
+    final class Listing implements AutoCloseable
+    {
+        private final Path _directory;
+        private final Entry[] _batch = new Entry[BATCH_SIZE];
+        private DirectoryStream<Path> _stream;
+        private Iterator<Path> _it;
+        private IOException _error;
+        private boolean _isEndOfStream;
+        private int _position;
+        private int _count;
+        private Future<?> _prefetchOrNull;
+        private FileListSnapshot.Stamp _stampOrNull;
+        // the previous listing of an unchanged directory
+        private FileListSnapshot.RecordReader _previousOrNull;
+        private boolean _isReused;       // entries are read from _previous
+        private boolean _isStarted;
+        private FileListSnapshot.RecordWriter _writerOrNull;
+
+        private Listing(Path directory)
+        {
+            _directory = directory;
+        }
+
+        private void open()
+        {
+            if (_snapshotOrNull != null) {
+                _stampOrNull = FileListSnapshot.Stamp.ofOrNull(_directory);
+                if (_stampOrNull != null) {
+                    _previousOrNull = _snapshotOrNull.readerOrNull(
+                                                    _directory, _stampOrNull);
+                    _isReused = _previousOrNull != null &&
+                                !_snapshotOrNull.isVerify();
+                }
+            }
+            if (_isReused) {
+                return;
+            }
+            try {
+                _stream = Files.newDirectoryStream(_directory);
+                _it = _stream.iterator();
+            } catch (IOException e) {
+                _error = e;
+            }
+        }
+
+        private void fill()
+        {
+            _position = 0;
+            _count = 0;
+            if (_isReused) {
+                fillFromSnapshot();
+            } else {
+                fillFromStream();
+            }
+            if (_pool == null) {
+                for (int i = 0; i < _count; i++) {
+                    _batch[i].stat();
+                }
+            } else {
+                _pool.invoke(new StatAction(_batch, 0, _count));
+            }
+        }
+
+        private Entry nextBatchEntry()
+        {
+            if (_batch[_count] == null) {
+                _batch[_count] = new Entry();
+            }
+            return _batch[_count++];
+        }
+
+        // entries are stat:ed as usual, files may have been modified in
+        // place
+        private void fillFromSnapshot()
+        {
+            try {
+                while (_count < _batch.length) {
+                    if (!_previousOrNull.next()) {
+                        _isEndOfStream = true;
+                        break;
+                    }
+                    Entry e = nextBatchEntry();
+                    e._path = _directory.resolve(_previousOrNull.name());
+                }
+            } catch (IOException e) {
+                _error = e;
+            }
+        }
+
+        private void fillFromStream()
+        {
+            try {
+                while (_count < _batch.length) {
+                    if (!_it.hasNext()) {
+                        _isEndOfStream = true;
+                        break;
+                    }
+                    Entry e = nextBatchEntry();
+                    e._path = _it.next();
+                }
+            } catch (DirectoryIteratorException e) {
+                _error = e.getCause();
+            }
+        }
+
+        private void awaitPrefetch()
+        {
+            if (_prefetchOrNull != null) {
+                try {
+                    _prefetchOrNull.get();
+                } catch (InterruptedException e) {
+                    throw new RuntimeInterruptException(e);
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                } finally {
+                    _prefetchOrNull = null;
+                }
+            }
+        }
+
+        /**
+         * @return the next entry or null if there are no more
+         * @throws IOException if failing to list the directory, after
+         *         returning the entries listed until then
+         */
+        Entry nextOrNull() throws IOException
+        {
+            awaitPrefetch();
+            if (!_isStarted) {
+                _isStarted = true;
+                if (_stampOrNull != null) {
+                    _writerOrNull = _snapshotOrNull.writerOrNull(_directory,
+                                                                 _stampOrNull);
+                }
+            }
+            if (_position == _count && _error == null && !_isEndOfStream) {
+                fill();
+            }
+            if (_position < _count) {
+                Entry e = _batch[_position++];
+                record(e);
+                return e;
+            }
+            if (_error != null) {
+                endRecord(false);
+                throw _error;
+            }
+            endRecord(true);
+            return null;
+        }
+
+        private void record(Entry e)
+        {
+            if (_writerOrNull != null) {
+                if (e._statError == null) {
+                    _writerOrNull.add(e._path.getFileName().toString(),
+                                      e._attrs);
+                } else {
+                    endRecord(false);
+                }
+            }
+            if (_previousOrNull != null && !_isReused) {
+                verify(e);
+            }
+        }
+
+        // compares e with the next entry of the previous listing of this
+        // unchanged directory, expecting the same order
+        private void verify(Entry e)
+        {
+            String name = e._path.getFileName().toString();
+            try {
+                if (!_previousOrNull.next()) {
+                    _snapshotOrNull.mismatch(e._path, "not in snapshot");
+                    endVerify();
+                } else if (!_previousOrNull.name().equals(name)) {
+                    _snapshotOrNull.mismatch(e._path, String.format(
+                        "listed instead of %s", _previousOrNull.name()));
+                    endVerify();
+                } else if (e._statError == null &&
+                           !_previousOrNull.attrs().equals(e._attrs)) {
+                    _snapshotOrNull.mismatch(e._path, String.format(
+                        "%s instead of %s", e._attrs,
+                        _previousOrNull.attrs()));
+                }
+            } catch (IOException ex) {
+                _snapshotOrNull.mismatch(e._path, ex.toString());
+                endVerify();
+            }
+        }
+
+        private void endVerify()
+        {
+            if (_previousOrNull != null) {
+                _previousOrNull.close();
+                _previousOrNull = null;
+            }
+        }
+
+        private void endRecord(boolean isComplete)
+        {
+            if (_writerOrNull != null) {
+                _writerOrNull.end(isComplete);
+                _writerOrNull = null;
+            }
+            if (isComplete && _previousOrNull != null && !_isReused) {
+                try {
+                    if (_previousOrNull.next()) {
+                        _snapshotOrNull.mismatch(
+                            _directory.resolve(_previousOrNull.name()),
+                            "in snapshot but not listed");
+                    }
+                } catch (IOException e) {
+                    _snapshotOrNull.mismatch(_directory, e.toString());
+                }
+                endVerify();
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            try {
+                awaitPrefetch();
+            } finally {
+                endRecord(false);
+                endVerify();
+                if (_stream != null) {
+                    try {
+                        _stream.close();
+                    } catch (IOException e) {
+                        // nothing more to read from it anyway
+                    }
+                    _stream = null;
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class StatAction extends RecursiveAction
+    {
+        private final Entry[] _entries;
+        private final int _start;
+        private final int _end;
+
+        StatAction(Entry[] entries, int start, int end)
+        {
+            _entries = entries;
+            _start = start;
+            _end = end;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (_end - _start <= STAT_SPLIT_SIZE) {
+                for (int i = _start; i < _end; i++) {
+                    _entries[i].stat();
+                }
+            } else {
+                int middle = (_start + _end) >>> 1;
+                invokeAll(new StatAction(_entries, _start, middle),
+                          new StatAction(_entries, middle, _end));
+            }
+        }
+    }
+
+    private final ForkJoinPool _pool;          // null if no worker threads
+    private final FileListSnapshot.Scan _snapshotOrNull;
+    private final int _maxNumPrefetched;
+    private final Map<Path, Listing> _prefetched = new LinkedHashMap<>();
+
+    DirectoryScanner(int numThreads)
+    {
+        this(numThreads, null);
+    }
+
+    /**
+     * @param numThreads the number of worker threads, 0 to list and stat in
+     *        the calling thread only
+     * @param snapshotOrNull the snapshot to read and store listings with, or
+     *        null for none
+     * @throws IllegalArgumentException if numThreads is negative
+     */
+    DirectoryScanner(int numThreads, FileListSnapshot.Scan snapshotOrNull)
+    {
+        if (numThreads < 0) {
+            throw new IllegalArgumentException(String.format(
+                "number of threads must be non negative: %d", numThreads));
+        }
+        _pool = numThreads > 0 ? new ForkJoinPool(numThreads) : null;
+        _maxNumPrefetched = PREFETCH_PER_THREAD * numThreads;
+        _snapshotOrNull = snapshotOrNull;
+    }
+
+    /**
+     * Opens directory in the background, unless there are too many
+     * directories prefetched already.
+     *
+     * @return false if directory was not prefetched since there are too
+     *         many prefetched already, true otherwise
+     */
+    boolean prefetch(Path directory)
+    {
+        if (_prefetched.containsKey(directory)) {
+            return true;
+        } else if (_prefetched.size() >= _maxNumPrefetched) {
+            return false;
+        }
+        final Listing listing = new Listing(directory);
+        listing._prefetchOrNull = _pool.submit(new Callable<Void>() {
+            @Override
+            public Void call()
+            {
+                listing.open();
+                if (listing._error == null) {
+                    listing.fill();
+                }
+                return null;
+            }
+        });
+        _prefetched.put(directory, listing);
+        return true;
+    }
+
+    /**
+     * @return the listing of directory, which must be closed
+     */
+    Listing open(Path directory)
+    {
+        Listing listing = _prefetched.remove(directory);
+        if (listing == null) {
+            listing = new Listing(directory);
+            listing.open();
+        }
+        return listing;
+    }
+
+    @Override
+    public void close()
+    {
+        try {
+            for (Listing listing : _prefetched.values()) {
+                listing.close();
+            }
+            _prefetched.clear();
+        } finally {
+            if (_pool != null) {
+                _pool.shutdownNow();
+            }
+        }
+    }
+}
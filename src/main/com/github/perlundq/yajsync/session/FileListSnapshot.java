@@ -0,0 +1,781 @@
+/*
+ * Persistent snapshot of sender directory listings
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import com.github.perlundq.yajsync.filelist.Group;
+import com.github.perlundq.yajsync.filelist.RsyncFileAttributes;
+import com.github.perlundq.yajsync.filelist.User;
+import com.github.perlundq.yajsync.util.Environment;
+import com.github.perlundq.yajsync.util.MD5;
+
+/**
+ * An on-disk snapshot of the directory listings of the sender, i.e. the
+ * names and attributes of the entries of each directory expanded by a
+ * previous transfer of the same source files, making it possible to build
+ * the file list without listing directories that have not changed since.
+ *
+ * A directory is considered unchanged if its modification time, change
+ * time and file key (device and inode) are identical to those of the
+ * snapshot. The names of its entries are then taken from the snapshot,
+ * but every entry is still stat:ed since a file modified in place does not
+ * change the time stamps of its directory. An entry whose stat fails is
+ * handled as if it had been listed. In verify mode all directories are
+ * listed as without a snapshot and any difference from the snapshot of an
+ * unchanged directory is logged instead.
+ *
+ * As for SignatureCache, directories modified recently enough for a
+ * subsequent modification to go unnoticed due to time stamp granularity
+ * are never stored.
+ */
+public final class FileListSnapshot
+{
+    private static final Logger _log =
+        Logger.getLogger(FileListSnapshot.class.getName());
+    private static final int MAGIC = 0x79736c31;  // "ysl1"
+    private static final String SUFFIX = ".snapshot";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final byte TAG_END_OF_SNAPSHOT = 0;
+    private static final byte TAG_RECORD = 1;
+    private static final byte TAG_ENTRY = 2;
+    private static final byte TAG_END_OF_RECORD = 3;
+    private static final byte TAG_ABORTED_RECORD = 4;
+    // generous upper bound of file system time stamp granularity
+    private static final long RACY_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final int READ_BUF_SIZE = 8 * 1024;
+
+    private final Path _dir;
+    private final boolean _isVerify;
+    private final long _racyWindowNanos;
+
+    /**
+     * @param dir the directory of the snapshots, created when first storing
+     *        one if it does not exist
+     * @param isVerify true to list and stat all directories, comparing the
+     *        result with the snapshot instead of using it
+     */
+    public FileListSnapshot(Path dir, boolean isVerify)
+    {
+        this(dir, isVerify, RACY_WINDOW_NANOS);
+    }
+
+    FileListSnapshot(Path dir, boolean isVerify, long racyWindowNanos)
+    {
+        assert dir != null;
+        _dir = dir;
+        _isVerify = isVerify;
+        _racyWindowNanos = racyWindowNanos;
+    }
+
+    public Path dir()
+    {
+        return _dir;
+    }
+
+    public boolean isVerify()
+    {
+        return _isVerify;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s(%s, verify=%s)", getClass().getSimpleName(),
+                             _dir, _isVerify);
+    }
+
+    /**
+     * The identity of the listing of a directory as far as the file system
+     * can tell.
+     */
+    static final class Stamp
+    {
+        private final long _lastModifiedNanos;
+        private final long _changeTimeNanos;
+        private final String _fileKey;
+
+        private Stamp(long lastModifiedNanos, long changeTimeNanos,
+                      String fileKey)
+        {
+            _lastModifiedNanos = lastModifiedNanos;
+            _changeTimeNanos = changeTimeNanos;
+            _fileKey = fileKey;
+        }
+
+        /**
+         * @return the current stamp of directory or null if directory
+         *         cannot be stat:ed or is not a directory
+         */
+        static Stamp ofOrNull(Path directory)
+        {
+            try {
+                BasicFileAttributes attrs =
+                    Files.readAttributes(directory, BasicFileAttributes.class,
+                                         LinkOption.NOFOLLOW_LINKS);
+                if (!attrs.isDirectory()) {
+                    return null;
+                }
+                long changeTimeNanos = 0;
+                if (Environment.IS_UNIX_FS) {
+                    FileTime ctime = (FileTime) Files.getAttribute(
+                        directory, "unix:ctime", LinkOption.NOFOLLOW_LINKS);
+                    changeTimeNanos = ctime.to(TimeUnit.NANOSECONDS);
+                }
+                Object fileKey = attrs.fileKey();
+                return new Stamp(
+                    attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                    changeTimeNanos,
+                    fileKey == null ? "" : fileKey.toString());
+            } catch (IOException | UnsupportedOperationException e) {
+                if (_log.isLoggable(Level.FINE)) {
+                    _log.fine(String.format("(FileListSnapshot) failed to " +
+                                            "stat %s: %s", directory, e));
+                }
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (obj != null && getClass() == obj.getClass()) {
+                Stamp other = (Stamp) obj;
+                return _lastModifiedNanos == other._lastModifiedNanos &&
+                       _changeTimeNanos == other._changeTimeNanos &&
+                       _fileKey.equals(other._fileKey);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(_lastModifiedNanos, _changeTimeNanos,
+                                _fileKey);
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s (mtime=%d, ctime=%d, key=%s)",
+                                 getClass().getSimpleName(),
+                                 _lastModifiedNanos, _changeTimeNanos,
+                                 _fileKey);
+        }
+
+        // true if the directory might be modified again without changing
+        // its time stamps
+        private boolean isRacy(long nowNanos, long racyWindowNanos)
+        {
+            long newest = Math.max(_lastModifiedNanos, _changeTimeNanos);
+            return nowNanos - newest < racyWindowNanos;
+        }
+    }
+
+    // the position of a complete record in the previous snapshot
+    private static final class Location
+    {
+        final Stamp _stamp;
+        final long _offset;  // of its first entry
+
+        Location(Stamp stamp, long offset)
+        {
+            _stamp = stamp;
+            _offset = offset;
+        }
+    }
+
+    /**
+     * The entries of a directory as stored in the previous snapshot, in the
+     * order they were listed.
+     */
+    static final class RecordReader implements AutoCloseable
+    {
+        private final DataInputStream _in;
+        private String _name;
+        private RsyncFileAttributes _attrs;
+
+        private RecordReader(DataInputStream in)
+        {
+            _in = in;
+        }
+
+        /**
+         * @return false if there are no more entries
+         * @throws IOException if failing to read the snapshot
+         */
+        boolean next() throws IOException
+        {
+            byte tag = _in.readByte();
+            if (tag == TAG_END_OF_RECORD) {
+                _name = null;
+                _attrs = null;
+                return false;
+            } else if (tag != TAG_ENTRY) {
+                throw new IOException("invalid snapshot entry tag " + tag);
+            }
+            try {
+                _name = _in.readUTF();
+                int mode = _in.readInt();
+                long size = _in.readLong();
+                long lastModified = _in.readLong();
+                User user = new User(_in.readUTF(), _in.readInt());
+                Group group = new Group(_in.readUTF(), _in.readInt());
+                _attrs = new RsyncFileAttributes(mode, size, lastModified,
+                                                 user, group);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("invalid snapshot entry", e);
+            }
+            return true;
+        }
+
+        String name()
+        {
+            return _name;
+        }
+
+        RsyncFileAttributes attrs()
+        {
+            return _attrs;
+        }
+
+        @Override
+        public void close()
+        {
+            try {
+                _in.close();
+            } catch (IOException e) {
+                // nothing more to read from it anyway
+            }
+        }
+    }
+
+    /**
+     * Appends the entries of one directory to the snapshot being written.
+     */
+    static final class RecordWriter
+    {
+        private final Scan _scan;
+        private boolean _isEnded;
+
+        private RecordWriter(Scan scan)
+        {
+            _scan = scan;
+        }
+
+        void add(String name, RsyncFileAttributes attrs)
+        {
+            assert !_isEnded;
+            DataOutputStream out = _scan._outOrNull;
+            if (out == null) {
+                return;
+            }
+            try {
+                out.writeByte(TAG_ENTRY);
+                out.writeUTF(name);
+                out.writeInt(attrs.mode());
+                out.writeLong(attrs.size());
+                out.writeLong(attrs.lastModifiedTime());
+                out.writeUTF(attrs.user().name());
+                out.writeInt(attrs.user().id());
+                out.writeUTF(attrs.group().name());
+                out.writeInt(attrs.group().id());
+            } catch (IOException e) {
+                _scan.abortWrite(e);
+            }
+        }
+
+        /**
+         * @param isComplete false if the listing of the directory is not
+         *        complete and should be discarded
+         */
+        void end(boolean isComplete)
+        {
+            if (_isEnded) {
+                return;
+            }
+            _isEnded = true;
+            _scan._activeWriterOrNull = null;
+            DataOutputStream out = _scan._outOrNull;
+            if (out == null) {
+                return;
+            }
+            try {
+                out.writeByte(isComplete ? TAG_END_OF_RECORD
+                                         : TAG_ABORTED_RECORD);
+                if (isComplete) {
+                    _scan._numRecorded++;
+                }
+            } catch (IOException e) {
+                _scan.abortWrite(e);
+            }
+        }
+    }
+
+    /**
+     * The use of the snapshot of one set of source files during one
+     * transfer: reading the previous snapshot and writing the next one,
+     * which replaces the previous one when committed.
+     *
+     * Readers may be created by any thread, writers must be created and
+     * used by one thread at a time, one writer at a time.
+     */
+    final class Scan implements AutoCloseable
+    {
+        private final String _roots;
+        private final Path _file;
+        private final Map<String, Location> _locations;
+        private final FileChannel _previousOrNull;
+        private Path _tempFileOrNull;
+        private DataOutputStream _outOrNull;
+        private CRC32 _crc;
+        private RecordWriter _activeWriterOrNull;
+        private long _numRecorded;
+        private long _numReused;
+        private long _numMismatches;
+
+        private Scan(String roots)
+        {
+            _roots = roots;
+            _file = fileOf(roots);
+            _locations = new HashMap<>();
+            _previousOrNull = openPrevious();
+        }
+
+        boolean isVerify()
+        {
+            return _isVerify;
+        }
+
+        // reads the previous snapshot once, verifying its checksum and
+        // indexing its records
+        private FileChannel openPrevious()
+        {
+            FileChannel channel = null;
+            try {
+                channel = FileChannel.open(_file, StandardOpenOption.READ);
+                CountingInputStream counter = new CountingInputStream(
+                    new BufferedInputStream(
+                        new PositionalInputStream(channel, 0)));
+                CRC32 crc = new CRC32();
+                DataInputStream in = new DataInputStream(
+                    new CheckedInputStream(counter, crc));
+                if (in.readInt() != MAGIC || !in.readUTF().equals(_roots)) {
+                    channel.close();
+                    return null;
+                }
+                while (true) {
+                    byte tag = in.readByte();
+                    if (tag == TAG_END_OF_SNAPSHOT) {
+                        break;
+                    } else if (tag != TAG_RECORD) {
+                        throw new IOException("invalid record tag " + tag);
+                    }
+                    String directory = in.readUTF();
+                    Stamp stamp = new Stamp(in.readLong(), in.readLong(),
+                                            in.readUTF());
+                    long offset = counter.count();
+                    if (skipEntries(in)) {
+                        _locations.put(directory,
+                                       new Location(stamp, offset));
+                    }
+                }
+                long expectedCrc = crc.getValue();
+                if (in.readLong() != expectedCrc) {
+                    throw new IOException("checksum mismatch");
+                }
+                if (_log.isLoggable(Level.FINE)) {
+                    _log.fine(String.format(
+                        "(FileListSnapshot) read %d directories from %s",
+                        _locations.size(), _file));
+                }
+                return channel;
+            } catch (NoSuchFileException e) {
+                return null;
+            } catch (IOException | IllegalArgumentException e) {
+                if (_log.isLoggable(Level.WARNING)) {
+                    _log.warning(String.format(
+                        "(FileListSnapshot) ignoring invalid snapshot %s: %s",
+                        _file, e));
+                }
+                _locations.clear();
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                        // not used anyway
+                    }
+                }
+                return null;
+            }
+        }
+
+        // @return true if the record is complete
+        private boolean skipEntries(DataInputStream in) throws IOException
+        {
+            while (true) {
+                byte tag = in.readByte();
+                if (tag == TAG_END_OF_RECORD) {
+                    return true;
+                } else if (tag == TAG_ABORTED_RECORD) {
+                    return false;
+                } else if (tag != TAG_ENTRY) {
+                    throw new IOException("invalid entry tag " + tag);
+                }
+                in.readUTF();
+                in.readInt();
+                in.readLong();
+                in.readLong();
+                in.readUTF();
+                in.readInt();
+                in.readUTF();
+                in.readInt();
+            }
+        }
+
+        /**
+         * @return the entries of directory in the previous snapshot if it
+         *         was stored with stamp, otherwise null
+         */
+        RecordReader readerOrNull(Path directory, Stamp stamp)
+        {
+            assert stamp != null;
+            if (_previousOrNull == null) {
+                return null;
+            }
+            Location location = _locations.get(keyOf(directory));
+            if (location == null || !location._stamp.equals(stamp)) {
+                return null;
+            }
+            if (!_isVerify) {
+                synchronized (this) {
+                    _numReused++;
+                }
+            }
+            return new RecordReader(new DataInputStream(
+                new BufferedInputStream(
+                    new PositionalInputStream(_previousOrNull,
+                                              location._offset),
+                    READ_BUF_SIZE)));
+        }
+
+        /**
+         * @param stamp the stamp of directory before listing it
+         * @return a writer of the entries of directory, or null if
+         *         directory should not be stored since it was modified
+         *         recently or the next snapshot cannot be written
+         */
+        RecordWriter writerOrNull(Path directory, Stamp stamp)
+        {
+            assert stamp != null;
+            long nowNanos = TimeUnit.MILLISECONDS.toNanos(
+                                                System.currentTimeMillis());
+            if (stamp.isRacy(nowNanos, _racyWindowNanos) ||
+                _activeWriterOrNull != null) {
+                return null;
+            }
+            DataOutputStream out = outOrNull();
+            if (out == null) {
+                return null;
+            }
+            try {
+                out.writeByte(TAG_RECORD);
+                out.writeUTF(keyOf(directory));
+                out.writeLong(stamp._lastModifiedNanos);
+                out.writeLong(stamp._changeTimeNanos);
+                out.writeUTF(stamp._fileKey);
+            } catch (IOException e) {
+                abortWrite(e);
+                return null;
+            }
+            _activeWriterOrNull = new RecordWriter(this);
+            return _activeWriterOrNull;
+        }
+
+        /**
+         * Logs a difference between the snapshot of an unchanged directory
+         * and its current listing, found in verify mode.
+         */
+        synchronized void mismatch(Path path, String description)
+        {
+            _numMismatches++;
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format(
+                    "(FileListSnapshot) %s differs from snapshot: %s",
+                    path, description));
+            }
+        }
+
+        synchronized long numMismatches()
+        {
+            return _numMismatches;
+        }
+
+        private DataOutputStream outOrNull()
+        {
+            if (_outOrNull == null && _tempFileOrNull == null) {
+                try {
+                    Files.createDirectories(_dir);
+                    _tempFileOrNull = Files.createTempFile(
+                        _dir, _file.getFileName() + ".", TEMP_SUFFIX);
+                    OutputStream os = Files.newOutputStream(_tempFileOrNull);
+                    _crc = new CRC32();
+                    _outOrNull = new DataOutputStream(
+                        new CheckedOutputStream(new BufferedOutputStream(os),
+                                                _crc));
+                    _outOrNull.writeInt(MAGIC);
+                    _outOrNull.writeUTF(_roots);
+                } catch (IOException e) {
+                    abortWrite(e);
+                }
+            }
+            return _outOrNull;
+        }
+
+        private void abortWrite(IOException e)
+        {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format(
+                    "(FileListSnapshot) failed to write snapshot %s: %s",
+                    _file, e.getMessage()));
+            }
+            closeOut();
+            deleteTempFile();
+        }
+
+        private void closeOut()
+        {
+            if (_outOrNull != null) {
+                try {
+                    _outOrNull.close();
+                } catch (IOException e) {
+                    // deleted anyway if not committed
+                }
+                _outOrNull = null;
+            }
+        }
+
+        private void deleteTempFile()
+        {
+            if (_tempFileOrNull != null) {
+                try {
+                    Files.deleteIfExists(_tempFileOrNull);
+                } catch (IOException e) {
+                    // ignored, a stale temporary file is harmless
+                }
+            }
+        }
+
+        /**
+         * Replaces the previous snapshot with the directories stored during
+         * this scan. Failures are logged and ignored.
+         */
+        void commit()
+        {
+            if (_activeWriterOrNull != null) {
+                _activeWriterOrNull.end(false);
+            }
+            DataOutputStream out = outOrNull();
+            if (out == null) {
+                return;
+            }
+            try {
+                out.writeByte(TAG_END_OF_SNAPSHOT);
+                out.flush();
+                out.writeLong(_crc.getValue());
+                out.close();
+                _outOrNull = null;
+                move(_tempFileOrNull, _file);
+                _tempFileOrNull = null;
+            } catch (IOException e) {
+                abortWrite(e);
+                return;
+            }
+            if (_log.isLoggable(Level.INFO)) {
+                _log.info(String.format(
+                    "(FileListSnapshot) stored %d directories in %s, %d " +
+                    "reused from previous snapshot, %d mismatches",
+                    _numRecorded, _file, _numReused, numMismatches()));
+            }
+        }
+
+        /**
+         * Discards the next snapshot unless committed.
+         */
+        @Override
+        public void close()
+        {
+            closeOut();
+            deleteTempFile();
+            _tempFileOrNull = null;
+            if (_previousOrNull != null) {
+                try {
+                    _previousOrNull.close();
+                } catch (IOException e) {
+                    // nothing more to read from it anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a scan of the directories of roots, which must be closed.
+     */
+    Scan begin(Iterable<Path> roots)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Path root : roots) {
+            sb.append(keyOf(root)).append('\n');
+        }
+        return new Scan(sb.toString());
+    }
+
+    private static String keyOf(Path path)
+    {
+        return path.toAbsolutePath().normalize().toString();
+    }
+
+    private Path fileOf(String roots)
+    {
+        MessageDigest md = MD5.newInstance();
+        byte[] digest = md.digest(roots.getBytes(StandardCharsets.UTF_8));
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest) {
+            sb.append(String.format("%02x", b));
+        }
+        return _dir.resolve(sb.append(SUFFIX).toString());
+    }
+
+    private static void move(Path source, Path target) throws IOException
+    {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // reads a channel from a position without changing the position of
+    // the channel, making it possible to share it among threads
+    private static final class PositionalInputStream extends InputStream
+    {
+        private final FileChannel _channel;
+        private long _position;
+
+        PositionalInputStream(FileChannel channel, long position)
+        {
+            _channel = channel;
+            _position = position;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0) {
+                return 0;
+            }
+            int n = _channel.read(ByteBuffer.wrap(b, off, len), _position);
+            if (n > 0) {
+                _position += n;
+            }
+            return n;
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream
+    {
+        private long _count;
+
+        CountingInputStream(InputStream in)
+        {
+            super(in);
+        }
+
+        long count()
+        {
+            return _count;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if (b != -1) {
+                _count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                _count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            long skipped = super.skip(n);
+            _count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -23,21 +23,29 @@ package com.github.perlundq.yajsync.session;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.FileTime;
 import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -46,6 +54,7 @@ import java.util.logging.Logger;
 import com.github.perlundq.yajsync.channels.ChannelException;
 import com.github.perlundq.yajsync.channels.Message;
 import com.github.perlundq.yajsync.channels.MessageCode;
+import com.github.perlundq.yajsync.channels.RateLimiter;
 import com.github.perlundq.yajsync.channels.RsyncOutChannel;
 import com.github.perlundq.yajsync.filelist.FileInfo;
 import com.github.perlundq.yajsync.filelist.Filelist;
@@ -57,10 +66,11 @@ import com.github.perlundq.yajsync.text.TextConversionException;
 import com.github.perlundq.yajsync.text.TextDecoder;
 import com.github.perlundq.yajsync.text.TextEncoder;
 import com.github.perlundq.yajsync.util.FileOps;
-import com.github.perlundq.yajsync.util.MD5;
 import com.github.perlundq.yajsync.util.PathOps;
+import com.github.perlundq.yajsync.util.ResumableMD5;
 import com.github.perlundq.yajsync.util.Rolling;
 import com.github.perlundq.yajsync.util.RuntimeInterruptException;
+import com.github.perlundq.yajsync.util.StrongChecksum;
 import com.github.perlundq.yajsync.util.Util;
 
 public class Generator implements RsyncTask
@@ -69,11 +79,119 @@ public class Generator implements RsyncTask
         void process() throws ChannelException;
     }
 
+    // block checksums of the consecutive chunks [firstChunk, firstChunk +
+    // numChunks) of a file
+    private static class BlockChecksums {
+        private final int[] _rollings;
+        private final byte[] _digests;
+        private boolean _isReadError;
+
+        private BlockChecksums(int numChunks, int digestLength)
+        {
+            _rollings = new int[numChunks];
+            _digests = new byte[numChunks * digestLength];
+        }
+    }
+
+    // computes BlockChecksums using positional reads from a shared channel
+    private static class BlockChecksumsTask implements Callable<BlockChecksums>
+    {
+        private final FileChannel _channel;
+        private final Checksum.Header _header;
+        private final StrongChecksum _strongChecksum;
+        private final byte[] _checksumSeed;
+        private final int _firstChunk;
+        private final int _numChunks;
+
+        private BlockChecksumsTask(FileChannel channel, Checksum.Header header,
+                                   StrongChecksum strongChecksum,
+                                   byte[] checksumSeed, int firstChunk,
+                                   int numChunks)
+        {
+            _channel = channel;
+            _header = header;
+            _strongChecksum = strongChecksum;
+            _checksumSeed = checksumSeed;
+            _firstChunk = firstChunk;
+            _numChunks = numChunks;
+        }
+
+        private int chunkLengthFor(int chunkIndex)
+        {
+            boolean isLastChunk = chunkIndex == _header.chunkCount() - 1;
+            if (isLastChunk && _header.remainder() > 0) {
+                return _header.remainder();
+            }
+            return _header.blockLength();
+        }
+
+        // read length bytes at position into buf, filling up with zeroes
+        // on read error (or premature end of file)
+        private boolean readFully(ByteBuffer buf, long position)
+        {
+            try {
+                while (buf.hasRemaining()) {
+                    int n = _channel.read(buf, position);
+                    if (n < 0) {
+                        break;
+                    }
+                    position += n;
+                }
+            } catch (IOException e) {
+                if (_log.isLoggable(Level.FINE)) {
+                    _log.fine("(Generator) read error: " + e.getMessage());
+                }
+            }
+            if (buf.hasRemaining()) {
+                Arrays.fill(buf.array(), buf.position(), buf.limit(),
+                            (byte) 0);
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public BlockChecksums call()
+        {
+            int digestLength = _header.digestLength();
+            BlockChecksums result = new BlockChecksums(_numChunks,
+                                                       digestLength);
+            int lastChunk = _firstChunk + _numChunks - 1;
+            int length = (_numChunks - 1) * _header.blockLength() +
+                         chunkLengthFor(lastChunk);
+            ByteBuffer buf = ByteBuffer.allocate(length);
+            long position = (long) _firstChunk * _header.blockLength();
+            result._isReadError = !readFully(buf, position);
+
+            MessageDigest md = _strongChecksum.newBlockDigest(_checksumSeed);
+            byte[] digest = new byte[_strongChecksum.digestLength()];
+            byte[] data = buf.array();
+            int offset = 0;
+            for (int i = 0; i < _numChunks; i++) {
+                int chunkLength = chunkLengthFor(_firstChunk + i);
+                result._rollings[i] = Rolling.compute(data, offset,
+                                                      chunkLength);
+                md.update(data, offset, chunkLength);
+                StrongChecksum.digestInto(md, digest);
+                System.arraycopy(digest, 0, result._digests,
+                                 i * digestLength, digestLength);
+                offset += chunkLength;
+            }
+            return result;
+        }
+    }
+
     private static final Logger _log =
         Logger.getLogger(Generator.class.getName());
     private static final int OUTPUT_CHANNEL_BUF_SIZE = 8 * 1024;
     private static final Checksum.Header ZERO_SUM;
     private static final int MIN_BLOCK_SIZE = 512;                              // TODO: make block size configurable
+    // basis files of at least this size have their block checksums
+    // generated in parallel if _numChecksumThreads > 1
+    private static final long PARALLEL_CHECKSUM_MIN_FILE_SIZE =
+        16 * 1024 * 1024;
+    // approximate number of file bytes checksummed by one task
+    private static final int PARALLEL_CHECKSUM_TASK_SIZE = 1024 * 1024;
     private final RsyncOutChannel _senderOutChannel;
     private final byte[] _checksumSeed;
 
@@ -93,11 +211,21 @@ public class Generator implements RsyncTask
     private boolean _isPreserveGroup;
     private boolean _isNumericIds;
     private boolean _isIgnoreTimes;
+    private boolean _isWholeFile;
     private boolean _isListOnly;
     private Filelist _fileList;  // effectively final
     private int _returnStatus ;
     private boolean _isRunning = true;
     private boolean _isInterruptible = true;
+    private int _numChecksumThreads = 1;
+    private ForkJoinPool _checksumPool;  // created on first use
+    private int _numStatThreads = 1;
+    private ForkJoinPool _statPool;      // created on first use
+    // number of local files removed by the generator thread so far, any
+    // attributes prefetched before a removal may be stale
+    private volatile long _numRemoved;
+    private SignatureCache _signatureCache;
+    private StrongChecksum _strongChecksum = StrongChecksum.DEFAULT;
 
     static {
         try {
@@ -181,6 +309,18 @@ public class Generator implements RsyncTask
         return this;
     }
 
+    /**
+     * Makes the sender send all data of changed files (an empty checksum
+     * header) instead of reading their basis files for block checksums,
+     * which is faster whenever reading the data twice costs more than
+     * sending it, e.g. for local transfers or on fast networks.
+     */
+    public Generator setIsWholeFile(boolean isWholeFile)
+    {
+        _isWholeFile = isWholeFile;
+        return this;
+    }
+
     public Generator setIsAlwaysItemize(boolean isAlwaysItemize)
     {
         _isAlwaysItemize = isAlwaysItemize;
@@ -199,6 +339,97 @@ public class Generator implements RsyncTask
         return _isInterruptible;
     }
 
+    /**
+     * Generate block checksums of large basis files using numThreads threads
+     * instead of the generator thread only (numThreads == 1, the default).
+     *
+     * @throws IllegalArgumentException if numThreads < 1
+     */
+    public Generator setNumChecksumThreads(int numThreads)
+    {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException(
+                "number of checksum threads must be at least 1: " +
+                numThreads);
+        }
+        _numChecksumThreads = numThreads;
+        return this;
+    }
+
+    /**
+     * Read the attributes of the local files of each segment using
+     * numThreads threads as soon as the segment is received, ahead of the
+     * generator thread, instead of reading them one at a time in the
+     * generator thread (numThreads == 1, the default).
+     *
+     * @throws IllegalArgumentException if numThreads < 1
+     */
+    public Generator setNumStatThreads(int numThreads)
+    {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException(
+                "number of stat threads must be at least 1: " + numThreads);
+        }
+        _numStatThreads = numThreads;
+        return this;
+    }
+
+    /**
+     * Use signatureCache for retrieving and storing the block signatures of
+     * basis files. A null value (the default) disables the cache.
+     */
+    public Generator setSignatureCache(SignatureCache signatureCache)
+    {
+        _signatureCache = signatureCache;
+        return this;
+    }
+
+    /**
+     * Use strongChecksum for block checksums, must be the same as the one
+     * used by Sender (StrongChecksum.DEFAULT by default).
+     */
+    public Generator setStrongChecksum(StrongChecksum strongChecksum)
+    {
+        assert strongChecksum != null;
+        _strongChecksum = strongChecksum;
+        return this;
+    }
+
+    /**
+     * @throws IllegalArgumentException if bufferSize is less than
+     *         Consts.MIN_CHANNEL_BUF_SIZE or greater than
+     *         Consts.MAX_CHANNEL_BUF_SIZE
+     */
+    public Generator setChannelBufferSize(int bufferSize)
+    {
+        _senderOutChannel.setBufferSize(bufferSize);
+        return this;
+    }
+
+    /**
+     * Limit the rate of data sent to the peer with rateLimiter, which may
+     * be shared with other channels.
+     */
+    public Generator setRateLimiter(RateLimiter rateLimiter)
+    {
+        _senderOutChannel.setRateLimiter(rateLimiter);
+        return this;
+    }
+
+    /**
+     * Grow the output channel buffer adaptively up to maxBufferSize while
+     * writes keep filling it.
+     *
+     * @throws IllegalArgumentException if maxBufferSize is less than
+     *         Consts.MIN_CHANNEL_BUF_SIZE or greater than
+     *         Consts.MAX_CHANNEL_BUF_SIZE
+     */
+    public Generator setMaxChannelBufferSize(int maxBufferSize)
+    {
+        _senderOutChannel.setMaxBufferSize(maxBufferSize);
+        return this;
+    }
+
     @Override
     public void closeChannel() throws ChannelException
     {
@@ -297,6 +528,13 @@ public class Generator implements RsyncTask
             return _returnStatus == 0;
         } catch (RuntimeInterruptException e) {
             throw new InterruptedException();
+        } finally {
+            if (_checksumPool != null) {
+                _checksumPool.shutdownNow();
+            }
+            if (_statPool != null) {
+                _statPool.shutdownNow();
+            }
         }
     }
 
@@ -389,6 +627,9 @@ public class Generator implements RsyncTask
     public void generateSegment(final Filelist.Segment segment)
         throws InterruptedException
     {
+        final AttributesPrefetch prefetchOrNull =
+            _numStatThreads > 1 && !_isListOnly ? prefetchAttributes(segment)
+                                                : null;
         Job j = new Job() {
             @Override
             public void process() throws ChannelException {
@@ -402,7 +643,7 @@ public class Generator implements RsyncTask
                     }
                     segment.removeAll();
                 } else {
-                    sendChecksumForSegment(segment);
+                    sendChecksumForSegment(segment, prefetchOrNull);
                 }
                 _generated.add(segment);
                 removeAllFinishedSegmentsAndNotifySender();
@@ -427,7 +668,7 @@ public class Generator implements RsyncTask
                 try {
                     boolean isTransfer =
                         sendFileMetadata(fileIndex, fileInfo,
-                                          Checksum.MAX_DIGEST_LENGTH);
+                                          Checksum.MAX_DIGEST_LENGTH, null);
                     if (!isTransfer) {
                         segment.remove(fileIndex);
                         removeAllFinishedSegmentsAndNotifySender();
@@ -489,7 +730,38 @@ public class Generator implements RsyncTask
         deferUpdateAttrsIfDiffer(dir.path(), attrs, dir.attrs());
     }
 
-    private int sendChecksumForSegmentFiles(Filelist.Segment segment)
+    /**
+     * Starts reading the attributes of the local files of the regular files
+     * in segment that will be generated, in index order. Directories are
+     * left to the generator thread since they may be created by it before
+     * being generated. Called by the receiver thread.
+     */
+    private AttributesPrefetch prefetchAttributes(Filelist.Segment segment)
+    {
+        long generation = _numRemoved;
+        List<Integer> indices = new ArrayList<>();
+        List<Path> paths = new ArrayList<>();
+        for (Map.Entry<Integer, FileInfo> entry : segment.entrySet()) {
+            FileInfo f = entry.getValue();
+            if (f.isTransferrable() && f.attrs().isRegularFile()) {
+                indices.add(entry.getKey());
+                paths.add(f.path());
+            }
+        }
+        if (indices.isEmpty()) {
+            return null;
+        }
+        int[] sortedIndices = new int[indices.size()];
+        for (int i = 0; i < sortedIndices.length; i++) {
+            sortedIndices[i] = indices.get(i);
+        }
+        return new AttributesPrefetch(statPool(), sortedIndices,
+                                      paths.toArray(new Path[paths.size()]),
+                                      generation);
+    }
+
+    private int sendChecksumForSegmentFiles(Filelist.Segment segment,
+                                            AttributesPrefetch prefetchOrNull)
         throws ChannelException
     {
         int numErrors = 0;
@@ -505,7 +777,8 @@ public class Generator implements RsyncTask
                         isTransfer = sendFileMetadata(
                                          index,
                                          f,
-                                         Checksum.MIN_DIGEST_LENGTH);
+                                         Checksum.MIN_DIGEST_LENGTH,
+                                         prefetchOrNull);
                     } else if (!_isRecursive && f.attrs().isDirectory()) {
                         sendDirectoryMetadata(index, f);
                     } else {
@@ -593,7 +866,8 @@ public class Generator implements RsyncTask
         }
     }
 
-    private void sendChecksumForSegment(Filelist.Segment segment)
+    private void sendChecksumForSegment(Filelist.Segment segment,
+                                        AttributesPrefetch prefetchOrNull)
         throws ChannelException
     {
         assert !_isListOnly;
@@ -602,6 +876,9 @@ public class Generator implements RsyncTask
         final int dirIndex = segment.directoryIndex();
         FileInfo dir = segment.directory();
         if (dir != null && (dir.isPruned() || !dir.isTransferrable())) {
+            if (prefetchOrNull != null) {
+                prefetchOrNull.cancel();
+            }
             segment.removeAll();
             return;
         }
@@ -621,7 +898,8 @@ public class Generator implements RsyncTask
             if (!isInitialFileList) {
                 sendDirectoryMetadata(dirIndex, dir);
             }
-            _returnStatus += sendChecksumForSegmentFiles(segment);
+            _returnStatus += sendChecksumForSegmentFiles(segment,
+                                                         prefetchOrNull);
         } catch (IOException e) {
             if (_log.isLoggable(Level.WARNING)) {
                 _log.warning(String.format(
@@ -629,6 +907,9 @@ public class Generator implements RsyncTask
                     "(index %d): %s",
                     dir.path(), dirIndex, e.getMessage()));
             }
+            if (prefetchOrNull != null) {
+                prefetchOrNull.cancel();
+            }
             segment.removeAll();
             _returnStatus++;
         }
@@ -665,7 +946,8 @@ public class Generator implements RsyncTask
 
     private boolean sendFileMetadata(int index,
                                      FileInfo fileInfo,
-                                     int digestLength)
+                                     int digestLength,
+                                     AttributesPrefetch prefetchOrNull)
         throws ChannelException,IOException
     {
         assert index >= 0;
@@ -677,7 +959,10 @@ public class Generator implements RsyncTask
         }
 
         RsyncFileAttributes existingAttrs =
-            RsyncFileAttributes.statIfExists(fileInfo.path());              // value: null if file does not exist else non-null, throws IOException for other errors
+            prefetchOrNull != null && prefetchOrNull.contains(index) &&
+            prefetchOrNull.generation() == _numRemoved
+                ? prefetchOrNull.statIfExists(index)
+                : RsyncFileAttributes.statIfExists(fileInfo.path());            // value: null if file does not exist else non-null, throws IOException for other errors
         boolean isRemoved = removeExistingIfDifferentType(fileInfo, existingAttrs); // throws IOException if fails to remove existing
         if (isRemoved) {
             if (_log.isLoggable(Level.FINE)) {
@@ -737,6 +1022,21 @@ public class Generator implements RsyncTask
                            ? Math.max(minDigestLength,
                                       getDigestLength(currentSize, blockLength))
                            : 0;
+        digestLength = Math.min(digestLength, _strongChecksum.digestLength());
+
+        // cached signatures are only available for MD5
+        if (_signatureCache != null && currentSize > 0 &&
+            _strongChecksum == StrongChecksum.MD5) {
+            sendItemizeAndChecksumsCached(index, fileInfo, curAttrs,
+                                          blockLength, digestLength);
+            return;
+        }
+        if (_numChecksumThreads > 1 &&
+            currentSize >= PARALLEL_CHECKSUM_MIN_FILE_SIZE) {
+            sendItemizeAndChecksumsParallel(index, fileInfo, curAttrs,
+                                            blockLength, digestLength);
+            return;
+        }
 
         try (FileView fv = new FileView(fileInfo.path(),
                                         currentSize,
@@ -755,17 +1055,26 @@ public class Generator implements RsyncTask
             sendItemizeInfo(index, curAttrs, fileInfo.attrs(), Item.TRANSFER);
             sendChecksumHeader(header);
 
-            MessageDigest md = MD5.newInstance();
+            MessageDigest md = _strongChecksum.newBlockDigest(_checksumSeed);
+            byte[] digest = new byte[_strongChecksum.digestLength()];
 
             while (fv.windowLength() > 0) {
-                int rolling = Rolling.compute(fv.array(),
+                int rolling;
+                try {
+                    rolling = Rolling.compute(fv.buffer(),
                                               fv.startOffset(),
                                               fv.windowLength());
+                    StrongChecksum.update(md, fv.buffer(), fv.startOffset(),
+                                          fv.endOffset() + 1);
+                    StrongChecksum.digestInto(md, digest);
+                } catch (InternalError e) {
+                    // truncated while mapped, retry with zeroes
+                    fv.setAccessError(e);
+                    md.reset();
+                    continue;
+                }
                 _senderOutChannel.putInt(rolling);
-                md.update(fv.array(), fv.startOffset(), fv.windowLength());
-                md.update(_checksumSeed);
-                byte[] md5 = md.digest();
-                _senderOutChannel.put(md5, 0, digestLength);
+                _senderOutChannel.put(digest, 0, digestLength);
                 fv.slide(fv.windowLength());
             }
         } catch (FileViewOpenFailed | Checksum.ChunkOverflow e) {
@@ -785,6 +1094,264 @@ public class Generator implements RsyncTask
         }
     }
 
+    /*
+     * Sends the block checksums of fileInfo using its cached signature if it
+     * is up to date, otherwise the checksums are generated from the file
+     * contents and its signature is stored in the cache.
+     */
+    private void sendItemizeAndChecksumsCached(int index,
+                                               FileInfo fileInfo,
+                                               RsyncFileAttributes curAttrs,
+                                               int blockLength,
+                                               int digestLength)
+        throws ChannelException
+    {
+        Path path = fileInfo.path();
+        Checksum.Header header;
+        try {
+            header = new Checksum.Header(blockLength, digestLength,
+                                         curAttrs.size());                     // throws ChunkCountOverflow
+        } catch (Checksum.ChunkOverflow e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format(
+                    "(Generator) received I/O error during checksum " +
+                    "generation (%s)", e.getMessage()));
+            }
+            sendItemizeInfo(index, null, fileInfo.attrs(), Item.TRANSFER);
+            sendChecksumHeader(ZERO_SUM);
+            return;
+        }
+
+        byte[] md5 = new byte[ResumableMD5.DIGEST_LENGTH];
+        byte[] seed = StrongChecksum.isZeroSeed(_checksumSeed)
+                      ? new byte[0] : _checksumSeed;
+        SignatureCache.Key key = _signatureCache.keyOfOrNull(path);
+        if (key != null && key.size() == curAttrs.size()) {
+            SignatureCache.Signature signature =
+                _signatureCache.getOrNull(path, key, header);
+            if (signature != null) {
+                if (_log.isLoggable(Level.FINE)) {
+                    _log.fine(String.format("(Generator) generating file " +
+                                            "%s, index %d, checksum %s " +
+                                            "from cached signature",
+                                            fileInfo, index, header));
+                }
+                sendItemizeInfo(index, curAttrs, fileInfo.attrs(),
+                                Item.TRANSFER);
+                sendChecksumHeader(header);
+                for (int i = 0; i < signature.chunkCount(); i++) {
+                    _senderOutChannel.putInt(signature.rolling(i));
+                    signature.digest(i, seed, md5);
+                    _senderOutChannel.put(md5, 0, digestLength);
+                }
+                return;
+            }
+        }
+
+        SignatureCache.Signature signature =
+            new SignatureCache.Signature(header);
+        try (FileView fv = new FileView(path, curAttrs.size(), blockLength,
+                                        blockLength)) {                        // throws FileViewOpenFailed
+            if (_log.isLoggable(Level.FINE)) {
+                _log.fine(String.format("(Generator) generating file %s, " +
+                                        "index %d, checksum %s",
+                                        fileInfo, index, header));
+            }
+            sendItemizeInfo(index, curAttrs, fileInfo.attrs(), Item.TRANSFER);
+            sendChecksumHeader(header);
+
+            ResumableMD5 md = new ResumableMD5();
+            int chunkIndex = 0;
+            while (fv.windowLength() > 0) {
+                int length = fv.windowLength();
+                int prefixLength = length - length % ResumableMD5.BLOCK_LENGTH;
+                int rolling;
+                try {
+                    rolling = Rolling.compute(fv.buffer(), fv.startOffset(),
+                                              length);
+                    md.reset();
+                    md.update(fv.buffer(), fv.startOffset(), prefixLength);
+                    if (prefixLength < length) {
+                        signature.setTail(fv.buffer(),
+                                          fv.startOffset() + prefixLength);
+                    }
+                } catch (InternalError e) {
+                    // truncated while mapped, retry with zeroes
+                    fv.setAccessError(e);
+                    continue;
+                }
+                signature.set(chunkIndex, rolling, md);
+                signature.digest(chunkIndex, seed, md5);
+                _senderOutChannel.putInt(rolling);
+                _senderOutChannel.put(md5, 0, digestLength);
+                fv.slide(length);
+                chunkIndex++;
+            }
+        } catch (FileViewOpenFailed e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format(
+                    "(Generator) received I/O error during checksum " +
+                    "generation (%s)", e.getMessage()));
+            }
+            sendItemizeInfo(index, null, fileInfo.attrs(), Item.TRANSFER);
+            sendChecksumHeader(ZERO_SUM);
+            return;
+        } catch (FileViewReadError e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning("(Generator) Warning got I/O errors during " +
+                             "checksum generation. Errors ignored and data " +
+                             "filled with zeroes): " + e.getMessage());
+            }
+            return;
+        }
+
+        if (key != null) {
+            _signatureCache.put(path, key, signature);
+        }
+    }
+
+    /**
+     * Sends the itemize info and block checksums of the basis file
+     * fileInfo.path() with attributes curAttrs, as when fileInfo is to be
+     * transferred, and flushes them. For tests and benchmarks of checksum
+     * generation.
+     */
+    void sendItemizeAndChecksumsAndFlush(int index, FileInfo fileInfo,
+                                         RsyncFileAttributes curAttrs)
+        throws ChannelException
+    {
+        sendItemizeAndChecksums(index, fileInfo, curAttrs,
+                                Checksum.MIN_DIGEST_LENGTH);
+        _senderOutChannel.flush();
+    }
+
+    private void sendItemizeAndChecksumsParallel(int index,
+                                                 FileInfo fileInfo,
+                                                 RsyncFileAttributes curAttrs,
+                                                 int blockLength,
+                                                 int digestLength)
+        throws ChannelException
+    {
+        Checksum.Header header;
+        FileChannel channel;
+        try {
+            header = new Checksum.Header(blockLength, digestLength,
+                                         curAttrs.size());                     // throws ChunkCountOverflow
+            channel = FileChannel.open(fileInfo.path(),
+                                       StandardOpenOption.READ);
+        } catch (IOException | Checksum.ChunkOverflow e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format(
+                    "(Generator) received I/O error during checksum " +
+                    "generation (%s)", e.getMessage()));
+            }
+            sendItemizeInfo(index, null, fileInfo.attrs(), Item.TRANSFER);
+            sendChecksumHeader(ZERO_SUM);
+            return;
+        }
+
+        try {
+            if (_log.isLoggable(Level.FINE)) {
+                _log.fine(String.format("(Generator) generating file %s, " +
+                                        "index %d, checksum %s using %d " +
+                                        "threads",
+                                        fileInfo, index, header,
+                                        _numChecksumThreads));
+            }
+            sendItemizeInfo(index, curAttrs, fileInfo.attrs(), Item.TRANSFER);
+            sendChecksumHeader(header);
+            boolean isOK = sendBlockChecksums(channel, header);
+            if (!isOK && _log.isLoggable(Level.WARNING)) {
+                _log.warning("(Generator) Warning got I/O errors during " +
+                             "checksum generation of " + fileInfo.path() +
+                             ". Errors ignored and data filled with zeroes");
+            }
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                if (_log.isLoggable(Level.WARNING)) {
+                    _log.warning(String.format(
+                        "(Generator) failed to close %s: %s",
+                        fileInfo.path(), e.getMessage()));
+                }
+            }
+        }
+    }
+
+    private ForkJoinPool statPool()
+    {
+        if (_statPool == null) {
+            _statPool = new ForkJoinPool(_numStatThreads);
+        }
+        return _statPool;
+    }
+
+    private ForkJoinPool checksumPool()
+    {
+        if (_checksumPool == null) {
+            _checksumPool = new ForkJoinPool(_numChecksumThreads);
+        }
+        return _checksumPool;
+    }
+
+    /*
+     * Computes the block checksums of ranges of the file concurrently using
+     * the checksum pool and sends them to the sender in order, keeping at
+     * most 2 * _numChecksumThreads ranges in memory.
+     * Returns false if there were any read errors.
+     */
+    private boolean sendBlockChecksums(FileChannel channel,
+                                       Checksum.Header header)
+        throws ChannelException
+    {
+        int chunksPerTask = Math.max(1, PARALLEL_CHECKSUM_TASK_SIZE /
+                                        header.blockLength());
+        int maxPendingTasks = 2 * _numChecksumThreads;
+        int digestLength = header.digestLength();
+        Deque<Future<BlockChecksums>> pending = new ArrayDeque<>();
+        int nextChunk = 0;
+        boolean isOK = true;
+
+        try {
+            while (nextChunk < header.chunkCount() || !pending.isEmpty()) {
+                while (nextChunk < header.chunkCount() &&
+                       pending.size() < maxPendingTasks) {
+                    int numChunks = Math.min(chunksPerTask,
+                                             header.chunkCount() - nextChunk);
+                    pending.add(checksumPool().submit(
+                        new BlockChecksumsTask(channel, header,
+                                               _strongChecksum, _checksumSeed,
+                                               nextChunk, numChunks)));
+                    nextChunk += numChunks;
+                }
+                BlockChecksums result = pending.remove().get();
+                isOK &= !result._isReadError;
+                for (int i = 0; i < result._rollings.length; i++) {
+                    _senderOutChannel.putInt(result._rollings[i]);
+                    _senderOutChannel.put(result._digests, i * digestLength,
+                                          digestLength);
+                }
+            }
+            return isOK;
+        } catch (InterruptedException e) {
+            throw new RuntimeInterruptException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(
+                "failed to compute block checksums: " + cause, cause);
+        } finally {
+            for (Future<BlockChecksums> f : pending) {
+                f.cancel(true);
+            }
+        }
+    }
+
     private void updateAttrsIfDiffer(Path path, RsyncFileAttributes curAttrs,
                                      RsyncFileAttributes targetAttrs)
         throws IOException
@@ -915,7 +1482,7 @@ public class Generator implements RsyncTask
     {
         // NOTE: native opens the file first though even if its file size is zero
         if (isDataModified(fileInfo.attrs(), curAttrs) || _isIgnoreTimes) {
-            if (curAttrs == null) {
+            if (curAttrs == null || _isWholeFile) {
                 sendItemizeInfo(index, curAttrs, fileInfo.attrs(),
                                 Item.TRANSFER);
                 sendChecksumHeader(ZERO_SUM);
@@ -1013,6 +1580,7 @@ public class Generator implements RsyncTask
         if (existingAttrs != null &&
             existingAttrs.fileType() != fileInfo.attrs().fileType()) {
         	PathOps.deleteIfExists(fileInfo.path(), PathOps.EMPTY);
+            _numRemoved++;
             return true;
         } else {
             return false;
@@ -1071,7 +1639,14 @@ public class Generator implements RsyncTask
         }
     }
 
-    public synchronized long numBytesWritten()
+    int numQueuedJobs()
+    {
+        return _jobs.size();
+    }
+
+    // NOTE: not synchronized, nothing else locks the generator and the
+    // result is only approximate while the generator is still running
+    public long numBytesWritten()
     {
         return _senderOutChannel.numBytesWritten();
     }
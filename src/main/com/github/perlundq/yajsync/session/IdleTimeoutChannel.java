@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.security.Principal;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.perlundq.yajsync.channels.net.DuplexByteChannel;
+
+/**
+ * A DuplexByteChannel remembering when data was last read or written, so
+ * that SessionScheduler can close it once it has been idle for longer than
+ * its timeout. Closing it makes a thread blocked in read or write fail with
+ * an IOException. It also counts the bytes read and written, for
+ * ServerMetrics.
+ */
+class IdleTimeoutChannel implements DuplexByteChannel
+{
+    private static class Gathering extends IdleTimeoutChannel
+                                   implements GatheringByteChannel
+    {
+        private final GatheringByteChannel _gatheringChannel;
+
+        Gathering(DuplexByteChannel channel)
+        {
+            super(channel);
+            _gatheringChannel = (GatheringByteChannel) channel;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length)
+            throws IOException
+        {
+            return countWritten(_gatheringChannel.write(srcs, offset, length));
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException
+        {
+            return write(srcs, 0, srcs.length);
+        }
+    }
+
+    private final DuplexByteChannel _channel;
+    private volatile long _lastActivity = System.nanoTime();
+    private volatile long _timeout; // nanoseconds, 0 means no timeout
+    private final AtomicLong _numBytesRead = new AtomicLong();
+    private final AtomicLong _numBytesWritten = new AtomicLong();
+
+    private IdleTimeoutChannel(DuplexByteChannel channel)
+    {
+        _channel = channel;
+    }
+
+    /**
+     * @return a channel which is a GatheringByteChannel if channel is
+     */
+    static IdleTimeoutChannel wrap(DuplexByteChannel channel)
+    {
+        if (channel instanceof GatheringByteChannel) {
+            return new Gathering(channel);
+        }
+        return new IdleTimeoutChannel(channel);
+    }
+
+    /**
+     * Sets the timeout, 0 means no timeout, and restarts the idle time.
+     */
+    void setTimeout(long timeout, TimeUnit unit)
+    {
+        _lastActivity = System.nanoTime();
+        _timeout = unit.toNanos(timeout);
+    }
+
+    boolean isTimedOut(long now)
+    {
+        long timeout = _timeout;
+        return timeout > 0 && now - _lastActivity > timeout;
+    }
+
+    /**
+     * @return the System.nanoTime of the last read or write
+     */
+    long lastActivity()
+    {
+        return _lastActivity;
+    }
+
+    long numBytesRead()
+    {
+        return _numBytesRead.get();
+    }
+
+    long numBytesWritten()
+    {
+        return _numBytesWritten.get();
+    }
+
+    private long countRead(long numBytes)
+    {
+        if (numBytes > 0) {
+            _lastActivity = System.nanoTime();
+            _numBytesRead.addAndGet(numBytes);
+        }
+        return numBytes;
+    }
+
+    protected long countWritten(long numBytes)
+    {
+        if (numBytes > 0) {
+            _lastActivity = System.nanoTime();
+            _numBytesWritten.addAndGet(numBytes);
+        }
+        return numBytes;
+    }
+
+    @Override
+    public String toString()
+    {
+        return _channel.toString();
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return _channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        _channel.close();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        return (int) countRead(_channel.read(dst));
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException
+    {
+        return (int) countWritten(_channel.write(src));
+    }
+
+    @Override
+    public InetAddress peerAddress()
+    {
+        return _channel.peerAddress();
+    }
+
+    @Override
+    public boolean isPeerAuthenticated()
+    {
+        return _channel.isPeerAuthenticated();
+    }
+
+    @Override
+    public Principal peerPrincipal()
+    {
+        return _channel.peerPrincipal();
+    }
+}
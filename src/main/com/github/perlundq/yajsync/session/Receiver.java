@@ -22,6 +22,7 @@ package com.github.perlundq.yajsync.session;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.charset.Charset;
@@ -47,6 +48,7 @@ import com.github.perlundq.yajsync.channels.ChannelException;
 import com.github.perlundq.yajsync.channels.Message;
 import com.github.perlundq.yajsync.channels.MessageCode;
 import com.github.perlundq.yajsync.channels.MessageHandler;
+import com.github.perlundq.yajsync.channels.RateLimiter;
 import com.github.perlundq.yajsync.channels.RsyncInChannel;
 import com.github.perlundq.yajsync.filelist.ConcurrentFilelist;
 import com.github.perlundq.yajsync.filelist.FileInfo;
@@ -67,6 +69,7 @@ import com.github.perlundq.yajsync.util.FileOps;
 import com.github.perlundq.yajsync.util.MD5;
 import com.github.perlundq.yajsync.util.PathOps;
 import com.github.perlundq.yajsync.util.RuntimeInterruptException;
+import com.github.perlundq.yajsync.util.StrongChecksum;
 import com.github.perlundq.yajsync.util.Util;
 
 public class Receiver implements RsyncTask,MessageHandler
@@ -121,6 +124,7 @@ public class Receiver implements RsyncTask,MessageHandler
         Logger.getLogger(Receiver.class.getName());
 
     private static final int INPUT_CHANNEL_BUF_SIZE = 8 * 1024;
+    private static final int DIRECT_COPY_BUF_SIZE = 64 * 1024;
     private final FileInfoCache _fileInfoCache = new FileInfoCache();
     private final Map<Integer, User> _uidUserMap = new HashMap<>();
     private final Map<Integer, Group> _gidGroupMap = new HashMap<>();
@@ -142,6 +146,7 @@ public class Receiver implements RsyncTask,MessageHandler
     private boolean _isPreserveGroup;
     private boolean _isNumericIds;
     private boolean _isDeferredWrite;
+    private TokenInflater _tokenInflater;  // non-null if compressed
     private boolean _isInterruptible = true;
     private boolean _isExitAfterEOF;
     private boolean _isSafeFileList = true;
@@ -150,6 +155,9 @@ public class Receiver implements RsyncTask,MessageHandler
     private final boolean _isDeleteBefore = true;	// default
     private int _ioError;
     private PathResolver _pathResolver;
+    private StrongChecksum _strongChecksum = StrongChecksum.DEFAULT;
+    private boolean _isVarintFileListFlags;
+    private DirectCopyTable _directCopyTable;  // non-null if local
 
     public Receiver(Generator generator,
                     ReadableByteChannel in,
@@ -231,6 +239,13 @@ public class Receiver implements RsyncTask,MessageHandler
         return this;
     }
 
+    public Receiver setIsCompress(boolean isCompress)
+    {
+        _tokenInflater = isCompress ? new TokenInflater(_senderInChannel)
+                                    : null;
+        return this;
+    }
+
     public Receiver setIsDeferredWrite(boolean isDeferredWrite)
     {
         _isDeferredWrite = isDeferredWrite;
@@ -290,6 +305,58 @@ public class Receiver implements RsyncTask,MessageHandler
         return this;
     }
 
+    /**
+     * Use strongChecksum for file checksums, must be the same as the one
+     * used by peer (StrongChecksum.DEFAULT by default).
+     */
+    public Receiver setStrongChecksum(StrongChecksum strongChecksum)
+    {
+        assert strongChecksum != null;
+        _strongChecksum = strongChecksum;
+        return this;
+    }
+
+    /**
+     * Receive file list flags as variable length integers, as negotiated
+     * using RsyncCompatibilities.CF_VARINT_FLIST_FLAGS.
+     */
+    public Receiver setIsVarintFileListFlags(boolean isVarintFileListFlags)
+    {
+        _isVarintFileListFlags = isVarintFileListFlags;
+        return this;
+    }
+
+    /**
+     * @throws IllegalArgumentException if bufferSize is less than
+     *         Consts.MIN_CHANNEL_BUF_SIZE or greater than
+     *         Consts.MAX_CHANNEL_BUF_SIZE
+     */
+    public Receiver setChannelBufferSize(int bufferSize)
+    {
+        _senderInChannel.setBufferSize(bufferSize);
+        return this;
+    }
+
+    /**
+     * Limit the rate of data received from the peer with rateLimiter,
+     * which may be shared with other channels.
+     */
+    public Receiver setRateLimiter(RateLimiter rateLimiter)
+    {
+        _senderInChannel.setRateLimiter(rateLimiter);
+        return this;
+    }
+
+    /**
+     * Copy files without a basis directly from the source paths registered
+     * by an in-process Sender, see DirectCopyTable.
+     */
+    Receiver setDirectCopyTable(DirectCopyTable directCopyTable)
+    {
+        _directCopyTable = directCopyTable;
+        return this;
+    }
+
     @Override
     public boolean isInterruptible()
     {
@@ -414,7 +481,11 @@ public class Receiver implements RsyncTask,MessageHandler
         } catch (PathResolverException e) { // getPathResolver
             throw new RsyncException(e);
         } finally {
+            _stats.setIoError(_ioError);
             _generator.stop();
+            if (_tokenInflater != null) {
+                _tokenInflater.end();
+            }
         }
     }
 
@@ -933,8 +1004,17 @@ public class Receiver implements RsyncTask,MessageHandler
                     if (_log.isLoggable(Level.FINE)) {
                         _log.fine("created tempfile " + tempFile);
                     }
-                    matchData(segment, index, fileInfo, checksumHeader,
-                              tempFile);
+                    Path sourcePath = checksumHeader.blockLength() == 0 &&
+                                      _directCopyTable != null
+                        ? _directCopyTable.removeOrNull(index)
+                        : null;
+                    if (sourcePath != null) {
+                        copyDirect(segment, index, fileInfo, checksumHeader,
+                                   tempFile, sourcePath);
+                    } else {
+                        matchData(segment, index, fileInfo, checksumHeader,
+                                  tempFile);
+                    }
                 } catch (IOException e) {
                     if (_log.isLoggable(Level.WARNING)) {
                         _log.warning(String.format(
@@ -942,7 +1022,7 @@ public class Receiver implements RsyncTask,MessageHandler
                             fileInfo.path().getParent(), e.getMessage()));
                     }
                     discardData(checksumHeader);
-                    _senderInChannel.skip(Checksum.MAX_DIGEST_LENGTH);
+                    _senderInChannel.skip(_strongChecksum.digestLength());
                     _ioError |= IoError.GENERAL;
                     // TODO: send error message to peer
                     _generator.purgeFile(segment, index);
@@ -1095,12 +1175,90 @@ public class Receiver implements RsyncTask,MessageHandler
                            Path tempFile)
         throws ChannelException, InterruptedException
     {
-        MessageDigest md = MD5.newInstance();
+        MessageDigest md = _strongChecksum.newFileDigest();
         Path resultFile = mergeDataFromPeerAndReplica(fileInfo,
                                                       tempFile,
                                                       checksumHeader,
                                                       md);
-        if (isRemoteAndLocalFileIdentical(resultFile, md, fileInfo)) {
+        boolean isIdentical = isRemoteAndLocalFileIdentical(resultFile, md,
+                                                            fileInfo);
+        completeFile(segment, index, fileInfo, resultFile, isIdentical);
+    }
+
+    private void copyDirect(Filelist.Segment segment, int index,
+                            FileInfo fileInfo, Checksum.Header checksumHeader,
+                            Path tempFile, Path sourcePath)
+        throws ChannelException, InterruptedException
+    {
+        // copied while the sender reads the source for its file checksum,
+        // the copy is then verified against it as usual
+        long fileSize = fileInfo.attrs().size();
+        MessageDigest md = _strongChecksum.newFileDigest();
+        boolean isCopied = transferFile(sourcePath, tempFile, fileSize, md);
+
+        // the sender sends no data
+        discardData(checksumHeader);
+        boolean isIdentical = isRemoteAndLocalFileIdentical(
+            isCopied ? tempFile : null, md, fileInfo);
+        if (_log.isLoggable(Level.FINE)) {
+            _log.fine(String.format("copied %s -> %s directly: %s",
+                                    sourcePath, tempFile,
+                                    isIdentical ? "OK" : "mismatch"));
+        }
+        if (isIdentical) {
+            _stats.setTotalLiteralSize(_stats.totalLiteralSize() + fileSize);
+            _stats.setNumDirectCopiedFiles(_stats.numDirectCopiedFiles() + 1);
+        }
+        completeFile(segment, index, fileInfo, tempFile, isIdentical);
+    }
+
+    // FileChannel.transferTo lets the JDK use sendfile(2) or similar for
+    // copying in kernel space, the copy is then read back into md
+    private boolean transferFile(Path sourcePath, Path tempFile, long size,
+                                 MessageDigest md)
+    {
+        try (FileChannel in = FileChannel.open(sourcePath,
+                                               StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(tempFile,
+                                                StandardOpenOption.READ,
+                                                StandardOpenOption.WRITE)) {
+            long position = 0;
+            while (position < size) {
+                long numBytes = in.transferTo(position, size - position, out);
+                if (numBytes <= 0) { // truncated since sent
+                    return false;
+                }
+                position += numBytes;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(
+                (int) Math.min(size, DIRECT_COPY_BUF_SIZE));
+            position = 0;
+            while (position < size) {
+                buf.clear();
+                int numBytes = out.read(buf, position);
+                if (numBytes <= 0) {
+                    return false;
+                }
+                md.update(buf.array(), 0, numBytes);
+                position += numBytes;
+            }
+            return in.size() == size;
+        } catch (IOException e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format("failed to copy %s to %s: %s",
+                                           sourcePath, tempFile,
+                                           e.getMessage()));
+            }
+            return false;
+        }
+    }
+
+    private void completeFile(Filelist.Segment segment, int index,
+                              FileInfo fileInfo, Path resultFile,
+                              boolean isIdentical)
+        throws InterruptedException
+    {
+        if (isIdentical) {
             try {
                 if (_isPreservePermissions || _isPreserveTimes ||
                     _isPreserveUser || _isPreserveGroup)
@@ -1170,11 +1328,27 @@ public class Receiver implements RsyncTask,MessageHandler
                             _senderInChannel.numBytesPrefetched();
 
         while (true) {
-            char flags = (char) (_senderInChannel.getByte() & 0xFF);
-            if (flags == 0) {
-                break;
+            char flags;
+            if (_isVarintFileListFlags) {
+                flags = (char) receiveAndDecodeInt();
+                if (flags == 0) {
+                    int peerIoError = receiveAndDecodeInt();
+                    if (peerIoError != 0 && _log.isLoggable(Level.WARNING)) {
+                        _log.warning(String.format("peer process returned " +
+                                                   "an I/O error (%d)",
+                                                   peerIoError));
+                    }
+                    ioError |= peerIoError;
+                    break;
+                }
+            } else {
+                flags = (char) (_senderInChannel.getByte() & 0xFF);
+                if (flags == 0) {
+                    break;
+                }
             }
-            if ((flags & TransmitFlags.EXTENDED_FLAGS) != 0) {
+            if (!_isVarintFileListFlags &&
+                (flags & TransmitFlags.EXTENDED_FLAGS) != 0) {
                 flags |= (_senderInChannel.getByte() & 0xFF) << 8;
                 if (flags == (TransmitFlags.EXTENDED_FLAGS |
                               TransmitFlags.IO_ERROR_ENDLIST)) {
@@ -1553,12 +1727,15 @@ public class Receiver implements RsyncTask,MessageHandler
         long sizeLiteral = 0;
         long sizeMatch = 0;
         while (true) {
-            int token = _senderInChannel.getInt();
+            int token = _tokenInflater != null ? _tokenInflater.skipToken()
+                                               : _senderInChannel.getInt();
             if (token == 0) {
                 break;
             } else if (token > 0) {
                 int numBytes = token;
-                _senderInChannel.skip(numBytes);
+                if (_tokenInflater == null) {
+                    _senderInChannel.skip(numBytes);
+                }
                 sizeLiteral += numBytes;
             } else {
                 final int blockIndex = - (token + 1);  // blockIndex >= 0 && blockIndex <= Integer.MAX_VALUE
@@ -1630,7 +1807,9 @@ public class Receiver implements RsyncTask,MessageHandler
         int expectedIndex = 0;
 
         while (true) {
-            final int token = _senderInChannel.getInt();
+            final int token = _tokenInflater != null
+                              ? _tokenInflater.nextToken()
+                              : _senderInChannel.getInt();
             if (token == 0) {
                 break;
             }
@@ -1665,6 +1844,10 @@ public class Receiver implements RsyncTask,MessageHandler
 
                 if (isIntact) {
                     if (blockIndex == expectedIndex) { // if not identical to previous index we could possible try to see if the checksum are identical as a fallback attempt
+                        if (_tokenInflater != null) {
+                            _tokenInflater.see(readReplicaBlock(
+                                blockIndex, checksumHeader, replica));
+                        }
                         expectedIndex++;
                         continue;
                     }
@@ -1677,7 +1860,11 @@ public class Receiver implements RsyncTask,MessageHandler
                     copyBlockRange(expectedIndex, checksumHeader, replica,
                                    outFile, md);
                 }
-                matchReplica(blockIndex, checksumHeader, replica, outFile, md);
+                ByteBuffer block = matchReplica(blockIndex, checksumHeader,
+                                                replica, outFile, md);
+                if (_tokenInflater != null) {
+                    _tokenInflater.see(block);
+                }
             } else if (token > 0) { // receive non-matched literal data from peer:
                 if (isIntact) {
                     if (_log.isLoggable(Level.FINE)) {
@@ -1733,9 +1920,19 @@ public class Receiver implements RsyncTask,MessageHandler
         throws ChannelException
     {
         // TODO: possibly skip writing out to file if replica is not OK
+        if (_tokenInflater != null) {
+            assert _tokenInflater.data().remaining() == length;
+            ByteBuffer literalData = _tokenInflater.data();
+            if (outFile != null) {
+                writeOut(outFile, literalData);
+                literalData.rewind();
+            }
+            md.update(literalData);
+            return;
+        }
         int bytesReceived = 0;
         while (bytesReceived < length) {
-            int chunkSize = Math.min(INPUT_CHANNEL_BUF_SIZE,
+            int chunkSize = Math.min(_senderInChannel.bufferSize(),
                                      length - bytesReceived);
             ByteBuffer literalData = _senderInChannel.get(chunkSize);
             bytesReceived += chunkSize;
@@ -1769,11 +1966,30 @@ public class Receiver implements RsyncTask,MessageHandler
         }
     }
 
-    private void matchReplica(int blockIndex,
-                              Checksum.Header checksumHeader,
-                              SeekableByteChannel replica,
-                              SeekableByteChannel outFile,
-                              MessageDigest md)
+    // returns the data of the block
+    private ByteBuffer matchReplica(int blockIndex,
+                                    Checksum.Header checksumHeader,
+                                    SeekableByteChannel replica,
+                                    SeekableByteChannel outFile,
+                                    MessageDigest md)
+        throws IOException
+    {
+        ByteBuffer replicaBuf = readReplicaBlock(blockIndex, checksumHeader,
+                                                 replica);
+
+        // TODO: clean this up, not good
+        if (outFile != null) {
+            writeOut(outFile, replicaBuf);
+            replicaBuf.rewind();
+        }
+        md.update(replicaBuf);
+        replicaBuf.rewind();
+        return replicaBuf;
+    }
+
+    private ByteBuffer readReplicaBlock(int blockIndex,
+                                        Checksum.Header checksumHeader,
+                                        SeekableByteChannel replica)
         throws IOException
     {
         ByteBuffer replicaBuf =
@@ -1789,13 +2005,7 @@ public class Receiver implements RsyncTask,MessageHandler
                     replica, bytesRead, replicaBuf.remaining()));
         }
         replicaBuf.flip();
-
-        // TODO: clean this up, not good
-        if (outFile != null) {
-            writeOut(outFile, replicaBuf);
-            replicaBuf.rewind();
-        }
-        md.update(replicaBuf);
+        return replicaBuf;
     }
 
     private int sizeForChecksumBlock(int blockIndex,
@@ -27,15 +27,26 @@ import java.nio.file.Path;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
+import java.util.zip.Deflater;
 
+import com.github.perlundq.yajsync.channels.RateLimiter;
 import com.github.perlundq.yajsync.io.CustomFileSystem;
 import com.github.perlundq.yajsync.session.ClientSessionConfig.AuthProvider;
 import com.github.perlundq.yajsync.text.Text;
 import com.github.perlundq.yajsync.ui.FilterRuleConfiguration;
+import com.github.perlundq.yajsync.util.Consts;
+import com.github.perlundq.yajsync.util.StrongChecksum;
 
 public class RsyncClientSession
 {
     private boolean _isDeferredWrite;
+    private int _numChecksumThreads = 1;
+    private int _numStatThreads = 1;
+    private SignatureCache _signatureCache;
+    private FileListSnapshot _fileListSnapshot;
+    private int _channelBufferSize = Consts.DEFAULT_CHANNEL_BUF_SIZE;
+    private int _maxChannelBufferSize = Consts.DEFAULT_CHANNEL_BUF_SIZE;
+    private int _bandwidthLimit;
     private boolean _isModuleListing;
     private boolean _isPreserveTimes;
     private boolean _isRecursiveTransfer;
@@ -51,7 +62,11 @@ public class RsyncClientSession
     private boolean _isDelete;
     private boolean _isDeleteExcluded;
     private boolean _isIgnoreTimes;
+    private boolean _isWholeFile;
     private boolean _isTransferDirs;
+    private boolean _isCompress;
+    private int _compressLevel = Deflater.DEFAULT_COMPRESSION;
+    private StrongChecksum _checksumChoice;
 
     public RsyncClientSession() {}
 
@@ -91,6 +106,12 @@ public class RsyncClientSession
         return this;
     }
 
+    public RsyncClientSession setIsWholeFile(boolean isWholeFile)
+    {
+        _isWholeFile = isWholeFile;
+        return this;
+    }
+
     public RsyncClientSession setCharset(Charset charset)
     {
         _charset = charset;
@@ -103,6 +124,85 @@ public class RsyncClientSession
         return this;
     }
 
+    public RsyncClientSession setNumChecksumThreads(int numChecksumThreads)
+    {
+        _numChecksumThreads = numChecksumThreads;
+        return this;
+    }
+
+    public RsyncClientSession setNumStatThreads(int numStatThreads)
+    {
+        _numStatThreads = numStatThreads;
+        return this;
+    }
+
+    public RsyncClientSession setChannelBufferSize(int channelBufferSize)
+    {
+        _channelBufferSize = channelBufferSize;
+        return this;
+    }
+
+    public RsyncClientSession setMaxChannelBufferSize(
+        int maxChannelBufferSize)
+    {
+        _maxChannelBufferSize = maxChannelBufferSize;
+        return this;
+    }
+
+    /**
+     * Limit the data sent and received to bytesPerSecond, unlimited if 0.
+     */
+    public RsyncClientSession setBandwidthLimit(int bytesPerSecond)
+    {
+        assert bytesPerSecond >= 0;
+        _bandwidthLimit = bytesPerSecond;
+        return this;
+    }
+
+    public RsyncClientSession setIsCompress(boolean isCompress)
+    {
+        _isCompress = isCompress;
+        return this;
+    }
+
+    /**
+     * @throws IllegalArgumentException if level is not a valid deflate
+     *         compression level
+     */
+    public RsyncClientSession setCompressLevel(int level)
+    {
+        if (level < Deflater.DEFAULT_COMPRESSION ||
+            level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException(
+                "invalid compression level: " + level);
+        }
+        _compressLevel = level;
+        return this;
+    }
+
+    public RsyncClientSession setSignatureCache(SignatureCache signatureCache)
+    {
+        _signatureCache = signatureCache;
+        return this;
+    }
+
+    public RsyncClientSession setFileListSnapshot(
+                                        FileListSnapshot fileListSnapshot)
+    {
+        _fileListSnapshot = fileListSnapshot;
+        return this;
+    }
+
+    /**
+     * Use checksum for block and file checksums instead of negotiating it
+     * with peer. A null value (the default) means negotiate.
+     */
+    public RsyncClientSession setChecksumChoice(StrongChecksum checksum)
+    {
+        _checksumChoice = checksum;
+        return this;
+    }
+
     public RsyncClientSession setIsRecursiveTransfer(boolean isRecursiveTransfer)
     {
         _isRecursiveTransfer = isRecursiveTransfer;
@@ -181,9 +281,17 @@ public class RsyncClientSession
         if (_isIgnoreTimes) {
             sb.append("I");
         }
+        // like rsync there is no need to send --no-whole-file, it is the
+        // default of remote transfers
+        if (_isWholeFile) {
+            sb.append("W");
+        }
         if (_isRecursiveTransfer) {
             sb.append("r");
         }
+        if (_isCompress) {
+            sb.append("z");
+        }
         sb.append("e");
         sb.append(".");
         if (_isRecursiveTransfer) {
@@ -192,6 +300,9 @@ public class RsyncClientSession
         // revisit (add L) if we add support for symlinks and can set timestamps for symlinks itself
         sb.append("s");
         sb.append("f");
+        // negotiation of checksums and compression, implies varint flist
+        // flags
+        sb.append("v");
         // revisit if we add support for --iconv
         serverArgs.add(sb.toString());
 
@@ -204,6 +315,13 @@ public class RsyncClientSession
         if (_isDeleteExcluded) {
         	serverArgs.add("--delete-excluded");
         }
+        if (_isCompress && _compressLevel != Deflater.DEFAULT_COMPRESSION) {
+            serverArgs.add("--compress-level=" + _compressLevel);
+        }
+        if (_checksumChoice != null) {
+            serverArgs.add("--checksum-choice=" +
+                           _checksumChoice.protocolName());
+        }
 
         serverArgs.add("."); // arg delimiter
 
@@ -244,6 +362,8 @@ public class RsyncClientSession
                                                           _isRecursiveTransfer,
                                                           stdout,
                                                           stderr);
+        cfg.setChecksumChoice(_checksumChoice);
+        cfg.setIsCompress(_isCompress);
 
         SessionStatus status = cfg.handshake(moduleName, serverArgs,
                                              authProvider);
@@ -254,6 +374,9 @@ public class RsyncClientSession
             return true;
         }
 
+        RateLimiter rateLimiter = _bandwidthLimit > 0
+                                ? new RateLimiter(_bandwidthLimit, null)
+                                : null;
         if (_isSender) {
             List<Path> srcPaths = toListOfPaths(srcArgs);
             Sender sender = Sender.newClientInstance(in,
@@ -265,6 +388,14 @@ public class RsyncClientSession
                 setIsPreserveUser(_isPreserveUser).
                 setIsInterruptible(isChannelsInterruptible).
                 setIsSafeFileList(cfg.isSafeFileList()).
+                setIsCompress(_isCompress).
+                setCompressLevel(_compressLevel).
+                setStrongChecksum(cfg.strongChecksum()).
+                setIsVarintFileListFlags(cfg.isVarintFileListFlags()).
+                setChannelBufferSize(_channelBufferSize).
+                setMaxChannelBufferSize(_maxChannelBufferSize).
+                setRateLimiter(rateLimiter).
+                setFileListSnapshot(_fileListSnapshot).
                 setFilterRuleConfiguration(_filterRuleConfiguration);
             boolean isTransferDirs = _isTransferDirs ||
                                      _isModuleListing && !_isRecursiveTransfer;
@@ -284,8 +415,16 @@ public class RsyncClientSession
                     setIsPreserveGroup(_isPreserveGroup).
                     setIsNumericIds(_isNumericIds).
                     setIsIgnoreTimes(_isIgnoreTimes).
+                    setIsWholeFile(_isWholeFile).
                     setIsAlwaysItemize(_verbosity > 1).
                     setIsListOnly(_isModuleListing).
+                    setNumChecksumThreads(_numChecksumThreads).
+                    setNumStatThreads(_numStatThreads).
+                    setSignatureCache(_signatureCache).
+                    setStrongChecksum(cfg.strongChecksum()).
+                    setChannelBufferSize(_channelBufferSize).
+                    setMaxChannelBufferSize(_maxChannelBufferSize).
+                    setRateLimiter(rateLimiter).
                     setIsInterruptible(isChannelsInterruptible);
             Receiver receiver = new Receiver(generator, in, _charset, dstArg).
                 setIsSendFilterRules(true).
@@ -302,6 +441,11 @@ public class RsyncClientSession
                 setIsDeleteExcluded(_isDeleteExcluded).
                 setIsListOnly(_isModuleListing).
                 setIsDeferredWrite(_isDeferredWrite).
+                setIsCompress(_isCompress).
+                setStrongChecksum(cfg.strongChecksum()).
+                setIsVarintFileListFlags(cfg.isVarintFileListFlags()).
+                setChannelBufferSize(_channelBufferSize).
+                setRateLimiter(rateLimiter).
                 setIsInterruptible(isChannelsInterruptible).
                 setIsExitAfterEOF(true).
                 setIsSafeFileList(cfg.isSafeFileList());
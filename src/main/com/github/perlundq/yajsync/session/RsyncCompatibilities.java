@@ -23,8 +23,10 @@ package com.github.perlundq.yajsync.session;
 final class RsyncCompatibilities
 {
     private RsyncCompatibilities() {}
-    public static final byte CF_INC_RECURSE   = 1 << 0;
-    public static final byte CF_SYMLINK_TIMES = 1 << 1;
-    public static final byte CF_SYMLINK_ICONV = 1 << 2;
-    public static final byte CF_SAFE_FLIST    = 1 << 3;
+    public static final int CF_INC_RECURSE        = 1 << 0;
+    public static final int CF_SYMLINK_TIMES      = 1 << 1;
+    public static final int CF_SYMLINK_ICONV      = 1 << 2;
+    public static final int CF_SAFE_FLIST         = 1 << 3;
+    // also means that checksums and compression are negotiated
+    public static final int CF_VARINT_FLIST_FLAGS = 1 << 7;
 }
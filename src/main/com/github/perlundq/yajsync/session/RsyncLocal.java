@@ -28,6 +28,8 @@ import java.util.concurrent.ExecutorService;
 import com.github.perlundq.yajsync.text.Text;
 import com.github.perlundq.yajsync.ui.FilterRuleConfiguration;
 import com.github.perlundq.yajsync.util.BitOps;
+import com.github.perlundq.yajsync.util.Consts;
+import com.github.perlundq.yajsync.util.StrongChecksum;
 
 public class RsyncLocal
 {
@@ -41,12 +43,22 @@ public class RsyncLocal
     private boolean _isDelete;
     private boolean _isDeleteExcluded;
     private boolean _isIgnoreTimes;
+    private boolean _isWholeFile;
     private boolean _isDeferredWrite;
+    private int _numChecksumThreads = 1;
+    private int _numStatThreads = 1;
+    private int _channelBufferSize = Consts.DEFAULT_CHANNEL_BUF_SIZE;
+    private int _maxChannelBufferSize = Consts.DEFAULT_CHANNEL_BUF_SIZE;
+    private SignatureCache _signatureCache;
+    private FileListSnapshot _fileListSnapshot;
+    // there is no peer to negotiate with, use the fastest one
+    private StrongChecksum _strongChecksum = StrongChecksum.XXH64;
     private FilterRuleConfiguration _filterRuleConfiguration;
     private Charset _charset = Charset.forName(Text.UTF8_NAME);
     private Statistics _statistics = new Statistics();
     private boolean _isTransferDirs = false;
     private boolean _isModuleListing = false;
+    private boolean _isDirectCopy = true;
 
     public RsyncLocal() {}
 
@@ -110,11 +122,61 @@ public class RsyncLocal
         _isIgnoreTimes = isIgnoreTimes;
     }
 
+    public void setIsWholeFile(boolean isWholeFile)
+    {
+        _isWholeFile = isWholeFile;
+    }
+
     public void setIsDeferredWrite(boolean isDeferredWrite)
     {
         _isDeferredWrite = isDeferredWrite;
     }
 
+    public void setNumChecksumThreads(int numChecksumThreads)
+    {
+        _numChecksumThreads = numChecksumThreads;
+    }
+
+    public void setNumStatThreads(int numStatThreads)
+    {
+        _numStatThreads = numStatThreads;
+    }
+
+    public void setChannelBufferSize(int channelBufferSize)
+    {
+        _channelBufferSize = channelBufferSize;
+    }
+
+    public void setMaxChannelBufferSize(int maxChannelBufferSize)
+    {
+        _maxChannelBufferSize = maxChannelBufferSize;
+    }
+
+    public void setSignatureCache(SignatureCache signatureCache)
+    {
+        _signatureCache = signatureCache;
+    }
+
+    public void setFileListSnapshot(FileListSnapshot fileListSnapshot)
+    {
+        _fileListSnapshot = fileListSnapshot;
+    }
+
+    public void setStrongChecksum(StrongChecksum strongChecksum)
+    {
+        _strongChecksum = strongChecksum;
+    }
+
+    /**
+     * Copy files without a basis directly from source to target with
+     * FileChannel.transferTo instead of passing their data through the
+     * in-process protocol pipe. Enabled by default.
+     */
+    public void setIsDirectCopy(boolean isDirectCopy)
+    {
+        _isDirectCopy = isDirectCopy;
+    }
+
     public void setIsTransferDirs(boolean isTransferDirs)
     {
         _isTransferDirs = isTransferDirs;
@@ -162,6 +224,10 @@ public class RsyncLocal
             setIsExitEarlyIfEmptyList(true).
             setIsRecursive(_isRecursiveTransfer).
             setFilterRuleConfiguration(_filterRuleConfiguration).
+            setStrongChecksum(_strongChecksum).
+            setChannelBufferSize(_channelBufferSize).
+            setMaxChannelBufferSize(_maxChannelBufferSize).
+            setFileListSnapshot(_fileListSnapshot).
             setIsTransferDirs(isTransferDirs);
         Generator generator = new Generator(toSender.sink(), _charset,
                                             checksumSeed, out).
@@ -172,8 +238,15 @@ public class RsyncLocal
             setIsPreserveGroup(_isPreserveGroup).
             setIsNumericIds(_isNumericIds).
             setIsIgnoreTimes(_isIgnoreTimes).
+            setIsWholeFile(_isWholeFile).
             setIsListOnly(_isModuleListing).
-            setIsAlwaysItemize(_verbosity > 1);
+            setIsAlwaysItemize(_verbosity > 1).
+            setNumChecksumThreads(_numChecksumThreads).
+            setNumStatThreads(_numStatThreads).
+            setSignatureCache(_signatureCache).
+            setStrongChecksum(_strongChecksum).
+            setChannelBufferSize(_channelBufferSize).
+            setMaxChannelBufferSize(_maxChannelBufferSize);
         Receiver receiver = new Receiver(generator,
                                          toReceiver.source(),
                                          _charset,
@@ -188,11 +261,22 @@ public class RsyncLocal
             setIsDelete(_isDelete).
             setIsDeleteExcluded(_isDeleteExcluded).
             setIsListOnly(_isModuleListing).
-            setIsDeferredWrite(_isDeferredWrite);
+            setIsDeferredWrite(_isDeferredWrite).
+            setStrongChecksum(_strongChecksum).
+            setChannelBufferSize(_channelBufferSize);
+
+        if (_isDirectCopy) {
+            DirectCopyTable directCopyTable = new DirectCopyTable();
+            sender.setDirectCopyTable(directCopyTable);
+            receiver.setDirectCopyTable(directCopyTable);
+        }
 
         boolean isOK = RsyncTaskExecutor.exec(executor, sender,
                                                      generator, receiver);
         _statistics = receiver.statistics();
+        _statistics.setNumTagTableHits(sender.statistics().numTagTableHits());
+        _statistics.setNumTagTableMisses(
+            sender.statistics().numTagTableMisses());
         return isOK;
     }
 
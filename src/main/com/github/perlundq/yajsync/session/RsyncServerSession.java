@@ -22,14 +22,29 @@ package com.github.perlundq.yajsync.session;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 
+import com.github.perlundq.yajsync.channels.RateLimiter;
 import com.github.perlundq.yajsync.text.Text;
+import com.github.perlundq.yajsync.util.Consts;
 
 public class RsyncServerSession
 {
     private Charset _charset = Charset.forName(Text.UTF8_NAME);
     private boolean _isDeferredWrite;
+    private int _numChecksumThreads = 1;
+    private int _numStatThreads = 1;
+    private SignatureCache _signatureCache;
+    private FileListSnapshot _fileListSnapshot;
+    private int _channelBufferSize = Consts.DEFAULT_CHANNEL_BUF_SIZE;
+    private int _maxChannelBufferSize = Consts.DEFAULT_CHANNEL_BUF_SIZE;
+    private int _bandwidthLimit;
+    private int _moduleBandwidthLimit;
+    // shared by all sessions of the same module
+    private final ConcurrentMap<String, RateLimiter> _moduleRateLimiters =
+        new ConcurrentHashMap<>();
 
     public RsyncServerSession() {}
 
@@ -43,6 +58,89 @@ public class RsyncServerSession
         _isDeferredWrite = isDeferredWrite;
     }
 
+    public void setNumChecksumThreads(int numChecksumThreads)
+    {
+        _numChecksumThreads = numChecksumThreads;
+    }
+
+    public void setNumStatThreads(int numStatThreads)
+    {
+        _numStatThreads = numStatThreads;
+    }
+
+    public void setSignatureCache(SignatureCache signatureCache)
+    {
+        _signatureCache = signatureCache;
+    }
+
+    public void setFileListSnapshot(FileListSnapshot fileListSnapshot)
+    {
+        _fileListSnapshot = fileListSnapshot;
+    }
+
+    public void setChannelBufferSize(int channelBufferSize)
+    {
+        _channelBufferSize = channelBufferSize;
+    }
+
+    public void setMaxChannelBufferSize(int maxChannelBufferSize)
+    {
+        _maxChannelBufferSize = maxChannelBufferSize;
+    }
+
+    /**
+     * Limit the data sent and received by each session to bytesPerSecond,
+     * unlimited if 0.
+     */
+    public void setBandwidthLimit(int bytesPerSecond)
+    {
+        assert bytesPerSecond >= 0;
+        _bandwidthLimit = bytesPerSecond;
+    }
+
+    /**
+     * Limit the data sent and received by all sessions of a module together
+     * to bytesPerSecond, unlimited if 0.
+     */
+    public void setModuleBandwidthLimit(int bytesPerSecond)
+    {
+        assert bytesPerSecond >= 0;
+        _moduleBandwidthLimit = bytesPerSecond;
+    }
+
+    /**
+     * @return the limiter of a new session of module, or null if unlimited
+     */
+    private RateLimiter newRateLimiterOrNull(Module module)
+    {
+        RateLimiter moduleRateLimiter = null;
+        if (_moduleBandwidthLimit > 0) {
+            moduleRateLimiter = _moduleRateLimiters.get(module.name());
+            if (moduleRateLimiter == null) {
+                RateLimiter rateLimiter =
+                    new RateLimiter(_moduleBandwidthLimit, null);
+                moduleRateLimiter =
+                    _moduleRateLimiters.putIfAbsent(module.name(),
+                                                    rateLimiter);
+                if (moduleRateLimiter == null) {
+                    moduleRateLimiter = rateLimiter;
+                }
+            }
+        }
+        if (_bandwidthLimit > 0) {
+            return new RateLimiter(_bandwidthLimit, moduleRateLimiter);
+        }
+        return moduleRateLimiter;
+    }
+
+    Charset charset()
+    {
+        return _charset;
+    }
+
+    /**
+     * @throws IllegalArgumentException if charset is not supported
+     */
     public boolean transfer(ExecutorService executor,
                             ReadableByteChannel in,
                             WritableByteChannel out,
@@ -50,10 +148,33 @@ public class RsyncServerSession
                             boolean isChannelsInterruptible)
         throws RsyncException, InterruptedException
     {
-        ServerSessionConfig cfg = ServerSessionConfig.handshake(_charset,       // throws IllegalArgumentException if _charset is not supported
+        ServerGreeting greeting = new ServerGreeting(_charset, modules);
+        greeting.exchange(in, out);
+        if (greeting.isWaitingForAdmission()) {
+            greeting.admit();
+            greeting.exchange(in, out);
+        }
+        return transfer(executor, greeting, in, out, isChannelsInterruptible,
+                        null);
+    }
+
+    /**
+     * Transfers files of a connection with a done greeting.
+     *
+     * @param metrics the metrics of the session, or null
+     */
+    boolean transfer(ExecutorService executor,
+                     ServerGreeting greeting,
+                     ReadableByteChannel peerIn,
+                     WritableByteChannel out,
+                     boolean isChannelsInterruptible,
+                     SessionMetrics metrics)
+        throws RsyncException, InterruptedException
+    {
+        ReadableByteChannel in = greeting.inputChannel(peerIn);
+        ServerSessionConfig cfg = ServerSessionConfig.handshake(greeting,
                                                                 in,
-                                                                out,
-                                                                modules);
+                                                                out);
 
         if (cfg.status() == SessionStatus.ERROR) {
             return false;
@@ -61,6 +182,7 @@ public class RsyncServerSession
             return true;
         }
 
+        RateLimiter rateLimiter = newRateLimiterOrNull(cfg.getModule());
         if (cfg.isSender()) {
             Sender sender = Sender.newServerInstance(in,
                                                      out,
@@ -75,7 +197,18 @@ public class RsyncServerSession
                 setIsDeleteExcluded(cfg.isDeleteExcluded()).
                 setIsInterruptible(isChannelsInterruptible).
                 setIsSafeFileList(cfg.isSafeFileList()).
+                setIsCompress(cfg.isCompress()).
+                setCompressLevel(cfg.compressLevel()).
+                setStrongChecksum(cfg.strongChecksum()).
+                setIsVarintFileListFlags(cfg.isVarintFileListFlags()).
+                setChannelBufferSize(_channelBufferSize).
+                setMaxChannelBufferSize(_maxChannelBufferSize).
+                setRateLimiter(rateLimiter).
+                setFileListSnapshot(_fileListSnapshot).
                 setIsTransferDirs(cfg.isTransferDirs());
+            if (metrics != null) {
+                metrics.setStatistics(sender.statistics());
+            }
             return RsyncTaskExecutor.exec(executor, cfg.getModule(), sender);
         } else {
             Generator generator =
@@ -88,7 +221,15 @@ public class RsyncServerSession
                     setIsPreserveGroup(cfg.isPreserveGroup()).
                     setIsNumericIds(cfg.isNumericIds()).
                     setIsIgnoreTimes(cfg.isIgnoreTimes()).
+                    setIsWholeFile(cfg.isWholeFile()).
                     setIsAlwaysItemize(cfg.verbosity() > 1).
+                    setNumChecksumThreads(_numChecksumThreads).
+                    setNumStatThreads(_numStatThreads).
+                    setSignatureCache(_signatureCache).
+                    setStrongChecksum(cfg.strongChecksum()).
+                    setChannelBufferSize(_channelBufferSize).
+                    setMaxChannelBufferSize(_maxChannelBufferSize).
+                    setRateLimiter(rateLimiter).
                     setIsInterruptible(isChannelsInterruptible);
             Receiver receiver =
                 Receiver.newServerInstance(generator, in, cfg.charset(),
@@ -102,8 +243,17 @@ public class RsyncServerSession
                     setIsDelete(cfg.isDelete()).
                     setIsDeleteExcluded(cfg.isDeleteExcluded()).
                     setIsDeferredWrite(_isDeferredWrite).
+                    setIsCompress(cfg.isCompress()).
+                    setStrongChecksum(cfg.strongChecksum()).
+                    setIsVarintFileListFlags(cfg.isVarintFileListFlags()).
+                    setChannelBufferSize(_channelBufferSize).
+                    setRateLimiter(rateLimiter).
                     setIsInterruptible(isChannelsInterruptible).
                     setIsSafeFileList(cfg.isSafeFileList());
+            if (metrics != null) {
+                metrics.setStatistics(receiver.statistics());
+                metrics.setGenerator(generator);
+            }
 
             return RsyncTaskExecutor.exec(executor, cfg.getModule(), generator,
                                                     receiver);
@@ -20,14 +20,15 @@
  */
 package com.github.perlundq.yajsync.session;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
-import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.util.ArrayList;
@@ -38,6 +39,7 @@ import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
 
 import com.github.perlundq.yajsync.channels.AutoFlushableRsyncDuplexChannel;
 import com.github.perlundq.yajsync.channels.ChannelEOFException;
@@ -45,6 +47,7 @@ import com.github.perlundq.yajsync.channels.ChannelException;
 import com.github.perlundq.yajsync.channels.Message;
 import com.github.perlundq.yajsync.channels.MessageCode;
 import com.github.perlundq.yajsync.channels.MessageHandler;
+import com.github.perlundq.yajsync.channels.RateLimiter;
 import com.github.perlundq.yajsync.channels.RsyncInChannel;
 import com.github.perlundq.yajsync.channels.RsyncOutChannel;
 import com.github.perlundq.yajsync.filelist.FileInfo;
@@ -64,11 +67,14 @@ import com.github.perlundq.yajsync.text.TextDecoder;
 import com.github.perlundq.yajsync.text.TextEncoder;
 import com.github.perlundq.yajsync.ui.FilterRuleConfiguration;
 import com.github.perlundq.yajsync.util.ArgumentParsingError;
+import com.github.perlundq.yajsync.util.Environment;
 import com.github.perlundq.yajsync.util.MD5;
 import com.github.perlundq.yajsync.util.PathOps;
 import com.github.perlundq.yajsync.util.Rolling;
+import com.github.perlundq.yajsync.util.RollingScanner;
 import com.github.perlundq.yajsync.util.RuntimeInterruptException;
-import com.github.perlundq.yajsync.util.StatusResult;
+import com.github.perlundq.yajsync.util.StrongChecksum;
+import com.github.perlundq.yajsync.util.Util;
 
 public class Sender implements RsyncTask,MessageHandler
 {
@@ -78,7 +84,10 @@ public class Sender implements RsyncTask,MessageHandler
     private static final int INPUT_CHANNEL_BUF_SIZE = 8 * 1024;
     private static final int OUTPUT_CHANNEL_BUF_SIZE = 8 * 1024;
     private static final int PARTIAL_FILE_LIST_SIZE = 500;
-    private static final int CHUNK_SIZE = 8 * 1024;
+    private static final int CHUNK_SIZE = 32 * 1024; // same as rsync
+    // direct copies of at least this size are announced to the receiver
+    // right away instead of once the output buffer is full
+    private static final long DIRECT_COPY_FLUSH_SIZE = 1024 * 1024;
     private final byte[] _checksumSeed;
     private final FileInfoCache _fileInfoCache = new FileInfoCache();
     private final AutoFlushableRsyncDuplexChannel _duplexChannel;
@@ -103,7 +112,17 @@ public class Sender implements RsyncTask,MessageHandler
     private boolean _isInterruptible = true;
     private boolean _isExitAfterEOF = false;
     private boolean _isTransferDirs = false;
+    private boolean _isCompress;
+    private int _compressLevel = Deflater.DEFAULT_COMPRESSION;
+    private TokenDeflater _tokenDeflater;  // non-null if _isCompress
+    private StrongChecksum _strongChecksum = StrongChecksum.DEFAULT;
+    private boolean _isVarintFileListFlags;
+    private DirectCopyTable _directCopyTable;  // non-null if local
+    private DirectoryScanner _scanner;
+    private FileListSnapshot _fileListSnapshot;
     private int _ioError;
+    // data of memory mapped files is copied here before being sent
+    private byte[] _stagingBuf = new byte[CHUNK_SIZE];
 
     public Sender(ReadableByteChannel in,
                   WritableByteChannel out,
@@ -224,12 +243,109 @@ public class Sender implements RsyncTask,MessageHandler
         return this;
     }
 
+    public Sender setIsCompress(boolean isCompress)
+    {
+        _isCompress = isCompress;
+        return this;
+    }
+
+    /**
+     * @throws IllegalArgumentException if level is not a valid deflate
+     *         compression level
+     */
+    public Sender setCompressLevel(int level)
+    {
+        if (level < Deflater.DEFAULT_COMPRESSION ||
+            level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException(
+                "invalid compression level: " + level);
+        }
+        _compressLevel = level;
+        return this;
+    }
+
     public Sender setIsTransferDirs(boolean isTransferDirs)
     {
         _isTransferDirs = isTransferDirs;
         return this;
     }
 
+    /**
+     * Use strongChecksum for block and file checksums, must be the same as
+     * the one used by peer (StrongChecksum.DEFAULT by default).
+     */
+    public Sender setStrongChecksum(StrongChecksum strongChecksum)
+    {
+        assert strongChecksum != null;
+        _strongChecksum = strongChecksum;
+        return this;
+    }
+
+    /**
+     * Send file list flags as variable length integers, as negotiated using
+     * RsyncCompatibilities.CF_VARINT_FLIST_FLAGS.
+     */
+    public Sender setIsVarintFileListFlags(boolean isVarintFileListFlags)
+    {
+        _isVarintFileListFlags = isVarintFileListFlags;
+        return this;
+    }
+
+    /**
+     * @throws IllegalArgumentException if bufferSize is less than
+     *         Consts.MIN_CHANNEL_BUF_SIZE or greater than
+     *         Consts.MAX_CHANNEL_BUF_SIZE
+     */
+    public Sender setChannelBufferSize(int bufferSize)
+    {
+        _duplexChannel.setBufferSize(bufferSize);
+        return this;
+    }
+
+    /**
+     * Limit the rate of data exchanged with the peer, in both directions,
+     * with rateLimiter which may be shared with other channels.
+     */
+    public Sender setRateLimiter(RateLimiter rateLimiter)
+    {
+        _duplexChannel.setRateLimiter(rateLimiter);
+        return this;
+    }
+
+    /**
+     * Grow the output channel buffer adaptively up to maxBufferSize while
+     * writes keep filling it.
+     *
+     * @throws IllegalArgumentException if maxBufferSize is less than
+     *         Consts.MIN_CHANNEL_BUF_SIZE or greater than
+     *         Consts.MAX_CHANNEL_BUF_SIZE
+     */
+    public Sender setMaxChannelBufferSize(int maxBufferSize)
+    {
+        _duplexChannel.setMaxBufferSize(maxBufferSize);
+        return this;
+    }
+
+    /**
+     * Read and store the listings of source directories with
+     * fileListSnapshot. A null value (the default) disables it.
+     */
+    public Sender setFileListSnapshot(FileListSnapshot fileListSnapshot)
+    {
+        _fileListSnapshot = fileListSnapshot;
+        return this;
+    }
+
+    /**
+     * Let an in-process Receiver copy files without a basis directly from
+     * their source path instead of sending their data, see DirectCopyTable.
+     */
+    Sender setDirectCopyTable(DirectCopyTable directCopyTable)
+    {
+        _directCopyTable = directCopyTable;
+        return this;
+    }
+
     @Override
     public boolean isInterruptible()
     {
@@ -247,7 +363,16 @@ public class Sender implements RsyncTask,MessageHandler
     public Boolean call() throws ChannelException, InterruptedException
     {
         Filelist fileList = new Filelist(_isRecursive);
+        FileListSnapshot.Scan snapshotScan =
+            _fileListSnapshot == null ? null
+                                      : _fileListSnapshot.begin(_sourceFiles);
+        _scanner = new DirectoryScanner(Environment.getSenderScanThreads(),
+                                        snapshotScan);
         FilterRuleConfiguration filterRuleConfiguration;
+        if (_isCompress) {
+            _tokenDeflater = new TokenDeflater(_duplexChannel,
+                                               _compressLevel);
+        }
         try {
             if (_log.isLoggable(Level.FINE)) {
                 _log.fine("Sender.transfer:");
@@ -267,10 +392,14 @@ public class Sender implements RsyncTask,MessageHandler
 
             long t1 = System.currentTimeMillis();
 
-            StatusResult<Set<FileInfo>> expandResult = initialExpand(_sourceFiles, filterRuleConfiguration);
-            boolean isInitialListOK = expandResult.isOK();
-            Filelist.SegmentBuilder builder = new Filelist.SegmentBuilder(null);
-            builder.addAll(expandResult.value());
+            Filelist.SegmentBuilder builder =
+                new Filelist.SegmentBuilder(
+                    null, Environment.getFileListSpillThreshold());
+            boolean isInitialListOK = initialExpand(_sourceFiles, builder,
+                                                    filterRuleConfiguration);
+            if (!isInitialListOK) {
+                _ioError |= IoError.GENERAL;
+            }
 
             Filelist.Segment initialSegment = fileList.newSegment(builder);
 
@@ -320,6 +449,7 @@ public class Sender implements RsyncTask,MessageHandler
             int ioError = sendFiles(fileList, initialSegment, filterRuleConfiguration);
             if (ioError != 0) {
                 sendIntMessage(MessageCode.IO_ERROR, ioError);
+                _ioError |= ioError;
             }
             _duplexChannel.encodeIndex(Filelist.DONE);
 
@@ -341,6 +471,9 @@ public class Sender implements RsyncTask,MessageHandler
             if (_isExitAfterEOF) {
                 readAllMessagesUntilEOF();
             }
+            if (snapshotScan != null) {
+                snapshotScan.commit();
+            }
             return isInitialListOK && (ioError | _ioError) == 0;
         } catch (RuntimeInterruptException e) {
             throw new InterruptedException();
@@ -349,6 +482,15 @@ public class Sender implements RsyncTask,MessageHandler
             _stats.setTotalRead(_duplexChannel.numBytesRead());
             _stats.setTotalWritten(_duplexChannel.numBytesWritten());
             _stats.setNumFiles(fileList.numFiles());
+            _stats.setIoError(_ioError);
+            fileList.close();
+            _scanner.close();
+            if (snapshotScan != null) {
+                snapshotScan.close();
+            }
+            if (_tokenDeflater != null) {
+                _tokenDeflater.end();
+            }
         }
     }
 
@@ -664,20 +806,28 @@ public class Sender implements RsyncTask,MessageHandler
                     int blockFactor = isNew ? 1 : 10;
                     long fileSize = fileInfo.attrs().size();
 
+                    // the data of direct copies is not read into a view
+                    boolean isDirectCopy = isNew && _directCopyTable != null;
                     byte[] fileMD5sum = null;
-                    try (FileView fv = new FileView(fileInfo.path(),
-                                                    fileInfo.attrs().size(),
-                                                    blockSize,
-                                                    blockSize * blockFactor)) {
-
-                        sendIndexAndIflags(index, iFlags);
-                        sendChecksumHeader(header);
-
-                        if (isNew) {
-                            fileMD5sum = skipMatchSendData(fv, fileSize);
+                    try (FileView fv = isDirectCopy
+                            ? null
+                            : new FileView(fileInfo.path(),
+                                           fileInfo.attrs().size(),
+                                           blockSize,
+                                           blockSize * blockFactor)) {
+
+                        if (isDirectCopy) {
+                            fileMD5sum = sendDirectCopy(index, iFlags, header,
+                                                        fileInfo);
                         } else {
-                            fileMD5sum = sendMatchesAndData(fv, checksum,
-                                                            fileSize);
+                            sendIndexAndIflags(index, iFlags);
+                            sendChecksumHeader(header);
+                            if (isNew) {
+                                fileMD5sum = skipMatchSendData(fv, fileSize);
+                            } else {
+                                fileMD5sum = sendMatchesAndData(fv, checksum,
+                                                                fileSize);
+                            }
                         }
                     } catch (FileViewOpenFailed e) { // on FileView.open()
                         if (_log.isLoggable(Level.WARNING)) {
@@ -744,11 +894,14 @@ public class Sender implements RsyncTask,MessageHandler
 
     // NOTE: doesn't do any check of the validity of files or normalization -
     // it's up to the caller to do so, e.g. ServerSessionConfig.parseArguments
-    private StatusResult<Set<FileInfo>> initialExpand(Iterable<Path> files,
+    // NOTE: files of expanded dot dirs are added to builder without checking
+    // for duplicates among them, which are instead skipped by the segment
+    private boolean initialExpand(Iterable<Path> files,
+                                  Filelist.SegmentBuilder builder,
     		FilterRuleConfiguration parentFilterRuleConfiguration)
     {
         boolean isOK = true;
-        Set<FileInfo> fileset = new HashSet<>();
+        Set<FileInfo> fileset = new HashSet<>(); // not files of dot dirs
 
         for (Path p : files) {
             try {
@@ -770,6 +923,7 @@ public class Sender implements RsyncTask,MessageHandler
                 } else {
                     boolean isAdded = fileset.add(fileInfo);
                     if (isAdded) {
+                        builder.add(fileInfo);
                         if (_log.isLoggable(Level.FINE)) {
                             _log.fine(String.format("adding %s to segment",
                                                     fileInfo));
@@ -780,18 +934,9 @@ public class Sender implements RsyncTask,MessageHandler
                                                         fileInfo));
                             }
 
-                            StatusResult<List<FileInfo>> expandResult =
-                                    expand(fileInfo, parentFilterRuleConfiguration);
-                            isOK = isOK && expandResult.isOK();
-                            for (FileInfo f2 : expandResult.value()) {
-                                boolean isAdded2 = fileset.add(f2);
-                                if (!isAdded2) {
-                                    if (_log.isLoggable(Level.WARNING)) {
-                                        _log.warning("pruning duplicate " + f2);
-                                    }
-                                    isOK = false;
-                                }
-                            }
+                            isOK = expand(fileInfo, builder, fileset,
+                                          parentFilterRuleConfiguration) &&
+                                   isOK;
                             _nextSegmentIndex++; // we have to add it to be compliant with native, but don't try expanding it again later
                         }
                     } else {
@@ -817,14 +962,20 @@ public class Sender implements RsyncTask,MessageHandler
             }
         }
 
-        return new StatusResult<Set<FileInfo>>(isOK, fileset);
+        return isOK;
     }
 
-    private StatusResult<List<FileInfo>> expand(FileInfo directory, FilterRuleConfiguration parentFilterRuleConfiguration)
+    /**
+     * Adds the files of directory to builder, except those in
+     * excludedOrNull, which are pruned as duplicates.
+     */
+    private boolean expand(FileInfo directory,
+                           Filelist.SegmentBuilder builder,
+                           Set<FileInfo> excludedOrNull,
+                           FilterRuleConfiguration parentFilterRuleConfiguration)
     {
         assert directory != null;
 
-        List<FileInfo> fileset = new ArrayList<>();
         boolean isOK = true;
         final Path splittedPath[] = splitLocalPathOf(directory);                       // throws RuntimeException if unable to get local path prefix of directory, but that should never happen
 
@@ -837,17 +988,18 @@ public class Sender implements RsyncTask,MessageHandler
                                            "at %s: %s",
                                            directory.path(), e.getMessage()));
             }
-            isOK = false;
-            return new StatusResult<List<FileInfo>>(isOK, fileset);
+            return false;
 		}
 		boolean filterByRules = localFilterRuleConfiguration.isFilterAvailable();
 
-		// the JVM adds a lot of overhead when doing mostly directory traversals
-        // and reading of file attributes
-        try (DirectoryStream<Path> stream =
-                Files.newDirectoryStream(directory.path())) {
+        // NOTE: directories are listed in batches and their entries may be
+        // stat:ed in parallel, see Environment.getSenderScanThreads
+        try (DirectoryScanner.Listing listing =
+                _scanner.open(directory.path())) {
 
-            for (Path entry : stream) {
+            for (DirectoryScanner.Entry dirEntry = listing.nextOrNull();
+                 dirEntry != null; dirEntry = listing.nextOrNull()) {
+                Path entry = dirEntry.path();
 
             	if (!PathOps.isPathPreservable(entry.getFileName())) {          // TODO: add option to continue anyway
                     if (_log.isLoggable(Level.WARNING)) {
@@ -861,7 +1013,7 @@ public class Sender implements RsyncTask,MessageHandler
 
                 RsyncFileAttributes attrs;
                 try {
-                    attrs = RsyncFileAttributes.stat(entry);
+                    attrs = dirEntry.attrs();
                 } catch (IOException e) {
                     if (_log.isLoggable(Level.WARNING)) {
                         _log.warning(String.format("Failed to stat %s: %s",
@@ -891,7 +1043,14 @@ public class Sender implements RsyncTask,MessageHandler
                     	}
                     }
 
-                    fileset.add(f);
+                    if (excludedOrNull != null && excludedOrNull.contains(f)) {
+                        if (_log.isLoggable(Level.WARNING)) {
+                            _log.warning("pruning duplicate " + f);
+                        }
+                        isOK = false;
+                        continue;
+                    }
+                    builder.add(f);
                 } else {
                     if (_log.isLoggable(Level.WARNING)) {
                         _log.warning(String.format(
@@ -909,12 +1068,22 @@ public class Sender implements RsyncTask,MessageHandler
             }
             isOK = false;
         }
-        return new StatusResult<List<FileInfo>>(isOK, fileset);
+        return isOK;
     }
 
-    // TODO: FEATURE: (if possible in native) implement suspend/resume such that
-    // we don't have to send/hold a full segment in memory at once (directories
-    // can be very large).
+    // lists the directories to be expanded next in the background, in the
+    // order they are expanded
+    private void prefetchStubDirectories(Filelist fileList)
+    {
+        for (FileInfo directory : fileList.stubDirectories()) {
+            if (!_scanner.prefetch(directory.path())) {
+                break;
+            }
+        }
+    }
+
+    // NOTE: the files of large directories are spilled to temporary files by
+    // the segment builder, see Environment.getFileListSpillThreshold
     private boolean expandAndSendSegments(Filelist fileList, FilterRuleConfiguration parentFilterRuleConfiguration)
         throws ChannelException
     {
@@ -945,15 +1114,16 @@ public class Sender implements RsyncTask,MessageHandler
                 continue;
             }
 
-            StatusResult<List<FileInfo>> expandResult = expand(directory, parentFilterRuleConfiguration);
-            boolean isExpandOK = expandResult.isOK();
+            prefetchStubDirectories(fileList);
+            Filelist.SegmentBuilder builder =
+                new Filelist.SegmentBuilder(
+                    directory, Environment.getFileListSpillThreshold());
+            boolean isExpandOK = expand(directory, builder, null,
+                                        parentFilterRuleConfiguration);
             if (!isExpandOK && _log.isLoggable(Level.WARNING)) {
                 _log.warning("initial file list expansion returned an error");
             }
 
-            Filelist.SegmentBuilder builder =
-                new Filelist.SegmentBuilder(directory);
-            builder.addAll(expandResult.value());
             Filelist.Segment segment = fileList.newSegment(builder);
 
             if (_log.isLoggable(Level.FINE)) {
@@ -1070,14 +1240,19 @@ public class Sender implements RsyncTask,MessageHandler
         }
         _fileInfoCache.setPrevFileNameBytes(fileNameBytes);
 
-        if (xflags == 0 && !attrs.isDirectory()) {
-            xflags |= TransmitFlags.TOP_DIR;
-        }
-        if (xflags == 0 || (xflags & 0xFF00) != 0) {
-            xflags |= TransmitFlags.EXTENDED_FLAGS;
-            _duplexChannel.putChar(xflags);
+        if (_isVarintFileListFlags) {
+            sendEncodedInt(xflags != 0 ? xflags
+                                       : TransmitFlags.EXTENDED_FLAGS);
         } else {
-            _duplexChannel.putByte((byte) xflags);
+            if (xflags == 0 && !attrs.isDirectory()) {
+                xflags |= TransmitFlags.TOP_DIR;
+            }
+            if (xflags == 0 || (xflags & 0xFF00) != 0) {
+                xflags |= TransmitFlags.EXTENDED_FLAGS;
+                _duplexChannel.putChar(xflags);
+            } else {
+                _duplexChannel.putByte((byte) xflags);
+            }
         }
         if (_log.isLoggable(Level.FINER)) {
             _log.finer("sent flags " + Integer.toBinaryString(xflags));
@@ -1130,7 +1305,12 @@ public class Sender implements RsyncTask,MessageHandler
         if (_log.isLoggable(Level.FINE)) {
             _log.fine("sending segment done");
         }
-        _duplexChannel.putByte((byte) 0);
+        if (_isVarintFileListFlags) {
+            sendEncodedInt(0);
+            sendEncodedInt(0); // no I/O error
+        } else {
+            _duplexChannel.putByte((byte) 0);
+        }
     }
 
     private void sendFileListErrorNotification() throws ChannelException
@@ -1138,7 +1318,10 @@ public class Sender implements RsyncTask,MessageHandler
         if (_log.isLoggable(Level.FINE)) {
             _log.fine("sending file list error notification to peer");
         }
-        if (_isSafeFileList) {
+        if (_isVarintFileListFlags) {
+            sendEncodedInt(0);
+            sendEncodedInt(IoError.GENERAL);
+        } else if (_isSafeFileList) {
             _duplexChannel.putChar(
                 (char) (0xFFFF & (TransmitFlags.EXTENDED_FLAGS |
                                   TransmitFlags.IO_ERROR_ENDLIST)));
@@ -1154,9 +1337,20 @@ public class Sender implements RsyncTask,MessageHandler
         Connection.sendChecksumHeader(_duplexChannel, header);
     }
 
+    /**
+     * @throws RsyncProtocolException if the digest length of the header is
+     *         larger than the length of our strong checksum
+     */
     private Checksum.Header receiveChecksumHeader() throws ChannelException
     {
-        return Connection.receiveChecksumHeader(_duplexChannel);
+        Checksum.Header header =
+            Connection.receiveChecksumHeader(_duplexChannel);
+        if (header.digestLength() > _strongChecksum.digestLength()) {
+            throw new RsyncProtocolException(String.format(
+                "Received invalid digest length %d for %s checksums",
+                header.digestLength(), _strongChecksum.protocolName()));
+        }
+        return header;
     }
 
     private static int lengthOfLargestCommonPrefix(byte[] left, byte[] right)
@@ -1184,9 +1378,9 @@ public class Sender implements RsyncTask,MessageHandler
         throws ChannelException
     {
         Checksum checksum = new Checksum(header);
+        byte[] md5sum = new byte[header.digestLength()];
         for (int i = 0; i < header.chunkCount(); i++) {
             int rolling = _duplexChannel.getInt();
-            byte[] md5sum = new byte[header.digestLength()];
             _duplexChannel.get(md5sum, 0, md5sum.length);
             checksum.addChunkInformation(rolling, md5sum);
         }
@@ -1196,21 +1390,89 @@ public class Sender implements RsyncTask,MessageHandler
     private byte[] skipMatchSendData(FileView view, long fileSize)
         throws ChannelException
     {
-        MessageDigest fileDigest = MD5.newInstance();
+        MessageDigest fileDigest = _strongChecksum.newFileDigest();
         long bytesSent = 0;
         while (view.windowLength() > 0) {
-            sendDataFrom(view.array(), view.startOffset(), view.windowLength());
+            sendLiteral(view, view.startOffset(), view.windowLength(),
+                        fileDigest);
             bytesSent += view.windowLength();
-            fileDigest.update(view.array(), view.startOffset(),
-                              view.windowLength());
             view.slide(view.windowLength());
         }
         _stats.setTotalLiteralSize(_stats.totalLiteralSize() + fileSize);
-        _duplexChannel.putInt(0);
+        sendEndOfData();
         assert bytesSent == fileSize;
         return fileDigest.digest();
     }
 
+    /*
+     * Lets the receiver copy fileInfo directly (see DirectCopyTable) and
+     * only reads it for computing its file checksum, which the receiver
+     * compares with the checksum of its copy. A read error is handled like
+     * FileViewReadError, i.e. the checksum sent will not match.
+     * @throws FileViewOpenFailed before sending anything if failing to open
+     *         fileInfo
+     */
+    private byte[] sendDirectCopy(int index, char iFlags,
+                                  Checksum.Header header, FileInfo fileInfo)
+        throws ChannelException, FileViewOpenFailed
+    {
+        long fileSize = fileInfo.attrs().size();
+        MessageDigest fileDigest = _strongChecksum.newFileDigest();
+        FileChannel channel = FileView.openChannel(fileInfo.path());
+        try {
+            _directCopyTable.put(index, fileInfo.path());
+            sendIndexAndIflags(index, iFlags);
+            sendChecksumHeader(header);
+            if (fileSize >= DIRECT_COPY_FLUSH_SIZE) {
+                // let the receiver copy it while computing the checksum
+                _duplexChannel.flush();
+            }
+            ByteBuffer buf = ByteBuffer.wrap(_stagingBuf);
+            long position = 0;
+            boolean isReadError = false;
+            try {
+                while (position < fileSize) {
+                    buf.clear();
+                    buf.limit((int) Math.min(buf.capacity(),
+                                             fileSize - position));
+                    int numBytes = channel.read(buf, position);
+                    if (numBytes <= 0) {
+                        throw new EOFException(String.format(
+                            "File ended prematurely (%d)", numBytes));
+                    }
+                    fileDigest.update(_stagingBuf, 0, numBytes);
+                    position += numBytes;
+                }
+            } catch (ClosedByInterruptException e) {
+                throw new RuntimeInterruptException(e);
+            } catch (IOException e) {
+                if (_log.isLoggable(Level.WARNING)) {
+                    _log.warning(String.format(
+                        "Error: general I/O error on %s (ignored and " +
+                        "skipped): %s", fileInfo, e.getMessage()));
+                }
+                isReadError = true;
+            }
+            _stats.setTotalLiteralSize(_stats.totalLiteralSize() + fileSize);
+            sendEndOfData();
+            byte[] result = fileDigest.digest();
+            if (isReadError) {
+                result[0]++;
+            }
+            return result;
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                if (_log.isLoggable(Level.WARNING)) {
+                    _log.warning(String.format("failed to close %s: %s",
+                                               fileInfo.path(),
+                                               e.getMessage()));
+                }
+            }
+        }
+    }
+
     private byte[] sendMatchesAndData(FileView fv,
                                       Checksum peerChecksum,
                                       long fileSize)
@@ -1221,101 +1483,142 @@ public class Sender implements RsyncTask,MessageHandler
         assert peerChecksum.header().blockLength() > 0;
         assert fileSize > 0;
 
-        MessageDigest fileDigest = MD5.newInstance();
-        MessageDigest chunkDigest = MD5.newInstance();
+        MessageDigest fileDigest = _strongChecksum.newFileDigest();
+        MessageDigest chunkDigest =
+            _strongChecksum.newBlockDigest(_checksumSeed);
 
-        int rolling = Rolling.compute(fv.array(), fv.startOffset(),
-                                      fv.windowLength());
         int preferredIndex = 0;
         long sizeLiteral = 0;
         long sizeMatch = 0;
-        byte[] localChunkMd5sum = null;
+        long numTagHits = 0;
+        long numTagMisses = 0;
+        // the (untruncated) digest of the current window, computed lazily
+        // and reused as long as the window does not move
+        byte[] localChunkDigest = new byte[_strongChecksum.digestLength()];
+        boolean isLocalChunkDigestValid = false;
+        RollingScanner scanner = new RollingScanner(peerChecksum);
+        int blockLength = peerChecksum.header().blockLength();
+        // all data before the mark is sent, data of the view may only be
+        // sent with sendLiteral and sendMatch, see FileView.setAccessError
         fv.setMarkRelativeToStart(0);
 
-        while (fv.windowLength() >= peerChecksum.header().smallestChunkSize()) {
-
-            if (_log.isLoggable(Level.FINEST)) {
-                _log.finest(fv.toString());
-            }
+        try {
+            int rolling = Rolling.compute(fv.buffer(), fv.startOffset(),
+                                          fv.windowLength());
+            while (fv.windowLength() >=
+                   peerChecksum.header().smallestChunkSize()) {
 
-            for (Checksum.Chunk chunk : peerChecksum.getCandidateChunks(
-                                                            rolling,
-                                                            fv.windowLength(),
-                                                            preferredIndex)) {
-
-                if (localChunkMd5sum == null) {
-                    chunkDigest.update(fv.array(),
-                                       fv.startOffset(),
-                                       fv.windowLength());
-                    chunkDigest.update(_checksumSeed);
-                    localChunkMd5sum = Arrays.copyOf(
-                                                chunkDigest.digest(),
-                                                chunk.md5Checksum().length);
+                if (_log.isLoggable(Level.FINEST)) {
+                    _log.finest(fv.toString());
                 }
 
-                if (Arrays.equals(localChunkMd5sum, chunk.md5Checksum())) {
-                    if (_log.isLoggable(Level.FINER)) {
-                        _log.finer(String.format(
-                            "match %s == %s %s",
-                            MD5.md5DigestToString(localChunkMd5sum),
-                            MD5.md5DigestToString(chunk.md5Checksum()),
-                            fv));
+                // skip past windows which cannot match in one go, as long as
+                // the data is available and the view does not become full,
+                // the window below is then checked again as usual
+                int maxSteps = Math.min(fv.numBytesSlidable(), blockLength);
+                if (fv.windowLength() == blockLength && maxSteps > 0) {
+                    int numSteps = scanner.scan(fv.buffer(), fv.startOffset(),
+                                                blockLength, maxSteps,
+                                                rolling);
+                    if (numSteps > 0) {
+                        numTagMisses += numSteps;
+                        fv.slide(numSteps);
+                        rolling = scanner.rolling();
                     }
-                    sizeMatch += fv.windowLength();
-                    sendDataFrom(fv.array(), fv.markOffset(),
-                                 fv.numBytesMarked());
-                    sizeLiteral += fv.numBytesMarked();
-                    fileDigest.update(fv.array(),
-                                      fv.markOffset(),
-                                      fv.totalBytes());
-
-                    _duplexChannel.putInt(- (chunk.chunkIndex() + 1));
-                    preferredIndex = chunk.chunkIndex() + 1;
-                    // we have sent all literal data until start of this
-                    // chunk which in turn is matching peer's checksum,
-                    // reset cursor:
-                    fv.setMarkRelativeToStart(fv.windowLength());
-                    // slide start to 1 byte left of mark offset,
-                    // will be subtracted immediately after break of loop
-                    fv.slide(fv.windowLength() - 1);
-                    // TODO: optimize away an unnecessary expensive
-                    // compact operation here while we only have 1 byte to
-                    // compact, before reading in more data (if we're at the last block)
-                    rolling = Rolling.compute(fv.array(),
+                }
+
+                int chunkIndex = Checksum.NO_CHUNK;
+                if (peerChecksum.mayContain(rolling)) {
+                    numTagHits++;
+                    chunkIndex = peerChecksum.firstCandidate(rolling,
+                                                             fv.windowLength(),
+                                                             preferredIndex);
+                } else {
+                    numTagMisses++;
+                }
+                while (chunkIndex != Checksum.NO_CHUNK) {
+
+                    if (!isLocalChunkDigestValid) {
+                        StrongChecksum.update(chunkDigest, fv.buffer(),
                                               fv.startOffset(),
-                                              fv.windowLength());
-                    localChunkMd5sum = null;
-                    break;
+                                              fv.endOffset() + 1);
+                        StrongChecksum.digestInto(chunkDigest,
+                                                  localChunkDigest);
+                        isLocalChunkDigestValid = true;
+                    }
+
+                    if (peerChecksum.isDigestEqual(chunkIndex,
+                                                   localChunkDigest)) {
+                        if (_log.isLoggable(Level.FINER)) {
+                            _log.finer(String.format(
+                                "match %s == %s %s",
+                                MD5.md5DigestToString(localChunkDigest),
+                                MD5.md5DigestToString(
+                                    peerChecksum.digestOf(chunkIndex)),
+                                fv));
+                        }
+                        sizeMatch += fv.windowLength();
+                        sizeLiteral += fv.numBytesMarked();
+                        sendLiteral(fv, fv.markOffset(), fv.numBytesMarked(),
+                                    fileDigest);
+                        fv.setMarkRelativeToStart(0);
+                        sendMatch(chunkIndex, fv, fileDigest);
+                        preferredIndex = chunkIndex + 1;
+                        // we have sent all literal data until start of this
+                        // chunk which in turn is matching peer's checksum,
+                        // reset cursor:
+                        fv.setMarkRelativeToStart(fv.windowLength());
+                        // slide start to 1 byte left of mark offset,
+                        // will be subtracted immediately after break of loop
+                        fv.slide(fv.windowLength() - 1);
+                        // TODO: optimize away an unnecessary expensive
+                        // compact operation here while we only have 1 byte
+                        // to compact, before reading in more data (if we're
+                        // at the last block)
+                        rolling = Rolling.compute(fv.buffer(),
+                                                  fv.startOffset(),
+                                                  fv.windowLength());
+                        break;
+                    }
+                    chunkIndex = peerChecksum.nextCandidate();
                 }
-            }
+                // the window always moves below
+                isLocalChunkDigestValid = false;
 
-            rolling = Rolling.subtract(rolling,
-                                       fv.windowLength(),
-                                       fv.valueAt(fv.startOffset()));
+                rolling = Rolling.subtract(rolling,
+                                           fv.windowLength(),
+                                           fv.valueAt(fv.startOffset()));
 
-            if (fv.isFull()) {
-                if (_log.isLoggable(Level.FINER)) {
-                    _log.finer("view is full " + fv);
+                if (fv.isFull()) {
+                    if (_log.isLoggable(Level.FINER)) {
+                        _log.finer("view is full " + fv);
+                    }
+                    sizeLiteral += fv.totalBytes();
+                    sendLiteral(fv, fv.firstOffset(), fv.totalBytes(),
+                                fileDigest);
+                    // or clearMark()
+                    fv.setMarkRelativeToStart(fv.windowLength());
+                    fv.slide(fv.windowLength());
+                } else {
+                    fv.slide(1);
                 }
-                sendDataFrom(fv.array(), fv.firstOffset(), fv.totalBytes());
-                sizeLiteral += fv.totalBytes();
-                fileDigest.update(fv.array(), fv.firstOffset(),
-                                  fv.totalBytes());
-                fv.setMarkRelativeToStart(fv.windowLength()); // or clearMark()
-                fv.slide(fv.windowLength());
-            } else {
-                fv.slide(1);
-            }
 
-            if (fv.windowLength() == peerChecksum.header().blockLength()) { // i.e. not at the end of the file
-                rolling = Rolling.add(rolling, fv.valueAt(fv.endOffset()));
+                // i.e. not at the end of the file
+                if (fv.windowLength() == blockLength) {
+                    rolling = Rolling.add(rolling, fv.valueAt(fv.endOffset()));
+                }
             }
+            sizeLiteral += fv.totalBytes();
+            sendLiteral(fv, fv.firstOffset(), fv.totalBytes(), fileDigest);
+        } catch (InternalError e) {
+            // the file was truncated while mapped, everything until the
+            // mark is sent, send the rest as zeroes
+            fv.setAccessError(e);
+            long numZeroes = fileSize - sizeMatch - sizeLiteral;
+            sizeLiteral += numZeroes;
+            sendZeroes(numZeroes, fileDigest);
         }
-
-        sendDataFrom(fv.array(), fv.firstOffset(), fv.totalBytes());
-        sizeLiteral += fv.totalBytes();
-        fileDigest.update(fv.array(), fv.firstOffset(), fv.totalBytes());
-        _duplexChannel.putInt(0);
+        sendEndOfData();
 
         if (_log.isLoggable(Level.FINE)) {
             _log.fine(String.format("%d%% match: matched %d bytes, sent %d" +
@@ -1328,18 +1631,78 @@ public class Sender implements RsyncTask,MessageHandler
 
         _stats.setTotalLiteralSize(_stats.totalLiteralSize() + sizeLiteral);
         _stats.setTotalMatchedSize(_stats.totalMatchedSize() + sizeMatch);
+        _stats.setNumTagTableHits(_stats.numTagTableHits() + numTagHits);
+        _stats.setNumTagTableMisses(_stats.numTagTableMisses() +
+                                    numTagMisses);
         assert sizeLiteral + sizeMatch == fileSize;
         return fileDigest.digest();
     }
 
 
-    private void sendDataFrom(byte[] buf, int startOffset, int length)
+    // sends and digests length bytes of view at offset as literal data, if
+    // view is mapped they are read using copyTo so that a concurrent
+    // truncation of the file cannot interrupt sending them
+    private void sendLiteral(FileView view, int offset, int length,
+                             MessageDigest fileDigest)
+        throws ChannelException
+    {
+        // relative to firstOffset which may change (to 0) when copying
+        int start = offset - view.firstOffset();
+        int end = start + length;
+        for (int j = start; j < end; j += CHUNK_SIZE) {
+            int len = Math.min(CHUNK_SIZE, end - j);
+            int i = view.firstOffset() + j;
+            if (view.isMapped()) {
+                view.copyTo(i, _stagingBuf, 0, len);
+                ByteBuffer staged = ByteBuffer.wrap(_stagingBuf);
+                sendDataFrom(staged, 0, len);
+                StrongChecksum.update(fileDigest, staged, 0, len);
+            } else {
+                sendDataFrom(view.buffer(), i, len);
+                StrongChecksum.update(fileDigest, view.buffer(), i, i + len);
+            }
+        }
+    }
+
+    private void sendZeroes(long amount, MessageDigest fileDigest)
+        throws ChannelException
+    {
+        Arrays.fill(_stagingBuf, (byte) 0);
+        ByteBuffer zeroes = ByteBuffer.wrap(_stagingBuf);
+        for (long i = 0; i < amount; i += _stagingBuf.length) {
+            int len = (int) Math.min(_stagingBuf.length, amount - i);
+            sendDataFrom(zeroes, 0, len);
+            StrongChecksum.update(fileDigest, zeroes, 0, len);
+        }
+    }
+
+    // digests the window of view and sends a token for the matching
+    // chunkIndex, reading the window directly even if view is mapped as
+    // none of it is written to the peer, the caller must catch an
+    // InternalError around it as for any other access of a mapped view
+    private void sendMatch(int chunkIndex, FileView view,
+                           MessageDigest fileDigest)
+        throws ChannelException
+    {
+        int offset = view.startOffset();
+        int length = view.windowLength();
+        StrongChecksum.update(fileDigest, view.buffer(), offset,
+                              offset + length);
+        sendToken(chunkIndex, view.buffer(), offset, length);
+    }
+
+    private void sendDataFrom(ByteBuffer buf, int startOffset, int length)
         throws ChannelException
     {
         assert buf != null;
         assert startOffset >= 0;
         assert length >= 0;
-        assert startOffset + length <= buf.length;
+        assert startOffset + length <= buf.capacity();
+
+        if (_tokenDeflater != null) {
+            _tokenDeflater.sendData(buf, startOffset, length);
+            return;
+        }
 
         int endOffset = startOffset + length - 1;
         int currentOffset = startOffset;
@@ -1347,11 +1710,34 @@ public class Sender implements RsyncTask,MessageHandler
             int len = Math.min(CHUNK_SIZE, endOffset - currentOffset + 1);
             assert len > 0;
             _duplexChannel.putInt(len);
-            _duplexChannel.put(buf, currentOffset, len);
+            _duplexChannel.put(Util.slice(buf, currentOffset,
+                                          currentOffset + len));
             currentOffset += len;
         }
     }
 
+    // send a token for matching chunkIndex, whose data are the length bytes
+    // of buf starting at offset
+    private void sendToken(int chunkIndex, ByteBuffer buf, int offset,
+                           int length)
+        throws ChannelException
+    {
+        if (_tokenDeflater != null) {
+            _tokenDeflater.sendToken(chunkIndex, buf, offset, length);
+        } else {
+            _duplexChannel.putInt(- (chunkIndex + 1));
+        }
+    }
+
+    private void sendEndOfData() throws ChannelException
+    {
+        if (_tokenDeflater != null) {
+            _tokenDeflater.sendEnd();
+        } else {
+            _duplexChannel.putInt(0);
+        }
+    }
+
     private void sendIntMessage(MessageCode code, int value)
         throws ChannelException
     {
@@ -0,0 +1,445 @@
+/*
+ * The greeting of an rsync daemon connection as a non-blocking state
+ * machine
+ *
+ * Copyright (C) 1996-2011 by Andrew Tridgell, Wayne Davison, and others
+ * Copyright (C) 2013, 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.github.perlundq.yajsync.channels.ChannelEOFException;
+import com.github.perlundq.yajsync.channels.ChannelException;
+import com.github.perlundq.yajsync.security.RsyncAuthContext;
+import com.github.perlundq.yajsync.text.Text;
+import com.github.perlundq.yajsync.text.TextConversionException;
+import com.github.perlundq.yajsync.text.TextDecoder;
+import com.github.perlundq.yajsync.text.TextEncoder;
+import com.github.perlundq.yajsync.util.Consts;
+
+/**
+ * The server side of the text based first part of the rsync daemon
+ * protocol: protocol versions, module selection (or listing),
+ * authentication for restricted modules, module status and the arguments
+ * of the transfer. ServerSessionConfig takes over from there.
+ *
+ * It does no I/O itself. A driver reads peer data into readBuffer(), calls
+ * process() and sends output(), either with blocking channels (exchange)
+ * or from a selector (SessionScheduler), so that connections do not need a
+ * thread of their own while greeting.
+ *
+ * Before sending "@RSYNCD: OK" it stops and waits for either admit() or
+ * reject(), which is where SessionScheduler limits the number of
+ * concurrent sessions.
+ */
+final class ServerGreeting
+{
+    private enum State { VERSION, MODULE, AUTHENTICATION, ADMISSION,
+                         ARGUMENTS, DONE }
+
+    private static final Logger _log =
+        Logger.getLogger(ServerGreeting.class.getName());
+
+    private final Charset _charset;
+    private final TextEncoder _characterEncoder;
+    private final TextDecoder _characterDecoder;
+    private final Modules _modules;
+    // received data not yet processed, always in write mode
+    private final ByteBuffer _input =
+        ByteBuffer.allocate(Consts.MAX_BUF_SIZE + 1);
+    private final List<String> _arguments = new LinkedList<>();
+    private ByteBuffer _output = ByteBuffer.allocate(0);
+    private State _state = State.VERSION;
+    private SessionStatus _status;
+    private RestrictedModule _restrictedModule;
+    private RsyncAuthContext _authContext;
+    private Module _module;
+    private boolean _isEndOfInput;
+
+    /**
+     * @throws IllegalArgumentException if charset is not supported
+     */
+    ServerGreeting(Charset charset, Modules modules)
+    {
+        assert charset != null;
+        assert modules != null;
+        SessionConfig.checkCharset(charset);
+        _charset = charset;
+        _characterEncoder = TextEncoder.newStrict(charset);
+        _characterDecoder = TextDecoder.newStrict(charset);
+        _modules = modules;
+        writeString(SessionConfig.versionGreeting());
+    }
+
+    public Charset charset()
+    {
+        return _charset;
+    }
+
+    /**
+     * @return the buffer to read more peer data into
+     */
+    public ByteBuffer readBuffer()
+    {
+        return _input;
+    }
+
+    /**
+     * @return data to be sent to peer, may be empty
+     */
+    public ByteBuffer output()
+    {
+        return _output;
+    }
+
+    public void setEndOfInput()
+    {
+        _isEndOfInput = true;
+    }
+
+    public boolean isWaitingForInput()
+    {
+        return _state != State.ADMISSION && _state != State.DONE;
+    }
+
+    public boolean isWaitingForAdmission()
+    {
+        return _state == State.ADMISSION;
+    }
+
+    public boolean isDone()
+    {
+        return _state == State.DONE;
+    }
+
+    /**
+     * @return OK, EXIT (module listing) or ERROR, only valid when done
+     */
+    public SessionStatus status()
+    {
+        assert _status != null;
+        return _status;
+    }
+
+    /**
+     * @return the (authenticated) module requested by peer, only valid when
+     *         waiting for admission or done with status OK
+     */
+    public Module module()
+    {
+        assert _module != null;
+        return _module;
+    }
+
+    public Collection<String> arguments()
+    {
+        return _arguments;
+    }
+
+    /**
+     * Sends "@RSYNCD: OK" and continues with receiving the arguments.
+     */
+    public void admit()
+    {
+        assert isWaitingForAdmission();
+        writeString(SessionStatus.OK.toString() + "\n");
+        _status = SessionStatus.OK;
+        _state = State.ARGUMENTS;
+    }
+
+    public void reject(String message)
+    {
+        assert isWaitingForAdmission();
+        fail(message);
+    }
+
+    /**
+     * Processes all complete lines (and arguments) received so far.
+     *
+     * @throws RsyncProtocolException if peer does not follow the protocol,
+     *         including failing to decode characters using our charset
+     * @throws ChannelEOFException if peer closed its side of the connection
+     *         before the greeting was done
+     */
+    public void process() throws ChannelEOFException
+    {
+        _input.flip();
+        try {
+            while (isWaitingForInput()) {
+                String text = _state == State.ARGUMENTS
+                                  ? nextArgumentOrNull()
+                                  : nextLineOrNull();
+                if (text == null) {
+                    break;
+                }
+                handle(text);
+            }
+        } catch (TextConversionException e) {
+            throw new RsyncProtocolException(e);
+        } finally {
+            _input.compact();
+        }
+
+        if (isWaitingForInput()) {
+            if (!_input.hasRemaining()) {
+                throw new RsyncProtocolException(String.format(
+                    "received too long string from peer (max %d bytes)",
+                    Consts.MAX_BUF_SIZE));
+            } else if (_isEndOfInput) {
+                throw new ChannelEOFException(
+                    "peer closed connection during greeting");
+            }
+        }
+    }
+
+    /**
+     * Sends and receives greeting data using blocking channels until
+     * waiting for admission or done.
+     *
+     * @throws RsyncProtocolException if peer does not follow the protocol
+     */
+    public void exchange(ReadableByteChannel in, WritableByteChannel out)
+        throws ChannelException
+    {
+        try {
+            while (true) {
+                while (_output.hasRemaining()) {
+                    out.write(_output);
+                }
+                if (!isWaitingForInput()) {
+                    return;
+                }
+                if (in.read(_input) == -1) {
+                    setEndOfInput();
+                }
+                process();
+            }
+        } catch (IOException e) {
+            throw new ChannelException(e);
+        }
+    }
+
+    /**
+     * @return in, or a channel returning any data received after the
+     *         arguments before reading from in
+     */
+    public ReadableByteChannel inputChannel(final ReadableByteChannel in)
+    {
+        assert isDone();
+        if (_input.position() == 0) {
+            return in;
+        }
+        _input.flip();
+        return new ReadableByteChannel() {
+            @Override
+            public boolean isOpen()
+            {
+                return in.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                in.close();
+            }
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException
+            {
+                if (!_input.hasRemaining()) {
+                    return in.read(dst);
+                }
+                int length = Math.min(_input.remaining(), dst.remaining());
+                ByteBuffer slice = _input.slice();
+                slice.limit(length);
+                dst.put(slice);
+                _input.position(_input.position() + length);
+                return length;
+            }
+        };
+    }
+
+    private void handle(String text)
+    {
+        switch (_state) {
+        case VERSION:
+            SessionConfig.checkPeerVersion(text);
+            _state = State.MODULE;
+            break;
+        case MODULE:
+            selectModule(text);
+            break;
+        case AUTHENTICATION:
+            authenticate(text);
+            break;
+        case ARGUMENTS:
+            if (text.isEmpty()) {
+                _state = State.DONE;
+            } else {
+                _arguments.add(text);
+            }
+            break;
+        default:
+            throw new IllegalStateException(_state.toString());
+        }
+    }
+
+    private void selectModule(String moduleName)
+    {
+        if (moduleName.isEmpty()) {
+            if (_log.isLoggable(Level.FINE)) {
+                _log.fine("sending module listing and exiting");
+            }
+            sendModuleListing();
+            writeString(SessionStatus.EXIT.toString() + "\n");
+            _status = SessionStatus.EXIT;                                       // FIXME: create separate status type instead
+            _state = State.DONE;
+            return;
+        }
+
+        try {
+            Module module = _modules.get(moduleName);                           // throws ModuleException
+            if (module instanceof RestrictedModule) {
+                _restrictedModule = (RestrictedModule) module;
+                _authContext = new RsyncAuthContext(_characterEncoder);
+                writeString(SessionStatus.AUTHREQ + _authContext.challenge() +
+                            '\n');
+                _state = State.AUTHENTICATION;
+            } else {
+                _module = module;
+                _state = State.ADMISSION;
+            }
+        } catch (ModuleException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    private void authenticate(String userResponse)
+    {
+        String[] userResponseTuple = userResponse.split(" ", 2);
+        if (userResponseTuple.length != 2) {
+            throw new RsyncProtocolException("invalid challenge " +
+                "response " + userResponse);
+        }
+
+        String userName = userResponseTuple[0];
+        try {
+            String correctResponse =
+                _restrictedModule.authenticate(_authContext, userName);         // throws ModuleSecurityException
+            String response = userResponseTuple[1];
+            if (response.equals(correctResponse)) {
+                _module = _restrictedModule.toModule();
+                _state = State.ADMISSION;
+            } else {
+                fail("failed to authenticate " + userName);
+            }
+        } catch (ModuleSecurityException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    private void sendModuleListing()
+    {
+        for (Module module : _modules.all()) {
+            assert !module.name().isEmpty();
+            if (module.comment().isEmpty()) {
+                writeString(String.format("%-15s\n", module.name()));
+            } else {
+                writeString(String.format("%-15s\t%s\n",
+                                          module.name(), module.comment()));
+            }
+        }
+    }
+
+    private void fail(String message)
+    {
+        if (_log.isLoggable(Level.WARNING)) {
+            _log.warning(message);
+        }
+        writeString(String.format("%s: %s\n", SessionStatus.ERROR, message));
+        _status = SessionStatus.ERROR;
+        _state = State.DONE;
+    }
+
+    /**
+     * @throws RsyncProtocolException if the line contains a null character
+     */
+    private String nextLineOrNull()
+    {
+        for (int i = _input.position(); i < _input.limit(); i++) {
+            byte b = _input.get(i);
+            if (b == Text.ASCII_NULL) {
+                throw new RsyncProtocolException(
+                    "got a null-terminated input string without a newline");
+            } else if (b == Text.ASCII_NEWLINE) {
+                ByteBuffer line = ByteBuffer.allocate(i - _input.position());
+                while (_input.position() < i) {
+                    byte c = _input.get();
+                    if (c != Text.ASCII_CR) {
+                        line.put(c);
+                    }
+                }
+                _input.get(); // the newline
+                line.flip();
+                String result = _characterDecoder.decode(line);
+                if (_log.isLoggable(Level.FINER)) {
+                    _log.finer("< " + result);
+                }
+                return result;
+            }
+        }
+        return null;
+    }
+
+    // end of input terminates the last argument as well as the list of
+    // arguments
+    private String nextArgumentOrNull()
+    {
+        int end = _input.position();
+        while (end < _input.limit() && _input.get(end) != Text.ASCII_NULL) {
+            end++;
+        }
+        if (end == _input.limit() && !_isEndOfInput) {
+            return null;
+        }
+        ByteBuffer argument = _input.slice();
+        argument.limit(end - _input.position());
+        _input.position(Math.min(end + 1, _input.limit()));
+        return _characterDecoder.decode(argument);
+    }
+
+    private void writeString(String text)
+    {
+        if (_log.isLoggable(Level.FINER)) {
+            _log.finer("> " + text);
+        }
+        byte[] textEncoded = _characterEncoder.encode(text);
+        ByteBuffer output =
+            ByteBuffer.allocate(_output.remaining() + textEncoded.length);
+        output.put(_output).put(textEncoded).flip();
+        _output = output;
+    }
+}
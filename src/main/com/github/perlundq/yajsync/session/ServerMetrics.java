@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import com.github.perlundq.yajsync.session.SessionMetrics.Counter;
+
+/**
+ * Server wide metrics of the sessions run by a SessionScheduler.
+ *
+ * Sessions never update shared counters. Instead SessionScheduler calls
+ * sample() once a second, which adds what each session counted since the
+ * previous sample to the totals, so counters lag at most a second behind.
+ * Gauges (active sessions, queued jobs) are read from the sessions on
+ * demand.
+ */
+public class ServerMetrics implements ServerMetricsMXBean
+{
+    public static final String DOMAIN = "com.github.perlundq.yajsync";
+
+    private static final Logger _log =
+        Logger.getLogger(ServerMetrics.class.getName());
+
+    private final Set<SessionMetrics> _sessions =
+        Collections.newSetFromMap(
+            new ConcurrentHashMap<SessionMetrics, Boolean>());
+    private final AtomicLongArray _totals =
+        new AtomicLongArray(Counter.values().length);
+    private final AtomicLong _nextSessionId = new AtomicLong();
+    private final AtomicLong _numRejectedConnections = new AtomicLong();
+    private volatile MBeanServer _mbeanServer;
+    private volatile double _transferredFilesPerSecond;
+    // only used by sample
+    private long _lastSampleTime;
+    private long _lastSampleFiles;
+
+    /**
+     * Registers this and the metrics of each session started from now on
+     * with the platform MBean server.
+     *
+     * @throws JMException if this is already registered
+     */
+    public void registerMBeans() throws JMException
+    {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        mbeanServer.registerMBean(this, objectName());
+        _mbeanServer = mbeanServer;
+    }
+
+    public void unregisterMBeans() throws JMException
+    {
+        MBeanServer mbeanServer = _mbeanServer;
+        if (mbeanServer != null) {
+            _mbeanServer = null;
+            mbeanServer.unregisterMBean(objectName());
+        }
+    }
+
+    SessionMetrics newSessionMetrics(String moduleName,
+                                     IdleTimeoutChannel channel)
+    {
+        SessionMetrics session =
+            new SessionMetrics(_nextSessionId.incrementAndGet(), moduleName,
+                               channel);
+        _sessions.add(session);
+        MBeanServer mbeanServer = _mbeanServer;
+        if (mbeanServer != null) {
+            try {
+                mbeanServer.registerMBean(session, session.objectName());
+            } catch (JMException e) {
+                if (_log.isLoggable(Level.WARNING)) {
+                    _log.warning(String.format("failed to register %s: %s",
+                                               session, e));
+                }
+            }
+        }
+        return session;
+    }
+
+    /**
+     * The session is still published by the next sample.
+     */
+    void sessionDone(SessionMetrics session, boolean isOK)
+    {
+        session.setDone(isOK);
+        MBeanServer mbeanServer = _mbeanServer;
+        if (mbeanServer != null) {
+            try {
+                mbeanServer.unregisterMBean(session.objectName());
+            } catch (JMException e) {
+                if (_log.isLoggable(Level.FINE)) {
+                    _log.fine(String.format("failed to unregister %s: %s",
+                                            session, e));
+                }
+            }
+        }
+    }
+
+    void connectionRejected()
+    {
+        _numRejectedConnections.incrementAndGet();
+    }
+
+    /**
+     * Adds the progress of all sessions to the totals. Must not be called by
+     * more than one thread at a time.
+     */
+    void sample()
+    {
+        Iterator<SessionMetrics> it = _sessions.iterator();
+        while (it.hasNext()) {
+            SessionMetrics session = it.next();
+            boolean isDone = session.isDone(); // before reading final values
+            long[] published = session.published();
+            for (Counter counter : Counter.values()) {
+                int i = counter.ordinal();
+                long value = session.value(counter);
+                if (value != published[i]) {
+                    _totals.addAndGet(i, value - published[i]);
+                    published[i] = value;
+                }
+            }
+            if (isDone) {
+                it.remove();
+            }
+        }
+
+        long now = System.nanoTime();
+        long numFiles = total(Counter.TRANSFERRED_FILES);
+        if (_lastSampleTime != 0 && now > _lastSampleTime) {
+            _transferredFilesPerSecond =
+                (numFiles - _lastSampleFiles) *
+                (double) TimeUnit.SECONDS.toNanos(1) / (now - _lastSampleTime);
+        }
+        _lastSampleTime = now;
+        _lastSampleFiles = numFiles;
+    }
+
+    private long total(Counter counter)
+    {
+        return _totals.get(counter.ordinal());
+    }
+
+    private static ObjectName objectName() throws MalformedObjectNameException
+    {
+        return new ObjectName(DOMAIN + ":type=Server");
+    }
+
+    @Override
+    public int getActiveSessions()
+    {
+        int result = 0;
+        for (SessionMetrics session : _sessions) {
+            if (!session.isDone()) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Integer> getActiveModuleSessions()
+    {
+        Map<String, Integer> result = new TreeMap<>();
+        for (SessionMetrics session : _sessions) {
+            if (!session.isDone()) {
+                Integer numSessions = result.get(session.moduleName());
+                result.put(session.moduleName(),
+                           numSessions == null ? 1 : numSessions + 1);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public long getSessions()
+    {
+        return _nextSessionId.get();
+    }
+
+    @Override
+    public long getFailedSessions()
+    {
+        return total(Counter.FAILED_SESSIONS);
+    }
+
+    @Override
+    public long getRejectedConnections()
+    {
+        return _numRejectedConnections.get();
+    }
+
+    @Override
+    public long getBytesRead()
+    {
+        return total(Counter.BYTES_READ);
+    }
+
+    @Override
+    public long getBytesWritten()
+    {
+        return total(Counter.BYTES_WRITTEN);
+    }
+
+    @Override
+    public long getLiteralBytes()
+    {
+        return total(Counter.LITERAL_BYTES);
+    }
+
+    @Override
+    public long getMatchedBytes()
+    {
+        return total(Counter.MATCHED_BYTES);
+    }
+
+    @Override
+    public long getTransferredFiles()
+    {
+        return total(Counter.TRANSFERRED_FILES);
+    }
+
+    @Override
+    public double getTransferredFilesPerSecond()
+    {
+        return _transferredFilesPerSecond;
+    }
+
+    @Override
+    public long getFileLists()
+    {
+        return total(Counter.FILE_LISTS);
+    }
+
+    @Override
+    public long getFileListBuildTime()
+    {
+        return total(Counter.FILE_LIST_BUILD_TIME);
+    }
+
+    @Override
+    public long getTagTableHits()
+    {
+        return total(Counter.TAG_TABLE_HITS);
+    }
+
+    @Override
+    public long getTagTableMisses()
+    {
+        return total(Counter.TAG_TABLE_MISSES);
+    }
+
+    @Override
+    public int getQueuedJobs()
+    {
+        int result = 0;
+        for (SessionMetrics session : _sessions) {
+            result += session.getQueuedJobs();
+        }
+        return result;
+    }
+
+    @Override
+    public long getGeneralIoErrors()
+    {
+        return total(Counter.GENERAL_IO_ERRORS);
+    }
+
+    @Override
+    public long getVanishedIoErrors()
+    {
+        return total(Counter.VANISHED_IO_ERRORS);
+    }
+
+    @Override
+    public long getTransferIoErrors()
+    {
+        return total(Counter.TRANSFER_IO_ERRORS);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.util.Map;
+
+/**
+ * JMX view of ServerMetrics, registered as
+ * com.github.perlundq.yajsync:type=Server. Counters are totals of all
+ * sessions since the server started.
+ */
+public interface ServerMetricsMXBean
+{
+    int getActiveSessions();
+
+    /**
+     * @return the number of active sessions of each module having any
+     */
+    Map<String, Integer> getActiveModuleSessions();
+
+    long getSessions();
+
+    long getFailedSessions();
+
+    long getRejectedConnections();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getLiteralBytes();
+
+    long getMatchedBytes();
+
+    long getTransferredFiles();
+
+    /**
+     * @return the number of files transferred during the last second
+     */
+    double getTransferredFilesPerSecond();
+
+    long getFileLists();
+
+    /**
+     * @return milliseconds spent building initial file lists
+     */
+    long getFileListBuildTime();
+
+    long getTagTableHits();
+
+    long getTagTableMisses();
+
+    /**
+     * @return the number of files queued for the generators of all active
+     *         sessions
+     */
+    int getQueuedJobs();
+
+    long getGeneralIoErrors();
+
+    long getVanishedIoErrors();
+
+    long getTransferIoErrors();
+}
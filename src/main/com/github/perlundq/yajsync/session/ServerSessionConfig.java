@@ -19,7 +19,6 @@
  */
 package com.github.perlundq.yajsync.session;
 
-import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
@@ -30,22 +29,18 @@ import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
-import com.github.perlundq.yajsync.channels.ChannelEOFException;
 import com.github.perlundq.yajsync.channels.ChannelException;
 import com.github.perlundq.yajsync.io.CustomFileSystem;
-import com.github.perlundq.yajsync.security.RsyncAuthContext;
 import com.github.perlundq.yajsync.text.Text;
 import com.github.perlundq.yajsync.text.TextConversionException;
 import com.github.perlundq.yajsync.util.ArgumentParser;
 import com.github.perlundq.yajsync.util.ArgumentParsingError;
 import com.github.perlundq.yajsync.util.BitOps;
-import com.github.perlundq.yajsync.util.Consts;
-import com.github.perlundq.yajsync.util.MemoryPolicy;
 import com.github.perlundq.yajsync.util.Option;
-import com.github.perlundq.yajsync.util.OverflowException;
 import com.github.perlundq.yajsync.util.PathOps;
-import com.github.perlundq.yajsync.util.Util;
+import com.github.perlundq.yajsync.util.StrongChecksum;
 
 public class ServerSessionConfig extends SessionConfig
 {
@@ -64,10 +59,15 @@ public class ServerSessionConfig extends SessionConfig
     private boolean _isDelete = false;
     private boolean _isDeleteExcluded = false;
     private boolean _isIgnoreTimes = false;
+    private boolean _isWholeFile = false;
     private Module _module;
     private int _verbosity = 0;
     private boolean _isSafeFileList;
     private boolean _isTransferDirs = false;
+    private boolean _isCompress = false;
+    private int _compressLevel = Deflater.DEFAULT_COMPRESSION;
+    private StrongChecksum _checksumChoice;  // null if negotiated
+    private boolean _isNegotiatedStrings;
 
 
     /**
@@ -82,95 +82,51 @@ public class ServerSessionConfig extends SessionConfig
     }
 
     /**
-     * @throws IllegalArgumentException if charset is not supported
+     * Continues the handshake of a done greeting.
+     *
      * @throws RsyncProtocolException if failing to encode/decode characters
      *         correctly
      * @throws RsyncProtocolException if failed to parse arguments sent by peer
      *         correctly
      */
-    public static ServerSessionConfig handshake(Charset charset,
-                                                ReadableByteChannel in,
-                                                WritableByteChannel out,
-                                                Modules modules)
+    static ServerSessionConfig handshake(ServerGreeting greeting,
+                                         ReadableByteChannel in,
+                                         WritableByteChannel out)
         throws ChannelException
     {
-        assert charset != null;
+        assert greeting.isDone();
         assert in != null;
         assert out != null;
-        assert modules != null;
 
-        ServerSessionConfig instance = new ServerSessionConfig(in, out,
-                                                               charset);
+        ServerSessionConfig instance = new ServerSessionConfig(
+            in, out, greeting.charset());
+        instance._status = greeting.status();
+        if (instance._status != SessionStatus.OK) {
+            return instance;
+        }
+        instance.setModule(greeting.module());
         try {
-            instance.exchangeProtocolVersion();
-            String moduleName = instance.receiveModule();
-
-            if (moduleName.isEmpty()) {
-                if (_log.isLoggable(Level.FINE)) {
-                    _log.fine("sending module listing and exiting");
-                }
-                instance.sendModuleListing(modules.all());
-                instance.sendStatus(SessionStatus.EXIT);
-                instance._status = SessionStatus.EXIT;                          // FIXME: create separate status type instead
-                return instance;
-            }
-
-            Module module = modules.get(moduleName);                            // throws ModuleException
-            if (module instanceof RestrictedModule) {
-                RestrictedModule restrictedModule = (RestrictedModule) module;
-                module = instance.unlockModule(restrictedModule);               // throws ModuleSecurityException
-            }
-            instance.setModule(module);
-            instance.sendStatus(SessionStatus.OK);
-            instance._status = SessionStatus.OK;
-
-            Collection<String> args = instance.receiveArguments();
+            Collection<String> args = greeting.arguments();
             if (_log.isLoggable(Level.FINE)) {
                 _log.fine("parsing arguments: " + args);
             }
             instance.parseArguments(args);
             instance.sendCompatibilities();
+            if (instance._isNegotiatedStrings) {
+                instance.negotiateStrings(instance._checksumChoice,
+                                          instance._isCompress, false);
+            } else if (instance._checksumChoice != null) {
+                instance._strongChecksum = instance._checksumChoice;
+            }
             instance.sendChecksumSeed();
             return instance;
         } catch (ArgumentParsingError | TextConversionException e) {
             throw new RsyncProtocolException(e);
-        } catch (ModuleException e) {
-            if (_log.isLoggable(Level.WARNING)) {
-                _log.warning(e.getMessage());
-            }
-            instance.sendErrorStatus(e.getMessage());
-            instance._status = SessionStatus.ERROR;
-            return instance;
         } finally {
             instance.flush();
         }
     }
 
-    private Module unlockModule(RestrictedModule restrictedModule)
-        throws ModuleSecurityException, ChannelException
-    {
-        RsyncAuthContext authContext = new RsyncAuthContext(_characterEncoder);
-        writeString(SessionStatus.AUTHREQ + authContext.challenge() + '\n');
-
-        String userResponse = readLine();
-        String[] userResponseTuple = userResponse.split(" ", 2);
-        if (userResponseTuple.length != 2) {
-            throw new RsyncProtocolException("invalid challenge " +
-                "response " + userResponse);
-        }
-
-        String userName = userResponseTuple[0];
-        String correctResponse = restrictedModule.authenticate(authContext,
-                                                               userName);
-        String response = userResponseTuple[1];
-        if (response.equals(correctResponse)) {
-            return restrictedModule.toModule();
-        } else {
-            throw new ModuleSecurityException("failed to authenticate " +
-                                              userName);
-        }
-    }
-
     public int verbosity()
     {
         return _verbosity;
@@ -181,34 +137,6 @@ public class ServerSessionConfig extends SessionConfig
         _peerConnection.flush();
     }
 
-    /**
-     * @throws TextConversionException
-     */
-    private void sendModuleListing(Iterable<Module> modules)
-        throws ChannelException
-    {
-        for (Module module : modules) {
-            assert !module.name().isEmpty();
-            if (module.comment().isEmpty()) {
-                writeString(String.format("%-15s\n", module.name()));
-            } else {
-                writeString(String.format("%-15s\t%s\n",
-                                          module.name(), module.comment()));
-            }
-        }
-    }
-
-    private void sendStatus(SessionStatus status) throws ChannelException
-    {
-        writeString(status.toString() + "\n");
-    }
-
-    private void sendErrorStatus(String msg) throws ChannelException
-    {
-        writeString(String.format("%s: %s\n",
-                                  SessionStatus.ERROR.toString(), msg));
-    }
-
     private void setModule(Module module)
     {
         _module = module;
@@ -219,47 +147,6 @@ public class ServerSessionConfig extends SessionConfig
 		return _module;
     }
 
-    /**
-     * @throws TextConversionException
-     */
-    private String readStringUntilNullOrEof() throws ChannelException
-    {
-        ByteBuffer buf = ByteBuffer.allocate(64);
-        try {
-            while (true) {
-                byte b = _peerConnection.getByte();
-                if (b == Text.ASCII_NULL) {
-                    break;
-                } else if (!buf.hasRemaining()) {
-                    buf = Util.enlargeByteBuffer(buf,
-                                                 MemoryPolicy.IGNORE,
-                                                 Consts.MAX_BUF_SIZE);
-                }
-                buf.put(b);
-            }
-        } catch (OverflowException e) {
-            throw new RsyncProtocolException(e);
-        } catch (ChannelEOFException e) {
-            // EOF is OK
-        }
-        buf.flip();
-        return _characterDecoder.decode(buf);
-    }
-
-    private Collection<String> receiveArguments()
-        throws ChannelException
-    {
-        Collection<String> list = new LinkedList<>();
-        while (true) {
-            String arg = readStringUntilNullOrEof();
-            if (arg.isEmpty()) {
-                break;
-            }
-            list.add(arg);
-        }
-        return list;
-    }
-
     private void parseArguments(Collection<String> receivedArguments)
         throws ArgumentParsingError
     {
@@ -301,6 +188,22 @@ public class ServerSessionConfig extends SessionConfig
                         setIsIgnoreTimes();
                     }}));
 
+        argsParser.add(Option.newWithoutArgument(
+                Option.Policy.OPTIONAL,
+                "whole-file", "W", "",
+                new Option.ContinuingHandler() {
+                    @Override public void handleAndContinue(Option option) {
+                        setIsWholeFile(true);
+                    }}));
+
+        argsParser.add(Option.newWithoutArgument(
+                Option.Policy.OPTIONAL,
+                "no-whole-file", "", "",
+                new Option.ContinuingHandler() {
+                    @Override public void handleAndContinue(Option option) {
+                        setIsWholeFile(false);
+                    }}));
+
         argsParser.add(Option.newWithoutArgument(
             Option.Policy.OPTIONAL,
             "verbose", "v", "",
@@ -375,6 +278,46 @@ public class ServerSessionConfig extends SessionConfig
                 	   setIsDelete(); // implicit option
                 }}));
 
+        argsParser.add(Option.newWithoutArgument(
+                Option.Policy.OPTIONAL,
+                "compress", "z", "",
+                new Option.ContinuingHandler() {
+                   @Override public void handleAndContinue(Option option) {
+                       _isCompress = true;
+                }}));
+
+        argsParser.add(Option.newIntegerOption(
+                Option.Policy.OPTIONAL,
+                "compress-level", "", "",
+                new Option.ContinuingHandler() {
+                   @Override public void handleAndContinue(Option option)
+                       throws ArgumentParsingError {
+                       int level = (int) option.getValue();
+                       if (level < Deflater.NO_COMPRESSION ||
+                           level > Deflater.BEST_COMPRESSION) {
+                           throw new ArgumentParsingError(
+                               "invalid compression level: " + level);
+                       }
+                       _compressLevel = level;
+                }}));
+
+        argsParser.add(Option.newStringOption(
+                Option.Policy.OPTIONAL,
+                "checksum-choice", "", "",
+                new Option.ContinuingHandler() {
+                   @Override public void handleAndContinue(Option option)
+                       throws ArgumentParsingError {
+                       String name = (String) option.getValue();
+                       if (!name.equals("auto")) {
+                           _checksumChoice =
+                               StrongChecksum.fromProtocolNameOrNull(name);
+                           if (_checksumChoice == null) {
+                               throw new ArgumentParsingError(
+                                   "unsupported checksum: " + name);
+                           }
+                       }
+                }}));
+
         argsParser.add(Option.newWithoutArgument(
                 Option.Policy.OPTIONAL,
                 "stats", "", "",
@@ -471,6 +414,8 @@ public class ServerSessionConfig extends SessionConfig
             if (str.contains("s")) { // CF_SYMLINK_ICONV
             }
             _isSafeFileList = str.contains("f");
+            // CF_VARINT_FLIST_FLAGS
+            _isNegotiatedStrings = str.contains("v");
         } else {
             throw new RsyncProtocolException(
                 String.format("Protocol not supported - got %s from peer",
@@ -480,17 +425,21 @@ public class ServerSessionConfig extends SessionConfig
 
     private void sendCompatibilities() throws ChannelException
     {
-        byte flags = 0;
+        int flags = 0;
         if (_isSafeFileList) {
             flags |= RsyncCompatibilities.CF_SAFE_FLIST;
         }
         if (_isIncrementalRecurse) {
             flags |= RsyncCompatibilities.CF_INC_RECURSE;
         }
+        if (_isNegotiatedStrings) {
+            flags |= RsyncCompatibilities.CF_VARINT_FLIST_FLAGS;
+            _isVarintFileListFlags = true;
+        }
         if (_log.isLoggable(Level.FINER)) {
             _log.finer("> (we support) " + flags);
         }
-        _peerConnection.putByte(flags);
+        sendVarint(flags);
     }
 
     private void sendChecksumSeed() throws ChannelException
@@ -543,6 +492,11 @@ public class ServerSessionConfig extends SessionConfig
         _isIgnoreTimes = true;
     }
 
+    private void setIsWholeFile(boolean isWholeFile)
+    {
+        _isWholeFile = isWholeFile;
+    }
+
     public boolean isSender()
     {
         return _isSender;
@@ -596,6 +550,11 @@ public class ServerSessionConfig extends SessionConfig
         return _isIgnoreTimes;
     }
 
+    public boolean isWholeFile()
+    {
+        return _isWholeFile;
+    }
+
     public boolean isSafeFileList()
     {
         return _isSafeFileList;
@@ -612,13 +571,19 @@ public class ServerSessionConfig extends SessionConfig
         _isSender = true;
     }
 
-    private String receiveModule() throws ChannelException
+    public boolean isTransferDirs()
     {
-        return readLine();
+        return _isTransferDirs;
     }
 
-    public boolean isTransferDirs()
+    // compression level 0 turns off compression, as for rsync
+    public boolean isCompress()
     {
-        return _isTransferDirs;
+        return _isCompress && _compressLevel != Deflater.NO_COMPRESSION;
+    }
+
+    public int compressLevel()
+    {
+        return _compressLevel;
     }
 }
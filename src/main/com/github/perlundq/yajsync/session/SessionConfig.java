@@ -23,6 +23,10 @@ import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -39,6 +43,7 @@ import com.github.perlundq.yajsync.text.TextEncoder;
 import com.github.perlundq.yajsync.util.Consts;
 import com.github.perlundq.yajsync.util.MemoryPolicy;
 import com.github.perlundq.yajsync.util.OverflowException;
+import com.github.perlundq.yajsync.util.StrongChecksum;
 import com.github.perlundq.yajsync.util.Util;
 
 public abstract class SessionConfig
@@ -48,12 +53,17 @@ public abstract class SessionConfig
     public static final ProtocolVersion VERSION = new ProtocolVersion(30, 0);
     private static final Pattern PROTOCOL_VERSION_REGEX =
         Pattern.compile("@RSYNCD: (\\d+)\\.(\\d+)$");
+    // the only compression supported, rsync's (old style) deflate
+    private static final String COMPRESSION_ZLIB = "zlib";
+    private static final int MAX_SHORT_VSTRING_LENGTH = 0x7F;
 
     protected final AutoFlushableDuplexChannel _peerConnection;
     protected SessionStatus _status;
     protected TextEncoder _characterEncoder;
     protected TextDecoder _characterDecoder;
     protected byte[] _checksumSeed; // always stored in little endian
+    protected StrongChecksum _strongChecksum = StrongChecksum.DEFAULT;
+    protected boolean _isVarintFileListFlags;
 
     private Charset _charset;
 
@@ -87,10 +97,47 @@ public abstract class SessionConfig
         return _status;
     }
 
+    /**
+     * @return the negotiated strong checksum used for block and file
+     *         checksums
+     */
+    public StrongChecksum strongChecksum()
+    {
+        return _strongChecksum;
+    }
+
+    public boolean isVarintFileListFlags()
+    {
+        return _isVarintFileListFlags;
+    }
+
     protected void exchangeProtocolVersion() throws ChannelException
     {
-        sendVersion(VERSION);
-        ProtocolVersion peerVersion = receivePeerVersion();
+        writeString(versionGreeting());
+        checkPeerVersion(readLine());
+    }
+
+    static String versionGreeting()
+    {
+        return String.format("@RSYNCD: %d.%d\n", VERSION.major(),
+                             VERSION.minor());
+    }
+
+    /**
+     * @throws RsyncProtocolException if versionResponse is not a supported
+     *         protocol version
+     */
+    static void checkPeerVersion(String versionResponse)
+    {
+        Matcher m = PROTOCOL_VERSION_REGEX.matcher(versionResponse);
+        if (!m.matches()) {
+            throw new RsyncProtocolException(
+                    String.format("Unsupported protocol version: %s",
+                                  versionResponse));
+        }
+        ProtocolVersion peerVersion =
+            new ProtocolVersion(Integer.parseInt(m.group(1)),
+                                Integer.parseInt(m.group(2)));
         if (peerVersion.compareTo(VERSION) < 0) {
             throw new RsyncProtocolException(String.format(
                 "Error: peer version is less than our version (%s < %s)",
@@ -98,6 +145,19 @@ public abstract class SessionConfig
         }
     }
 
+    /**
+     * @throws IllegalArgumentException if charset is not supported
+     */
+    static void checkCharset(Charset charset)
+    {
+        if (!Util.isValidCharset(charset)) {
+            throw new IllegalArgumentException(String.format(
+                "character set %s is not supported - cannot encode SLASH (/)," +
+                " DOT (.), NEWLINE (\n), CARRIAGE RETURN (\r) and NULL (\0) " +
+                "to their ASCII counterparts and vice versa", charset));
+        }
+    }
+
     /**
      * @throws TextConversionException if failing to decode input characters
      *         using current character set
@@ -152,28 +212,127 @@ public abstract class SessionConfig
         _peerConnection.put(textEncoded, 0, textEncoded.length);
     }
 
-    /**
-     * @throws TextConversionException
-     */
-    private void sendVersion(ProtocolVersion version) throws ChannelException
+    protected void sendVarint(int value) throws ChannelException
     {
-        writeString(String.format("@RSYNCD: %d.%d\n",
-                                  version.major(), version.minor()));
+        _peerConnection.put(IntegerCoder.encodeLong(value, 1));
+    }
 
+    protected int receiveVarint() throws ChannelException
+    {
+        try {
+            return (int) IntegerCoder.decodeLong(_peerConnection, 1);
+        } catch (Exception e) {
+            throw new ChannelException(e.getMessage());
+        }
     }
 
-    private ProtocolVersion receivePeerVersion() throws ChannelException
+    /**
+     * Negotiate the strong checksum (unless checksumChoice is non null) and
+     * compression (if isCompress) with peer the same way as rsync's
+     * negotiate_the_strings. Both sides send their space separated lists of
+     * supported names, in order of preference, before reading the list of
+     * peer. The first name of the client's list also found in the server's
+     * list is chosen.
+     *
+     * @throws RsyncProtocolException if there is no name in common
+     */
+    protected void negotiateStrings(StrongChecksum checksumChoice,
+                                    boolean isCompress,
+                                    boolean isClient)
+        throws ChannelException
     {
-        String versionResponse = readLine();
-        Matcher m = PROTOCOL_VERSION_REGEX.matcher(versionResponse);
-        if (m.matches()) {
-            return new ProtocolVersion(Integer.parseInt(m.group(1)),
-                                       Integer.parseInt(m.group(2)));
+        List<String> checksumNames = new ArrayList<>();
+        for (StrongChecksum checksum : StrongChecksum.values()) {
+            checksumNames.add(checksum.protocolName());
+        }
+        List<String> compressionNames = Arrays.asList(COMPRESSION_ZLIB);
+
+        if (checksumChoice == null) {
+            sendNegotiationList(checksumNames);
+        }
+        if (isCompress) {
+            sendNegotiationList(compressionNames);
+        }
+
+        if (checksumChoice == null) {
+            String name = chooseNameOrNull(checksumNames,
+                                           receiveNegotiationList(),
+                                           isClient);
+            if (name == null) {
+                throw new RsyncProtocolException(
+                    "Failed to negotiate a common checksum");
+            }
+            _strongChecksum = StrongChecksum.fromProtocolNameOrNull(name);
         } else {
+            _strongChecksum = checksumChoice;
+        }
+        if (isCompress && chooseNameOrNull(compressionNames,
+                                           receiveNegotiationList(),
+                                           isClient) == null) {
             throw new RsyncProtocolException(
-                    String.format("Unsupported protocol version: %s",
-                                  versionResponse));
+                "Failed to negotiate a common compression");
+        }
+        if (_log.isLoggable(Level.FINE)) {
+            _log.fine("using " + _strongChecksum.protocolName() +
+                      " checksums");
+        }
+    }
+
+    private static String chooseNameOrNull(List<String> ours,
+                                           List<String> peers,
+                                           boolean isClient)
+    {
+        List<String> clientNames = isClient ? ours : peers;
+        List<String> serverNames = isClient ? peers : ours;
+        for (String name : clientNames) {
+            if (serverNames.contains(name)) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    private void sendNegotiationList(List<String> names)
+        throws ChannelException
+    {
+        StringBuilder sb = new StringBuilder();
+        for (String name : names) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(name);
+        }
+        if (_log.isLoggable(Level.FINER)) {
+            _log.finer("> (we support) " + sb);
+        }
+        byte[] bytes = sb.toString().getBytes(StandardCharsets.US_ASCII);
+        if (bytes.length > MAX_SHORT_VSTRING_LENGTH) {
+            _peerConnection.putByte((byte) (0x80 | bytes.length >>> 8));
+        }
+        _peerConnection.putByte((byte) bytes.length);
+        _peerConnection.put(bytes, 0, bytes.length);
+    }
+
+    private List<String> receiveNegotiationList() throws ChannelException
+    {
+        int length = 0xFF & _peerConnection.getByte();
+        if ((length & 0x80) != 0) {
+            length = (length & 0x7F) << 8 |
+                     (0xFF & _peerConnection.getByte());
+        }
+        byte[] bytes = new byte[length];
+        _peerConnection.get(bytes, 0, length);
+        String names = new String(bytes, StandardCharsets.US_ASCII);
+        if (_log.isLoggable(Level.FINER)) {
+            _log.finer("< (peer supports) " + names);
+        }
+        List<String> result = new ArrayList<>();
+        for (String name : names.split("[ \\t]+")) {
+            if (!name.isEmpty()) {
+                result.add(name);
+            }
         }
+        return result;
     }
 
     /**
@@ -182,12 +341,7 @@ public abstract class SessionConfig
     private void setCharset(Charset charset)
     {
         assert charset != null;
-        if (!Util.isValidCharset(charset)) {
-            throw new IllegalArgumentException(String.format(
-                "character set %s is not supported - cannot encode SLASH (/)," +
-                " DOT (.), NEWLINE (\n), CARRIAGE RETURN (\r) and NULL (\0) " +
-                "to their ASCII counterparts and vice versa", charset));
-        }
+        checkCharset(charset);
         _charset = charset;
         _characterEncoder = TextEncoder.newStrict(_charset);
         _characterDecoder = TextDecoder.newStrict(_charset);
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * The metrics of one server session. Nothing is counted here, values are
+ * read on demand from the session channel (bytes), the Statistics of the
+ * Sender or Receiver and the job queue of the Generator. Those are only
+ * written by their own threads, so reading them is lock-free and costs
+ * the hot paths nothing but volatile writes.
+ */
+final class SessionMetrics implements SessionMetricsMXBean
+{
+    /**
+     * Counters accumulated into ServerMetrics when published.
+     */
+    enum Counter { BYTES_READ, BYTES_WRITTEN, LITERAL_BYTES, MATCHED_BYTES,
+                   TRANSFERRED_FILES, FILE_LISTS, FILE_LIST_BUILD_TIME,
+                   TAG_TABLE_HITS, TAG_TABLE_MISSES, GENERAL_IO_ERRORS,
+                   VANISHED_IO_ERRORS, TRANSFER_IO_ERRORS, FAILED_SESSIONS }
+
+    private final long _id;
+    private final String _moduleName;
+    private final IdleTimeoutChannel _channel;
+    private final long _startTime = System.currentTimeMillis();
+    private final long _startNanos = System.nanoTime();
+    // values already added to ServerMetrics, only used by ServerMetrics.sample
+    private final long[] _published = new long[Counter.values().length];
+    private volatile Statistics _stats;
+    private volatile Generator _generator;
+    private volatile boolean _isOK;
+    private volatile boolean _isDone;
+
+    SessionMetrics(long id, String moduleName, IdleTimeoutChannel channel)
+    {
+        _id = id;
+        _moduleName = moduleName;
+        _channel = channel;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s(id=%d, module=%s, peer=%s)",
+                             getClass().getSimpleName(), _id, _moduleName,
+                             getPeerAddress());
+    }
+
+    void setStatistics(Statistics stats)
+    {
+        _stats = stats;
+    }
+
+    void setGenerator(Generator generator)
+    {
+        _generator = generator;
+    }
+
+    void setDone(boolean isOK)
+    {
+        _isOK = isOK;
+        _isDone = true;
+    }
+
+    boolean isDone()
+    {
+        return _isDone;
+    }
+
+    String moduleName()
+    {
+        return _moduleName;
+    }
+
+    long[] published()
+    {
+        return _published;
+    }
+
+    ObjectName objectName()
+    {
+        try {
+            return new ObjectName(String.format("%s:type=Session,id=%d",
+                                                ServerMetrics.DOMAIN, _id));
+        } catch (MalformedObjectNameException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    long value(Counter counter)
+    {
+        Statistics stats = _stats;
+        switch (counter) {
+        case BYTES_READ:
+            return _channel.numBytesRead();
+        case BYTES_WRITTEN:
+            return _channel.numBytesWritten();
+        case FAILED_SESSIONS:
+            return _isDone && !_isOK ? 1 : 0;
+        default:
+            return stats == null ? 0 : value(counter, stats);
+        }
+    }
+
+    private static long value(Counter counter, Statistics stats)
+    {
+        switch (counter) {
+        case LITERAL_BYTES:
+            return stats.totalLiteralSize();
+        case MATCHED_BYTES:
+            return stats.totalMatchedSize();
+        case TRANSFERRED_FILES:
+            return stats.numTransferredFiles();
+        case FILE_LISTS:
+            return stats.fileListBuildTime() > 0 ? 1 : 0;
+        case FILE_LIST_BUILD_TIME:
+            return stats.fileListBuildTime();
+        case TAG_TABLE_HITS:
+            return stats.numTagTableHits();
+        case TAG_TABLE_MISSES:
+            return stats.numTagTableMisses();
+        case GENERAL_IO_ERRORS:
+            return (stats.ioError() & IoError.GENERAL) != 0 ? 1 : 0;
+        case VANISHED_IO_ERRORS:
+            return (stats.ioError() & IoError.VANISHED) != 0 ? 1 : 0;
+        case TRANSFER_IO_ERRORS:
+            return (stats.ioError() & IoError.TRANSFER) != 0 ? 1 : 0;
+        default:
+            throw new AssertionError(counter);
+        }
+    }
+
+    @Override
+    public String getModule()
+    {
+        return _moduleName;
+    }
+
+    @Override
+    public String getPeerAddress()
+    {
+        return String.valueOf(_channel.peerAddress());
+    }
+
+    @Override
+    public Date getStartTime()
+    {
+        return new Date(_startTime);
+    }
+
+    @Override
+    public long getBytesRead()
+    {
+        return value(Counter.BYTES_READ);
+    }
+
+    @Override
+    public long getBytesWritten()
+    {
+        return value(Counter.BYTES_WRITTEN);
+    }
+
+    @Override
+    public double getBytesPerSecond()
+    {
+        long elapsed = System.nanoTime() - _startNanos;
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return (getBytesRead() + getBytesWritten()) *
+               (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    @Override
+    public long getIdleTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() -
+                                             _channel.lastActivity());
+    }
+
+    @Override
+    public long getTransferredFiles()
+    {
+        return value(Counter.TRANSFERRED_FILES);
+    }
+
+    @Override
+    public long getLiteralBytes()
+    {
+        return value(Counter.LITERAL_BYTES);
+    }
+
+    @Override
+    public long getMatchedBytes()
+    {
+        return value(Counter.MATCHED_BYTES);
+    }
+
+    @Override
+    public int getQueuedJobs()
+    {
+        Generator generator = _generator;
+        return generator == null || _isDone ? 0 : generator.numQueuedJobs();
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.util.Date;
+
+/**
+ * JMX view of one running server session, registered as
+ * com.github.perlundq.yajsync:type=Session,id=N while it runs.
+ */
+public interface SessionMetricsMXBean
+{
+    String getModule();
+
+    String getPeerAddress();
+
+    Date getStartTime();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    /**
+     * @return bytes read and written per second since the session started
+     */
+    double getBytesPerSecond();
+
+    /**
+     * @return milliseconds since anything was read or written
+     */
+    long getIdleTime();
+
+    long getTransferredFiles();
+
+    long getLiteralBytes();
+
+    long getMatchedBytes();
+
+    int getQueuedJobs();
+}
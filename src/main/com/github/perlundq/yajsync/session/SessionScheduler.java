@@ -0,0 +1,779 @@
+/*
+ * Accepts rsync daemon connections and schedules their sessions
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.github.perlundq.yajsync.channels.ChannelException;
+import com.github.perlundq.yajsync.channels.net.DuplexByteChannel;
+import com.github.perlundq.yajsync.channels.net.ServerChannel;
+import com.github.perlundq.yajsync.channels.net.StandardServerChannel;
+import com.github.perlundq.yajsync.channels.net.StandardSocketChannel;
+import com.github.perlundq.yajsync.util.VirtualThreads;
+
+/**
+ * Accepts the connections of a ServerChannel and runs an RsyncServerSession
+ * for each of them.
+ *
+ * Plain TCP connections (StandardServerChannel) are accepted and greeted
+ * (ServerGreeting) by one selector thread using non-blocking I/O. Only when
+ * a connection has been admitted and has sent its arguments, i.e. is ready
+ * to transfer files, it is handed over to a session thread. TLS connections
+ * cannot be selected and are greeted by blocking I/O in their session
+ * thread instead, but are subject to the same limits and timeouts.
+ *
+ * At most maxSessions sessions run at the same time, and at most
+ * maxModuleSessions per module (0 means no limit). A connection arriving
+ * when a limit is reached is queued until a session finishes, for at most
+ * queueTimeout. It is rejected the same way as rsync's max connections, with
+ * "@ERROR: max connections (N) reached -- try again later", if maxQueued
+ * connections are already queued or if its queue timeout expires.
+ *
+ * The greeting of a connection must be done within greetingTimeout, and a
+ * session is closed when it has been idle (nothing read or written) for
+ * longer than idleTimeout (0 means no timeout), like rsync's --timeout.
+ *
+ * Sessions and their tasks optionally run in virtual threads (Java 21 or
+ * later). The session limits are therefore guarded by a ReentrantLock, a
+ * session thread waiting in the queue would otherwise pin its carrier.
+ */
+public class SessionScheduler
+{
+    public static final int DEFAULT_MAX_QUEUED = 64;
+    public static final int DEFAULT_GREETING_TIMEOUT = 60; // seconds
+    public static final int DEFAULT_QUEUE_TIMEOUT = 60; // seconds
+
+    private static final Logger _log =
+        Logger.getLogger(SessionScheduler.class.getName());
+    // milliseconds, the accuracy of timeouts
+    private static final long TICK = 1000;
+
+    private final RsyncServerSession _session;
+    private final ModuleProvider _moduleProvider;
+    private final ExecutorService _sessionExecutor;
+    // the number of tasks is limited by the number of sessions
+    private final ExecutorService _taskExecutor;
+    private final ScheduledExecutorService _watchdog =
+        Executors.newSingleThreadScheduledExecutor();
+    private final Set<IdleTimeoutChannel> _sessionChannels =
+        Collections.newSetFromMap(
+            new ConcurrentHashMap<IdleTimeoutChannel, Boolean>());
+    // only used by the selector thread
+    private final List<PendingSession> _queue = new LinkedList<>();
+    // guards _numModuleSessions, _numSessions and _numWaiting
+    private final Lock _lock = new ReentrantLock();
+    private final Condition _isReleased = _lock.newCondition();
+    private final Map<String, Integer> _numModuleSessions = new HashMap<>();
+    private int _numSessions;
+    private int _numWaiting;
+    private volatile Selector _selector;
+    private int _maxSessions;
+    private int _maxModuleSessions;
+    private int _maxQueued = DEFAULT_MAX_QUEUED;
+    private long _greetingTimeout =
+        TimeUnit.SECONDS.toMillis(DEFAULT_GREETING_TIMEOUT);
+    private long _queueTimeout =
+        TimeUnit.SECONDS.toMillis(DEFAULT_QUEUE_TIMEOUT);
+    private long _idleTimeout;
+    private ServerMetrics _metrics;
+
+    /**
+     * Connections are greeted by and handed over from the selector thread.
+     * All methods must be called from the selector thread.
+     */
+    private class PendingSession
+    {
+        private final SocketChannel _sock;
+        private final DuplexByteChannel _channel;
+        private final ServerGreeting _greeting;
+        private SelectionKey _key;
+        private long _deadline = System.nanoTime() +
+                                 TimeUnit.MILLISECONDS.toNanos(
+                                     _greetingTimeout);
+        private boolean _isQueued;
+        private boolean _isAdmitted;
+        private boolean _isStarted;
+
+        PendingSession(SocketChannel sock, DuplexByteChannel channel,
+                       ServerGreeting greeting)
+        {
+            _sock = sock;
+            _channel = channel;
+            _greeting = greeting;
+        }
+
+        void register(Selector selector) throws IOException
+        {
+            _key = _sock.register(selector, SelectionKey.OP_WRITE, this);
+        }
+
+        boolean isReady()
+        {
+            return _isAdmitted && _greeting.isDone() &&
+                   !_greeting.output().hasRemaining();
+        }
+
+        void handle()
+        {
+            try {
+                if (_key.isWritable()) {
+                    _sock.write(_greeting.output());
+                }
+                if (_key.isReadable()) {
+                    if (_sock.read(_greeting.readBuffer()) == -1) {
+                        _greeting.setEndOfInput();
+                    }
+                    _greeting.process();
+                }
+                update();
+            } catch (IOException | ChannelException |
+                     RsyncProtocolException e) {
+                fail(e);
+            }
+        }
+
+        void admit()
+        {
+            _isQueued = false;
+            _isAdmitted = true;
+            _deadline = System.nanoTime() +
+                        TimeUnit.MILLISECONDS.toNanos(_greetingTimeout);
+            _greeting.admit();
+            try {
+                _greeting.process();
+                update();
+            } catch (ChannelException | RsyncProtocolException e) {
+                fail(e);
+            }
+        }
+
+        void expire(long now)
+        {
+            if (now - _deadline < 0) {
+                return;
+            }
+            if (_isQueued) {
+                _queue.remove(this);
+                _isQueued = false;
+                reject(_greeting, moduleName());
+                _deadline = now +
+                            TimeUnit.MILLISECONDS.toNanos(_greetingTimeout);
+                update();
+            } else {
+                if (_log.isLoggable(Level.WARNING)) {
+                    _log.warning(String.format(
+                        "closing %s: greeting timed out", _channel));
+                }
+                close();
+            }
+        }
+
+        void start()
+        {
+            try {
+                _sock.configureBlocking(true);
+                _sessionExecutor.submit(
+                    new Session(_channel, _greeting, moduleName(), true));
+                _isStarted = true;
+            } catch (IOException | RejectedExecutionException e) {
+                fail(e);
+            }
+        }
+
+        void close()
+        {
+            if (_isQueued) {
+                _queue.remove(this);
+                _isQueued = false;
+            }
+            if (_isAdmitted && !_isStarted) {
+                _isAdmitted = false;
+                release(moduleName());
+            }
+            if (_key != null) {
+                _key.cancel();
+            }
+            try {
+                _sock.close();
+            } catch (IOException e) {
+                if (_log.isLoggable(Level.SEVERE)) {
+                    _log.severe(String.format(
+                        "Got error during close of socket %s: %s",
+                        _channel, e.getMessage()));
+                }
+            }
+        }
+
+        private String moduleName()
+        {
+            return _greeting.module().name();
+        }
+
+        private void update()
+        {
+            if (_greeting.isWaitingForAdmission() && !_isQueued) {
+                if (tryAdmit(moduleName())) {
+                    admit();
+                    return;
+                } else if (_queue.size() < _maxQueued) {
+                    if (_log.isLoggable(Level.FINE)) {
+                        _log.fine(String.format(
+                            "%s waiting for admission to %s (%d waiting)",
+                            _channel, moduleName(), _queue.size() + 1));
+                    }
+                    _isQueued = true;
+                    _queue.add(this);
+                    _deadline = System.nanoTime() +
+                                TimeUnit.MILLISECONDS.toNanos(_queueTimeout);
+                } else {
+                    reject(_greeting, moduleName());
+                }
+            }
+
+            int ops = 0;
+            if (_greeting.output().hasRemaining()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            if (_greeting.isWaitingForInput()) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (ops == 0 && _greeting.isDone()) {
+                if (_isAdmitted) {
+                    _key.cancel(); // handed over to a session thread
+                } else {
+                    close(); // module listing or error sent
+                }
+            } else {
+                _key.interestOps(ops);
+            }
+        }
+
+        private void fail(Exception e)
+        {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format("closing %s: %s", _channel, e));
+            }
+            close();
+        }
+    }
+
+    private class Session implements Callable<Boolean>
+    {
+        private final DuplexByteChannel _sock;
+        private final boolean _isInterruptible;
+        private ServerGreeting _greeting;
+        private String _admittedModuleName;
+
+        Session(DuplexByteChannel sock, ServerGreeting greeting,
+                String admittedModuleName, boolean isInterruptible)
+        {
+            _sock = sock;
+            _greeting = greeting;
+            _admittedModuleName = admittedModuleName;
+            _isInterruptible = isInterruptible;
+        }
+
+        @Override
+        public Boolean call()
+        {
+            boolean isOK = false;
+            IdleTimeoutChannel channel = IdleTimeoutChannel.wrap(_sock);
+            _sessionChannels.add(channel);
+            SessionMetrics metrics = null;
+            try {
+                if (_greeting == null) {
+                    greet(channel);
+                }
+                if (_metrics != null && _admittedModuleName != null) {
+                    metrics = _metrics.newSessionMetrics(_admittedModuleName,
+                                                         channel);
+                }
+                channel.setTimeout(_idleTimeout, TimeUnit.MILLISECONDS);
+                isOK = _session.transfer(_taskExecutor,
+                                         _greeting,
+                                         channel,    // in
+                                         channel,    // out
+                                         _isInterruptible,
+                                         metrics);
+            } catch (ModuleException e) {
+                if (_log.isLoggable(Level.SEVERE)) {
+                    _log.severe(String.format(
+                        "Error: failed to initialise modules for %s using " +
+                        "ModuleProvider %s: %s%n",
+                        _sock, _moduleProvider, e));
+                }
+            } catch (ChannelException e) {
+                if (_log.isLoggable(Level.SEVERE)) {
+                    _log.severe("Error: communication closed with peer: " +
+                                e.getMessage());
+                }
+            } catch (Throwable t) {
+                if (_log.isLoggable(Level.SEVERE)) {
+                    _log.log(Level.SEVERE, "", t);
+                }
+            } finally {
+                _sessionChannels.remove(channel);
+                try {
+                    _sock.close();
+                } catch (IOException e) {
+                    if (_log.isLoggable(Level.SEVERE)) {
+                        _log.severe(String.format(
+                            "Got error during close of socket %s: %s",
+                            _sock, e.getMessage()));
+                    }
+                }
+                if (metrics != null) {
+                    _metrics.sessionDone(metrics, isOK);
+                }
+                if (_admittedModuleName != null) {
+                    release(_admittedModuleName);
+                }
+            }
+
+            if (_log.isLoggable(Level.FINE)) {
+                _log.fine("Thread exit status: " + (isOK ? "OK" : "ERROR"));
+            }
+            return isOK;
+        }
+
+        // the blocking equivalent of PendingSession
+        private void greet(IdleTimeoutChannel channel)
+            throws ModuleException, ChannelException, InterruptedException
+        {
+            channel.setTimeout(_greetingTimeout, TimeUnit.MILLISECONDS);
+            _greeting = new ServerGreeting(_session.charset(),
+                                           newModules(_sock));
+            _greeting.exchange(channel, channel);
+            if (_greeting.isWaitingForAdmission()) {
+                String moduleName = _greeting.module().name();
+                channel.setTimeout(0, TimeUnit.MILLISECONDS);
+                if (admit(moduleName)) {
+                    _admittedModuleName = moduleName;
+                    _greeting.admit();
+                } else {
+                    reject(_greeting, moduleName);
+                }
+                channel.setTimeout(_greetingTimeout, TimeUnit.MILLISECONDS);
+                _greeting.exchange(channel, channel);
+            }
+        }
+    }
+
+    public SessionScheduler(RsyncServerSession session,
+                            ModuleProvider moduleProvider)
+    {
+        this(session, moduleProvider, false);
+    }
+
+    /**
+     * @param isVirtualThreads run sessions and their tasks in virtual
+     *        threads if supported by the JVM (Java 21 or later)
+     */
+    public SessionScheduler(RsyncServerSession session,
+                            ModuleProvider moduleProvider,
+                            boolean isVirtualThreads)
+    {
+        _session = session;
+        _moduleProvider = moduleProvider;
+        _sessionExecutor = VirtualThreads.newCachedThreadPool(
+            isVirtualThreads, "yajsync-session-");
+        _taskExecutor = VirtualThreads.newCachedThreadPool(
+            isVirtualThreads, "yajsync-task-");
+    }
+
+    /**
+     * @param maxSessions the maximum number of concurrent sessions, 0 means
+     *        no limit
+     */
+    public void setMaxSessions(int maxSessions)
+    {
+        _maxSessions = maxSessions;
+    }
+
+    /**
+     * @param maxModuleSessions the maximum number of concurrent sessions of
+     *        one module, 0 means no limit
+     */
+    public void setMaxModuleSessions(int maxModuleSessions)
+    {
+        _maxModuleSessions = maxModuleSessions;
+    }
+
+    /**
+     * @param maxQueued the maximum number of connections waiting for a
+     *        session to finish, 0 means reject at once
+     */
+    public void setMaxQueued(int maxQueued)
+    {
+        _maxQueued = maxQueued;
+    }
+
+    public void setGreetingTimeout(int seconds)
+    {
+        _greetingTimeout = TimeUnit.SECONDS.toMillis(seconds);
+    }
+
+    public void setQueueTimeout(int seconds)
+    {
+        _queueTimeout = TimeUnit.SECONDS.toMillis(seconds);
+    }
+
+    /**
+     * @param seconds the maximum time a session may be idle, 0 means no
+     *        timeout
+     */
+    public void setIdleTimeout(int seconds)
+    {
+        _idleTimeout = TimeUnit.SECONDS.toMillis(seconds);
+    }
+
+    /**
+     * @param metrics the metrics to update, or null for none. Must be set
+     *        before serve is called
+     */
+    public void setMetrics(ServerMetrics metrics)
+    {
+        _metrics = metrics;
+    }
+
+    /**
+     * Accepts connections and runs their sessions until listenSock is
+     * closed, the current thread is interrupted or accept fails. Sessions
+     * still running are left running, see shutdown and awaitTermination.
+     */
+    public void serve(ServerChannel listenSock)
+        throws IOException, InterruptedException
+    {
+        _watchdog.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                closeIdleChannels();
+                if (_metrics != null) {
+                    _metrics.sample();
+                }
+            }
+        }, TICK, TICK, TimeUnit.MILLISECONDS);
+
+        if (listenSock instanceof StandardServerChannel) {
+            serveNonBlocking(
+                ((StandardServerChannel) listenSock).socketChannel());
+        } else {
+            while (true) {
+                DuplexByteChannel sock = listenSock.accept();                   // throws IOException
+                _sessionExecutor.submit(new Session(sock, null, null, false));
+            }
+        }
+    }
+
+    public void shutdown()
+    {
+        _sessionExecutor.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+        throws InterruptedException
+    {
+        if (_sessionExecutor.awaitTermination(timeout, unit)) {
+            _taskExecutor.shutdown();
+            _watchdog.shutdown();
+            return true;
+        }
+        return false;
+    }
+
+    private void serveNonBlocking(ServerSocketChannel listenSock)
+        throws IOException, InterruptedException
+    {
+        listenSock.configureBlocking(false);
+        List<PendingSession> ready = new LinkedList<>();
+        try (Selector selector = Selector.open()) {
+            _selector = selector;
+            listenSock.register(selector, SelectionKey.OP_ACCEPT);
+            try {
+                while (listenSock.isOpen()) {
+                    if (ready.isEmpty()) {
+                        selector.select(TICK);
+                    } else {
+                        // the keys of ready sessions were cancelled, which
+                        // is required before making them blocking
+                        selector.selectNow();
+                        for (PendingSession pending : ready) {
+                            pending.start();
+                        }
+                        ready.clear();
+                    }
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+
+                    admitQueued(ready);
+                    Iterator<SelectionKey> it =
+                        selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        } else if (key.isAcceptable()) {
+                            accept(listenSock, selector);
+                        } else {
+                            PendingSession pending =
+                                (PendingSession) key.attachment();
+                            pending.handle();
+                            if (pending.isReady()) {
+                                ready.add(pending);
+                            }
+                        }
+                    }
+                    expire(selector, ready);
+                }
+            } finally {
+                _selector = null;
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof PendingSession) {
+                        ((PendingSession) key.attachment()).close();
+                    }
+                }
+                for (PendingSession pending : ready) {
+                    pending.close();
+                }
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel listenSock, Selector selector)
+        throws IOException
+    {
+        SocketChannel sock;
+        while ((sock = listenSock.accept()) != null) {                         // throws IOException
+            StandardSocketChannel channel = new StandardSocketChannel(sock);
+            try {
+                sock.configureBlocking(false);
+                ServerGreeting greeting =
+                    new ServerGreeting(_session.charset(),
+                                       newModules(channel));
+                new PendingSession(sock, channel, greeting).register(selector);
+            } catch (ModuleException | IOException e) {
+                if (_log.isLoggable(Level.SEVERE)) {
+                    _log.severe(String.format(
+                        "Error: failed to initialise connection %s: %s",
+                        channel, e));
+                }
+                try {
+                    sock.close();
+                } catch (IOException ee) {
+                    e.addSuppressed(ee);
+                }
+            }
+        }
+    }
+
+    private void admitQueued(List<PendingSession> ready)
+    {
+        Iterator<PendingSession> it = _queue.iterator();
+        while (it.hasNext()) {
+            PendingSession pending = it.next();
+            if (tryAdmit(pending.moduleName())) {
+                it.remove();
+                pending.admit();
+                if (pending.isReady()) {
+                    ready.add(pending);
+                }
+            }
+        }
+    }
+
+    private void expire(Selector selector, List<PendingSession> ready)
+    {
+        long now = System.nanoTime();
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid() && key.attachment() instanceof PendingSession) {
+                PendingSession pending = (PendingSession) key.attachment();
+                if (!ready.contains(pending)) {
+                    pending.expire(now);
+                }
+            }
+        }
+    }
+
+    private void closeIdleChannels()
+    {
+        long now = System.nanoTime();
+        for (IdleTimeoutChannel channel : _sessionChannels) {
+            if (channel.isTimedOut(now)) {
+                if (_log.isLoggable(Level.WARNING)) {
+                    _log.warning(String.format("closing %s: timed out",
+                                               channel));
+                }
+                _sessionChannels.remove(channel);
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    if (_log.isLoggable(Level.SEVERE)) {
+                        _log.severe(String.format(
+                            "Got error during close of socket %s: %s",
+                            channel, e.getMessage()));
+                    }
+                }
+            }
+        }
+    }
+
+    private Modules newModules(DuplexByteChannel sock) throws ModuleException
+    {
+        if (sock.isPeerAuthenticated()) {
+            if (_log.isLoggable(Level.FINE)) {
+                _log.fine(String.format("%s connected from %s",
+                                        sock.peerPrincipal(),
+                                        sock.peerAddress()));
+            }
+            return _moduleProvider.newAuthenticated(sock.peerAddress(),
+                                                    sock.peerPrincipal());
+        }
+        if (_log.isLoggable(Level.FINE)) {
+            _log.fine("got anonymous connection from " + sock.peerAddress());
+        }
+        return _moduleProvider.newAnonymous(sock.peerAddress());
+    }
+
+    // must hold _lock
+    private int numModuleSessions(String moduleName)
+    {
+        Integer numSessions = _numModuleSessions.get(moduleName);
+        return numSessions == null ? 0 : numSessions;
+    }
+
+    // must hold _lock
+    private boolean isModuleLimitReached(String moduleName)
+    {
+        return _maxModuleSessions > 0 &&
+               numModuleSessions(moduleName) >= _maxModuleSessions;
+    }
+
+    private boolean tryAdmit(String moduleName)
+    {
+        _lock.lock();
+        try {
+            if (_maxSessions > 0 && _numSessions >= _maxSessions ||
+                isModuleLimitReached(moduleName)) {
+                return false;
+            }
+            _numSessions++;
+            _numModuleSessions.put(moduleName,
+                                   numModuleSessions(moduleName) + 1);
+            return true;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    // the blocking equivalent of queueing a PendingSession
+    private boolean admit(String moduleName) throws InterruptedException
+    {
+        _lock.lock();
+        try {
+            if (tryAdmit(moduleName)) {
+                return true;
+            } else if (_numWaiting >= _maxQueued) {
+                return false;
+            }
+            long remaining = TimeUnit.MILLISECONDS.toNanos(_queueTimeout);
+            _numWaiting++;
+            try {
+                while (!tryAdmit(moduleName)) {
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    remaining = _isReleased.awaitNanos(remaining);
+                }
+                return true;
+            } finally {
+                _numWaiting--;
+            }
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    private void release(String moduleName)
+    {
+        _lock.lock();
+        try {
+            _numSessions--;
+            int numSessions = numModuleSessions(moduleName) - 1;
+            if (numSessions > 0) {
+                _numModuleSessions.put(moduleName, numSessions);
+            } else {
+                _numModuleSessions.remove(moduleName);
+            }
+            _isReleased.signalAll();
+        } finally {
+            _lock.unlock();
+        }
+        Selector selector = _selector;
+        if (selector != null) {
+            selector.wakeup(); // admit queued connections
+        }
+    }
+
+    private void reject(ServerGreeting greeting, String moduleName)
+    {
+        greeting.reject(rejectionMessage(moduleName));
+        if (_metrics != null) {
+            _metrics.connectionRejected();
+        }
+    }
+
+    private String rejectionMessage(String moduleName)
+    {
+        int limit;
+        _lock.lock();
+        try {
+            limit = isModuleLimitReached(moduleName) ? _maxModuleSessions
+                                                     : _maxSessions;
+        } finally {
+            _lock.unlock();
+        }
+        return String.format("max connections (%d) reached -- try again " +
+                             "later", limit);
+    }
+}
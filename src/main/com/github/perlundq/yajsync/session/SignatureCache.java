@@ -0,0 +1,467 @@
+/*
+ * Persistent cache of basis file block signatures
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import com.github.perlundq.yajsync.util.Environment;
+import com.github.perlundq.yajsync.util.MD5;
+import com.github.perlundq.yajsync.util.ResumableMD5;
+
+/**
+ * An on-disk cache of the seed independent block signatures (rolling
+ * checksums and intermediate MD5 states) of basis files, making it possible
+ * for the generator to send the block checksums of an unchanged basis file
+ * without reading it.
+ *
+ * Each entry is keyed by the absolute path, size, modification time, change
+ * time and file key (device and inode) of the file. An entry is only used if
+ * all of these are identical to the current ones, and it is only stored if
+ * they did not change while the file was read and the file was not modified
+ * recently enough for a subsequent modification to go unnoticed due to
+ * timestamp granularity.
+ */
+public final class SignatureCache
+{
+    /**
+     * The identity of a file's contents as far as the file system can tell.
+     */
+    public static final class Key
+    {
+        private final long _size;
+        private final long _lastModifiedNanos;
+        private final long _changeTimeNanos;
+        private final String _fileKey;
+
+        private Key(long size, long lastModifiedNanos, long changeTimeNanos,
+                    String fileKey)
+        {
+            _size = size;
+            _lastModifiedNanos = lastModifiedNanos;
+            _changeTimeNanos = changeTimeNanos;
+            _fileKey = fileKey;
+        }
+
+        public long size()
+        {
+            return _size;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (obj != null && getClass() == obj.getClass()) {
+                Key other = (Key) obj;
+                return _size == other._size &&
+                       _lastModifiedNanos == other._lastModifiedNanos &&
+                       _changeTimeNanos == other._changeTimeNanos &&
+                       _fileKey.equals(other._fileKey);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(_size, _lastModifiedNanos, _changeTimeNanos,
+                                _fileKey);
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s (size=%d, mtime=%d, ctime=%d, key=%s)",
+                                 getClass().getSimpleName(), _size,
+                                 _lastModifiedNanos, _changeTimeNanos,
+                                 _fileKey);
+        }
+
+        // true if the file might be modified again without changing its
+        // time stamps
+        private boolean isRacy(long nowNanos, long racyWindowNanos)
+        {
+            long newest = Math.max(_lastModifiedNanos, _changeTimeNanos);
+            return nowNanos - newest < racyWindowNanos;
+        }
+    }
+
+    /**
+     * The block signatures of a file split into chunks of blockLength bytes.
+     * The state of a chunk is the intermediate MD5 state after its largest
+     * prefix being a multiple of 64 bytes, the remaining bytes of the last
+     * chunk (if any) are stored as the tail.
+     */
+    public static final class Signature
+    {
+        private final int _blockLength;
+        private final int _lastChunkLength;
+        private final int[] _rollings;
+        private final byte[] _states;
+        private final byte[] _tail;
+
+        private Signature(int blockLength, int lastChunkLength,
+                          int[] rollings, byte[] states, byte[] tail)
+        {
+            _blockLength = blockLength;
+            _lastChunkLength = lastChunkLength;
+            _rollings = rollings;
+            _states = states;
+            _tail = tail;
+        }
+
+        /**
+         * @throws IllegalArgumentException if blockLength is not a multiple
+         *         of ResumableMD5.BLOCK_LENGTH
+         */
+        public Signature(Checksum.Header header)
+        {
+            if (header.blockLength() % ResumableMD5.BLOCK_LENGTH != 0) {
+                throw new IllegalArgumentException(
+                    "block length must be a multiple of " +
+                    ResumableMD5.BLOCK_LENGTH + ": " + header.blockLength());
+            }
+            int chunkCount = header.chunkCount();
+            _blockLength = header.blockLength();
+            _lastChunkLength = header.remainder() > 0 ? header.remainder()
+                                                      : header.blockLength();
+            _rollings = new int[chunkCount];
+            _states = new byte[chunkCount * ResumableMD5.STATE_LENGTH];
+            _tail = new byte[_lastChunkLength % ResumableMD5.BLOCK_LENGTH];
+        }
+
+        public int chunkCount()
+        {
+            return _rollings.length;
+        }
+
+        public int blockLength()
+        {
+            return _blockLength;
+        }
+
+        public int rolling(int chunkIndex)
+        {
+            return _rollings[chunkIndex];
+        }
+
+        /**
+         * Set the rolling checksum and the intermediate state of md, which
+         * must have processed the chunk data except for the last
+         * chunkLength % ResumableMD5.BLOCK_LENGTH bytes.
+         */
+        public void set(int chunkIndex, int rolling, ResumableMD5 md)
+        {
+            _rollings[chunkIndex] = rolling;
+            md.getState(_states, chunkIndex * ResumableMD5.STATE_LENGTH);
+        }
+
+        /**
+         * Set the tail of the last chunk, i.e. its last tailLength() bytes,
+         * from buf starting at absolute offset.
+         */
+        public void setTail(ByteBuffer buf, int offset)
+        {
+            for (int i = 0; i < _tail.length; i++) {
+                _tail[i] = buf.get(offset + i);
+            }
+        }
+
+        public int tailLength()
+        {
+            return _tail.length;
+        }
+
+        /**
+         * Store the MD5 digest of the data of chunkIndex followed by seed
+         * into dst.
+         */
+        public void digest(int chunkIndex, byte[] seed, byte[] dst)
+        {
+            boolean isLastChunk = chunkIndex == _rollings.length - 1;
+            int chunkLength = isLastChunk ? _lastChunkLength : _blockLength;
+            int tailLength = isLastChunk ? _tail.length : 0;
+            ResumableMD5.finish(_states,
+                                chunkIndex * ResumableMD5.STATE_LENGTH,
+                                chunkLength - tailLength,
+                                _tail, 0, tailLength, seed, dst);
+        }
+
+        private boolean matches(Checksum.Header header)
+        {
+            int lastChunkLength = header.remainder() > 0
+                                  ? header.remainder()
+                                  : header.blockLength();
+            return _blockLength == header.blockLength() &&
+                   _rollings.length == header.chunkCount() &&
+                   _lastChunkLength == lastChunkLength &&
+                   _tail.length ==
+                       lastChunkLength % ResumableMD5.BLOCK_LENGTH;
+        }
+    }
+
+    private static final Logger _log =
+        Logger.getLogger(SignatureCache.class.getName());
+    private static final int MAGIC = 0x79736331;  // "ysc1"
+    private static final String ENTRY_SUFFIX = ".sig";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // generous upper bound of file system time stamp granularity
+    private static final long RACY_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private final Path _dir;
+    private final long _racyWindowNanos;
+
+    /**
+     * @throws IOException if dir does not exist and cannot be created
+     */
+    public SignatureCache(Path dir) throws IOException
+    {
+        this(dir, RACY_WINDOW_NANOS);
+    }
+
+    SignatureCache(Path dir, long racyWindowNanos) throws IOException
+    {
+        _dir = Files.createDirectories(dir);
+        _racyWindowNanos = racyWindowNanos;
+    }
+
+    public Path dir()
+    {
+        return _dir;
+    }
+
+    /**
+     * @return the current key of path or null if path cannot be stat:ed or is
+     *         not a regular file.
+     */
+    public Key keyOfOrNull(Path path)
+    {
+        try {
+            BasicFileAttributes attrs =
+                Files.readAttributes(path, BasicFileAttributes.class,
+                                     LinkOption.NOFOLLOW_LINKS);
+            if (!attrs.isRegularFile()) {
+                return null;
+            }
+            long changeTimeNanos = 0;
+            if (Environment.IS_UNIX_FS) {
+                FileTime ctime = (FileTime) Files.getAttribute(
+                    path, "unix:ctime", LinkOption.NOFOLLOW_LINKS);
+                changeTimeNanos = ctime.to(TimeUnit.NANOSECONDS);
+            }
+            Object fileKey = attrs.fileKey();
+            return new Key(attrs.size(),
+                           attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                           changeTimeNanos,
+                           fileKey == null ? "" : fileKey.toString());
+        } catch (IOException | UnsupportedOperationException e) {
+            if (_log.isLoggable(Level.FINE)) {
+                _log.fine(String.format("(SignatureCache) failed to stat %s: " +
+                                        "%s", path, e));
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @return the cached signature of path if it was stored with key and has
+     *         the block layout of header, otherwise null.
+     */
+    public Signature getOrNull(Path path, Key key, Checksum.Header header)
+    {
+        Path absPath = path.toAbsolutePath().normalize();
+        Path entry = entryPathOf(absPath);
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(
+                 new CheckedInputStream(
+                     new BufferedInputStream(Files.newInputStream(entry)),
+                     crc))) {
+            if (in.readInt() != MAGIC ||
+                !in.readUTF().equals(absPath.toString())) {
+                return null;
+            }
+            Key cachedKey = new Key(in.readLong(), in.readLong(),
+                                    in.readLong(), in.readUTF());
+            if (!cachedKey.equals(key)) {
+                return null;
+            }
+            int blockLength = in.readInt();
+            int lastChunkLength = in.readInt();
+            int chunkCount = in.readInt();
+            if (blockLength != header.blockLength() ||
+                chunkCount != header.chunkCount()) {
+                return null;
+            }
+            int[] rollings = new int[chunkCount];
+            byte[] states = new byte[chunkCount * ResumableMD5.STATE_LENGTH];
+            for (int i = 0; i < chunkCount; i++) {
+                rollings[i] = in.readInt();
+                in.readFully(states, i * ResumableMD5.STATE_LENGTH,
+                             ResumableMD5.STATE_LENGTH);
+            }
+            byte[] tail = new byte[in.readUnsignedByte()];
+            in.readFully(tail);
+            long expectedCrc = crc.getValue();
+            if (in.readLong() != expectedCrc) {
+                if (_log.isLoggable(Level.WARNING)) {
+                    _log.warning("(SignatureCache) ignoring corrupt entry " +
+                                 entry);
+                }
+                return null;
+            }
+            Signature result = new Signature(blockLength, lastChunkLength,
+                                             rollings, states, tail);
+            return result.matches(header) ? result : null;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (EOFException | IllegalArgumentException e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format(
+                    "(SignatureCache) ignoring invalid entry %s: %s",
+                    entry, e));
+            }
+            return null;
+        } catch (IOException e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format(
+                    "(SignatureCache) failed to read entry %s: %s",
+                    entry, e.getMessage()));
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Store signature of path unless its contents might have changed since
+     * key was retrieved (before reading the file), or might change again
+     * without any change of its key. Failures are logged and ignored.
+     */
+    public void put(Path path, Key key, Signature signature)
+    {
+        long nowNanos = TimeUnit.MILLISECONDS.toNanos(
+                                            System.currentTimeMillis());
+        if (key.isRacy(nowNanos, _racyWindowNanos) ||
+            !key.equals(keyOfOrNull(path))) {
+            if (_log.isLoggable(Level.FINE)) {
+                _log.fine("(SignatureCache) not caching recently modified " +
+                          "file " + path);
+            }
+            return;
+        }
+
+        Path absPath = path.toAbsolutePath().normalize();
+        Path entry = entryPathOf(absPath);
+        Path tempEntry = null;
+        try {
+            tempEntry = Files.createTempFile(_dir, entry.getFileName() + ".",
+                                             TEMP_SUFFIX);
+            CRC32 crc = new CRC32();
+            try (OutputStream os = Files.newOutputStream(tempEntry)) {
+                DataOutputStream out = new DataOutputStream(
+                    new CheckedOutputStream(new BufferedOutputStream(os),
+                                            crc));
+                out.writeInt(MAGIC);
+                out.writeUTF(absPath.toString());
+                out.writeLong(key._size);
+                out.writeLong(key._lastModifiedNanos);
+                out.writeLong(key._changeTimeNanos);
+                out.writeUTF(key._fileKey);
+                out.writeInt(signature._blockLength);
+                out.writeInt(signature._lastChunkLength);
+                out.writeInt(signature._rollings.length);
+                for (int i = 0; i < signature._rollings.length; i++) {
+                    out.writeInt(signature._rollings[i]);
+                    out.write(signature._states,
+                              i * ResumableMD5.STATE_LENGTH,
+                              ResumableMD5.STATE_LENGTH);
+                }
+                out.writeByte(signature._tail.length);
+                out.write(signature._tail);
+                out.flush();
+                out.writeLong(crc.getValue());
+                out.flush();
+            }
+            move(tempEntry, entry);
+            tempEntry = null;
+        } catch (IOException e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format(
+                    "(SignatureCache) failed to store entry for %s: %s",
+                    path, e.getMessage()));
+            }
+        } finally {
+            if (tempEntry != null) {
+                try {
+                    Files.deleteIfExists(tempEntry);
+                } catch (IOException e) {
+                    // ignored, a stale temporary file is harmless
+                }
+            }
+        }
+    }
+
+    private static void move(Path source, Path target) throws IOException
+    {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private Path entryPathOf(Path absPath)
+    {
+        MessageDigest md = MD5.newInstance();
+        byte[] digest = md.digest(absPath.toString().
+                                  getBytes(StandardCharsets.UTF_8));
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest) {
+            sb.append(String.format("%02x", b));
+        }
+        return _dir.resolve(sb.append(ENTRY_SUFFIX).toString());
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s(%s)", getClass().getSimpleName(), _dir);
+    }
+}
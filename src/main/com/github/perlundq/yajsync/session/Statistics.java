@@ -19,22 +19,37 @@
  */
 package com.github.perlundq.yajsync.session;
 
+/**
+ * Fields are only updated by the thread owning the statistics (Sender or
+ * Receiver), but are volatile so that ServerMetrics may read them while a
+ * transfer is running.
+ */
 public class Statistics
 {
     // derived by both sender and receiver separately
-    private int _numFiles;                  // int stats.num_files;                (#) total amount of files for all segments
-    private int _numTransferredFiles;       // int stats.num_transferred_files;    (#) total amount of files transferred
-    private long _totalFileListSize;        // int64 stats.flist_size;             (bytes) total size of file list 
-    private long _totalTransferredSize;     // int64 stats.total_transferred_size; (bytes) total size of all files transferred (regardless of literal/matched data)
-    private long _totalLiteralSize;         // int64 stats.literal_data;           (bytes) total amount of transferred literal file data 
-    private long _totalMatchedSize;         // int64 stats.matched_data;           (bytes) total amount of matched file data 
+    private volatile int _numFiles;                  // int stats.num_files;                (#) total amount of files for all segments
+    private volatile int _numTransferredFiles;       // int stats.num_transferred_files;    (#) total amount of files transferred
+    private volatile long _totalFileListSize;        // int64 stats.flist_size;             (bytes) total size of file list 
+    private volatile long _totalTransferredSize;     // int64 stats.total_transferred_size; (bytes) total size of all files transferred (regardless of literal/matched data)
+    private volatile long _totalLiteralSize;         // int64 stats.literal_data;           (bytes) total amount of transferred literal file data 
+    private volatile long _totalMatchedSize;         // int64 stats.matched_data;           (bytes) total amount of matched file data 
     
     // derived by sender, received by receiver
-    private long _totalFileSize;            // int64 stats.total_size;             (bytes) total size of all files for all segments (regardless whether transferred or not)
-    private long _totalRead;                // int64 stats.total_read;             (bytes) total amount of data received from peer
-    private long _totalWritten;             // int64 stats.total_written;          (bytes) total amount of data sent to peer
-    private long _fileListBuildTime;        // int64 stats.flist_buildtime;        (ms) generation and transfer of initial segment excluding sending end of segment
-    private long _fileListTransferTime;     // int64 stats.flist_xfertime;         (ms) time for sending of end of initial segment + additional meta data   
+    private volatile long _totalFileSize;            // int64 stats.total_size;             (bytes) total size of all files for all segments (regardless whether transferred or not)
+    private volatile long _totalRead;                // int64 stats.total_read;             (bytes) total amount of data received from peer
+    private volatile long _totalWritten;             // int64 stats.total_written;          (bytes) total amount of data sent to peer
+    private volatile long _fileListBuildTime;        // int64 stats.flist_buildtime;        (ms) generation and transfer of initial segment excluding sending end of segment
+    private volatile long _fileListTransferTime;     // int64 stats.flist_xfertime;         (ms) time for sending of end of initial segment + additional meta data   
+
+    // derived by sender only, not sent to peer
+    private volatile long _numTagTableHits;          // (#) rolling checksums passing the tag table pre-filter
+    private volatile long _numTagTableMisses;        // (#) rolling checksums rejected by the tag table pre-filter
+
+    // derived by receiver only, not sent to peer
+    private volatile int _numDirectCopiedFiles;      // (#) files copied directly by a local receiver, see DirectCopyTable
+
+    // not sent to peer
+    private volatile int _ioError;                   // IoError bits of the transfer, set when done
     
     public void setNumFiles(int numFiles)
     {
@@ -145,4 +160,44 @@ public class Statistics
     {
         return _totalTransferredSize;
     }
+
+    public void setNumTagTableHits(long numTagTableHits)
+    {
+        _numTagTableHits = numTagTableHits;
+    }
+
+    public long numTagTableHits()
+    {
+        return _numTagTableHits;
+    }
+
+    public void setNumTagTableMisses(long numTagTableMisses)
+    {
+        _numTagTableMisses = numTagTableMisses;
+    }
+
+    public long numTagTableMisses()
+    {
+        return _numTagTableMisses;
+    }
+
+    public void setNumDirectCopiedFiles(int numDirectCopiedFiles)
+    {
+        _numDirectCopiedFiles = numDirectCopiedFiles;
+    }
+
+    public int numDirectCopiedFiles()
+    {
+        return _numDirectCopiedFiles;
+    }
+
+    void setIoError(int ioError)
+    {
+        _ioError = ioError;
+    }
+
+    int ioError()
+    {
+        return _ioError;
+    }
 }
@@ -0,0 +1,241 @@
+/*
+ * Sending of compressed file data tokens (rsync -z)
+ *
+ * Copyright (C) 1996-2011 by Andrew Tridgell, Wayne Davison, and others
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+import com.github.perlundq.yajsync.channels.ChannelException;
+import com.github.perlundq.yajsync.channels.Writable;
+
+/**
+ * Encodes the literal data and matching block tokens of a file the same way
+ * as native rsync does when compression is enabled (rsync's token.c).
+ *
+ * Literal data is sent as a raw deflate stream split into DEFLATED_DATA
+ * records. The stream is synced before each token (or end of file), and the
+ * trailing 0, 0, 0xff, 0xff bytes of the sync flush are left out since the
+ * peer reinserts them. Tokens of consecutive matching blocks are run length
+ * encoded relative to the previous token. The data of each matching block is
+ * added to the compression history (but not sent), allowing later literal
+ * data to refer to it.
+ */
+final class TokenDeflater
+{
+    static final int END_FLAG = 0x00;
+    static final int TOKEN_LONG = 0x20;
+    static final int TOKENRUN_LONG = 0x21;
+    static final int DEFLATED_DATA = 0x40;
+    static final int TOKEN_REL = 0x80;
+    static final int TOKENRUN_REL = 0xc0;
+    static final int MAX_DATA_COUNT = 16383;
+    // largest amount of matching block data added to the history at once
+    static final int MAX_SEE_LENGTH = 0xffff;
+    static final int SYNC_TRAILER_LENGTH = 4;
+
+    private static final int MAX_RUN_LENGTH = 0xffff;
+    private static final int INPUT_CHUNK_SIZE = 32 * 1024;
+
+    private final Writable _out;
+    private final Deflater _deflater;
+    private final byte[] _inBuf = new byte[INPUT_CHUNK_SIZE];
+    private final byte[] _outBuf = new byte[MAX_DATA_COUNT +
+                                            SYNC_TRAILER_LENGTH];
+    private byte[] _dictBuf = new byte[0];
+    private int _lastRunEnd;
+    private int _runStart;
+    private int _lastToken;
+    private boolean _isRunPending;
+    private boolean _isFlushPending;
+
+    /**
+     * @throws IllegalArgumentException if level is not a valid deflate
+     *         compression level
+     */
+    TokenDeflater(Writable out, int level)
+    {
+        _out = out;
+        _deflater = new Deflater(level, true);
+        reset();
+    }
+
+    private void reset()
+    {
+        _deflater.reset();
+        _lastRunEnd = 0;
+        _lastToken = -1;
+        _isRunPending = false;
+        _isFlushPending = false;
+    }
+
+    /**
+     * Send length bytes of literal data of buf starting at absolute offset.
+     */
+    void sendData(ByteBuffer buf, int offset, int length)
+        throws ChannelException
+    {
+        if (length == 0) {
+            return;
+        }
+        if (_isRunPending) {
+            sendRun();
+        }
+        int end = offset + length;
+        for (int i = offset; i < end; i += INPUT_CHUNK_SIZE) {
+            int len = Math.min(INPUT_CHUNK_SIZE, end - i);
+            setInput(buf, i, len);
+            while (!_deflater.needsInput()) {
+                int n = _deflater.deflate(_outBuf, 0, MAX_DATA_COUNT,
+                                          Deflater.NO_FLUSH);
+                sendDeflated(_outBuf, 0, n);
+            }
+        }
+        _isFlushPending = true;
+    }
+
+    /**
+     * Send a token for matching block chunkIndex, whose data are the length
+     * bytes of buf starting at absolute offset.
+     */
+    void sendToken(int chunkIndex, ByteBuffer buf, int offset, int length)
+        throws ChannelException
+    {
+        assert chunkIndex >= 0;
+        flushIfPending();
+        if (_isRunPending && (chunkIndex != _lastToken + 1 ||
+                              chunkIndex - _runStart > MAX_RUN_LENGTH)) {
+            sendRun();
+        }
+        if (!_isRunPending) {
+            _runStart = chunkIndex;
+            _isRunPending = true;
+        }
+        _lastToken = chunkIndex;
+        see(buf, offset, length);
+    }
+
+    /**
+     * Send end of file and prepare for the next file.
+     */
+    void sendEnd() throws ChannelException
+    {
+        flushIfPending();
+        if (_isRunPending) {
+            sendRun();
+        }
+        _out.putByte((byte) END_FLAG);
+        reset();
+    }
+
+    void end()
+    {
+        _deflater.end();
+    }
+
+    private void setInput(ByteBuffer buf, int offset, int length)
+    {
+        if (buf.hasArray()) {
+            _deflater.setInput(buf.array(), buf.arrayOffset() + offset,
+                               length);
+        } else {
+            ByteBuffer src = buf.duplicate();
+            src.limit(offset + length).position(offset);
+            src.get(_inBuf, 0, length);
+            _deflater.setInput(_inBuf, 0, length);
+        }
+    }
+
+    private void sendDeflated(byte[] src, int offset, int length)
+        throws ChannelException
+    {
+        assert length <= MAX_DATA_COUNT;
+        if (length > 0) {
+            _out.putByte((byte) (DEFLATED_DATA + (length >>> 8)));
+            _out.putByte((byte) length);
+            _out.put(src, offset, length);
+        }
+    }
+
+    // sync the deflate stream and send all of its pending output except the
+    // trailing 0, 0, 0xff, 0xff
+    private void flushIfPending() throws ChannelException
+    {
+        if (!_isFlushPending) {
+            return;
+        }
+        int numBuffered = 0;
+        while (true) {
+            int n = _deflater.deflate(_outBuf, numBuffered,
+                                      _outBuf.length - numBuffered,
+                                      Deflater.SYNC_FLUSH);
+            numBuffered += n;
+            if (numBuffered < _outBuf.length) {
+                break;
+            }
+            // keep the last bytes in case they are the trailing ones
+            sendDeflated(_outBuf, 0, MAX_DATA_COUNT);
+            System.arraycopy(_outBuf, MAX_DATA_COUNT, _outBuf, 0,
+                             SYNC_TRAILER_LENGTH);
+            numBuffered = SYNC_TRAILER_LENGTH;
+        }
+        assert numBuffered >= SYNC_TRAILER_LENGTH;
+        sendDeflated(_outBuf, 0, numBuffered - SYNC_TRAILER_LENGTH);
+        _isFlushPending = false;
+    }
+
+    private void sendRun() throws ChannelException
+    {
+        int r = _runStart - _lastRunEnd;
+        int n = _lastToken - _runStart;
+        if (r >= 0 && r <= 63) {
+            _out.putByte((byte) ((n == 0 ? TOKEN_REL : TOKENRUN_REL) + r));
+        } else {
+            _out.putByte((byte) (n == 0 ? TOKEN_LONG : TOKENRUN_LONG));
+            _out.putInt(_runStart);
+        }
+        if (n != 0) {
+            _out.putByte((byte) n);
+            _out.putByte((byte) (n >>> 8));
+        }
+        _lastRunEnd = _lastToken;
+        _isRunPending = false;
+    }
+
+    // add the data of a matching block to the compression history. Using a
+    // preset dictionary is equivalent to rsync's Z_INSERT_ONLY since it is
+    // appended to the current history, which is possible as the stream has
+    // just been synced. NOTE: as protocol 30 rsync, blocks larger than
+    // MAX_SEE_LENGTH repeatedly add their first bytes
+    private void see(ByteBuffer buf, int offset, int length)
+    {
+        int len = Math.min(length, MAX_SEE_LENGTH);
+        if (_dictBuf.length < len) {
+            _dictBuf = new byte[len];
+        }
+        ByteBuffer src = buf.duplicate();
+        src.limit(offset + len).position(offset);
+        src.get(_dictBuf, 0, len);
+        for (int remaining = length; remaining > 0;
+             remaining -= MAX_SEE_LENGTH) {
+            _deflater.setDictionary(_dictBuf, 0,
+                                    Math.min(remaining, MAX_SEE_LENGTH));
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Receiving of compressed file data tokens (rsync -z)
+ *
+ * Copyright (C) 1996-2011 by Andrew Tridgell, Wayne Davison, and others
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.github.perlundq.yajsync.channels.ChannelException;
+import com.github.perlundq.yajsync.channels.Readable;
+
+/**
+ * Decodes the compressed tokens sent by TokenDeflater (or native rsync with
+ * compression enabled). nextToken returns tokens in the same format as the
+ * uncompressed protocol, i.e. the number of bytes of literal data available
+ * from data() if positive, -(chunkIndex + 1) for a matching block or 0 at
+ * end of file. The data of each matching block must be added to the history
+ * using see() before retrieving the next token.
+ */
+final class TokenInflater
+{
+    private static final int OUTPUT_BUF_SIZE = 32 * 1024;
+    private static final byte[] SYNC_TRAILER = { 0, 0, (byte) 0xff,
+                                                 (byte) 0xff };
+    private static final int STORED_HEADER_LENGTH = 5;
+
+    private final Readable _in;
+    private final Inflater _inflater = new Inflater(true);
+    private final byte[] _inBuf =
+        new byte[Math.max(TokenDeflater.MAX_DATA_COUNT,
+                          STORED_HEADER_LENGTH +
+                          TokenDeflater.MAX_SEE_LENGTH)];
+    private final byte[] _outBuf = new byte[OUTPUT_BUF_SIZE];
+    private int _numOutput;
+    private int _token;
+    private int _runRemaining;
+    private boolean _isInflating;
+    private boolean _isSyncPending;
+
+    TokenInflater(Readable in)
+    {
+        _in = in;
+        reset();
+    }
+
+    private void reset()
+    {
+        _inflater.reset();
+        _token = 0;
+        _runRemaining = 0;
+        _isInflating = false;
+        _isSyncPending = false;
+    }
+
+    /**
+     * @throws RsyncProtocolException if peer sent invalid data
+     */
+    int nextToken() throws ChannelException
+    {
+        while (true) {
+            if (_runRemaining > 0) {
+                _runRemaining--;
+                _token++;
+                return -1 - _token;
+            }
+            if (_isInflating) {
+                _numOutput = inflate();
+                if (_numOutput > 0) {
+                    return _numOutput;
+                }
+                _isInflating = false;
+            }
+
+            int flag = 0xFF & _in.getByte();
+            if ((flag & 0xC0) == TokenDeflater.DEFLATED_DATA) {
+                int n = ((flag & 0x3f) << 8) + (0xFF & _in.getByte());
+                _in.get(_inBuf, 0, n);
+                _inflater.setInput(_inBuf, 0, n);
+                _isInflating = true;
+                _isSyncPending = true;
+                continue;
+            }
+            if (_isSyncPending) {
+                // the stream was synced before this flag, reinsert the
+                // trailing bytes left out by peer
+                _inflater.setInput(SYNC_TRAILER);
+                if (inflate() != 0) {
+                    throw new RsyncProtocolException(
+                        "decompressor lost sync");
+                }
+                _isSyncPending = false;
+            }
+            if (flag == TokenDeflater.END_FLAG) {
+                reset();
+                return 0;
+            }
+            return -1 - readToken(flag);
+        }
+    }
+
+    /**
+     * Like nextToken but literal data is skipped without being decompressed,
+     * positive return values are the number of compressed bytes skipped.
+     * Used when discarding all the data of a file.
+     */
+    int skipToken() throws ChannelException
+    {
+        if (_runRemaining > 0) {
+            _runRemaining--;
+            _token++;
+            return -1 - _token;
+        }
+        int flag = 0xFF & _in.getByte();
+        if ((flag & 0xC0) == TokenDeflater.DEFLATED_DATA) {
+            int n = ((flag & 0x3f) << 8) + (0xFF & _in.getByte());
+            _in.skip(n);
+            return n;
+        }
+        if (flag == TokenDeflater.END_FLAG) {
+            reset();
+            return 0;
+        }
+        return -1 - readToken(flag);
+    }
+
+    /**
+     * @return the literal data of the last positive token
+     */
+    ByteBuffer data()
+    {
+        return ByteBuffer.wrap(_outBuf, 0, _numOutput);
+    }
+
+    /**
+     * Add the data of a matching block to the history by inflating it as
+     * a stored block, the same way as rsync's see_deflate_token. NOTE: as
+     * protocol 30 rsync, blocks larger than MAX_SEE_LENGTH repeatedly add
+     * their first bytes.
+     *
+     * @throws RsyncProtocolException if peer sent invalid data
+     */
+    void see(ByteBuffer block)
+    {
+        int length = block.remaining();
+        int len = Math.min(length, TokenDeflater.MAX_SEE_LENGTH);
+        block.duplicate().get(_inBuf, STORED_HEADER_LENGTH, len);
+        for (int remaining = length; remaining > 0;
+             remaining -= TokenDeflater.MAX_SEE_LENGTH) {
+            int blockLength = Math.min(remaining,
+                                       TokenDeflater.MAX_SEE_LENGTH);
+            _inBuf[0] = 0;
+            _inBuf[1] = (byte) blockLength;
+            _inBuf[2] = (byte) (blockLength >>> 8);
+            _inBuf[3] = (byte) ~_inBuf[1];
+            _inBuf[4] = (byte) ~_inBuf[2];
+            _inflater.setInput(_inBuf, 0, STORED_HEADER_LENGTH + blockLength);
+            while (inflate() > 0) {
+                // discard
+            }
+        }
+    }
+
+    void end()
+    {
+        _inflater.end();
+    }
+
+    private int readToken(int flag) throws ChannelException
+    {
+        if ((flag & TokenDeflater.TOKEN_REL) != 0) {
+            _token += flag & 0x3f;
+            flag >>>= 6;
+        } else if (flag == TokenDeflater.TOKEN_LONG ||
+                   flag == TokenDeflater.TOKENRUN_LONG) {
+            _token = _in.getInt();
+        } else {
+            throw new RsyncProtocolException(String.format(
+                "Received invalid compressed token flag 0x%x", flag));
+        }
+        if ((flag & 1) != 0) {
+            _runRemaining = (0xFF & _in.getByte()) |
+                            (0xFF & _in.getByte()) << 8;
+        }
+        if (_token < 0) {
+            throw new RsyncProtocolException(
+                "Received invalid block index " + _token);
+        }
+        return _token;
+    }
+
+    private int inflate()
+    {
+        try {
+            int n = _inflater.inflate(_outBuf);
+            if (n == 0 && (_inflater.finished() ||
+                           _inflater.needsDictionary())) {
+                throw new RsyncProtocolException(
+                    "unexpected end of compressed stream");
+            }
+            return n;
+        } catch (DataFormatException e) {
+            throw new RsyncProtocolException(e);
+        }
+    }
+}
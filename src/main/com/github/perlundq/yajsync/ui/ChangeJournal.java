@@ -0,0 +1,191 @@
+/*
+ * Journal of changed directories kept up to date by a WatchService
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.ui;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A journal of the directories below a number of root directories whose
+ * entries were created, deleted or modified since the journal was last
+ * drained, kept up to date by a WatchService in a background thread.
+ *
+ * All directories are registered with the watch service, new ones as soon
+ * as they are created, in which case they and all their subdirectories are
+ * journaled as well. If the watch service loses events (overflow) or a
+ * directory cannot be registered the journal is incomplete, which is
+ * reported when draining it so that the caller may rescan everything.
+ */
+final class ChangeJournal implements AutoCloseable
+{
+    private static final Logger _log =
+        Logger.getLogger(ChangeJournal.class.getName());
+
+    private final WatchService _watchService;
+    // only accessed by the watcher thread once started
+    private final Map<WatchKey, Path> _directories = new HashMap<>();
+    private final Thread _watcher;
+    // guarded by this
+    private SortedSet<Path> _dirty = new TreeSet<>();
+    private boolean _isIncomplete;
+
+    /**
+     * @throws IOException if failing to register any directory below roots
+     */
+    ChangeJournal(Iterable<Path> roots) throws IOException
+    {
+        Path first = roots.iterator().next();
+        _watchService = first.getFileSystem().newWatchService();
+        try {
+            for (Path root : roots) {
+                registerAll(root, false);
+            }
+        } catch (IOException e) {
+            _watchService.close();
+            throw e;
+        }
+        _watcher = new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+                processEvents();
+            }
+        }, "yajsync-watcher");
+        _watcher.setDaemon(true);
+        _watcher.start();
+    }
+
+    /**
+     * @return the directories changed since the previous call in path
+     *         order, or null if the journal is incomplete and everything
+     *         must be rescanned
+     */
+    synchronized SortedSet<Path> drainOrNull()
+    {
+        SortedSet<Path> result = _isIncomplete ? null : _dirty;
+        _dirty = new TreeSet<>();
+        _isIncomplete = false;
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        _watchService.close();
+        _watcher.interrupt();
+    }
+
+    private synchronized void markDirty(Path directory)
+    {
+        _dirty.add(directory);
+    }
+
+    private synchronized void markIncomplete()
+    {
+        _isIncomplete = true;
+    }
+
+    private void registerAll(Path start, final boolean isDirty)
+        throws IOException
+    {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir,
+                                                     BasicFileAttributes attrs)
+                throws IOException
+            {
+                WatchKey key =
+                    dir.register(_watchService,
+                                 StandardWatchEventKinds.ENTRY_CREATE,
+                                 StandardWatchEventKinds.ENTRY_DELETE,
+                                 StandardWatchEventKinds.ENTRY_MODIFY);
+                _directories.put(key, dir);
+                if (isDirty) {
+                    markDirty(dir);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void processEvents()
+    {
+        while (true) {
+            WatchKey key;
+            try {
+                key = _watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = _directories.get(key);
+            if (dir == null) {
+                key.cancel();
+                continue;
+            }
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    if (_log.isLoggable(Level.WARNING)) {
+                        _log.warning("(ChangeJournal) lost events of " + dir);
+                    }
+                    markIncomplete();
+                    continue;
+                }
+                markDirty(dir);
+                Path child = dir.resolve((Path) event.context());
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE &&
+                    Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                    try {
+                        registerAll(child, true);
+                    } catch (NoSuchFileException e) {
+                        // deleted again, which dir will be journaled for
+                    } catch (IOException e) {
+                        if (_log.isLoggable(Level.WARNING)) {
+                            _log.warning(String.format(
+                                "(ChangeJournal) failed to watch %s: %s",
+                                child, e));
+                        }
+                        markIncomplete();
+                    } catch (ClosedWatchServiceException e) {
+                        return;
+                    }
+                }
+            }
+            if (!key.reset()) {  // e.g. deleted
+                _directories.remove(key);
+            }
+        }
+    }
+}
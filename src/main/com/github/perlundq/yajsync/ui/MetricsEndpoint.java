@@ -0,0 +1,186 @@
+/*
+ * An HTTP endpoint exposing server metrics in the Prometheus text format
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.ui;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import com.github.perlundq.yajsync.session.ServerMetrics;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves ServerMetrics on /metrics using the JDK HTTP server, with a single
+ * thread since a scrape only reads a few counters.
+ */
+final class MetricsEndpoint implements AutoCloseable
+{
+    private static final String CONTENT_TYPE =
+        "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer _server;
+
+    private MetricsEndpoint(HttpServer server)
+    {
+        _server = server;
+    }
+
+    /**
+     * @throws IOException if failing to bind address and port
+     */
+    public static MetricsEndpoint start(InetAddress address, int port,
+                                        final ServerMetrics metrics)
+        throws IOException
+    {
+        HttpServer server =
+            HttpServer.create(new InetSocketAddress(address, port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                try {
+                    byte[] body = toText(metrics).getBytes(
+                        StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type",
+                                                      CONTENT_TYPE);
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        os.write(body);
+                    }
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        return new MetricsEndpoint(server);
+    }
+
+    @Override
+    public void close()
+    {
+        _server.stop(0);
+    }
+
+    static String toText(ServerMetrics metrics)
+    {
+        StringBuilder sb = new StringBuilder();
+        header(sb, "yajsync_sessions_active", "gauge",
+               "Sessions currently transferring files, by module");
+        for (Map.Entry<String, Integer> e :
+                 metrics.getActiveModuleSessions().entrySet()) {
+            sample(sb, "yajsync_sessions_active",
+                   "module=\"" + escape(e.getKey()) + "\"", e.getValue());
+        }
+        counter(sb, "yajsync_sessions_total",
+                "Sessions started", metrics.getSessions());
+        counter(sb, "yajsync_sessions_failed_total",
+                "Sessions finished with an error",
+                metrics.getFailedSessions());
+        counter(sb, "yajsync_connections_rejected_total",
+                "Connections rejected because of session limits",
+                metrics.getRejectedConnections());
+        counter(sb, "yajsync_read_bytes_total",
+                "Bytes received from clients", metrics.getBytesRead());
+        counter(sb, "yajsync_written_bytes_total",
+                "Bytes sent to clients", metrics.getBytesWritten());
+        counter(sb, "yajsync_literal_bytes_total",
+                "File data transferred as literal data",
+                metrics.getLiteralBytes());
+        counter(sb, "yajsync_matched_bytes_total",
+                "File data matched in basis files",
+                metrics.getMatchedBytes());
+        counter(sb, "yajsync_transferred_files_total",
+                "Files transferred", metrics.getTransferredFiles());
+        gauge(sb, "yajsync_transferred_files_per_second",
+              "Files transferred during the last second",
+              metrics.getTransferredFilesPerSecond());
+        counter(sb, "yajsync_file_lists_total",
+                "Initial file lists built", metrics.getFileLists());
+        counter(sb, "yajsync_file_list_build_seconds_total",
+                "Time spent building initial file lists",
+                metrics.getFileListBuildTime() / 1000.0);
+
+        header(sb, "yajsync_checksum_lookups_total", "counter",
+               "Rolling checksums looked up in the tag table, by result");
+        sample(sb, "yajsync_checksum_lookups_total", "result=\"hit\"",
+               metrics.getTagTableHits());
+        sample(sb, "yajsync_checksum_lookups_total", "result=\"miss\"",
+               metrics.getTagTableMisses());
+
+        gauge(sb, "yajsync_generator_queued_jobs",
+              "Files queued for the generators of active sessions",
+              metrics.getQueuedJobs());
+
+        header(sb, "yajsync_io_errors_total", "counter",
+               "Sessions finished with I/O errors, by type");
+        sample(sb, "yajsync_io_errors_total", "type=\"general\"",
+               metrics.getGeneralIoErrors());
+        sample(sb, "yajsync_io_errors_total", "type=\"vanished\"",
+               metrics.getVanishedIoErrors());
+        sample(sb, "yajsync_io_errors_total", "type=\"transfer\"",
+               metrics.getTransferIoErrors());
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String help,
+                                Number value)
+    {
+        header(sb, name, "counter", help);
+        sample(sb, name, null, value);
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help,
+                              Number value)
+    {
+        header(sb, name, "gauge", help);
+        sample(sb, name, null, value);
+    }
+
+    private static void header(StringBuilder sb, String name, String type,
+                               String help)
+    {
+        sb.append("# HELP ").append(name).append(' ').append(help).
+           append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).
+           append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels,
+                               Number value)
+    {
+        sb.append(name);
+        if (labels != null) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static String escape(String labelValue)
+    {
+        return labelValue.replace("\\", "\\\\").
+                          replace("\"", "\\\"").
+                          replace("\n", "\\n");
+    }
+}
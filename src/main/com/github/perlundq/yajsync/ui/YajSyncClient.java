@@ -30,16 +30,22 @@ import java.nio.channels.UnresolvedAddressException;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
 import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
 import com.github.perlundq.yajsync.channels.ChannelException;
 import com.github.perlundq.yajsync.channels.net.ChannelFactory;
@@ -49,9 +55,11 @@ import com.github.perlundq.yajsync.channels.net.StandardChannelFactory;
 import com.github.perlundq.yajsync.filelist.RsyncFileAttributes;
 import com.github.perlundq.yajsync.io.CustomFileSystem;
 import com.github.perlundq.yajsync.session.ClientSessionConfig;
+import com.github.perlundq.yajsync.session.FileListSnapshot;
 import com.github.perlundq.yajsync.session.RsyncClientSession;
 import com.github.perlundq.yajsync.session.RsyncException;
 import com.github.perlundq.yajsync.session.RsyncLocal;
+import com.github.perlundq.yajsync.session.SignatureCache;
 import com.github.perlundq.yajsync.session.Statistics;
 import com.github.perlundq.yajsync.text.Text;
 import com.github.perlundq.yajsync.util.ArgumentParser;
@@ -61,7 +69,9 @@ import com.github.perlundq.yajsync.util.Environment;
 import com.github.perlundq.yajsync.util.FileOps;
 import com.github.perlundq.yajsync.util.Option;
 import com.github.perlundq.yajsync.util.PathOps;
+import com.github.perlundq.yajsync.util.StrongChecksum;
 import com.github.perlundq.yajsync.util.Util;
+import com.github.perlundq.yajsync.util.VirtualThreads;
 
 public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvider
 {
@@ -236,8 +246,21 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
 
     private static final Logger _log =
         Logger.getLogger(YajSyncClient.class.getName());
+    // transfer everything instead of more changed directories than this
+    private static final int MAX_WATCH_DIRECTORIES = 256;
 
     private boolean _isDeferredWrite;
+    private int _numChecksumThreads = 1;
+    private int _numStatThreads = 1;
+    private int _channelBufferSize = Consts.DEFAULT_CHANNEL_BUF_SIZE;
+    private int _maxChannelBufferSize = Consts.DEFAULT_CHANNEL_BUF_SIZE;
+    private int _bandwidthLimit;
+    private SignatureCache _signatureCache;
+    private String _fileListSnapshotDirName;
+    private boolean _isFileListSnapshotVerify;
+    private StrongChecksum _checksumChoice;
+    private boolean _isCompress;
+    private int _compressLevel = Deflater.DEFAULT_COMPRESSION;
     private boolean _isModuleListing;
     private boolean _isPreservePermissions;
     private boolean _isPreserveTimes;
@@ -245,12 +268,16 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
     private boolean _isPreserveGroup;
     private boolean _isNumericIds;
     private boolean _isIgnoreTimes;
+    private boolean _isWholeFile;
+    private boolean _isAutoWholeFile;
     private boolean _isRecursiveTransfer;
     private boolean _isDelete;
     private boolean _isDeleteExcluded;
     private boolean _isRemote;
     private boolean _isSender;
     private boolean _isShowStatistics;
+    private boolean _isVirtualThreads;
+    private int _watchInterval;
     private int _remotePort = Consts.DEFAULT_LISTEN_PORT;
     private int _verbosity = 0;
     private final List<String> _inputFilterRules = new LinkedList<>();
@@ -326,6 +353,19 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
         return console.readPassword("Password: ");
     }
 
+    private static int toChannelBufferSize(int size)
+        throws ArgumentParsingError
+    {
+        if (size < Consts.MIN_CHANNEL_BUF_SIZE ||
+            size > Consts.MAX_CHANNEL_BUF_SIZE) {
+            throw new ArgumentParsingError(String.format(
+                "invalid buffer size: %d (must be between %d and %d)",
+                size, Consts.MIN_CHANNEL_BUF_SIZE,
+                Consts.MAX_CHANNEL_BUF_SIZE));
+        }
+        return size;
+    }
+
     private Iterable<Option> options()
     {
         List<Option> options = new LinkedList<>();
@@ -457,6 +497,92 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
                         _isIgnoreTimes = true;
                     }}));
 
+        options.add(
+                Option.newWithoutArgument(Option.Policy.OPTIONAL,
+                                          "whole-file", "W",
+                                          "copy changed files whole, without " +
+                                          "the delta transfer algorithm",
+                new Option.ContinuingHandler() {
+                    @Override public void handleAndContinue(Option option) {
+                        _isWholeFile = true;
+                        _isAutoWholeFile = false;
+                    }}));
+
+        options.add(
+                Option.newWithoutArgument(Option.Policy.OPTIONAL,
+                                          "no-whole-file", "",
+                                          "always use the delta transfer " +
+                                          "algorithm (default)",
+                new Option.ContinuingHandler() {
+                    @Override public void handleAndContinue(Option option) {
+                        _isWholeFile = false;
+                        _isAutoWholeFile = false;
+                    }}));
+
+        options.add(
+                Option.newWithoutArgument(Option.Policy.OPTIONAL,
+                                          "auto-whole-file", "",
+                                          "like rsync copy changed files " +
+                                          "whole in local transfers and use " +
+                                          "the delta transfer algorithm in " +
+                                          "remote transfers",
+                new Option.ContinuingHandler() {
+                    @Override public void handleAndContinue(Option option) {
+                        _isWholeFile = false;
+                        _isAutoWholeFile = true;
+                    }}));
+
+        options.add(
+                Option.newWithoutArgument(Option.Policy.OPTIONAL,
+                                          "compress", "z",
+                                          "compress file data during the " +
+                                          "transfer (remote transfers only)",
+                new Option.ContinuingHandler() {
+                    @Override public void handleAndContinue(Option option) {
+                        _isCompress = true;
+                    }}));
+
+        options.add(
+                Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                        "compress-level", "",
+                                        "explicitly set compression level " +
+                                        "0-9, implies --compress if > 0 " +
+                                        "(default 6)",
+                new Option.ContinuingHandler() {
+                    @Override public void handleAndContinue(Option option)
+                        throws ArgumentParsingError {
+                        int level = (int) option.getValue();
+                        if (level < Deflater.NO_COMPRESSION ||
+                            level > Deflater.BEST_COMPRESSION) {
+                            throw new ArgumentParsingError(String.format(
+                                "invalid compression level: %d", level));
+                        }
+                        _compressLevel = level;
+                        _isCompress |= level > Deflater.NO_COMPRESSION;
+                    }}));
+
+        options.add(
+                Option.newStringOption(Option.Policy.OPTIONAL,
+                                       "checksum-choice", "",
+                                       "choose the strong checksum " +
+                                       "algorithm: auto, xxh64, md5 or md4 " +
+                                       "(default auto)",
+                new Option.ContinuingHandler() {
+                    @Override public void handleAndContinue(Option option)
+                        throws ArgumentParsingError {
+                        String name = (String) option.getValue();
+                        if (name.equals("auto")) {
+                            _checksumChoice = null;
+                            return;
+                        }
+                        _checksumChoice =
+                            StrongChecksum.fromProtocolNameOrNull(name);
+                        if (_checksumChoice == null) {
+                            throw new ArgumentParsingError(String.format(
+                                "unsupported checksum: %s", name));
+                        }
+                    }}));
+
         options.add(
                 Option.newWithoutArgument(Option.Policy.OPTIONAL,
                                           "delete", "",
@@ -529,6 +655,163 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
                     _isDeferredWrite = true;
                 }}));
 
+        options.add(
+            Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                    "checksum-threads", "",
+                                    String.format(
+                                        "(receiver only) number of threads " +
+                                        "generating block checksums of large" +
+                                        " basis files (default %d)",
+                                        _numChecksumThreads),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    int numThreads = (int) option.getValue();
+                    if (numThreads < 1) {
+                        throw new ArgumentParsingError(String.format(
+                            "invalid number of checksum threads: %d",
+                            numThreads));
+                    }
+                    _numChecksumThreads = numThreads;
+                }}));
+
+        options.add(
+            Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                    "stat-threads", "",
+                                    String.format(
+                                        "(receiver only) number of threads " +
+                                        "reading the attributes of local " +
+                                        "files ahead of the generator " +
+                                        "(default %d)",
+                                        _numStatThreads),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    int numThreads = (int) option.getValue();
+                    if (numThreads < 1) {
+                        throw new ArgumentParsingError(String.format(
+                            "invalid number of stat threads: %d",
+                            numThreads));
+                    }
+                    _numStatThreads = numThreads;
+                }}));
+
+        options.add(
+            Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                    "buffer-size", "",
+                                    String.format(
+                                        "size of channel buffers in bytes " +
+                                        "(default %d)", _channelBufferSize),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _channelBufferSize =
+                        toChannelBufferSize((int) option.getValue());
+                }}));
+
+        options.add(
+            Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                    "max-buffer-size", "",
+                                    "grow output channel buffers up to " +
+                                    "this size while writes keep filling " +
+                                    "them (default no growth)",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _maxChannelBufferSize =
+                        toChannelBufferSize((int) option.getValue());
+                }}));
+
+        options.add(
+            Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                    "bwlimit", "",
+                                    "limit the I/O bandwidth of remote " +
+                                    "transfers, KBytes per second " +
+                                    "(default 0, no limit)",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    int value = (int) option.getValue();
+                    if (value < 0 || value > Integer.MAX_VALUE / 1024) {
+                        throw new ArgumentParsingError(String.format(
+                            "invalid bandwidth limit: %d (must be between " +
+                            "0 and %d)", value, Integer.MAX_VALUE / 1024));
+                    }
+                    _bandwidthLimit = value * 1024;
+                }}));
+
+        options.add(
+            Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                    "watch", "",
+                                    "(sender only) keep running, " +
+                                    "transferring the directories changed " +
+                                    "since the previous transfer every " +
+                                    "specified number of seconds " +
+                                    "(default 0, transfer once)",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    int seconds = (int) option.getValue();
+                    if (seconds < 0) {
+                        throw new ArgumentParsingError(String.format(
+                            "invalid watch interval: %d", seconds));
+                    }
+                    _watchInterval = seconds;
+                }}));
+
+        options.add(
+            Option.newWithoutArgument(Option.Policy.OPTIONAL,
+                                      "virtual-threads", "",
+                                      "run the transfer in virtual threads, " +
+                                      "requires Java 21 or later (default " +
+                                      "false)",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) {
+                    _isVirtualThreads = true;
+                }}));
+
+        options.add(
+            Option.newStringOption(Option.Policy.OPTIONAL,
+                                   "signature-cache", "",
+                                   "(receiver only) cache block signatures " +
+                                   "of basis files in specified directory",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    String dirName = (String) option.getValue();
+                    try {
+                        _signatureCache = new SignatureCache(
+                            CustomFileSystem.getPath(dirName));
+                    } catch (IOException e) {
+                        throw new ArgumentParsingError(String.format(
+                            "failed to create signature cache directory " +
+                            "%s: %s", dirName, e.getMessage()));
+                    }
+                }}));
+
+        options.add(
+            Option.newStringOption(Option.Policy.OPTIONAL,
+                                   "file-list-snapshot", "",
+                                   "(sender only) read and store the " +
+                                   "listings of source directories in a " +
+                                   "snapshot in specified directory, " +
+                                   "listing only directories modified since",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) {
+                    _fileListSnapshotDirName = (String) option.getValue();
+                }}));
+
+        options.add(
+            Option.newWithoutArgument(Option.Policy.OPTIONAL,
+                                      "file-list-snapshot-verify", "",
+                                      "(sender only) list all source " +
+                                      "directories, logging any difference " +
+                                      "from the file list snapshot",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) {
+                    _isFileListSnapshotVerify = true;
+                }}));
+
         options.add(Option.newWithoutArgument(Option.Policy.OPTIONAL,
                                               "tls", "",
                                               String.format("tunnel all data " +
@@ -684,6 +967,18 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
             stats.fileListTransferTime() / 1000.0,
             stats.totalWritten(),
             stats.totalRead());
+        long numTagTableLookups = stats.numTagTableHits() +
+                                  stats.numTagTableMisses();
+        if (numTagTableLookups > 0) {
+            _out.format("Tag table hits: %d (%.1f%%), misses: %d%n",
+                        stats.numTagTableHits(),
+                        100.0 * stats.numTagTableHits() / numTagTableLookups,
+                        stats.numTagTableMisses());
+        }
+        if (stats.numDirectCopiedFiles() > 0) {
+            _out.format("Number of files copied directly: %d%n",
+                        stats.numDirectCopiedFiles());
+        }
     }
 
     @Override
@@ -724,6 +1019,18 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
             	throw new ArgumentParsingError(
             		"--delete does not work without --recursive (-r) or --dirs (-d).");
             }
+            if (_watchInterval > 0 && !_isRecursiveTransfer) {
+                throw new ArgumentParsingError(
+                    "--watch does not work without --recursive (-r)");
+            }
+            if (_watchInterval > 0 && _isRemote && !_isSender) {
+                throw new ArgumentParsingError(
+                    "--watch requires local source files");
+            }
+            if (_watchInterval > 0 && _fileListSnapshotDirName != null) {
+                throw new ArgumentParsingError(
+                    "--watch and --file-list-snapshot are mutually exclusive");
+            }
 
         } catch (ArgumentParsingError e) {
             _err.println(e.getMessage());
@@ -737,17 +1044,17 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
         Level logLevel = Util.getLogLevelForNumber(Util.WARNING_LOG_LEVEL_NUM +
                                                    _verbosity);
         Util.setRootLogLevel(logLevel);
-        ExecutorService executor = Executors.newCachedThreadPool();
+        ExecutorService executor =
+            VirtualThreads.newCachedThreadPool(_isVirtualThreads,
+                                               "yajsync-task-");
 
         try {
             boolean isOK;
-            if (_isRemote ) {
-                isOK = startRemoteSession(executor);
+            if (_watchInterval > 0) {
+                isOK = watch(executor);
             } else {
-                isOK = startLocalSession(executor);
-            }
-            if (_isShowStatistics) {
-                showStatistics(_statistics);
+                isOK = startSession(executor, _srcArgs, _dstArg,
+                                    _isRecursiveTransfer, _isTransferDirs);
             }
             if (_log.isLoggable(Level.INFO)) {
                 _log.info("exit status: " + (isOK ? "OK" : "ERROR"));
@@ -758,7 +1065,151 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
         }
     }
 
-    private boolean startRemoteSession(ExecutorService executor)
+    private FileListSnapshot fileListSnapshotOrNull()
+    {
+        if (_fileListSnapshotDirName == null) {
+            return null;
+        }
+        return new FileListSnapshot(
+            CustomFileSystem.getPath(_fileListSnapshotDirName),
+            _isFileListSnapshotVerify);
+    }
+
+    private boolean startSession(ExecutorService executor,
+                                 List<String> srcArgs, String dstArg,
+                                 boolean isRecursive, boolean isTransferDirs)
+    {
+        boolean isOK;
+        if (_isRemote) {
+            isOK = startRemoteSession(executor, srcArgs, dstArg, isRecursive,
+                                      isTransferDirs);
+        } else {
+            isOK = startLocalSession(executor, srcArgs, dstArg, isRecursive,
+                                     isTransferDirs);
+        }
+        if (_isShowStatistics) {
+            showStatistics(_statistics);
+        }
+        return isOK;
+    }
+
+    /**
+     * Transfers all source directories, then every _watchInterval seconds
+     * only the directories changed since the previous transfer according
+     * to a ChangeJournal. Each changed directory is transferred without
+     * recursion in a session of its own, since a file list cannot hold
+     * directories below different source arguments. Everything is
+     * transferred again if the journal is incomplete, if more than
+     * MAX_WATCH_DIRECTORIES directories changed, if there are filter rules
+     * (which are relative to the source arguments) or after a failed
+     * transfer.
+     *
+     * @return false if failing to watch the source directories, otherwise
+     *         runs until interrupted
+     */
+    private boolean watch(ExecutorService executor)
+    {
+        Map<Path, String> targetOfRoot = new LinkedHashMap<>();
+        for (String srcArg : _srcArgs) {
+            Path path = CustomFileSystem.getPath(srcArg);
+            Path root = path.toAbsolutePath().normalize();
+            if (!Files.isDirectory(root)) {
+                if (_log.isLoggable(Level.SEVERE)) {
+                    _log.severe("Error: --watch requires source " +
+                                "directories: " + srcArg);
+                }
+                return false;
+            }
+            // a trailing slash is dropped, see Sender.initialExpand
+            boolean isContentsOnly = path.getFileName() != null &&
+                                     path.getFileName().toString().
+                                         equals(Text.DOT);
+            targetOfRoot.put(root,
+                             isContentsOnly
+                                 ? _dstArg
+                                 : join(_dstArg,
+                                        root.getFileName().toString()));
+        }
+
+        // start journaling before the first transfer so that nothing
+        // changed during it is missed
+        try (ChangeJournal journal =
+                 new ChangeJournal(targetOfRoot.keySet())) {
+            boolean isFullTransfer = true;
+            while (true) {
+                SortedSet<Path> changed = journal.drainOrNull();
+                if (changed == null ||
+                    changed.size() > MAX_WATCH_DIRECTORIES ||
+                    !changed.isEmpty() &&
+                    _filterRuleConfiguration.isFilterAvailable()) {
+                    isFullTransfer = true;
+                }
+                if (isFullTransfer) {
+                    if (_log.isLoggable(Level.INFO)) {
+                        _log.info("(watch) transferring everything");
+                    }
+                    isFullTransfer = !startSession(executor, _srcArgs,
+                                                   _dstArg,
+                                                   _isRecursiveTransfer,
+                                                   _isTransferDirs);
+                } else if (!changed.isEmpty()) {
+                    if (_log.isLoggable(Level.INFO)) {
+                        _log.info(String.format(
+                            "(watch) transferring %d changed directories",
+                            changed.size()));
+                    }
+                    for (Path dir : changed) {
+                        String target = targetOf(targetOfRoot, dir);
+                        if (target != null && Files.isDirectory(dir) &&
+                            !startSession(executor,
+                                          Collections.singletonList(
+                                              dir.resolve(Text.DOT).
+                                                  toString()),
+                                          target, false, true)) {
+                            isFullTransfer = true;
+                        }
+                    }
+                }
+                Thread.sleep(TimeUnit.SECONDS.toMillis(_watchInterval));
+            }
+        } catch (IOException e) {
+            if (_log.isLoggable(Level.SEVERE)) {
+                _log.severe("Error: failed to watch source directories: " +
+                            e.getMessage());
+            }
+            return false;
+        } catch (InterruptedException e) {
+            return true;
+        }
+    }
+
+    // @return the destination argument of dir, or null if dir is not below
+    //         any of the source directories
+    private static String targetOf(Map<Path, String> targetOfRoot, Path dir)
+    {
+        for (Map.Entry<Path, String> e : targetOfRoot.entrySet()) {
+            if (dir.startsWith(e.getKey())) {
+                String relativePathName = Text.withSlashAsPathSepator(
+                    e.getKey().relativize(dir).toString());
+                return relativePathName.isEmpty()
+                    ? e.getValue()
+                    : join(e.getValue(), relativePathName);
+            }
+        }
+        return null;
+    }
+
+    private static String join(String pathName, String relativePathName)
+    {
+        return pathName.endsWith(Text.SLASH)
+            ? pathName + relativePathName
+            : pathName + Text.SLASH + relativePathName;
+    }
+
+    private boolean startRemoteSession(ExecutorService executor,
+                                       List<String> srcArgs, String dstArg,
+                                       boolean isRecursive,
+                                       boolean isTransferDirs)
     {
         if (_log.isLoggable(Level.FINE)) {
             _log.fine("starting remote session");
@@ -767,6 +1218,17 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
         RsyncClientSession session = new RsyncClientSession();
         session.setCharset(_charset);
         session.setIsDeferredWrite(_isDeferredWrite);
+        session.setNumChecksumThreads(_numChecksumThreads);
+        session.setNumStatThreads(_numStatThreads);
+        session.setSignatureCache(_signatureCache);
+        session.setFileListSnapshot(fileListSnapshotOrNull());
+        session.setChannelBufferSize(_channelBufferSize);
+        session.setMaxChannelBufferSize(_maxChannelBufferSize);
+        session.setBandwidthLimit(_bandwidthLimit);
+        session.setChecksumChoice(_checksumChoice);
+        session.setIsCompress(_isCompress &&
+                              _compressLevel != Deflater.NO_COMPRESSION);
+        session.setCompressLevel(_compressLevel);
         session.setIsModuleListing(_isModuleListing);
         session.setIsPreservePermissions(_isPreservePermissions);
         session.setIsPreserveTimes(_isPreserveTimes);
@@ -774,12 +1236,13 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
         session.setIsPreserveGroup(_isPreserveGroup);
         session.setIsNumericIds(_isNumericIds);
         session.setIsIgnoreTimes(_isIgnoreTimes);
-        session.setIsRecursiveTransfer(_isRecursiveTransfer);
+        session.setIsWholeFile(_isWholeFile);
+        session.setIsRecursiveTransfer(isRecursive);
         session.setIsDelete(_isDelete);
         session.setIsDeleteExcluded(_isDeleteExcluded);
         session.setFilterRuleConfiguration(_filterRuleConfiguration);
         session.setIsSender(_isSender);
-        session.setIsTransferDirs(_isTransferDirs);
+        session.setIsTransferDirs(isTransferDirs);
 
         ChannelFactory socketFactory = _isTLS ? new SSLChannelFactory()
                                               : new StandardChannelFactory();
@@ -793,8 +1256,8 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
             return session.transfer(executor,
                                         sock,           // in
                                         sock,           // out
-                                        _srcArgs,
-                                        _dstArg,
+                                        srcArgs,
+                                        dstArg,
                                         this,           // ClientSessionConfig.AuthProvider
                                         _moduleName,
                                         isInterruptible,
@@ -830,7 +1293,10 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
         return false;
     }
 
-    private boolean startLocalSession(ExecutorService executor)
+    private boolean startLocalSession(ExecutorService executor,
+                                      List<String> srcArgs, String dstArg,
+                                      boolean isRecursive,
+                                      boolean isTransferDirs)
     {
         if (_log.isLoggable(Level.FINE)) {
             _log.fine("starting local transfer (using rsync's delta " +
@@ -843,7 +1309,7 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
         localTransfer.setCharset(_charset);
         localTransfer.setVerbosity(_verbosity);
         localTransfer.setIsModuleListing(_isModuleListing);
-        localTransfer.setIsRecursiveTransfer(_isRecursiveTransfer);
+        localTransfer.setIsRecursiveTransfer(isRecursive);
         localTransfer.setIsPreservePermissions(_isPreservePermissions);
         localTransfer.setIsPreserveTimes(_isPreserveTimes);
         localTransfer.setIsPreserveUser(_isPreserveUser);
@@ -852,16 +1318,26 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
         localTransfer.setIsDelete(_isDelete);
         localTransfer.setIsDeleteExcluded(_isDeleteExcluded);
         localTransfer.setIsIgnoreTimes(_isIgnoreTimes);
+        localTransfer.setIsWholeFile(_isWholeFile || _isAutoWholeFile);
         localTransfer.setIsDeferredWrite(_isDeferredWrite);
-        localTransfer.setIsTransferDirs(_isTransferDirs);
+        localTransfer.setNumChecksumThreads(_numChecksumThreads);
+        localTransfer.setNumStatThreads(_numStatThreads);
+        localTransfer.setSignatureCache(_signatureCache);
+        localTransfer.setFileListSnapshot(fileListSnapshotOrNull());
+        localTransfer.setChannelBufferSize(_channelBufferSize);
+        localTransfer.setMaxChannelBufferSize(_maxChannelBufferSize);
+        if (_checksumChoice != null) {
+            localTransfer.setStrongChecksum(_checksumChoice);
+        }
+        localTransfer.setIsTransferDirs(isTransferDirs);
         localTransfer.setFilterRuleConfiguration(_filterRuleConfiguration);
         List<Path> srcPaths = new LinkedList<>();
-        for (String pathName : _srcArgs) {
+        for (String pathName : srcArgs) {
         	srcPaths.add(CustomFileSystem.getPath(pathName));                                  // throws InvalidPathException
         }
 
         try {
-            return localTransfer.transfer(executor, _out, srcPaths, _dstArg);
+            return localTransfer.transfer(executor, _out, srcPaths, dstArg);
         } catch (ChannelException e) {
             if (_log.isLoggable(Level.SEVERE)) {
                 _log.severe("Error: communication closed with peer: " +
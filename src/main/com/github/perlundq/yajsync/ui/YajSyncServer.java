@@ -19,12 +19,14 @@
  */
 package com.github.perlundq.yajsync.ui;
 
-import com.github.perlundq.yajsync.channels.ChannelException;
 import com.github.perlundq.yajsync.channels.net.*;
-import com.github.perlundq.yajsync.session.ModuleException;
+import com.github.perlundq.yajsync.session.FileListSnapshot;
 import com.github.perlundq.yajsync.session.ModuleProvider;
-import com.github.perlundq.yajsync.session.Modules;
+import com.github.perlundq.yajsync.io.CustomFileSystem;
 import com.github.perlundq.yajsync.session.RsyncServerSession;
+import com.github.perlundq.yajsync.session.ServerMetrics;
+import com.github.perlundq.yajsync.session.SessionScheduler;
+import com.github.perlundq.yajsync.session.SignatureCache;
 import com.github.perlundq.yajsync.text.Text;
 import com.github.perlundq.yajsync.util.*;
 
@@ -38,14 +40,13 @@ import java.nio.charset.UnsupportedCharsetException;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+
 public class YajSyncServer
 {
     private static final Logger _log =
@@ -53,15 +54,30 @@ public class YajSyncServer
     private static final int THREAD_FACTOR = 4;
 
     private boolean _isDeferredWrite;
+    private int _numChecksumThreads = 1;
+    private int _numStatThreads = 1;
+    private int _channelBufferSize = Consts.DEFAULT_CHANNEL_BUF_SIZE;
+    private int _maxChannelBufferSize = Consts.DEFAULT_CHANNEL_BUF_SIZE;
+    private int _bandwidthLimit;
+    private int _moduleBandwidthLimit;
+    private SignatureCache _signatureCache;
+    private String _fileListSnapshotDirName;
+    private boolean _isFileListSnapshotVerify;
     private boolean _isTLS;
     private Charset _charset = Charset.forName(Text.UTF8_NAME);
-    private int _numThreads = Runtime.getRuntime().availableProcessors() *
-                              THREAD_FACTOR;
+    private int _maxSessions = Runtime.getRuntime().availableProcessors() *
+                               THREAD_FACTOR;
+    private int _maxModuleSessions;
+    private int _maxQueued = SessionScheduler.DEFAULT_MAX_QUEUED;
+    private int _greetingTimeout = SessionScheduler.DEFAULT_GREETING_TIMEOUT;
+    private int _queueTimeout = SessionScheduler.DEFAULT_QUEUE_TIMEOUT;
+    private int _timeout;
+    private boolean _isVirtualThreads;
+    private int _metricsPort;
     private int _port = Consts.DEFAULT_LISTEN_PORT;
     private int _verbosity;
     private InetAddress _address = InetAddress.getLoopbackAddress();
     private ModuleProvider _moduleProvider = ModuleProvider.getDefault();
-    private ExecutorService _executor;
     private CountDownLatch _isListeningLatch;
     private PrintStream _out = System.out;
     private PrintStream _err = System.err;
@@ -154,14 +170,113 @@ public class YajSyncServer
                     _port = (int) option.getValue();
                 }}));
 
+        options.add(Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                            "metrics-port", "",
+                                            "serve metrics in Prometheus " +
+                                            "text format over HTTP on this " +
+                                            "port and the listen address " +
+                                            "(default none)",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _metricsPort = toInt(option, 1);
+                }}));
+
+        options.add(Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                            "max-sessions", "",
+                                            String.format(
+                                                "maximum number of " +
+                                                "concurrent sessions, 0 " +
+                                                "means no limit (default %d)",
+                                                _maxSessions),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _maxSessions = toInt(option, 0);
+                }}));
+
         options.add(Option.newIntegerOption(Option.Policy.OPTIONAL,
                                             "threads", "",
-                                            String.format("size of thread " +
-                                                          "pool (default %d)",
-                                                          _numThreads),
+                                            "same as --max-sessions " +
+                                            "(deprecated)",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _maxSessions = toInt(option, 0);
+                }}));
+
+        options.add(Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                            "max-module-sessions", "",
+                                            "maximum number of concurrent " +
+                                            "sessions of each module, 0 " +
+                                            "means no limit (default 0)",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _maxModuleSessions = toInt(option, 0);
+                }}));
+
+        options.add(Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                            "max-queued", "",
+                                            String.format(
+                                                "maximum number of " +
+                                                "connections waiting for a " +
+                                                "session to finish before " +
+                                                "rejecting any more " +
+                                                "(default %d)",
+                                                _maxQueued),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _maxQueued = toInt(option, 0);
+                }}));
+
+        options.add(Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                            "queue-timeout", "",
+                                            String.format(
+                                                "seconds a connection may " +
+                                                "wait for a session to " +
+                                                "finish (default %d)",
+                                                _queueTimeout),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _queueTimeout = toInt(option, 0);
+                }}));
+
+        options.add(Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                            "greeting-timeout", "",
+                                            String.format(
+                                                "seconds a client may take " +
+                                                "to select a module and " +
+                                                "send its arguments " +
+                                                "(default %d)",
+                                                _greetingTimeout),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _greetingTimeout = toInt(option, 1);
+                }}));
+
+        options.add(Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                            "timeout", "",
+                                            "close sessions idle for this " +
+                                            "many seconds, 0 means no " +
+                                            "timeout (default 0)",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _timeout = toInt(option, 0);
+                }}));
+
+        options.add(Option.newWithoutArgument(Option.Policy.OPTIONAL,
+                                              "virtual-threads", "",
+                                              "run sessions in virtual " +
+                                              "threads, requires Java 21 " +
+                                              "or later (default false)",
             new Option.ContinuingHandler() {
                 @Override public void handleAndContinue(Option option) {
-                    _numThreads = (int) option.getValue();
+                    _isVirtualThreads = true;
                 }}));
 
         String deferredWriteHelp = String.format(
@@ -178,6 +293,135 @@ public class YajSyncServer
                     _isDeferredWrite = true;
                 }}));
 
+        options.add(Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                            "checksum-threads", "",
+                                            String.format(
+                                                "number of threads per " +
+                                                "session generating block " +
+                                                "checksums of large basis " +
+                                                "files (default %d)",
+                                                _numChecksumThreads),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    int numThreads = (int) option.getValue();
+                    if (numThreads < 1) {
+                        throw new ArgumentParsingError(String.format(
+                            "invalid number of checksum threads: %d",
+                            numThreads));
+                    }
+                    _numChecksumThreads = numThreads;
+                }}));
+
+        options.add(Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                            "stat-threads", "",
+                                            String.format(
+                                                "number of threads per " +
+                                                "session reading the " +
+                                                "attributes of local files " +
+                                                "ahead of the generator " +
+                                                "(default %d)",
+                                                _numStatThreads),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    int numThreads = (int) option.getValue();
+                    if (numThreads < 1) {
+                        throw new ArgumentParsingError(String.format(
+                            "invalid number of stat threads: %d",
+                            numThreads));
+                    }
+                    _numStatThreads = numThreads;
+                }}));
+
+        options.add(Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                            "buffer-size", "",
+                                            String.format(
+                                                "size of channel buffers in " +
+                                                "bytes (default %d)",
+                                                _channelBufferSize),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _channelBufferSize =
+                        toChannelBufferSize((int) option.getValue());
+                }}));
+
+        options.add(Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                            "max-buffer-size", "",
+                                            "grow output channel buffers " +
+                                            "up to this size while writes " +
+                                            "keep filling them (default " +
+                                            "no growth)",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _maxChannelBufferSize =
+                        toChannelBufferSize((int) option.getValue());
+                }}));
+
+        options.add(Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                            "bwlimit", "",
+                                            "limit the I/O bandwidth of " +
+                                            "each session, KBytes per " +
+                                            "second (default 0, no limit)",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _bandwidthLimit = toBandwidthLimit(option);
+                }}));
+
+        options.add(Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                            "module-bwlimit", "",
+                                            "limit the total I/O bandwidth " +
+                                            "of all sessions of each " +
+                                            "module, KBytes per second " +
+                                            "(default 0, no limit)",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _moduleBandwidthLimit = toBandwidthLimit(option);
+                }}));
+
+        options.add(Option.newStringOption(Option.Policy.OPTIONAL,
+                                           "signature-cache", "",
+                                           "cache block signatures of basis " +
+                                           "files in specified directory",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    String dirName = (String) option.getValue();
+                    try {
+                        _signatureCache = new SignatureCache(
+                            CustomFileSystem.getPath(dirName));
+                    } catch (IOException e) {
+                        throw new ArgumentParsingError(String.format(
+                            "failed to create signature cache directory " +
+                            "%s: %s", dirName, e.getMessage()));
+                    }
+                }}));
+
+        options.add(Option.newStringOption(Option.Policy.OPTIONAL,
+                                           "file-list-snapshot", "",
+                                           "read and store the listings of " +
+                                           "source directories in snapshots " +
+                                           "in specified directory, listing " +
+                                           "only directories modified since",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) {
+                    _fileListSnapshotDirName = (String) option.getValue();
+                }}));
+
+        options.add(Option.newWithoutArgument(Option.Policy.OPTIONAL,
+                                              "file-list-snapshot-verify", "",
+                                              "list all source directories, " +
+                                              "logging any difference from " +
+                                              "the file list snapshots",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) {
+                    _isFileListSnapshotVerify = true;
+                }}));
+
         options.add(Option.newWithoutArgument(Option.Policy.OPTIONAL,
                                               "tls", "",
                                               String.format("tunnel all data " +
@@ -199,77 +443,6 @@ public class YajSyncServer
         return options;
     }
 
-    private Callable<Boolean> createCallable(final DuplexByteChannel sock,
-                                             final boolean isInterruptible)
-    {
-        return new Callable<Boolean>() {
-            @Override
-            public Boolean call() {
-                boolean isOK = false;
-                try {
-                    Modules modules;
-                    if (sock.isPeerAuthenticated()) {
-                        if (_log.isLoggable(Level.FINE)) {
-                            _log.fine(String.format("%s connected from %s",
-                                                    sock.peerPrincipal(),
-                                                    sock.peerAddress()));
-                        }
-                        modules = _moduleProvider.newAuthenticated(
-                                                        sock.peerAddress(),
-                                                        sock.peerPrincipal());
-                    } else {
-                        if (_log.isLoggable(Level.FINE)) {
-                            _log.fine("got anonymous connection from " +
-                                      sock.peerAddress());
-                        }
-                        modules = _moduleProvider.newAnonymous(
-                                                        sock.peerAddress());
-                    }
-                    RsyncServerSession session = new RsyncServerSession();
-                    session.setCharset(_charset);
-                    session.setIsDeferredWrite(_isDeferredWrite);
-                    isOK = session.transfer(_executor,
-                                                sock,    // in
-                                                sock,    // out
-                                                modules,
-                                                isInterruptible);
-//                    showStatistics(session.statistics());
-                } catch (ModuleException e) {
-                    if (_log.isLoggable(Level.SEVERE)) {
-                        _log.severe(String.format(
-                            "Error: failed to initialise modules for " +
-                            "principal %s using ModuleProvider %s: %s%n",
-                                sock.peerPrincipal(), _moduleProvider, e));
-                    }
-                } catch (ChannelException e) {
-                    if (_log.isLoggable(Level.SEVERE)) {
-                        _log.severe("Error: communication closed with peer: " +
-                                    e.getMessage());
-                    }
-                } catch (Throwable t) {
-                    if (_log.isLoggable(Level.SEVERE)) {
-                        _log.log(Level.SEVERE, "", t);
-                    }
-                } finally {
-                    try {
-                        sock.close();
-                    } catch (IOException e) {
-                        if (_log.isLoggable(Level.SEVERE)) {
-                            _log.severe(String.format(
-                                "Got error during close of socket %s: %s",
-                                sock, e.getMessage()));
-                        }
-                    }
-                }
-
-                if (_log.isLoggable(Level.FINE)) {
-                    _log.fine("Thread exit status: " + (isOK ? "OK" : "ERROR"));
-                }
-                return isOK;
-            }
-        };
-    }
-
     public int start(String[] args) throws IOException, InterruptedException
     {
         ArgumentParser argsParser =
@@ -302,34 +475,136 @@ public class YajSyncServer
         //socketFactory.setSocketTimeout(60);
         socketFactory.setReuseAddress(true);
         //socketFactory.setKeepAlive(true);
-        boolean isInterruptible = !_isTLS;
-        _executor = Executors.newFixedThreadPool(_numThreads);
 
+        RsyncServerSession session = new RsyncServerSession();
+        session.setCharset(_charset);
+        session.setIsDeferredWrite(_isDeferredWrite);
+        session.setNumChecksumThreads(_numChecksumThreads);
+        session.setNumStatThreads(_numStatThreads);
+        session.setSignatureCache(_signatureCache);
+        session.setFileListSnapshot(fileListSnapshotOrNull());
+        session.setChannelBufferSize(_channelBufferSize);
+        session.setMaxChannelBufferSize(_maxChannelBufferSize);
+        session.setBandwidthLimit(_bandwidthLimit);
+        session.setModuleBandwidthLimit(_moduleBandwidthLimit);
+        SessionScheduler scheduler = new SessionScheduler(session,
+                                                          _moduleProvider,
+                                                          _isVirtualThreads);
+        scheduler.setMaxSessions(_maxSessions);
+        scheduler.setMaxModuleSessions(_maxModuleSessions);
+        scheduler.setMaxQueued(_maxQueued);
+        scheduler.setGreetingTimeout(_greetingTimeout);
+        scheduler.setQueueTimeout(_queueTimeout);
+        scheduler.setIdleTimeout(_timeout);
+        ServerMetrics metrics = new ServerMetrics();
+        scheduler.setMetrics(metrics);
+        registerMBeans(metrics);
+
+        MetricsEndpoint metricsEndpoint = null;
         try (ServerChannel listenSock = socketFactory.open(_address, _port)) {  // throws IOException
+            if (_metricsPort > 0) {
+                metricsEndpoint = MetricsEndpoint.start(_address, _metricsPort,
+                                                        metrics);
+            }
             if (_isListeningLatch != null) {
                 _isListeningLatch.countDown();
             }
-            while (true) {
-                DuplexByteChannel sock = listenSock.accept();                   // throws IOException
-                Callable<Boolean> c = createCallable(sock, isInterruptible);
-                _executor.submit(c);                                            // NOTE: result discarded
-            }
+            scheduler.serve(listenSock);                                        // throws IOException
+            return 0;
         } finally {
+            if (metricsEndpoint != null) {
+                metricsEndpoint.close();
+            }
             if (_log.isLoggable(Level.INFO)) {
                 _log.info("shutting down...");
             }
-            _executor.shutdown();
+            scheduler.shutdown();
             _moduleProvider.close();
-            while (!_executor.awaitTermination(5, TimeUnit.MINUTES)) {
+            while (!scheduler.awaitTermination(5, TimeUnit.MINUTES)) {
                 _log.info("some sessions are still running, waiting for them " +
                           "to finish before exiting");
             }
+            unregisterMBeans(metrics);
             if (_log.isLoggable(Level.INFO)) {
                 _log.info("done");
             }
         }
     }
 
+    private FileListSnapshot fileListSnapshotOrNull()
+    {
+        if (_fileListSnapshotDirName == null) {
+            return null;
+        }
+        return new FileListSnapshot(
+            CustomFileSystem.getPath(_fileListSnapshotDirName),
+            _isFileListSnapshotVerify);
+    }
+
+    // JMX is optional, e.g. several servers may run in the same JVM
+    private static void registerMBeans(ServerMetrics metrics)
+    {
+        try {
+            metrics.registerMBeans();
+        } catch (JMException e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning("metrics are not available through JMX: " + e);
+            }
+        }
+    }
+
+    private static void unregisterMBeans(ServerMetrics metrics)
+    {
+        try {
+            metrics.unregisterMBeans();
+        } catch (JMException e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning("failed to unregister metrics: " + e);
+            }
+        }
+    }
+
+    private static int toInt(Option option, int minValue)
+        throws ArgumentParsingError
+    {
+        int value = (int) option.getValue();
+        if (value < minValue) {
+            throw new ArgumentParsingError(String.format(
+                "invalid value for %s: %d (must be at least %d)",
+                option.name(), value, minValue));
+        }
+        return value;
+    }
+
+    /**
+     * @return the limit in bytes per second of an option in KBytes per
+     *         second
+     */
+    private static int toBandwidthLimit(Option option)
+        throws ArgumentParsingError
+    {
+        int value = (int) option.getValue();
+        if (value < 0 || value > Integer.MAX_VALUE / 1024) {
+            throw new ArgumentParsingError(String.format(
+                "invalid value for %s: %d (must be between 0 and %d)",
+                option.name(), value, Integer.MAX_VALUE / 1024));
+        }
+        return value * 1024;
+    }
+
+    private static int toChannelBufferSize(int size)
+        throws ArgumentParsingError
+    {
+        if (size < Consts.MIN_CHANNEL_BUF_SIZE ||
+            size > Consts.MAX_CHANNEL_BUF_SIZE) {
+            throw new ArgumentParsingError(String.format(
+                "invalid buffer size: %d (must be between %d and %d)",
+                size, Consts.MIN_CHANNEL_BUF_SIZE,
+                Consts.MAX_CHANNEL_BUF_SIZE));
+        }
+        return size;
+    }
+
     public static void main(String[] args)
         throws IOException, InterruptedException
     {
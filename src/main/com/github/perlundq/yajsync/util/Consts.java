@@ -23,6 +23,10 @@ public final class Consts
     public static final int DEFAULT_LISTEN_PORT = 873; // TODO: move out
     public static final int DEFAULT_UMASK = 0022;
     public static final int MAX_BUF_SIZE = 1024;
+    public static final int DEFAULT_CHANNEL_BUF_SIZE = 8 * 1024;
+    public static final int MIN_CHANNEL_BUF_SIZE = DEFAULT_CHANNEL_BUF_SIZE;
+    // must be less than the maximum length of a tagged message (0xFFFFFF)
+    public static final int MAX_CHANNEL_BUF_SIZE = 8 * 1024 * 1024;
     public static final int SIZE_BYTE = 1;
     public static final int SIZE_CHAR = 2;
     public static final int SIZE_SHORT = 2;
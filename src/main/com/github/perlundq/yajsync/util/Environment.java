@@ -34,6 +34,9 @@ public final class Environment
 {
     public static final String ENV_RSYNC_PASSWORD = "RSYNC_PASSWORD";
     private static final String PROPERTY_KEY_ALLOCATE_DIRECT = "allocate.direct";  // not present unless manually defined
+    private static final String PROPERTY_KEY_MAP_THRESHOLD = "mmap.threshold";      // not present unless manually defined
+    private static final String PROPERTY_KEY_SPILL_THRESHOLD = "filelist.spill.threshold"; // not present unless manually defined
+    private static final String PROPERTY_KEY_SCAN_THREADS = "sender.scan.threads"; // not present unless manually defined
     private static final String PROPERTY_KEY_USER_UID = "user.uid";     // not present unless manually defined
     private static final String PROPERTY_KEY_GROUP_UID = "user.gid";    // not present unless manually defined
     private static final String PROPERTY_KEY_USER_NAME = "user.name";
@@ -54,6 +57,11 @@ public final class Environment
     public static final boolean IS_UNIX_FS = FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
     public static final boolean IS_POSIX_FS = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
 
+    // files being mapped into memory may not be replaced on Windows
+    private static final long DEFAULT_MAP_THRESHOLD =
+        IS_RUNNING_WINDOWS ? Long.MAX_VALUE : 64 * 1024 * 1024;
+    private static final int DEFAULT_SPILL_THRESHOLD = 64 * 1024;
+
     private Environment() {}
 
     public static int getUserId()
@@ -169,6 +177,66 @@ public final class Environment
         return Boolean.valueOf(value);
     }
 
+    public static void setMapThreshold(long numBytes)
+    {
+        System.setProperty(PROPERTY_KEY_MAP_THRESHOLD,
+                           Long.toString(numBytes));
+    }
+
+    /**
+     * @return the minimum size of files which should be memory mapped
+     *     instead of read into a buffer
+     * @throws NumberFormatException if the property value is not a number
+     */
+    public static long getMapThreshold()
+    {
+        String value = System.getProperty(PROPERTY_KEY_MAP_THRESHOLD);
+        if (value == null) {
+            return DEFAULT_MAP_THRESHOLD;
+        }
+        return Long.parseLong(value);
+    }
+
+    public static void setFileListSpillThreshold(int numFiles)
+    {
+        System.setProperty(PROPERTY_KEY_SPILL_THRESHOLD,
+                           Integer.toString(numFiles));
+    }
+
+    /**
+     * @return the number of files of a directory the sender holds in memory
+     *     before spilling them to a temporary file, 0 means never
+     * @throws NumberFormatException if the property value is not a number
+     */
+    public static int getFileListSpillThreshold()
+    {
+        String value = System.getProperty(PROPERTY_KEY_SPILL_THRESHOLD);
+        if (value == null) {
+            return DEFAULT_SPILL_THRESHOLD;
+        }
+        return Math.max(0, Integer.parseInt(value));
+    }
+
+    public static void setSenderScanThreads(int numThreads)
+    {
+        System.setProperty(PROPERTY_KEY_SCAN_THREADS,
+                           Integer.toString(numThreads));
+    }
+
+    /**
+     * @return the number of threads of each sender listing directories and
+     *     reading file attributes in parallel, 0 means none (do it serially)
+     * @throws NumberFormatException if the property value is not a number
+     */
+    public static int getSenderScanThreads()
+    {
+        String value = System.getProperty(PROPERTY_KEY_SCAN_THREADS);
+        if (value == null) {
+            return 0;
+        }
+        return Math.max(0, Integer.parseInt(value));
+    }
+
     public static boolean hasAllocateDirectArray()
     {
         return ByteBuffer.allocateDirect(1).hasArray();
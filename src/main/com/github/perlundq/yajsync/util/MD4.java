@@ -0,0 +1,231 @@
+/*
+ * MD4 message digest
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.DigestException;
+import java.security.MessageDigest;
+
+/**
+ * A plain MD4 implementation (RFC 1320), which is not provided by the
+ * standard security providers but is still supported by rsync.
+ */
+public final class MD4 extends MessageDigest
+{
+    public static final int DIGEST_LENGTH = 16;
+
+    private static final int BLOCK_LENGTH = 64;
+    private static final int[] INITIAL_STATE = {
+        0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476
+    };
+    private static final int ROUND2_CONSTANT = 0x5a827999;
+    private static final int ROUND3_CONSTANT = 0x6ed9eba1;
+    private static final int[] ROUND3_ORDER = { 0, 2, 1, 3 };
+
+    private final int[] _state = new int[4];
+    private final int[] _words = new int[16];
+    private final ByteBuffer _block =
+        ByteBuffer.allocate(BLOCK_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    private long _numBytes;
+    private ByteBuffer _wrapped;
+
+    public MD4()
+    {
+        super("MD4");
+        engineReset();
+    }
+
+    @Override
+    protected int engineGetDigestLength()
+    {
+        return DIGEST_LENGTH;
+    }
+
+    @Override
+    protected void engineReset()
+    {
+        System.arraycopy(INITIAL_STATE, 0, _state, 0, _state.length);
+        _block.clear();
+        _numBytes = 0;
+    }
+
+    @Override
+    protected void engineUpdate(byte input)
+    {
+        _block.put(input);
+        _numBytes++;
+        if (!_block.hasRemaining()) {
+            processBlock(_block, 0, false);
+            _block.clear();
+        }
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int length)
+    {
+        // callers typically hash consecutive blocks of the same array, so
+        // reuse the wrapper to avoid allocating one for each update. Short
+        // inputs (e.g. a seed) are not worth a wrapper of their own
+        if (length < BLOCK_LENGTH &&
+            (_wrapped == null || _wrapped.array() != input)) {
+            for (int i = offset; i < offset + length; i++) {
+                engineUpdate(input[i]);
+            }
+            return;
+        }
+        if (_wrapped == null || _wrapped.array() != input) {
+            _wrapped = ByteBuffer.wrap(input).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        update(_wrapped, offset, offset + length, false);
+    }
+
+    @Override
+    protected void engineUpdate(ByteBuffer input)
+    {
+        if (input.hasArray()) {
+            engineUpdate(input.array(), input.arrayOffset() + input.position(),
+                         input.remaining());
+        } else {
+            update(input, input.position(), input.limit(),
+                   input.order() == ByteOrder.BIG_ENDIAN);
+        }
+        input.position(input.limit());
+    }
+
+    // reads buf[offset, end) using absolute operations only, isSwapped is
+    // true if buf is in big endian byte order
+    private void update(ByteBuffer buf, int offset, int end,
+                        boolean isSwapped)
+    {
+        _numBytes += end - offset;
+        if (_block.position() > 0) {
+            while (offset < end && _block.hasRemaining()) {
+                _block.put(buf.get(offset++));
+            }
+            if (_block.hasRemaining()) {
+                return;
+            }
+            processBlock(_block, 0, false);
+            _block.clear();
+        }
+        for (; offset + BLOCK_LENGTH <= end; offset += BLOCK_LENGTH) {
+            processBlock(buf, offset, isSwapped);
+        }
+        while (offset < end) {
+            _block.put(buf.get(offset++));
+        }
+    }
+
+    @Override
+    protected byte[] engineDigest()
+    {
+        byte[] result = new byte[DIGEST_LENGTH];
+        finish(result, 0);
+        return result;
+    }
+
+    @Override
+    protected int engineDigest(byte[] buf, int offset, int length)
+        throws DigestException
+    {
+        if (length < DIGEST_LENGTH) {
+            throw new DigestException("partial digests not returned");
+        }
+        finish(buf, offset);
+        return DIGEST_LENGTH;
+    }
+
+    // writes the digest to buf at offset and resets this digest
+    private void finish(byte[] buf, int offset)
+    {
+        long numBits = _numBytes * 8;
+        _block.put((byte) 0x80);
+        if (_block.remaining() < 8) {
+            while (_block.hasRemaining()) {
+                _block.put((byte) 0);
+            }
+            processBlock(_block, 0, false);
+            _block.clear();
+        }
+        while (_block.position() < BLOCK_LENGTH - 8) {
+            _block.put((byte) 0);
+        }
+        _block.putLong(numBits);
+        processBlock(_block, 0, false);
+
+        for (int i = 0; i < _state.length; i++) {
+            int s = _state[i];
+            for (int j = 0; j < 4; j++) {
+                buf[offset + 4 * i + j] = (byte) (s >>> 8 * j);
+            }
+        }
+        engineReset();
+    }
+
+    private void processBlock(ByteBuffer buf, int offset, boolean isSwapped)
+    {
+        int[] x = _words;
+        for (int i = 0; i < x.length; i++) {
+            int word = buf.getInt(offset + 4 * i);
+            x[i] = isSwapped ? Integer.reverseBytes(word) : word;
+        }
+        int a = _state[0];
+        int b = _state[1];
+        int c = _state[2];
+        int d = _state[3];
+
+        for (int i = 0; i < 16; i += 4) {
+            a = Integer.rotateLeft(a + ((b & c) | (~b & d)) + x[i], 3);
+            d = Integer.rotateLeft(d + ((a & b) | (~a & c)) + x[i + 1], 7);
+            c = Integer.rotateLeft(c + ((d & a) | (~d & b)) + x[i + 2], 11);
+            b = Integer.rotateLeft(b + ((c & d) | (~c & a)) + x[i + 3], 19);
+        }
+        for (int i = 0; i < 4; i++) {
+            a = Integer.rotateLeft(a + g(b, c, d) + x[i] +
+                                   ROUND2_CONSTANT, 3);
+            d = Integer.rotateLeft(d + g(a, b, c) + x[i + 4] +
+                                   ROUND2_CONSTANT, 5);
+            c = Integer.rotateLeft(c + g(d, a, b) + x[i + 8] +
+                                   ROUND2_CONSTANT, 9);
+            b = Integer.rotateLeft(b + g(c, d, a) + x[i + 12] +
+                                   ROUND2_CONSTANT, 13);
+        }
+        for (int i : ROUND3_ORDER) {
+            a = Integer.rotateLeft(a + (b ^ c ^ d) + x[i] +
+                                   ROUND3_CONSTANT, 3);
+            d = Integer.rotateLeft(d + (a ^ b ^ c) + x[i + 8] +
+                                   ROUND3_CONSTANT, 9);
+            c = Integer.rotateLeft(c + (d ^ a ^ b) + x[i + 4] +
+                                   ROUND3_CONSTANT, 11);
+            b = Integer.rotateLeft(b + (c ^ d ^ a) + x[i + 12] +
+                                   ROUND3_CONSTANT, 15);
+        }
+
+        _state[0] += a;
+        _state[1] += b;
+        _state[2] += c;
+        _state[3] += d;
+    }
+
+    private static int g(int x, int y, int z)
+    {
+        return (x & y) | (x & z) | (y & z);
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * MD5 with access to its intermediate state
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A plain MD5 implementation (RFC 1321) which, contrary to MessageDigest,
+ * exports its intermediate state (the four chaining words) after any number
+ * of complete 64 byte blocks. A digest of the data processed so far followed
+ * by some trailing data can later be finished from such a state without
+ * access to the processed data, which is used for computing seeded block
+ * digests from cached block signatures.
+ */
+public final class ResumableMD5
+{
+    public static final int BLOCK_LENGTH = 64;
+    public static final int STATE_LENGTH = 16;
+    public static final int DIGEST_LENGTH = 16;
+
+    private static final int[] INITIAL_STATE = {
+        0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476
+    };
+
+    private static final int[] SHIFTS = {
+        7, 12, 17, 22, 5, 9, 14, 20, 4, 11, 16, 23, 6, 10, 15, 21
+    };
+
+    private static final int[] K = {
+        0xd76aa478, 0xe8c7b756, 0x242070db, 0xc1bdceee,
+        0xf57c0faf, 0x4787c62a, 0xa8304613, 0xfd469501,
+        0x698098d8, 0x8b44f7af, 0xffff5bb1, 0x895cd7be,
+        0x6b901122, 0xfd987193, 0xa679438e, 0x49b40821,
+        0xf61e2562, 0xc040b340, 0x265e5a51, 0xe9b6c7aa,
+        0xd62f105d, 0x02441453, 0xd8a1e681, 0xe7d3fbc8,
+        0x21e1cde6, 0xc33707d6, 0xf4d50d87, 0x455a14ed,
+        0xa9e3e905, 0xfcefa3f8, 0x676f02d9, 0x8d2a4c8a,
+        0xfffa3942, 0x8771f681, 0x6d9d6122, 0xfde5380c,
+        0xa4beea44, 0x4bdecfa9, 0xf6bb4b60, 0xbebfbc70,
+        0x289b7ec6, 0xeaa127fa, 0xd4ef3085, 0x04881d05,
+        0xd9d4d039, 0xe6db99e5, 0x1fa27cf8, 0xc4ac5665,
+        0xf4292244, 0x432aff97, 0xab9423a7, 0xfc93a039,
+        0x655b59c3, 0x8f0ccc92, 0xffeff47d, 0x85845dd1,
+        0x6fa87e4f, 0xfe2ce6e0, 0xa3014314, 0x4e0811a1,
+        0xf7537e82, 0xbd3af235, 0x2ad7d2bb, 0xeb86d391,
+    };
+
+    private final int[] _state = new int[4];
+    private final int[] _words = new int[16];
+    private long _numBytes;
+
+    public ResumableMD5()
+    {
+        reset();
+    }
+
+    public void reset()
+    {
+        System.arraycopy(INITIAL_STATE, 0, _state, 0, _state.length);
+        _numBytes = 0;
+    }
+
+    public long numBytes()
+    {
+        return _numBytes;
+    }
+
+    /**
+     * Process length bytes of buf starting at absolute offset, length must
+     * be a multiple of BLOCK_LENGTH.
+     */
+    public void update(ByteBuffer buf, int offset, int length)
+    {
+        assert length % BLOCK_LENGTH == 0 : length;
+        ByteBuffer le = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = offset; i < offset + length; i += BLOCK_LENGTH) {
+            for (int j = 0; j < 16; j++) {
+                _words[j] = le.getInt(i + 4 * j);
+            }
+            compress(_state, _words);
+        }
+        _numBytes += length;
+    }
+
+    /**
+     * Store the current intermediate state (STATE_LENGTH bytes) into dst at
+     * dstOffset.
+     */
+    public void getState(byte[] dst, int dstOffset)
+    {
+        for (int i = 0; i < _state.length; i++) {
+            putInt(dst, dstOffset + 4 * i, _state[i]);
+        }
+    }
+
+    /**
+     * Finish a digest from an intermediate state (as stored by getState)
+     * after numBytes processed bytes, followed by tailLength bytes of tail
+     * starting at tailOffset and then all of suffix. The DIGEST_LENGTH bytes
+     * of the digest are stored into dst.
+     */
+    public static void finish(byte[] state, int stateOffset, long numBytes,
+                              byte[] tail, int tailOffset, int tailLength,
+                              byte[] suffix, byte[] dst)
+    {
+        assert numBytes % BLOCK_LENGTH == 0 : numBytes;
+        assert tailLength >= 0 && tailLength < BLOCK_LENGTH : tailLength;
+
+        int[] s = new int[4];
+        for (int i = 0; i < s.length; i++) {
+            s[i] = getInt(state, stateOffset + 4 * i);
+        }
+
+        int length = tailLength + suffix.length;
+        // tail, suffix, 0x80, zero padding and the 8 byte bit length
+        int paddedLength = (length + 8) / BLOCK_LENGTH * BLOCK_LENGTH +
+                           BLOCK_LENGTH;
+        byte[] block = new byte[paddedLength];
+        System.arraycopy(tail, tailOffset, block, 0, tailLength);
+        System.arraycopy(suffix, 0, block, tailLength, suffix.length);
+        block[length] = (byte) 0x80;
+        long numBits = (numBytes + length) * 8;
+        for (int i = 0; i < 8; i++) {
+            block[paddedLength - 8 + i] = (byte) (numBits >>> (8 * i));
+        }
+
+        int[] words = new int[16];
+        for (int i = 0; i < paddedLength; i += BLOCK_LENGTH) {
+            for (int j = 0; j < 16; j++) {
+                words[j] = getInt(block, i + 4 * j);
+            }
+            compress(s, words);
+        }
+        for (int i = 0; i < s.length; i++) {
+            putInt(dst, 4 * i, s[i]);
+        }
+    }
+
+    private static int getInt(byte[] buf, int offset)
+    {
+        return (0xFF & buf[offset]) |
+               (0xFF & buf[offset + 1]) << 8 |
+               (0xFF & buf[offset + 2]) << 16 |
+               (0xFF & buf[offset + 3]) << 24;
+    }
+
+    private static void putInt(byte[] buf, int offset, int value)
+    {
+        for (int i = 0; i < 4; i++) {
+            buf[offset + i] = (byte) (value >>> 8 * i);
+        }
+    }
+
+    private static void compress(int[] state, int[] x)
+    {
+        int a = state[0];
+        int b = state[1];
+        int c = state[2];
+        int d = state[3];
+
+        for (int i = 0; i < 64; i++) {
+            int f;
+            int g;
+            if (i < 16) {
+                f = (b & c) | (~b & d);
+                g = i;
+            } else if (i < 32) {
+                f = (d & b) | (~d & c);
+                g = (5 * i + 1) & 15;
+            } else if (i < 48) {
+                f = b ^ c ^ d;
+                g = (3 * i + 5) & 15;
+            } else {
+                f = c ^ (b | ~d);
+                g = (7 * i) & 15;
+            }
+            int shift = SHIFTS[(i >>> 4) * 4 + (i & 3)];
+            int tmp = d;
+            d = c;
+            c = b;
+            b = b + Integer.rotateLeft(a + f + K[i] + x[g], shift);
+            a = tmp;
+        }
+
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Bulk scan of rolling checksums over a buffer region
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Rolls a window of fixed length over a contiguous buffer region one byte
+ * at a time, the same way as repeated calls to Rolling.subtract and
+ * Rolling.add, but in one loop which stops only at windows whose rolling
+ * checksum might be of interest according to a Filter.
+ */
+public final class RollingScanner
+{
+    public interface Filter
+    {
+        /**
+         * @return false if there definitely is no interest in a window with
+         *         rolling checksum rolling
+         */
+        boolean mayContain(int rolling);
+    }
+
+    private final Filter _filter;
+    private int _rolling;
+
+    public RollingScanner(Filter filter)
+    {
+        assert filter != null;
+        _filter = filter;
+    }
+
+    /**
+     * @return the rolling checksum of the window where the last scan
+     *         stopped
+     */
+    public int rolling()
+    {
+        return _rolling;
+    }
+
+    /**
+     * Scan the windows of buf starting at offsets start, start + 1, ...,
+     * start + maxSteps - 1, each one windowLength bytes long, where rolling
+     * is the checksum of the first window.
+     *
+     * All bytes of buf between start and start + maxSteps + windowLength
+     * (exclusive) must be available. The position and limit of buf are
+     * ignored.
+     *
+     * @return the number of bytes the window moved until the first window
+     *         which the filter may contain, or maxSteps if there was none.
+     *         rolling() is then the checksum of the window at start +
+     *         returned value (which is unchecked if none was found)
+     */
+    public int scan(ByteBuffer buf, int start, int windowLength,
+                    int maxSteps, int rolling)
+    {
+        assert start >= 0;
+        assert windowLength > 0;
+        assert maxSteps >= 0;
+        if (buf.hasArray()) {
+            return scan(buf.array(), buf.arrayOffset() + start, windowLength,
+                        maxSteps, rolling);
+        }
+
+        // the two halves are kept unmasked between the steps since only
+        // their lower 16 bits are used
+        int low16 = rolling & 0xFFFF;
+        int high16 = rolling >>> 16;
+        int step;
+        for (step = 0; step < maxSteps; step++) {
+            int current = (low16 & 0xFFFF) | (high16 << 16);
+            if (_filter.mayContain(current)) {
+                break;
+            }
+            int out = buf.get(start + step);
+            int in = buf.get(start + step + windowLength);
+            low16 += in - out;
+            high16 += low16 - windowLength * out;
+        }
+        _rolling = (low16 & 0xFFFF) | (high16 << 16);
+        return step;
+    }
+
+    private int scan(byte[] buf, int start, int windowLength, int maxSteps,
+                     int rolling)
+    {
+        int low16 = rolling & 0xFFFF;
+        int high16 = rolling >>> 16;
+        int step;
+        for (step = 0; step < maxSteps; step++) {
+            int current = (low16 & 0xFFFF) | (high16 << 16);
+            if (_filter.mayContain(current)) {
+                break;
+            }
+            int out = buf[start + step];
+            int in = buf[start + step + windowLength];
+            low16 += in - out;
+            high16 += low16 - windowLength * out;
+        }
+        _rolling = (low16 & 0xFFFF) | (high16 << 16);
+        return step;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Array of elements sorted on demand
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.util;
+
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Elements in their natural order, appended in O(1) (amortized) and
+ * sorted once when first looked up or iterated, by a stable sort (equal
+ * elements are kept in the order they were added). Sorting again after
+ * more elements have been added is cheap since the sort takes advantage
+ * of the sorted prefix.
+ *
+ * Not thread safe.
+ */
+public final class SortedArray<T extends Comparable<? super T>>
+    implements Iterable<T>
+{
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private Object[] _elements;
+    private int _size;
+    private boolean _isSorted = true;
+    private int _modCount;
+
+    public SortedArray()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @throws IllegalArgumentException if capacity is negative
+     */
+    public SortedArray(int capacity)
+    {
+        if (capacity < 0) {
+            throw new IllegalArgumentException(String.format(
+                "capacity must be non negative: %d", capacity));
+        }
+        _elements = new Object[capacity];
+    }
+
+    @Override
+    public String toString()
+    {
+        sort();
+        return Arrays.toString(Arrays.copyOf(_elements, _size));
+    }
+
+    public void add(T element)
+    {
+        assert element != null;
+        if (_size == _elements.length) {
+            int capacity = Math.max(DEFAULT_CAPACITY, 2 * _size);
+            _elements = Arrays.copyOf(_elements, capacity);
+        }
+        if (_isSorted && _size > 0 && element.compareTo(get(_size - 1)) < 0) {
+            _isSorted = false;
+        }
+        _elements[_size++] = element;
+        _modCount++;
+    }
+
+    public int size()
+    {
+        return _size;
+    }
+
+    public boolean isEmpty()
+    {
+        return _size == 0;
+    }
+
+    /**
+     * O(log n), O(n log n) if not sorted since elements were added
+     */
+    public boolean contains(T element)
+    {
+        sort();
+        return Arrays.binarySearch(_elements, 0, _size, element) >= 0;
+    }
+
+    public void sort()
+    {
+        if (!_isSorted) {
+            Arrays.sort(_elements, 0, _size);
+            _isSorted = true;
+            _modCount++;
+        }
+    }
+
+    public void clear()
+    {
+        Arrays.fill(_elements, 0, _size, null);
+        _size = 0;
+        _isSorted = true;
+        _modCount++;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T get(int index)
+    {
+        return (T) _elements[index];
+    }
+
+    /**
+     * @return an iterator of the elements in sorted order, it must not be
+     *         used after modifying this array
+     */
+    @Override
+    public Iterator<T> iterator()
+    {
+        sort();
+        return new Iterator<T>() {
+            private final int _expectedModCount = _modCount;
+            private int _index;
+
+            @Override
+            public boolean hasNext()
+            {
+                return _index < _size;
+            }
+
+            @Override
+            public T next()
+            {
+                if (_expectedModCount != _modCount) {
+                    throw new ConcurrentModificationException();
+                }
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return get(_index++);
+            }
+
+            @Override
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Strong checksum algorithms supported for block and file verification
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.util;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+
+/**
+ * The strong checksum algorithms that may be negotiated with peer (using
+ * the same names as rsync's --checksum-choice), in order of preference.
+ *
+ * Block digests are seeded with the session checksum seed the same way as
+ * rsync does: MD5 and MD4 digests of a block are followed by the seed bytes
+ * unless the seed is zero, xxHash64 uses the seed as its hash seed. File
+ * digests are never seeded.
+ */
+public enum StrongChecksum
+{
+    XXH64("xxh64", com.github.perlundq.yajsync.util.XXH64.DIGEST_LENGTH) {
+        @Override
+        public MessageDigest newFileDigest()
+        {
+            return new XXH64(0);
+        }
+
+        @Override
+        public MessageDigest newBlockDigest(byte[] seed)
+        {
+            return new XXH64(toInt(seed));
+        }
+    },
+    MD5("md5", 16) {
+        @Override
+        public MessageDigest newFileDigest()
+        {
+            return com.github.perlundq.yajsync.util.MD5.newInstance();
+        }
+
+        @Override
+        public MessageDigest newBlockDigest(byte[] seed)
+        {
+            return new SeedAppendingDigest(newFileDigest(), seed);
+        }
+    },
+    MD4("md4", com.github.perlundq.yajsync.util.MD4.DIGEST_LENGTH) {
+        @Override
+        public MessageDigest newFileDigest()
+        {
+            return new com.github.perlundq.yajsync.util.MD4();
+        }
+
+        @Override
+        public MessageDigest newBlockDigest(byte[] seed)
+        {
+            return new SeedAppendingDigest(newFileDigest(), seed);
+        }
+    };
+
+    /** Used when peer does not support negotiation of checksums. */
+    public static final StrongChecksum DEFAULT = MD5;
+
+    private final String _name;
+    private final int _digestLength;
+
+    private StrongChecksum(String name, int digestLength)
+    {
+        _name = name;
+        _digestLength = digestLength;
+    }
+
+    /**
+     * @return the rsync name of this checksum algorithm
+     */
+    public String protocolName()
+    {
+        return _name;
+    }
+
+    public int digestLength()
+    {
+        return _digestLength;
+    }
+
+    /**
+     * @return a new unseeded digest for whole file checksums
+     */
+    public abstract MessageDigest newFileDigest();
+
+    /**
+     * @param seed the checksum seed in little endian byte order
+     * @return a new digest for block checksums seeded with seed
+     */
+    public abstract MessageDigest newBlockDigest(byte[] seed);
+
+    public static StrongChecksum fromProtocolNameOrNull(String name)
+    {
+        for (StrongChecksum checksum : values()) {
+            if (checksum._name.equals(name)) {
+                return checksum;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Update md with the bytes of src between start (inclusive) and end
+     * (exclusive) without allocating a slice of src. The position and limit
+     * of src are left unchanged.
+     */
+    public static void update(MessageDigest md, ByteBuffer src, int start,
+                              int end)
+    {
+        if (src.hasArray()) {
+            md.update(src.array(), src.arrayOffset() + start, end - start);
+        } else {
+            int position = src.position();
+            int limit = src.limit();
+            src.limit(src.capacity());
+            src.position(start);
+            src.limit(end);
+            md.update(src);
+            src.limit(limit);
+            src.position(position);
+        }
+    }
+
+    /**
+     * Complete md and store the (untruncated) result into dst, without
+     * allocating a new digest array.
+     *
+     * @throws IllegalArgumentException if dst is shorter than the digest
+     *         length of md
+     */
+    public static void digestInto(MessageDigest md, byte[] dst)
+    {
+        try {
+            md.digest(dst, 0, dst.length);
+        } catch (DigestException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * @return true if seed should not be appended to MD5 or MD4 block
+     *         digests
+     */
+    public static boolean isZeroSeed(byte[] seed)
+    {
+        return toInt(seed) == 0;
+    }
+
+    // rsync passes the signed 32 bit seed to XXH64 as an unsigned 64 bit
+    // value, i.e. it is sign extended
+    private static int toInt(byte[] seed)
+    {
+        assert seed.length == 4;
+        return (0xFF & seed[0]) |
+               (0xFF & seed[1]) << 8 |
+               (0xFF & seed[2]) << 16 |
+               (0xFF & seed[3]) << 24;
+    }
+
+    private static final class SeedAppendingDigest extends MessageDigest
+    {
+        private final MessageDigest _md;
+        private final byte[] _seed;
+
+        SeedAppendingDigest(MessageDigest md, byte[] seed)
+        {
+            super(md.getAlgorithm());
+            _md = md;
+            _seed = isZeroSeed(seed) ? new byte[0] : seed.clone();
+        }
+
+        @Override
+        protected int engineGetDigestLength()
+        {
+            return _md.getDigestLength();
+        }
+
+        @Override
+        protected void engineUpdate(byte input)
+        {
+            _md.update(input);
+        }
+
+        @Override
+        protected void engineUpdate(byte[] input, int offset, int length)
+        {
+            _md.update(input, offset, length);
+        }
+
+        @Override
+        protected void engineUpdate(ByteBuffer input)
+        {
+            _md.update(input);
+        }
+
+        @Override
+        protected byte[] engineDigest()
+        {
+            _md.update(_seed);
+            return _md.digest();
+        }
+
+        @Override
+        protected int engineDigest(byte[] buf, int offset, int length)
+            throws DigestException
+        {
+            _md.update(_seed);
+            return _md.digest(buf, offset, length);
+        }
+
+        @Override
+        protected void engineReset()
+        {
+            _md.reset();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Executors running each task in a virtual thread, when available
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Virtual threads (Java 21 or later) are looked up by reflection, so that
+ * yajsync still builds and runs on older versions, where
+ * newCachedThreadPool falls back to platform threads.
+ *
+ * Sessions spend most of their time blocked in socket I/O, which on a
+ * virtual thread only costs the (small) heap allocated stack of the
+ * thread. A virtual thread blocking while holding a monitor (synchronized
+ * or Object.wait) pins its carrier thread though, use
+ * java.util.concurrent.locks for anything that may block.
+ */
+public final class VirtualThreads
+{
+    private static final Logger _log =
+        Logger.getLogger(VirtualThreads.class.getName());
+    private static final Method OF_VIRTUAL = lookupOfVirtualOrNull();
+
+    private VirtualThreads() {}
+
+    public static boolean isSupported()
+    {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @return an executor starting a new virtual thread named namePrefix
+     *         followed by a sequence number for each task, or null if
+     *         virtual threads are not supported
+     */
+    public static ExecutorService newExecutorOrNull(String namePrefix)
+    {
+        if (OF_VIRTUAL == null) {
+            return null;
+        }
+        try {
+            Object builder = OF_VIRTUAL.invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).
+                invoke(builder, namePrefix, 0L);
+            ThreadFactory factory = (ThreadFactory)
+                builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.
+                getMethod("newThreadPerTaskExecutor", ThreadFactory.class).
+                invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning("failed to create virtual thread executor: " + e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @return an executor using virtual threads if isVirtual and virtual
+     *         threads are supported, otherwise a cached thread pool of
+     *         platform threads
+     */
+    public static ExecutorService newCachedThreadPool(boolean isVirtual,
+                                                      String namePrefix)
+    {
+        if (isVirtual) {
+            ExecutorService executor = newExecutorOrNull(namePrefix);
+            if (executor != null) {
+                return executor;
+            }
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format(
+                    "virtual threads are not supported by Java %s, using " +
+                    "platform threads for %s",
+                    System.getProperty("java.version"), namePrefix));
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    // Thread.ofVirtual exists but throws UnsupportedOperationException in
+    // Java 19 and 20 unless preview features are enabled
+    private static Method lookupOfVirtualOrNull()
+    {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            ofVirtual.invoke(null);
+            return ofVirtual;
+        } catch (NoSuchMethodException | IllegalAccessException |
+                 InvocationTargetException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * xxHash64 message digest
+ *
+ * Copyright (C) 2012-2016 Yann Collet
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.DigestException;
+import java.security.MessageDigest;
+
+/**
+ * A (non cryptographic) xxHash64 MessageDigest. The 64 bit hash value is
+ * stored in little endian byte order, the same way as rsync does.
+ */
+public final class XXH64 extends MessageDigest
+{
+    public static final int DIGEST_LENGTH = 8;
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+    private static final int STRIPE_LENGTH = 32;
+
+    private final long _seed;
+    private final ByteBuffer _stripe =
+        ByteBuffer.allocate(STRIPE_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    private long _v1;
+    private long _v2;
+    private long _v3;
+    private long _v4;
+    private long _numBytes;
+    private ByteBuffer _wrapped;
+
+    public XXH64(long seed)
+    {
+        super("XXH64");
+        _seed = seed;
+        engineReset();
+    }
+
+    @Override
+    protected int engineGetDigestLength()
+    {
+        return DIGEST_LENGTH;
+    }
+
+    @Override
+    protected void engineReset()
+    {
+        _v1 = _seed + PRIME1 + PRIME2;
+        _v2 = _seed + PRIME2;
+        _v3 = _seed;
+        _v4 = _seed - PRIME1;
+        _numBytes = 0;
+        _stripe.clear();
+    }
+
+    @Override
+    protected void engineUpdate(byte input)
+    {
+        _stripe.put(input);
+        _numBytes++;
+        if (!_stripe.hasRemaining()) {
+            processStripe(_stripe, 0, false);
+            _stripe.clear();
+        }
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int length)
+    {
+        // callers typically hash consecutive blocks of the same array, so
+        // reuse the wrapper to avoid allocating one for each update. Short
+        // inputs (e.g. a seed) are not worth a wrapper of their own
+        if (length < STRIPE_LENGTH &&
+            (_wrapped == null || _wrapped.array() != input)) {
+            for (int i = offset; i < offset + length; i++) {
+                engineUpdate(input[i]);
+            }
+            return;
+        }
+        if (_wrapped == null || _wrapped.array() != input) {
+            _wrapped = ByteBuffer.wrap(input).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        update(_wrapped, offset, offset + length, false);
+    }
+
+    @Override
+    protected void engineUpdate(ByteBuffer input)
+    {
+        if (input.hasArray()) {
+            engineUpdate(input.array(), input.arrayOffset() + input.position(),
+                         input.remaining());
+        } else {
+            update(input, input.position(), input.limit(),
+                   input.order() == ByteOrder.BIG_ENDIAN);
+        }
+        input.position(input.limit());
+    }
+
+    // reads buf[offset, end) using absolute operations only, isSwapped is
+    // true if buf is in big endian byte order
+    private void update(ByteBuffer buf, int offset, int end,
+                        boolean isSwapped)
+    {
+        _numBytes += end - offset;
+        if (_stripe.position() > 0) {
+            while (offset < end && _stripe.hasRemaining()) {
+                _stripe.put(buf.get(offset++));
+            }
+            if (_stripe.hasRemaining()) {
+                return;
+            }
+            processStripe(_stripe, 0, false);
+            _stripe.clear();
+        }
+        for (; offset + STRIPE_LENGTH <= end; offset += STRIPE_LENGTH) {
+            processStripe(buf, offset, isSwapped);
+        }
+        while (offset < end) {
+            _stripe.put(buf.get(offset++));
+        }
+    }
+
+    @Override
+    protected byte[] engineDigest()
+    {
+        byte[] result = new byte[DIGEST_LENGTH];
+        BitOps.putLongAsLittleEndian(result, 0, computeHash());
+        return result;
+    }
+
+    @Override
+    protected int engineDigest(byte[] buf, int offset, int length)
+        throws DigestException
+    {
+        if (length < DIGEST_LENGTH) {
+            throw new DigestException("partial digests not returned");
+        }
+        BitOps.putLongAsLittleEndian(buf, offset, computeHash());
+        return DIGEST_LENGTH;
+    }
+
+    // returns the hash value and resets this digest
+    private long computeHash()
+    {
+        long h;
+        if (_numBytes >= STRIPE_LENGTH) {
+            h = Long.rotateLeft(_v1, 1) + Long.rotateLeft(_v2, 7) +
+                Long.rotateLeft(_v3, 12) + Long.rotateLeft(_v4, 18);
+            h = mergeRound(h, _v1);
+            h = mergeRound(h, _v2);
+            h = mergeRound(h, _v3);
+            h = mergeRound(h, _v4);
+        } else {
+            h = _seed + PRIME5;
+        }
+        h += _numBytes;
+
+        int end = _stripe.position();
+        int offset = 0;
+        for (; offset + 8 <= end; offset += 8) {
+            h ^= round(0, _stripe.getLong(offset));
+            h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+        }
+        if (offset + 4 <= end) {
+            h ^= (0xFFFFFFFFL & _stripe.getInt(offset)) * PRIME1;
+            h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+            offset += 4;
+        }
+        for (; offset < end; offset++) {
+            h ^= (0xFF & _stripe.get(offset)) * PRIME5;
+            h = Long.rotateLeft(h, 11) * PRIME1;
+        }
+
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+
+        engineReset();
+        return h;
+    }
+
+    private void processStripe(ByteBuffer buf, int offset, boolean isSwapped)
+    {
+        _v1 = round(_v1, getLong(buf, offset, isSwapped));
+        _v2 = round(_v2, getLong(buf, offset + 8, isSwapped));
+        _v3 = round(_v3, getLong(buf, offset + 16, isSwapped));
+        _v4 = round(_v4, getLong(buf, offset + 24, isSwapped));
+    }
+
+    private static long getLong(ByteBuffer buf, int offset, boolean isSwapped)
+    {
+        long value = buf.getLong(offset);
+        return isSwapped ? Long.reverseBytes(value) : value;
+    }
+
+    private static long round(long acc, long input)
+    {
+        acc += input * PRIME2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME1;
+    }
+
+    private static long mergeRound(long acc, long val)
+    {
+        acc ^= round(0, val);
+        return acc * PRIME1 + PRIME4;
+    }
+}
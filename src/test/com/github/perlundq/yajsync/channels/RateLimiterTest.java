@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.channels;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RateLimiterTest
+{
+    private static class Sink implements WritableByteChannel
+    {
+        private final ByteArrayOutputStream _out = new ByteArrayOutputStream();
+        private int _maxWriteSize;
+
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+
+        @Override
+        public int write(ByteBuffer src)
+        {
+            int length = src.remaining();
+            _maxWriteSize = Math.max(_maxWriteSize, length);
+            while (src.hasRemaining()) {
+                _out.write(src.get());
+            }
+            return length;
+        }
+    }
+
+    private static long millisSince(long startTime)
+    {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+    }
+
+    @Test
+    public void testChunkSize()
+    {
+        assertEquals(512, new RateLimiter(1024, null).chunkSize());
+        RateLimiter parent = new RateLimiter(1024 * 1024, null);
+        assertEquals(1024 * 1024 / 50, parent.chunkSize());
+        assertEquals(512, new RateLimiter(2048, parent).chunkSize());
+        assertEquals(parent.chunkSize(),
+                     new RateLimiter(1 << 30, parent).chunkSize());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidRate()
+    {
+        new RateLimiter(0, null);
+    }
+
+    @Test
+    public void testAcquire() throws InterruptedException
+    {
+        RateLimiter limiter = new RateLimiter(100 * 1024, null);
+        long startTime = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire(3 * 1024); // 300 ms in total
+        }
+        long elapsed = millisSince(startTime);
+        // the first acquire is free
+        assertTrue(elapsed + " ms", elapsed >= 250);
+    }
+
+    @Test
+    public void testParentLimits() throws InterruptedException
+    {
+        RateLimiter parent = new RateLimiter(50 * 1024, null);
+        RateLimiter limiter = new RateLimiter(1 << 30, parent);
+        long startTime = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire(1024); // 200 ms at the rate of parent
+        }
+        long elapsed = millisSince(startTime);
+        assertTrue(elapsed + " ms", elapsed >= 150);
+    }
+
+    @Test
+    public void testLimitedSend() throws ChannelException
+    {
+        Sink sink = new Sink();
+        BufferedOutputChannel channel = new BufferedOutputChannel(sink);
+        RateLimiter limiter = new RateLimiter(1024 * 1024, null);
+        channel.setRateLimiter(limiter);
+        byte[] data = new byte[100 * 1024];
+        new Random(0).nextBytes(data);
+        channel.put(data, 0, data.length);
+        channel.flush();
+        assertArrayEquals(data, sink._out.toByteArray());
+        assertEquals(data.length, channel.numBytesWritten());
+        assertTrue(sink._maxWriteSize <= limiter.chunkSize());
+    }
+}
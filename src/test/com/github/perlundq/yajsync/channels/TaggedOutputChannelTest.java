@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.channels;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.github.perlundq.yajsync.util.Consts;
+
+public class TaggedOutputChannelTest
+{
+    private static final int BUFFER_SIZE = 64;
+
+    private static class Sink implements WritableByteChannel
+    {
+        protected final ByteArrayOutputStream _out =
+            new ByteArrayOutputStream();
+
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+
+        @Override
+        public int write(ByteBuffer src)
+        {
+            int length = src.remaining();
+            while (src.hasRemaining()) {
+                _out.write(src.get());
+            }
+            return length;
+        }
+    }
+
+    private static class GatheringSink extends Sink
+                                       implements GatheringByteChannel
+    {
+        private int _numGatheringWrites;
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length)
+        {
+            _numGatheringWrites++;
+            long count = 0;
+            for (int i = offset; i < offset + length; i++) {
+                count += write(srcs[i]);
+            }
+            return count;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs)
+        {
+            return write(srcs, 0, srcs.length);
+        }
+    }
+
+    // the concatenated payload of all DATA messages, checks that any other
+    // message is a one byte INFO message equal to info
+    private static byte[] dataOf(byte[] written, byte info)
+    {
+        ByteBuffer buf = ByteBuffer.wrap(written).
+            order(ByteOrder.LITTLE_ENDIAN);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        while (buf.hasRemaining()) {
+            MessageHeader header = MessageHeader.fromTag(buf.getInt());
+            byte[] payload = new byte[header.length()];
+            buf.get(payload);
+            if (header.messageType() == MessageCode.DATA) {
+                data.write(payload, 0, payload.length);
+            } else {
+                assertEquals(MessageCode.INFO, header.messageType());
+                assertArrayEquals(new byte[] { info }, payload);
+            }
+        }
+        return data.toByteArray();
+    }
+
+    @Test
+    public void testGatheringPut() throws ChannelException
+    {
+        byte[] large = new byte[5 * BUFFER_SIZE + 3];
+        new Random(0).nextBytes(large);
+        ByteBuffer direct = ByteBuffer.allocateDirect(large.length);
+        direct.put(large).flip();
+        byte info = (byte) 'i';
+
+        GatheringSink sink = new GatheringSink();
+        TaggedOutputChannel out = new TaggedOutputChannel(sink, BUFFER_SIZE);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 3; i++) {
+            out.putInt(0x01020304);
+            expected.write(new byte[] { 4, 3, 2, 1 }, 0, 4);
+            out.put(ByteBuffer.wrap(large));
+            expected.write(large, 0, large.length);
+            out.putMessage(new Message(MessageCode.INFO,
+                                       ByteBuffer.wrap(new byte[] { info })));
+            out.put(direct.duplicate());
+            expected.write(large, 0, large.length);
+            out.put(ByteBuffer.wrap(large, 0, 7));
+            expected.write(large, 0, 7);
+        }
+        out.flush();
+
+        byte[] written = sink._out.toByteArray();
+        assertArrayEquals(expected.toByteArray(), dataOf(written, info));
+        assertEquals(written.length, out.numBytesWritten());
+        assertTrue(sink._numGatheringWrites > 0);
+    }
+
+    @Test
+    public void testCopyingPutWithoutGatheringSink() throws ChannelException
+    {
+        Sink sink = new Sink();
+        TaggedOutputChannel out = new TaggedOutputChannel(sink, BUFFER_SIZE);
+        byte[] large = "a rather long text which is longer than the buffer".
+            getBytes(StandardCharsets.US_ASCII);
+        out.put(ByteBuffer.wrap(large));
+        out.put(ByteBuffer.wrap(large));
+        out.flush();
+
+        byte[] expected = new byte[2 * large.length];
+        System.arraycopy(large, 0, expected, 0, large.length);
+        System.arraycopy(large, 0, expected, large.length, large.length);
+        assertArrayEquals(expected, dataOf(sink._out.toByteArray(), (byte) 0));
+    }
+
+    @Test
+    public void testSetBufferSize() throws ChannelException
+    {
+        Sink sink = new Sink();
+        TaggedOutputChannel out = new TaggedOutputChannel(sink);
+        out.setBufferSize(4 * Consts.DEFAULT_CHANNEL_BUF_SIZE);
+        assertEquals(4 * Consts.DEFAULT_CHANNEL_BUF_SIZE, out.bufferSize());
+
+        out.putInt(4711);
+        out.setBufferSize(Consts.DEFAULT_CHANNEL_BUF_SIZE);
+        assertEquals(4 * Consts.DEFAULT_CHANNEL_BUF_SIZE, out.bufferSize());
+        out.flush();
+        assertEquals(Consts.DEFAULT_CHANNEL_BUF_SIZE, out.bufferSize());
+
+        ByteBuffer data = ByteBuffer.wrap(dataOf(sink._out.toByteArray(),
+                                                 (byte) 0)).
+            order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(4711, data.getInt());
+        assertEquals(0, data.remaining());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetBufferSizeTooLarge()
+    {
+        new TaggedOutputChannel(new Sink()).
+            setBufferSize(Consts.MAX_CHANNEL_BUF_SIZE + 1);
+    }
+
+    @Test
+    public void testAdaptiveGrowth() throws ChannelException
+    {
+        int maxBufferSize = 8 * Consts.DEFAULT_CHANNEL_BUF_SIZE;
+        Sink sink = new Sink();
+        TaggedOutputChannel out = new TaggedOutputChannel(sink);
+        out.setMaxBufferSize(maxBufferSize);
+
+        // a few small flushes do not make it grow
+        for (int i = 0; i < 10; i++) {
+            out.putInt(i);
+            out.flush();
+        }
+        assertEquals(Consts.DEFAULT_CHANNEL_BUF_SIZE, out.bufferSize());
+
+        int numInts = 1024 * 1024;
+        for (int i = 0; i < numInts; i++) {
+            out.putInt(i);
+        }
+        out.flush();
+        assertEquals(maxBufferSize, out.bufferSize());
+
+        ByteBuffer data = ByteBuffer.wrap(dataOf(sink._out.toByteArray(),
+                                                 (byte) 0)).
+            order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, data.getInt());
+        }
+        for (int i = 0; i < numInts; i++) {
+            assertEquals(i, data.getInt());
+        }
+        assertEquals(0, data.remaining());
+    }
+
+    @Test
+    public void testInputSetBufferSize() throws ChannelException
+    {
+        Sink sink = new Sink();
+        TaggedOutputChannel out = new TaggedOutputChannel(sink);
+        int numInts = 100000;
+        for (int i = 0; i < numInts; i++) {
+            out.putInt(i);
+        }
+        out.flush();
+
+        PrefetchedTaggedInputChannel in = new PrefetchedTaggedInputChannel(
+            Channels.newChannel(new ByteArrayInputStream(
+                sink._out.toByteArray())),
+            new MessageHandler() {
+                @Override
+                public void handleMessage(Message message)
+                {
+                    throw new IllegalStateException(message.toString());
+                }
+            });
+        int bufferSize = 16 * Consts.DEFAULT_CHANNEL_BUF_SIZE;
+        for (int i = 0; i < numInts; i++) {
+            if (i == 10) {
+                in.setBufferSize(bufferSize);
+            } else if (i == numInts / 2) {
+                in.setBufferSize(Consts.DEFAULT_CHANNEL_BUF_SIZE);
+            }
+            assertEquals(i, in.getInt());
+        }
+        assertEquals(Consts.DEFAULT_CHANNEL_BUF_SIZE, in.bufferSize());
+    }
+}
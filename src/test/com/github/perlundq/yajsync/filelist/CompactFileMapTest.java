@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.filelist;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.github.perlundq.yajsync.util.FileOps;
+
+public class CompactFileMapTest {
+
+    private static final Path ROOT = Paths.get("/path/to/module/root");
+
+    private static FileInfo newFileInfo(Path path, Path normalizedPath,
+                                        String pathName, int mode,
+                                        long size, User user)
+    {
+        RsyncFileAttributes attrs =
+            new RsyncFileAttributes(mode, size, size * 1000, user,
+                                    Group.whoami());
+        return new FileInfo(path, normalizedPath, pathName.getBytes(),
+                            attrs);
+    }
+
+    private static List<FileInfo> newFiles()
+    {
+        List<FileInfo> result = new ArrayList<>();
+        Path dot = Paths.get(".");
+        result.add(newFileInfo(ROOT, dot, ".", FileOps.S_IFDIR | 0755, 0,
+                               User.whoami()));
+        for (int i = 0; i < 3000; i++) {
+            String name = i % 7 == 0 ? "name with spaces " + i : "f" + i;
+            Path rel = i % 2 == 0 ? Paths.get("dir", name)
+                                  : Paths.get("dir", "sub", name);
+            User user = i % 3 == 0 ? User.root() : User.nobody();
+            int mode = i % 5 == 0 ? FileOps.S_IFDIR | 0700
+                                  : FileOps.S_IFREG | 0644;
+            result.add(newFileInfo(ROOT.resolve(rel), rel,
+                                   rel.toString(), mode, i, user));
+        }
+        // path name not ending with the file name, e.g. another encoding
+        Path rel = Paths.get("dir", "x");
+        result.add(newFileInfo(ROOT.resolve(rel), rel, "dir/y",
+                               FileOps.S_IFREG | 0644, 1, User.whoami()));
+        // a top level argument of a non recursive transfer
+        Path arg = Paths.get("/tmp/arg");
+        result.add(newFileInfo(arg, arg.getFileName(), "arg",
+                               FileOps.S_IFREG | 0644, 2, User.whoami()));
+        // only receivers have files without paths
+        result.add(newFileInfo(null, null, "null",
+                               FileOps.S_IFREG | 0644, 3, User.whoami()));
+        return result;
+    }
+
+    private static void assertFileInfoEquals(FileInfo expected,
+                                             FileInfo actual)
+    {
+        assertEquals(expected, actual);
+        assertEquals(expected.path(), actual.path());
+        assertEquals(expected.normalizedPath(), actual.normalizedPath());
+        assertArrayEquals(expected.pathNameBytes(), actual.pathNameBytes());
+        assertEquals(expected.attrs(), actual.attrs());
+    }
+
+    @Test
+    public void testPutGetRemoveIterate()
+    {
+        List<FileInfo> files = newFiles();
+        CompactFileMap map = new CompactFileMap(files.size() / 2);
+        int firstIndex = 10;
+        for (int i = 0; i < files.size(); i++) {
+            map.put(firstIndex + i, files.get(i));
+        }
+        assertEquals(files.size(), map.size());
+        assertNull(map.get(firstIndex - 1));
+        assertNull(map.get(firstIndex + files.size()));
+        for (int i = 0; i < files.size(); i++) {
+            assertFileInfoEquals(files.get(i), map.get(firstIndex + i));
+        }
+
+        for (int i = 0; i < files.size(); i += 2) {
+            assertFileInfoEquals(files.get(i), map.remove(firstIndex + i));
+            assertFalse(map.containsKey(firstIndex + i));
+            assertNull(map.remove(firstIndex + i));
+        }
+        int i = 1;
+        for (Map.Entry<Integer, FileInfo> e : map.entrySet()) {
+            assertEquals(firstIndex + i, (int) e.getKey());
+            assertFileInfoEquals(files.get(i), e.getValue());
+            i += 2;
+        }
+        assertEquals(files.size() + 1 - files.size() % 2, i);
+        assertEquals(files.size() / 2, map.size());
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertFalse(map.entrySet().iterator().hasNext());
+    }
+}
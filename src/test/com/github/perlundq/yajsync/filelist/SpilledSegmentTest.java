@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.filelist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNoException;
+
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.github.perlundq.yajsync.util.FileOps;
+
+public class SpilledSegmentTest {
+
+    private static final Path ROOT = Paths.get("/path/to/module/root/");
+
+    private static FileInfo newFileInfo(String name, boolean isDirectory,
+                                        long size)
+    {
+        int mode = isDirectory ? FileOps.S_IFDIR | 0755
+                               : FileOps.S_IFREG | 0644;
+        RsyncFileAttributes attrs =
+            new RsyncFileAttributes(mode, size, 1234567890, User.whoami(),
+                                    Group.whoami());
+        Path p = Paths.get(name);
+        byte[] nameBytes = (isDirectory ? name + "/" : name).getBytes();
+        return new FileInfo(ROOT.resolve(p), p, nameBytes, attrs);
+    }
+
+    // unsorted, with every 50:th name a duplicate
+    private static List<FileInfo> newFiles(int numFiles)
+    {
+        Random random = new Random(numFiles);
+        List<FileInfo> result = new ArrayList<>();
+        for (int i = 0; i < numFiles; i++) {
+            String name = String.format("f%06d", i - i % 50 / 49);
+            result.add(newFileInfo(name, random.nextInt(8) == 0, i));
+        }
+        Collections.shuffle(result, random);
+        return result;
+    }
+
+    private static Filelist.Segment newSegment(Filelist fileList,
+                                               List<FileInfo> files,
+                                               int spillThreshold)
+    {
+        Filelist.SegmentBuilder builder =
+            new Filelist.SegmentBuilder(null, spillThreshold);
+        builder.addAll(files);
+        assertEquals(files.size(), builder.size());
+        return fileList.newSegment(builder);
+    }
+
+    private static List<String> toStrings(Filelist.Segment segment)
+    {
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<Integer, FileInfo> e : segment.entrySet()) {
+            // NOTE: which one of duplicates is kept is unspecified
+            result.add(e.getKey() + " " + e.getValue().path());
+        }
+        return result;
+    }
+
+    @Test
+    public void testSpilledEqualsInMemory()
+    {
+        List<FileInfo> files = newFiles(1000);
+        Filelist.Segment expected = newSegment(new Filelist(false), files, 0);
+        Filelist fileList = new Filelist(false);
+        Filelist.Segment actual = newSegment(fileList, files, 7);
+        assertEquals(toStrings(expected), toStrings(actual));
+        fileList.close();
+    }
+
+    @Test
+    public void testSpilledCascadingMerge()
+    {
+        // more runs than merged at once
+        List<FileInfo> files = newFiles(5000);
+        Filelist.Segment expected = newSegment(new Filelist(false), files, 0);
+        Filelist fileList = new Filelist(false);
+        Filelist.Segment actual = newSegment(fileList, files, 3);
+        assertEquals(toStrings(expected), toStrings(actual));
+        fileList.close();
+    }
+
+    @Test
+    public void testSpilledLookupAndRemove()
+    {
+        List<FileInfo> files = newFiles(500);
+        Filelist.Segment expected = newSegment(new Filelist(false), files, 0);
+        Filelist fileList = new Filelist(false);
+        Filelist.Segment actual = newSegment(fileList, files, 10);
+        for (int i = 0; i <= files.size() + 1; i++) {
+            assertEquals(expected.getFileWithIndexOrNull(i),
+                         actual.getFileWithIndexOrNull(i));
+        }
+        for (int i = 0; i <= files.size(); i += 3) {
+            assertEquals(expected.remove(i), actual.remove(i));
+            assertNull(actual.getFileWithIndexOrNull(i));
+        }
+        assertEquals(toStrings(expected), toStrings(actual));
+        expected.removeAll();
+        actual.removeAll();
+        assertTrue(actual.isFinished());
+        assertFalse(actual.entrySet().iterator().hasNext());
+        fileList.close();
+    }
+
+    @Test
+    public void testSpilledUndecodableName()
+    {
+        // a name which could not be decoded, e.g. a non ASCII name in the C
+        // locale, is not recreated from its string and must be kept as is
+        List<FileInfo> files = newFiles(500);
+        List<FileInfo> undecodable = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            try {
+                undecodable.add(newFileInfo(String.format("f%06d\uFFFD",
+                                                          i * 97),
+                                            false, i));
+            } catch (InvalidPathException e) {
+                assumeNoException(e);
+            }
+        }
+        files.addAll(undecodable);
+        Collections.shuffle(files, new Random(0));
+        Filelist.Segment expected = newSegment(new Filelist(false), files, 0);
+        Filelist fileList = new Filelist(false);
+        Filelist.Segment actual = newSegment(fileList, files, 10);
+        assertEquals(toStrings(expected), toStrings(actual));
+        int numFound = 0;
+        for (Map.Entry<Integer, FileInfo> e : actual.entrySet()) {
+            int i = undecodable.indexOf(e.getValue());
+            if (i >= 0) {
+                assertSame(undecodable.get(i).path(), e.getValue().path());
+                assertSame(undecodable.get(i).path(),
+                           actual.getFileWithIndexOrNull(e.getKey()).path());
+                numFound++;
+            }
+        }
+        assertEquals(undecodable.size(), numFound);
+        for (int i = 0; i <= files.size(); i += 2) {
+            assertEquals(expected.remove(i), actual.remove(i));
+        }
+        assertEquals(toStrings(expected), toStrings(actual));
+        fileList.close();
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileViewTest
+{
+    private static final int FILE_SIZE = 100 * 1000 + 17;
+    private static final int WINDOW_LENGTH = 700;
+    private static final int BUFFER_SIZE = 10 * WINDOW_LENGTH;
+
+    private Path _path;
+    private byte[] _content;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        _path = Files.createTempFile(getClass().getSimpleName(), null);
+        _content = new byte[FILE_SIZE];
+        new Random(0).nextBytes(_content);
+        Files.write(_path, _content);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        Files.deleteIfExists(_path);
+    }
+
+    private static void append(ByteArrayOutputStream out, FileView fv,
+                               int offset, int length)
+    {
+        byte[] bytes = new byte[length];
+        fv.copyTo(offset, bytes, 0, length);
+        out.write(bytes, 0, length);
+    }
+
+    // slide through the view the same way as Sender does, by marking,
+    // sliding one byte at a time and flushing marked data when full, while
+    // optionally verifying the window contents
+    private byte[] scan(FileView fv, boolean isVerify)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Random random = new Random(1);
+        long filePosition = 0;
+        fv.setMarkRelativeToStart(0);
+        while (fv.windowLength() > 0) {
+            if (isVerify) {
+                assertEquals(_content[(int) filePosition],
+                             fv.valueAt(fv.startOffset()));
+            }
+            if (random.nextInt(100) == 0) { // emulate a match
+                append(out, fv, fv.firstOffset(), fv.totalBytes());
+                filePosition += fv.windowLength();
+                fv.setMarkRelativeToStart(fv.windowLength());
+                fv.slide(fv.windowLength());
+            } else if (fv.isFull()) {
+                append(out, fv, fv.firstOffset(), fv.totalBytes());
+                filePosition += fv.windowLength();
+                fv.setMarkRelativeToStart(fv.windowLength());
+                fv.slide(fv.windowLength());
+            } else {
+                filePosition++;
+                fv.slide(1);
+            }
+        }
+        append(out, fv, fv.firstOffset(), fv.totalBytes());
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testRead() throws Exception
+    {
+        try (FileView fv = new FileView(_path, FILE_SIZE, WINDOW_LENGTH,
+                                        BUFFER_SIZE, Long.MAX_VALUE,
+                                        FileView.MAP_REGION_SIZE)) {
+            assertFalse(fv.isMapped());
+            assertArrayEquals(_content, scan(fv, true));
+        }
+    }
+
+    @Test
+    public void testMapped() throws Exception
+    {
+        try (FileView fv = new FileView(_path, FILE_SIZE, WINDOW_LENGTH,
+                                        BUFFER_SIZE, 1,
+                                        FileView.MAP_REGION_SIZE)) {
+            assertTrue(fv.isMapped());
+            assertArrayEquals(_content, scan(fv, true));
+        }
+    }
+
+    @Test
+    public void testMappedRemap() throws Exception
+    {
+        // region size is less than buffer size, i.e. remapped every
+        // BUFFER_SIZE bytes
+        try (FileView fv = new FileView(_path, FILE_SIZE, WINDOW_LENGTH,
+                                        BUFFER_SIZE, 1, 1)) {
+            assertTrue(fv.isMapped());
+            assertArrayEquals(_content, scan(fv, true));
+            assertTrue(fv.isMapped());
+        }
+    }
+
+    @Test(expected = FileViewReadError.class)
+    public void testMappedTruncated() throws Exception
+    {
+        try (FileView fv = new FileView(_path, FILE_SIZE + WINDOW_LENGTH,
+                                        WINDOW_LENGTH, BUFFER_SIZE, 1, 1)) {
+            byte[] result = scan(fv, false);
+            assertFalse(fv.isMapped());
+            assertEquals(FILE_SIZE + WINDOW_LENGTH, result.length);
+        }
+    }
+
+    private void truncate(long size) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(_path,
+                                                    StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+
+    @Test(expected = FileViewReadError.class)
+    public void testTruncatedBeforeRemap() throws Exception
+    {
+        int size = FILE_SIZE / 2;
+        try (FileView fv = new FileView(_path, FILE_SIZE, WINDOW_LENGTH,
+                                        BUFFER_SIZE, 1, 1)) {
+            truncate(size);
+            byte[] result = scan(fv, false);
+            assertFalse(fv.isMapped());
+            assertEquals(FILE_SIZE, result.length);
+            assertArrayEquals(Arrays.copyOf(_content, size),
+                              Arrays.copyOf(result, size));
+        }
+    }
+
+    @Test(expected = FileViewReadError.class)
+    public void testTruncatedWhileMapped() throws Exception
+    {
+        try (FileView fv = new FileView(_path, FILE_SIZE, WINDOW_LENGTH,
+                                        BUFFER_SIZE, 1,
+                                        FileView.MAP_REGION_SIZE)) {
+            assertTrue(fv.isMapped());
+            truncate(0);
+            assertArrayEquals(new byte[FILE_SIZE], scan(fv, false));
+            assertFalse(fv.isMapped());
+        }
+    }
+
+    @Test(expected = FileViewReadError.class)
+    public void testAccessErrorWhileMapped() throws Exception
+    {
+        try (FileView fv = new FileView(_path, FILE_SIZE, WINDOW_LENGTH,
+                                        BUFFER_SIZE, 1,
+                                        FileView.MAP_REGION_SIZE)) {
+            truncate(0);
+            try {
+                long sum = 0;
+                for (int i = 0; i < FILE_SIZE; i++) {
+                    sum += fv.buffer().get(i);
+                }
+                fail("read " + sum);
+            } catch (InternalError e) {
+                fv.setAccessError(e);
+            }
+            assertFalse(fv.isMapped());
+            assertArrayEquals(new byte[FILE_SIZE], scan(fv, false));
+        }
+    }
+}
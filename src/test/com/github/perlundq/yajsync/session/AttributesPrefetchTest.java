@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.perlundq.yajsync.filelist.RsyncFileAttributes;
+
+public class AttributesPrefetchTest {
+
+    private static final int NUM_FILES = 1000;
+
+    private Path _root;
+    private ForkJoinPool _pool;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        _root = Files.createTempDirectory("yajsync-prefetch-");
+        Files.write(_root.resolve("f"), new byte[3]);
+        _pool = new ForkJoinPool(4);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        _pool.shutdownNow();
+        Files.delete(_root.resolve("f"));
+        Files.delete(_root);
+    }
+
+    @Test
+    public void testAttributesInIndexOrder() throws IOException
+    {
+        int[] indices = new int[NUM_FILES];
+        Path[] paths = new Path[NUM_FILES];
+        for (int i = 0; i < NUM_FILES; i++) {
+            indices[i] = 2 * i + 1;
+            // every other one exists
+            paths[i] = _root.resolve(i % 2 == 0 ? "f" : "missing" + i);
+        }
+        AttributesPrefetch prefetch =
+            new AttributesPrefetch(_pool, indices, paths, 17);
+        assertEquals(17, prefetch.generation());
+        RsyncFileAttributes expected =
+            RsyncFileAttributes.stat(_root.resolve("f"));
+        for (int i = 0; i < NUM_FILES; i++) {
+            assertTrue(prefetch.contains(indices[i]));
+            assertFalse(prefetch.contains(indices[i] + 1));
+            RsyncFileAttributes attrs = prefetch.statIfExists(indices[i]);
+            if (i % 2 == 0) {
+                assertEquals(expected, attrs);
+            } else {
+                assertNull(attrs);
+            }
+        }
+    }
+
+    @Test
+    public void testStatError() throws IOException
+    {
+        // a path below a regular file
+        Path[] paths = { _root.resolve("f").resolve("x"), _root };
+        AttributesPrefetch prefetch =
+            new AttributesPrefetch(_pool, new int[] { 0, 1 }, paths, 0);
+        assertTrue(prefetch.statIfExists(1).isDirectory());
+        try {
+            prefetch.statIfExists(0);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotPrefetched() throws IOException
+    {
+        AttributesPrefetch prefetch =
+            new AttributesPrefetch(_pool, new int[] { 4 },
+                                   new Path[] { _root }, 0);
+        prefetch.cancel();
+        prefetch.statIfExists(5);
+    }
+}
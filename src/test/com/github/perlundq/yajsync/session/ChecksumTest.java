@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ChecksumTest
+{
+    private static final int BLOCK_LENGTH = 512;
+    private static final int DIGEST_LENGTH = 2;
+
+    private static Checksum newChecksum(int[] rollings, int remainder)
+        throws Checksum.ChunkOverflow
+    {
+        long fileSize = (long) BLOCK_LENGTH * rollings.length;
+        if (remainder > 0) {
+            fileSize -= BLOCK_LENGTH - remainder;
+        }
+        Checksum.Header header = new Checksum.Header(BLOCK_LENGTH,
+                                                     DIGEST_LENGTH,
+                                                     fileSize);
+        Checksum checksum = new Checksum(header);
+        for (int i = 0; i < rollings.length; i++) {
+            checksum.addChunkInformation(rollings[i], digestFor(i));
+        }
+        return checksum;
+    }
+
+    private static byte[] digestFor(int chunkIndex)
+    {
+        return new byte[] { (byte) chunkIndex, (byte) (chunkIndex >>> 8) };
+    }
+
+    private static List<Integer> candidates(Checksum checksum, int rolling,
+                                            int length, int preferredIndex)
+    {
+        List<Integer> result = new ArrayList<>();
+        for (int i = checksum.firstCandidate(rolling, length, preferredIndex);
+             i != Checksum.NO_CHUNK;
+             i = checksum.nextCandidate()) {
+            result.add(i);
+        }
+        return result;
+    }
+
+    @Test
+    public void testNoChunks() throws Checksum.ChunkOverflow
+    {
+        Checksum checksum = newChecksum(new int[0], 0);
+        assertEquals(Checksum.NO_CHUNK, checksum.firstCandidate(0, 0, 0));
+        assertEquals(Checksum.NO_CHUNK, checksum.nextCandidate());
+    }
+
+    @Test
+    public void testMissingRolling() throws Checksum.ChunkOverflow
+    {
+        Checksum checksum = newChecksum(new int[] { 1, 2, 3 }, 0);
+        assertEquals(Checksum.NO_CHUNK,
+                     checksum.firstCandidate(4, BLOCK_LENGTH, 0));
+    }
+
+    @Test
+    public void testPreferredIndexFirst() throws Checksum.ChunkOverflow
+    {
+        Checksum checksum = newChecksum(new int[] { 7, 1, 7, 7, 2, 7 }, 0);
+        assertEquals(Arrays.asList(0, 2, 3, 5),
+                     candidates(checksum, 7, BLOCK_LENGTH, 0));
+        assertEquals(Arrays.asList(3, 0, 2, 5),
+                     candidates(checksum, 7, BLOCK_LENGTH, 3));
+        // closest following chunk of preferred index 4 is 5
+        assertEquals(Arrays.asList(5, 0, 2, 3),
+                     candidates(checksum, 7, BLOCK_LENGTH, 4));
+        // no following chunk, use the last one
+        assertEquals(Arrays.asList(5, 0, 2, 3),
+                     candidates(checksum, 7, BLOCK_LENGTH, 6));
+        assertEquals(Arrays.asList(1),
+                     candidates(checksum, 1, BLOCK_LENGTH, 3));
+    }
+
+    @Test
+    public void testLengthFilter() throws Checksum.ChunkOverflow
+    {
+        Checksum checksum = newChecksum(new int[] { 9, 9, 9 }, 100);
+        assertEquals(Arrays.asList(0, 1),
+                     candidates(checksum, 9, BLOCK_LENGTH, 2));
+        assertEquals(Arrays.asList(2), candidates(checksum, 9, 100, 0));
+    }
+
+    @Test
+    public void testCollidingSlots() throws Checksum.ChunkOverflow
+    {
+        int numChunks = 5000;
+        int[] rollings = new int[numChunks];
+        for (int i = 0; i < numChunks; i++) {
+            rollings[i] = (i % 1000) << 16;
+        }
+        Checksum checksum = newChecksum(rollings, 0);
+        for (int r = 0; r < 1000; r++) {
+            assertEquals(Arrays.asList(r, r + 1000, r + 2000, r + 3000,
+                                       r + 4000),
+                         candidates(checksum, r << 16, BLOCK_LENGTH, 0));
+        }
+        assertEquals(Checksum.NO_CHUNK,
+                     checksum.firstCandidate(1000 << 16, BLOCK_LENGTH, 0));
+    }
+
+    @Test
+    public void testDigest() throws Checksum.ChunkOverflow
+    {
+        Checksum checksum = newChecksum(new int[] { 1, 2, 3 }, 0);
+        byte[] digest = Arrays.copyOf(digestFor(1), 16);
+        assertTrue(checksum.isDigestEqual(1, digest));
+        assertFalse(checksum.isDigestEqual(2, digest));
+        assertTrue(Arrays.equals(digestFor(2), checksum.digestOf(2)));
+    }
+
+    @Test
+    public void testTagTable() throws Checksum.ChunkOverflow
+    {
+        Checksum checksum = newChecksum(new int[] { 0x00010002, 0x7 }, 0);
+        assertTrue(checksum.mayContain(0x00010002));
+        assertTrue(checksum.mayContain(0x7));
+        // same tag (sum of 16 bit halves) as 0x00010002
+        assertTrue(checksum.mayContain(0x00020001));
+        assertFalse(checksum.mayContain(0x00010003));
+        assertFalse(newChecksum(new int[0], 0).mayContain(0));
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DirectCopyTest
+{
+    // the sizes of the files of the source directory, one of them at
+    // least Sender.DIRECT_COPY_FLUSH_SIZE
+    private static final int[] FILE_SIZES = { 0, 1, 4711, 3 * 1024 * 1024 + 1 };
+
+    private Path _root;
+    private Path _source;
+    private final List<Path> _files = new ArrayList<>();
+
+    // collects the names of the files received, relative to destination
+    private static final class ItemizeHandler extends Handler
+    {
+        private final Path _destination;
+        private final List<String> _names = new ArrayList<>();
+
+        ItemizeHandler(Path destination)
+        {
+            _destination = destination;
+        }
+
+        @Override
+        public void publish(LogRecord record)
+        {
+            if (record.getLevel() == Level.INFO) {
+                Path path = _destination.getFileSystem().getPath(
+                    record.getMessage());
+                _names.add(_destination.relativize(path).toString());
+            }
+        }
+
+        @Override
+        public void flush()
+        {
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException
+    {
+        _root = Files.createTempDirectory("yajsync-directcopy-");
+        _source = Files.createDirectory(_root.resolve("source"));
+        Path sub = Files.createDirectory(_source.resolve("sub"));
+        Random random = new Random(0);
+        for (int i = 0; i < FILE_SIZES.length; i++) {
+            byte[] content = new byte[FILE_SIZES[i]];
+            random.nextBytes(content);
+            Path dir = i % 2 == 0 ? _source : sub;
+            _files.add(Files.write(dir.resolve("f" + i), content));
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        Files.walkFileTree(_root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file,
+                                             BasicFileAttributes attrs)
+                throws IOException
+            {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir,
+                                                      IOException e)
+                throws IOException
+            {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // @return the names of the files received as logged by Receiver
+    private List<String> transfer(RsyncLocal localTransfer,
+                                  Path destination)
+        throws Exception
+    {
+        localTransfer.setIsRecursiveTransfer(true);
+        localTransfer.setIsPreserveTimes(true);
+        PrintStream nullOut = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) { /* nop */ }
+        });
+        Logger logger = Logger.getLogger(Receiver.class.getName());
+        ItemizeHandler handler = new ItemizeHandler(destination);
+        boolean isUseParentHandlers = logger.getUseParentHandlers();
+        logger.addHandler(handler);
+        logger.setUseParentHandlers(false);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            assertTrue(localTransfer.transfer(
+                executor, nullOut, Collections.singletonList(_source),
+                destination.toString()));
+        } finally {
+            executor.shutdown();
+            logger.removeHandler(handler);
+            logger.setUseParentHandlers(isUseParentHandlers);
+        }
+        for (Path file : _files) {
+            Path copy = destination.resolve(_root.relativize(file));
+            assertArrayEquals(Files.readAllBytes(file),
+                              Files.readAllBytes(copy));
+        }
+        return handler._names;
+    }
+
+    @Test
+    public void testDirectCopyKeepsItemizeOutput() throws Exception
+    {
+        RsyncLocal direct = new RsyncLocal();
+        List<String> directNames = transfer(direct,
+                                            _root.resolve("direct"));
+        RsyncLocal piped = new RsyncLocal();
+        piped.setIsDirectCopy(false);
+        List<String> pipedNames = transfer(piped, _root.resolve("piped"));
+
+        assertEquals(FILE_SIZES.length, directNames.size());
+        assertEquals(pipedNames, directNames);
+        assertEquals(FILE_SIZES.length,
+                     direct.statistics().numDirectCopiedFiles());
+        assertEquals(0, piped.statistics().numDirectCopiedFiles());
+        assertEquals(piped.statistics().numTransferredFiles(),
+                     direct.statistics().numTransferredFiles());
+        assertEquals(piped.statistics().totalLiteralSize(),
+                     direct.statistics().totalLiteralSize());
+    }
+
+    @Test
+    public void testFilesWithBasisAreNotCopiedDirectly() throws Exception
+    {
+        Path destination = _root.resolve("destination");
+        transfer(new RsyncLocal(), destination);
+        Path file = _files.get(_files.size() - 1);
+        try (OutputStream out = Files.newOutputStream(
+                 file, StandardOpenOption.APPEND)) {
+            out.write(new byte[] { 1, 2, 3 });
+        }
+        RsyncLocal localTransfer = new RsyncLocal();
+        List<String> names = transfer(localTransfer, destination);
+        assertEquals(Collections.singletonList(
+                         _root.relativize(file).toString()),
+                     names);
+        assertEquals(0, localTransfer.statistics().numDirectCopiedFiles());
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.perlundq.yajsync.filelist.RsyncFileAttributes;
+
+public class DirectoryScannerTest {
+
+    private Path _root;
+    private final List<Path> _directories = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException
+    {
+        _root = Files.createTempDirectory("yajsync-scanner-");
+        for (int i = 0; i < 4; i++) {
+            Path dir = Files.createDirectory(_root.resolve("d" + i));
+            _directories.add(dir);
+            // more than one batch in one of them
+            int numFiles = i == 0 ? 2500 : 10 * i;
+            for (int j = 0; j < numFiles; j++) {
+                Files.write(dir.resolve("f" + j), new byte[i]);
+            }
+            Files.createDirectory(dir.resolve("sub"));
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        for (Path dir : _directories) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path p : stream) {
+                    Files.delete(p);
+                }
+            }
+            Files.delete(dir);
+        }
+        Files.delete(_root);
+    }
+
+    private static List<String> expectedListing(Path dir) throws IOException
+    {
+        List<String> result = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path p : stream) {
+                result.add(p + " " + RsyncFileAttributes.stat(p));
+            }
+        }
+        return result;
+    }
+
+    private static List<String> listing(DirectoryScanner scanner, Path dir)
+        throws IOException
+    {
+        List<String> result = new ArrayList<>();
+        try (DirectoryScanner.Listing listing = scanner.open(dir)) {
+            for (DirectoryScanner.Entry e = listing.nextOrNull(); e != null;
+                 e = listing.nextOrNull()) {
+                result.add(e.path() + " " + e.attrs());
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testSerialListingInStreamOrder() throws IOException
+    {
+        try (DirectoryScanner scanner = new DirectoryScanner(0)) {
+            for (Path dir : _directories) {
+                assertFalse(scanner.prefetch(dir));
+                assertEquals(expectedListing(dir), listing(scanner, dir));
+            }
+        }
+    }
+
+    @Test
+    public void testParallelListingInStreamOrder() throws IOException
+    {
+        try (DirectoryScanner scanner = new DirectoryScanner(2)) {
+            for (Path dir : _directories) {
+                assertTrue(scanner.prefetch(dir));
+            }
+            for (Path dir : _directories) {
+                assertEquals(expectedListing(dir), listing(scanner, dir));
+            }
+            // prefetched but never opened
+            assertTrue(scanner.prefetch(_directories.get(0)));
+        }
+    }
+
+    @Test
+    public void testPrefetchIsBounded() throws IOException
+    {
+        try (DirectoryScanner scanner = new DirectoryScanner(1)) {
+            int numPrefetched = 0;
+            for (int i = 0; i < 100; i++) {
+                Path dir = _directories.get(i % 4).resolve("x" + i);
+                if (scanner.prefetch(dir)) {
+                    numPrefetched++;
+                }
+            }
+            assertTrue(numPrefetched > 0 && numPrefetched < 100);
+        }
+    }
+
+    @Test
+    public void testMissingDirectory() throws IOException
+    {
+        Path missing = _root.resolve("missing");
+        for (int numThreads = 0; numThreads < 2; numThreads++) {
+            try (DirectoryScanner scanner = new DirectoryScanner(numThreads)) {
+                scanner.prefetch(missing);
+                try (DirectoryScanner.Listing listing = scanner.open(missing)) {
+                    listing.nextOrNull();
+                    fail();
+                } catch (IOException e) {
+                    // expected
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.perlundq.yajsync.filelist.RsyncFileAttributes;
+
+public class FileListSnapshotTest {
+
+    private Path _root;
+    private Path _source;
+    private Path _sub;
+    private Path _snapshotDir;
+    private long _lastNumMismatches;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        _root = Files.createTempDirectory("yajsync-snapshot-");
+        _source = Files.createDirectory(_root.resolve("source"));
+        _sub = Files.createDirectory(_source.resolve("sub"));
+        for (int i = 0; i < 1500; i++) {
+            Files.write(_source.resolve("f" + i), new byte[i % 7]);
+        }
+        Files.write(_sub.resolve("g"), new byte[1]);
+        _snapshotDir = _root.resolve("snapshots");
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        Files.walkFileTree(_root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file,
+                                             BasicFileAttributes attrs)
+                throws IOException
+            {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir,
+                                                      IOException e)
+                throws IOException
+            {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // lists directories with a new scan of snapshot, committing it
+    private Map<Path, RsyncFileAttributes> scan(FileListSnapshot snapshot,
+                                                Path... directories)
+        throws IOException
+    {
+        Map<Path, RsyncFileAttributes> result = new TreeMap<>();
+        try (FileListSnapshot.Scan scan =
+                 snapshot.begin(Collections.singletonList(directories[0]));
+             DirectoryScanner scanner = new DirectoryScanner(2, scan)) {
+            for (Path dir : directories) {
+                scanner.prefetch(dir);
+            }
+            for (Path dir : directories) {
+                try (DirectoryScanner.Listing listing = scanner.open(dir)) {
+                    for (DirectoryScanner.Entry e = listing.nextOrNull();
+                         e != null; e = listing.nextOrNull()) {
+                        result.put(e.path(), e.attrs());
+                    }
+                }
+            }
+            scan.commit();
+            _lastNumMismatches = scan.numMismatches();
+        }
+        return result;
+    }
+
+    private Map<Path, RsyncFileAttributes> expected() throws IOException
+    {
+        Map<Path, RsyncFileAttributes> result = new TreeMap<>();
+        for (Path dir : new Path[] { _source, _sub }) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path p : stream) {
+                    result.put(p, RsyncFileAttributes.stat(p));
+                }
+            }
+        }
+        return result;
+    }
+
+    private void modifyInPlace(Path file) throws IOException
+    {
+        Files.write(file, new byte[100], StandardOpenOption.APPEND);
+    }
+
+    @Test
+    public void testUnchangedDirectoriesAreReused() throws IOException
+    {
+        FileListSnapshot snapshot =
+            new FileListSnapshot(_snapshotDir, false, 0);
+        Map<Path, RsyncFileAttributes> first = scan(snapshot, _source, _sub);
+        assertEquals(expected(), first);
+
+        // the time stamps of source do not change, but its entries are
+        // stat:ed anyway
+        modifyInPlace(_source.resolve("f3"));
+        // whereas those of sub do change
+        Files.write(_sub.resolve("h"), new byte[2]);
+
+        Map<Path, RsyncFileAttributes> second = scan(snapshot, _source, _sub);
+        assertEquals(expected(), second);
+        assertTrue(!first.get(_source.resolve("f3")).equals(
+                        second.get(_source.resolve("f3"))));
+        assertTrue(second.containsKey(_sub.resolve("h")));
+    }
+
+    @Test
+    public void testVerifyReportsStaleEntries() throws IOException
+    {
+        scan(new FileListSnapshot(_snapshotDir, false, 0), _source, _sub);
+        modifyInPlace(_source.resolve("f3"));
+        modifyInPlace(_source.resolve("f4"));
+
+        FileListSnapshot verifying =
+            new FileListSnapshot(_snapshotDir, true, 0);
+        assertEquals(expected(), scan(verifying, _source, _sub));
+        assertEquals(2, _lastNumMismatches);
+        // the snapshot is updated by verification
+        assertEquals(expected(), scan(verifying, _source, _sub));
+        assertEquals(0, _lastNumMismatches);
+    }
+
+    @Test
+    public void testRecentlyModifiedDirectoriesAreNotStored()
+        throws IOException
+    {
+        FileListSnapshot snapshot = new FileListSnapshot(_snapshotDir, false);
+        scan(snapshot, _source, _sub);
+        modifyInPlace(_source.resolve("f3"));
+        assertEquals(expected(), scan(snapshot, _source, _sub));
+    }
+
+    @Test
+    public void testFileModifiedInPlaceIsTransferred() throws Exception
+    {
+        FileListSnapshot snapshot =
+            new FileListSnapshot(_snapshotDir, false, 0);
+        Path destination = _root.resolve("destination");
+        transfer(snapshot, destination);
+        Path copy = destination.resolve("source").resolve("sub").
+                                resolve("g");
+        assertEquals(1, Files.size(copy));
+
+        // does not change the time stamps of sub
+        modifyInPlace(_sub.resolve("g"));
+        transfer(snapshot, destination);
+        assertEquals(101, Files.size(copy));
+    }
+
+    private void transfer(FileListSnapshot snapshot, Path destination)
+        throws Exception
+    {
+        RsyncLocal localTransfer = new RsyncLocal();
+        localTransfer.setIsRecursiveTransfer(true);
+        localTransfer.setIsPreserveTimes(true);
+        localTransfer.setFileListSnapshot(snapshot);
+        PrintStream nullOut = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) { /* nop */ }
+        });
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            assertTrue(localTransfer.transfer(
+                executor, nullOut, Collections.singletonList(_source),
+                destination.toString()));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCorruptSnapshotIsIgnored() throws IOException
+    {
+        FileListSnapshot snapshot =
+            new FileListSnapshot(_snapshotDir, false, 0);
+        scan(snapshot, _source, _sub);
+        try (DirectoryStream<Path> stream =
+                 Files.newDirectoryStream(_snapshotDir)) {
+            for (Path p : stream) {
+                byte[] bytes = Files.readAllBytes(p);
+                bytes[bytes.length / 2] ^= 1;
+                Files.write(p, bytes);
+            }
+        }
+        modifyInPlace(_source.resolve("f3"));
+        assertEquals(expected(), scan(snapshot, _source, _sub));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.perlundq.yajsync.channels.ChannelException;
+import com.github.perlundq.yajsync.filelist.FileInfo;
+import com.github.perlundq.yajsync.filelist.RsyncFileAttributes;
+import com.github.perlundq.yajsync.util.BitOps;
+import com.github.perlundq.yajsync.util.StrongChecksum;
+
+public class GeneratorChecksumsTest
+{
+    // large enough to have its checksums generated in parallel, in several
+    // tasks and not a multiple of the block length
+    private static final int FILE_SIZE = 16 * 1024 * 1024 + 12345;
+    private static final int NUM_THREADS = 4;
+
+    private Path _path;
+    private FileInfo _fileInfo;
+    private RsyncFileAttributes _attrs;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        _path = Files.createTempFile(getClass().getSimpleName(), null);
+        byte[] content = new byte[FILE_SIZE];
+        new Random(0).nextBytes(content);
+        Files.write(_path, content);
+        _attrs = RsyncFileAttributes.stat(_path);
+        _fileInfo = new FileInfo(_path, _path.getFileName(),
+                                 _path.getFileName().toString().getBytes(),
+                                 _attrs);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        Files.deleteIfExists(_path);
+    }
+
+    private byte[] generate(StrongChecksum checksum, byte[] seed,
+                            int numThreads)
+        throws ChannelException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Generator generator = Generator.newServerInstance(
+            Channels.newChannel(out), Charset.forName("UTF-8"), seed).
+            setStrongChecksum(checksum).
+            setNumChecksumThreads(numThreads);
+        generator.sendItemizeAndChecksumsAndFlush(1, _fileInfo, _attrs);
+        return out.toByteArray();
+    }
+
+    private void assertParallelEqualsSerial(StrongChecksum checksum,
+                                            byte[] seed)
+        throws ChannelException
+    {
+        byte[] serial = generate(checksum, seed, 1);
+        byte[] parallel = generate(checksum, seed, NUM_THREADS);
+        assertTrue(serial.length > FILE_SIZE / (64 * 1024));
+        assertArrayEquals(serial, parallel);
+    }
+
+    @Test
+    public void testParallelEqualsSerialWithSeed() throws Exception
+    {
+        for (StrongChecksum checksum : StrongChecksum.values()) {
+            assertParallelEqualsSerial(checksum,
+                                       BitOps.toLittleEndianBuf(4711));
+        }
+    }
+
+    @Test
+    public void testParallelEqualsSerialWithoutSeed() throws Exception
+    {
+        for (StrongChecksum checksum : StrongChecksum.values()) {
+            assertParallelEqualsSerial(checksum, new byte[4]);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.github.perlundq.yajsync.channels.ChannelEOFException;
+import com.github.perlundq.yajsync.text.Text;
+
+public class ServerGreetingTest
+{
+    private static final Charset CHARSET = Charset.forName(Text.UTF8_NAME);
+    private static final String GREETING = "@RSYNCD: 30.0\n";
+    private static final String ARGUMENTS =
+        "--server\0--sender\0-r\0-e.if\0.\0m/a/\0\0";
+
+    private static class TestModule implements Module
+    {
+        @Override
+        public String name()
+        {
+            return "m";
+        }
+
+        @Override
+        public String comment()
+        {
+            return "a module";
+        }
+
+        @Override
+        public RestrictedPath restrictedPath()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isReadable()
+        {
+            return true;
+        }
+
+        @Override
+        public boolean isWritable()
+        {
+            return false;
+        }
+
+        @Override
+        public void postProcessing(boolean isOK) {}
+
+        @Override
+        public void registerFutures(List<Future<Boolean>> futures) {}
+    }
+
+    private static class TestModules implements Modules
+    {
+        private final Module _module = new TestModule();
+
+        @Override
+        public Module get(String moduleName) throws ModuleException
+        {
+            if (!moduleName.equals(_module.name())) {
+                throw new ModuleNotFoundException("no such module: " +
+                                                  moduleName);
+            }
+            return _module;
+        }
+
+        @Override
+        public Iterable<Module> all()
+        {
+            return Collections.singletonList(_module);
+        }
+    }
+
+    private static ServerGreeting newGreeting()
+    {
+        return new ServerGreeting(CHARSET, new TestModules());
+    }
+
+    private static void receive(ServerGreeting greeting, String text,
+                                int chunkSize)
+        throws ChannelEOFException
+    {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        int i = 0;
+        while (i < bytes.length) {
+            ByteBuffer buf = greeting.readBuffer();
+            int length = Math.min(Math.min(chunkSize, bytes.length - i),
+                                  buf.remaining());
+            buf.put(bytes, i, length);
+            i += length;
+            greeting.process();
+        }
+    }
+
+    private static String sent(ServerGreeting greeting)
+    {
+        ByteBuffer output = greeting.output();
+        String result = new String(output.array(), output.position(),
+                                   output.remaining(),
+                                   StandardCharsets.UTF_8);
+        output.position(output.limit());
+        return result;
+    }
+
+    @Test
+    public void testGreeting() throws ChannelEOFException
+    {
+        for (int chunkSize : new int[] { 1, 3, 1000 }) {
+            ServerGreeting greeting = newGreeting();
+            assertEquals(GREETING, sent(greeting));
+            receive(greeting, GREETING + "m\n", chunkSize);
+            assertTrue(greeting.isWaitingForAdmission());
+            assertEquals("m", greeting.module().name());
+            assertEquals("", sent(greeting));
+
+            greeting.admit();
+            assertEquals("@RSYNCD: OK\n", sent(greeting));
+            receive(greeting, ARGUMENTS, chunkSize);
+            assertTrue(greeting.isDone());
+            assertEquals(SessionStatus.OK, greeting.status());
+            assertEquals(Arrays.asList("--server", "--sender", "-r", "-e.if",
+                                       ".", "m/a/"),
+                         greeting.arguments());
+        }
+    }
+
+    @Test
+    public void testDataAfterArguments() throws Exception
+    {
+        ServerGreeting greeting = newGreeting();
+        receive(greeting, GREETING + "m\n", 1000);
+        greeting.admit();
+        receive(greeting, ARGUMENTS + "abc", 1000);
+        assertTrue(greeting.isDone());
+
+        ReadableByteChannel in = greeting.inputChannel(Channels.newChannel(
+            new ByteArrayInputStream(new byte[] { 'd' })));
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        while (in.read(buf) != -1) {}
+        assertArrayEquals(new byte[] { 'a', 'b', 'c', 'd' },
+                          Arrays.copyOf(buf.array(), buf.position()));
+    }
+
+    @Test
+    public void testModuleListing() throws ChannelEOFException
+    {
+        ServerGreeting greeting = newGreeting();
+        receive(greeting, GREETING + "\n", 1000);
+        assertTrue(greeting.isDone());
+        assertEquals(SessionStatus.EXIT, greeting.status());
+        assertEquals(GREETING + "m              \ta module\n@RSYNCD: EXIT\n",
+                     sent(greeting));
+    }
+
+    @Test
+    public void testUnknownModuleAndReject() throws ChannelEOFException
+    {
+        ServerGreeting greeting = newGreeting();
+        sent(greeting);
+        receive(greeting, GREETING + "x\n", 1000);
+        assertTrue(greeting.isDone());
+        assertEquals(SessionStatus.ERROR, greeting.status());
+        assertEquals("@ERROR: no such module: x\n", sent(greeting));
+
+        greeting = newGreeting();
+        sent(greeting);
+        receive(greeting, GREETING + "m\n", 1000);
+        greeting.reject("max connections (1) reached -- try again later");
+        assertTrue(greeting.isDone());
+        assertFalse(greeting.isWaitingForInput());
+        assertEquals(SessionStatus.ERROR, greeting.status());
+        assertEquals("@ERROR: max connections (1) reached -- try again " +
+                     "later\n", sent(greeting));
+    }
+
+    @Test(expected = RsyncProtocolException.class)
+    public void testTooLongLine() throws ChannelEOFException
+    {
+        char[] line = new char[2 * 1024];
+        Arrays.fill(line, 'x');
+        receive(newGreeting(), new String(line), 100);
+    }
+
+    @Test(expected = ChannelEOFException.class)
+    public void testEndOfInput() throws ChannelEOFException
+    {
+        ServerGreeting greeting = newGreeting();
+        receive(greeting, GREETING + "m", 1000);
+        greeting.setEndOfInput();
+        greeting.process();
+    }
+}
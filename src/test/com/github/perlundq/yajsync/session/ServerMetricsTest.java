@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.security.Principal;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.github.perlundq.yajsync.channels.net.DuplexByteChannel;
+
+public class ServerMetricsTest
+{
+    private static class NullChannel implements DuplexByteChannel
+    {
+        @Override
+        public int read(ByteBuffer dst)
+        {
+            int length = dst.remaining();
+            dst.position(dst.limit());
+            return length;
+        }
+
+        @Override
+        public int write(ByteBuffer src)
+        {
+            int length = src.remaining();
+            src.position(src.limit());
+            return length;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+
+        @Override
+        public InetAddress peerAddress()
+        {
+            return InetAddress.getLoopbackAddress();
+        }
+
+        @Override
+        public boolean isPeerAuthenticated()
+        {
+            return false;
+        }
+
+        @Override
+        public Principal peerPrincipal()
+        {
+            return null;
+        }
+    }
+
+    @Test
+    public void testSample() throws Exception
+    {
+        ServerMetrics metrics = new ServerMetrics();
+        IdleTimeoutChannel channel = IdleTimeoutChannel.wrap(new NullChannel());
+        SessionMetrics session = metrics.newSessionMetrics("m", channel);
+        Statistics stats = new Statistics();
+        session.setStatistics(stats);
+
+        channel.read(ByteBuffer.allocate(10));
+        channel.write(ByteBuffer.allocate(20));
+        stats.setTotalLiteralSize(100);
+        stats.setNumTransferredFiles(1);
+        assertEquals(1, metrics.getActiveSessions());
+        assertEquals(Collections.singletonMap("m", 1),
+                     metrics.getActiveModuleSessions());
+        assertEquals(0, metrics.getBytesRead());
+
+        metrics.sample();
+        assertEquals(10, metrics.getBytesRead());
+        assertEquals(20, metrics.getBytesWritten());
+        assertEquals(100, metrics.getLiteralBytes());
+        assertEquals(1, metrics.getTransferredFiles());
+
+        // published once more after done, and then no more
+        stats.setTotalLiteralSize(150);
+        stats.setIoError(IoError.VANISHED);
+        metrics.sessionDone(session, false);
+        assertEquals(0, metrics.getActiveSessions());
+        metrics.sample();
+        metrics.sample();
+        assertEquals(150, metrics.getLiteralBytes());
+        assertEquals(1, metrics.getVanishedIoErrors());
+        assertEquals(0, metrics.getGeneralIoErrors());
+        assertEquals(1, metrics.getFailedSessions());
+        assertEquals(1, metrics.getSessions());
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.perlundq.yajsync.util.MD5;
+import com.github.perlundq.yajsync.util.ResumableMD5;
+import com.github.perlundq.yajsync.util.Rolling;
+
+public class SignatureCacheTest
+{
+    private static final int BLOCK_LENGTH = 1024;
+    private static final int DIGEST_LENGTH = 16;
+    private static final int FILE_SIZE = 10 * BLOCK_LENGTH + 37;
+    private static final byte[] SEED = { 1, 2, 3, 4 };
+
+    private Path _dir;
+    private Path _path;
+    private byte[] _content;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        _dir = Files.createTempDirectory(getClass().getSimpleName());
+        _path = _dir.resolve("basis");
+        _content = new byte[FILE_SIZE];
+        new Random(0).nextBytes(_content);
+        Files.write(_path, _content);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        delete(_dir);
+    }
+
+    private static void delete(Path path) throws IOException
+    {
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> stream =
+                     Files.newDirectoryStream(path)) {
+                for (Path p : stream) {
+                    delete(p);
+                }
+            }
+        }
+        Files.delete(path);
+    }
+
+    private static Checksum.Header header(long fileSize)
+        throws Checksum.ChunkOverflow
+    {
+        return new Checksum.Header(BLOCK_LENGTH, DIGEST_LENGTH, fileSize);
+    }
+
+    // computes the signature the same way as Generator does
+    private static SignatureCache.Signature signatureOf(byte[] content)
+        throws Checksum.ChunkOverflow
+    {
+        Checksum.Header header = header(content.length);
+        SignatureCache.Signature signature =
+            new SignatureCache.Signature(header);
+        ByteBuffer buf = ByteBuffer.wrap(content);
+        ResumableMD5 md = new ResumableMD5();
+        for (int i = 0; i < header.chunkCount(); i++) {
+            int offset = i * BLOCK_LENGTH;
+            int length = Math.min(BLOCK_LENGTH, content.length - offset);
+            int prefixLength = length - length % ResumableMD5.BLOCK_LENGTH;
+            md.reset();
+            md.update(buf, offset, prefixLength);
+            signature.set(i, Rolling.compute(content, offset, length), md);
+            if (prefixLength < length) {
+                signature.setTail(buf, offset + prefixLength);
+            }
+        }
+        return signature;
+    }
+
+    private static void assertSignatureOf(byte[] content,
+                                          SignatureCache.Signature signature)
+    {
+        MessageDigest md = MD5.newInstance();
+        byte[] digest = new byte[ResumableMD5.DIGEST_LENGTH];
+        for (int i = 0; i < signature.chunkCount(); i++) {
+            int offset = i * BLOCK_LENGTH;
+            int length = Math.min(BLOCK_LENGTH, content.length - offset);
+            assertEquals(Rolling.compute(content, offset, length),
+                         signature.rolling(i));
+            md.update(content, offset, length);
+            md.update(SEED);
+            signature.digest(i, SEED, digest);
+            assertArrayEquals(md.digest(), digest);
+        }
+    }
+
+    private SignatureCache newCache() throws IOException
+    {
+        return new SignatureCache(_dir.resolve("cache"), 0);
+    }
+
+    private static void sleepPastTimestampGranularity()
+    {
+        try {
+            Thread.sleep(20);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testDigests() throws Checksum.ChunkOverflow
+    {
+        int[] lengths = { 64, 100, BLOCK_LENGTH, BLOCK_LENGTH + 63,
+                          2 * BLOCK_LENGTH, FILE_SIZE };
+        for (int length : lengths) {
+            byte[] content = Arrays.copyOf(_content, length);
+            assertSignatureOf(content, signatureOf(content));
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        SignatureCache cache = newCache();
+        SignatureCache.Key key = cache.keyOfOrNull(_path);
+        assertNotNull(key);
+        assertNull(cache.getOrNull(_path, key, header(FILE_SIZE)));
+
+        sleepPastTimestampGranularity();
+        cache.put(_path, key, signatureOf(_content));
+        SignatureCache.Signature cached =
+            cache.getOrNull(_path, cache.keyOfOrNull(_path),
+                            header(FILE_SIZE));
+        assertNotNull(cached);
+        assertEquals(11, cached.chunkCount());
+        assertSignatureOf(_content, cached);
+
+        // a different block layout is not served from the cache
+        assertNull(cache.getOrNull(_path, key,
+                                   new Checksum.Header(2 * BLOCK_LENGTH,
+                                                       DIGEST_LENGTH,
+                                                       FILE_SIZE)));
+    }
+
+    @Test
+    public void testModifiedFileIsInvalidated() throws Exception
+    {
+        SignatureCache cache = newCache();
+        SignatureCache.Key key = cache.keyOfOrNull(_path);
+        sleepPastTimestampGranularity();
+        cache.put(_path, key, signatureOf(_content));
+
+        _content[FILE_SIZE / 2]++;
+        Files.write(_path, _content);
+        SignatureCache.Key newKey = cache.keyOfOrNull(_path);
+        assertNull(cache.getOrNull(_path, newKey, header(FILE_SIZE)));
+    }
+
+    @Test
+    public void testNotStoredIfModifiedDuringRead() throws Exception
+    {
+        SignatureCache cache = newCache();
+        SignatureCache.Key key = cache.keyOfOrNull(_path);
+        SignatureCache.Signature signature = signatureOf(_content);
+        sleepPastTimestampGranularity();
+        Files.write(_path, new byte[] { 0 });
+        Files.write(_path, _content);
+        cache.put(_path, key, signature);
+        assertNull(cache.getOrNull(_path, key, header(FILE_SIZE)));
+        assertNull(cache.getOrNull(_path, cache.keyOfOrNull(_path),
+                                   header(FILE_SIZE)));
+    }
+
+    @Test
+    public void testNotStoredIfRecentlyModified() throws Exception
+    {
+        SignatureCache cache = new SignatureCache(_dir.resolve("cache"));
+        SignatureCache.Key key = cache.keyOfOrNull(_path);
+        cache.put(_path, key, signatureOf(_content));
+        assertNull(cache.getOrNull(_path, key, header(FILE_SIZE)));
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+import com.github.perlundq.yajsync.channels.ChannelException;
+import com.github.perlundq.yajsync.channels.Writable;
+import com.github.perlundq.yajsync.test.ReadableByteBuffer;
+
+public class TokenCompressionTest
+{
+    private static final int BLOCK_LENGTH = 700;
+    private static final int NUM_BLOCKS = 200;
+
+    private static class WritableByteArray implements Writable
+    {
+        private final ByteArrayOutputStream _out = new ByteArrayOutputStream();
+
+        @Override
+        public void put(ByteBuffer src)
+        {
+            while (src.hasRemaining()) {
+                _out.write(src.get());
+            }
+        }
+
+        @Override
+        public void put(byte[] src, int offset, int length)
+        {
+            _out.write(src, offset, length);
+        }
+
+        @Override
+        public void putByte(byte b)
+        {
+            _out.write(b);
+        }
+
+        @Override
+        public void putChar(char c)
+        {
+            put(ByteBuffer.allocate(2).putChar(0, c));
+        }
+
+        @Override
+        public void putInt(int i)
+        {
+            put(ByteBuffer.allocate(4).putInt(0, i));
+        }
+
+        ByteBuffer toByteBuffer()
+        {
+            return ByteBuffer.wrap(_out.toByteArray());
+        }
+    }
+
+    // -(idx + 1) for a block, length of literal data of the file otherwise
+    private static final class Op
+    {
+        final int _token;
+        final int _offset;
+        Op(int token, int offset)
+        {
+            _token = token;
+            _offset = offset;
+        }
+    }
+
+    private final byte[] _basis = newCompressibleData(BLOCK_LENGTH *
+                                                      NUM_BLOCKS, 0);
+
+    private static byte[] newCompressibleData(int length, long seed)
+    {
+        Random rnd = new Random(seed);
+        byte[] words = "the quick brown fox jumps over a lazy dog ".getBytes();
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = rnd.nextInt(8) == 0 ? (byte) rnd.nextInt()
+                                          : words[i % words.length];
+        }
+        return data;
+    }
+
+    private ByteBuffer block(int idx)
+    {
+        return ByteBuffer.wrap(_basis, idx * BLOCK_LENGTH, BLOCK_LENGTH).
+            slice();
+    }
+
+    private byte[] expected(List<Op> ops, byte[] literals)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Op op : ops) {
+            if (op._token < 0) {
+                out.write(_basis, (-op._token - 1) * BLOCK_LENGTH,
+                          BLOCK_LENGTH);
+            } else {
+                out.write(literals, op._offset, op._token);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private void send(TokenDeflater deflater, List<Op> ops, byte[] literals)
+        throws ChannelException
+    {
+        for (Op op : ops) {
+            if (op._token < 0) {
+                int idx = -op._token - 1;
+                deflater.sendToken(idx, ByteBuffer.wrap(_basis),
+                                   idx * BLOCK_LENGTH, BLOCK_LENGTH);
+            } else {
+                deflater.sendData(ByteBuffer.wrap(literals), op._offset,
+                                  op._token);
+            }
+        }
+        deflater.sendEnd();
+    }
+
+    private byte[] receive(TokenInflater inflater, List<Integer> tokens)
+        throws ChannelException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int token;
+        while ((token = inflater.nextToken()) != 0) {
+            if (token > 0) {
+                ByteBuffer data = inflater.data();
+                assertEquals(token, data.remaining());
+                out.write(data.array(), data.arrayOffset() + data.position(),
+                          token);
+            } else {
+                tokens.add(token);
+                ByteBuffer block = block(-token - 1);
+                out.write(block.array(), block.arrayOffset(), BLOCK_LENGTH);
+                inflater.see(block);
+                assertEquals(BLOCK_LENGTH, block.remaining());
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static List<Integer> tokensOf(List<Op> ops)
+    {
+        List<Integer> result = new ArrayList<>();
+        for (Op op : ops) {
+            if (op._token < 0) {
+                result.add(op._token);
+            }
+        }
+        return result;
+    }
+
+    private static List<Op> ops(byte[] literals, int ... tokens)
+    {
+        List<Op> result = new ArrayList<>();
+        int offset = 0;
+        for (int t : tokens) {
+            result.add(new Op(t, offset));
+            if (t > 0) {
+                offset += t;
+            }
+        }
+        assert offset <= literals.length;
+        return result;
+    }
+
+    @Test
+    public void testRoundTrip() throws ChannelException
+    {
+        byte[] literals = newCompressibleData(100000, 1);
+        List<List<Op>> files = Arrays.asList(
+            // literal data only, larger than a single data record
+            ops(literals, 100000),
+            // runs, relative and long tokens, literal data in between
+            ops(literals, -1, -2, -3, 5000, -4, -10, -11, 3, -150, -151,
+                -152, -153, -2, 1, -199, -200, 40000),
+            // no data at all
+            ops(literals),
+            // tokens only
+            ops(literals, -100, -101, -5, -70));
+
+        WritableByteArray out = new WritableByteArray();
+        TokenDeflater deflater =
+            new TokenDeflater(out, Deflater.DEFAULT_COMPRESSION);
+        for (List<Op> file : files) {
+            send(deflater, file, literals);
+        }
+        deflater.end();
+
+        ByteBuffer compressed = out.toByteBuffer();
+        TokenInflater inflater =
+            new TokenInflater(new ReadableByteBuffer(compressed));
+        for (List<Op> file : files) {
+            List<Integer> tokens = new ArrayList<>();
+            assertArrayEquals(expected(file, literals),
+                              receive(inflater, tokens));
+            assertEquals(tokensOf(file), tokens);
+        }
+        inflater.end();
+        assertFalse(compressed.hasRemaining());
+    }
+
+    @Test
+    public void testMatchedBlocksAreUsedAsHistory() throws ChannelException
+    {
+        // literal data being a copy of the matched blocks should be sent as
+        // back references to them
+        byte[] literals = Arrays.copyOf(_basis, 4 * BLOCK_LENGTH);
+        List<Op> file = ops(literals, -1, -2, -3, -4, 4 * BLOCK_LENGTH);
+
+        WritableByteArray out = new WritableByteArray();
+        TokenDeflater deflater =
+            new TokenDeflater(out, Deflater.DEFAULT_COMPRESSION);
+        send(deflater, file, literals);
+        deflater.end();
+        ByteBuffer compressed = out.toByteBuffer();
+        assertTrue(compressed.remaining() < 100);
+
+        TokenInflater inflater =
+            new TokenInflater(new ReadableByteBuffer(compressed));
+        List<Integer> tokens = new ArrayList<>();
+        assertArrayEquals(expected(file, literals), receive(inflater, tokens));
+        assertEquals(tokensOf(file), tokens);
+        inflater.end();
+    }
+
+    @Test
+    public void testSkipToken() throws ChannelException
+    {
+        byte[] literals = newCompressibleData(50000, 2);
+        List<Op> file = ops(literals, 30000, -7, -8, 20000, -1);
+
+        WritableByteArray out = new WritableByteArray();
+        TokenDeflater deflater =
+            new TokenDeflater(out, Deflater.BEST_SPEED);
+        send(deflater, file, literals);
+        deflater.end();
+
+        ByteBuffer compressed = out.toByteBuffer();
+        TokenInflater inflater =
+            new TokenInflater(new ReadableByteBuffer(compressed));
+        List<Integer> tokens = new ArrayList<>();
+        int token;
+        while ((token = inflater.skipToken()) != 0) {
+            if (token < 0) {
+                tokens.add(token);
+            }
+        }
+        inflater.end();
+        assertEquals(tokensOf(file), tokens);
+        assertFalse(compressed.hasRemaining());
+    }
+}
@@ -939,6 +939,29 @@ public abstract class SystemTest
         assertTrue(status2.stats.totalMatchedSize() == fileSize);
     }
 
+    @Test
+    public void testCopyFileTwiceWholeFile() throws IOException
+    {
+        Path src = _tempDir.newFile().toPath();
+        Path dst = Paths.get(src.toString() + ".copy");
+        int fileSize = 557;
+        int numDirs = 0;
+        int numFiles = 1;
+        byte[] content = FileUtil.generateBytes(0x18, fileSize);
+        FileUtil.writeToFiles(content, src);
+        Files.setLastModifiedTime(src, FileTime.fromMillis(0));
+        ReturnStatus status = fileCopy(src, dst, "--whole-file");
+        assertTrue(status.rc == 0);
+        assertTrue(FileUtil.isContentIdentical(src, dst));
+        ReturnStatus status2 = fileCopy(false, src, dst, "--whole-file");
+        assertTrue(status2.rc == 0);
+        assertTrue(FileUtil.isContentIdentical(src, dst));
+        assertTrue(status2.stats.numFiles() == numDirs + numFiles);
+        assertTrue(status2.stats.numTransferredFiles() == numFiles);
+        assertTrue(status2.stats.totalLiteralSize() == fileSize);
+        assertTrue(status2.stats.totalMatchedSize() == 0);
+    }
+
     @Test
     public void testCopyFileTwiceNotMultipleBlockSizeTimes()
         throws IOException
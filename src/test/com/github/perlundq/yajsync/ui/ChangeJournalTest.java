@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.ui;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SortedSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChangeJournalTest {
+
+    // the polling watch service of some platforms is slow
+    private static final long TIMEOUT_MILLIS = 30000;
+
+    private Path _root;
+    private Path _sub;
+    private ChangeJournal _journal;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        _root = Files.createTempDirectory("yajsync-journal-");
+        _sub = Files.createDirectory(_root.resolve("sub"));
+        Files.write(_sub.resolve("f"), new byte[1]);
+        _journal = new ChangeJournal(Collections.singletonList(_root));
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        _journal.close();
+        Files.walkFileTree(_root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file,
+                                             BasicFileAttributes attrs)
+                throws IOException
+            {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir,
+                                                      IOException e)
+                throws IOException
+            {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // @return all directories drained until expected ones are found
+    private Set<Path> drainUntil(Path... expected)
+        throws InterruptedException
+    {
+        Set<Path> result = new HashSet<>();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!result.containsAll(Arrays.asList(expected)) &&
+               System.currentTimeMillis() < deadline) {
+            SortedSet<Path> changed = _journal.drainOrNull();
+            assertNotNull(changed);
+            result.addAll(changed);
+            Thread.sleep(50);
+        }
+        return result;
+    }
+
+    @Test
+    public void testModifiedFile() throws Exception
+    {
+        assertTrue(_journal.drainOrNull().isEmpty());
+        Files.write(_sub.resolve("f"), new byte[2]);
+        assertEquals(Collections.singleton(_sub), drainUntil(_sub));
+    }
+
+    @Test
+    public void testNewDirectories() throws Exception
+    {
+        Path dir = _sub.resolve("a");
+        Path nested = dir.resolve("b");
+        Files.createDirectories(nested);
+        Files.write(nested.resolve("g"), new byte[1]);
+        Set<Path> changed = drainUntil(_sub, dir, nested);
+        assertTrue(changed.containsAll(Arrays.asList(_sub, dir, nested)));
+        assertTrue(!changed.contains(_root));
+
+        // nested is watched too
+        Files.delete(nested.resolve("g"));
+        assertTrue(drainUntil(nested).contains(nested));
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class RollingScannerTest
+{
+    private static final int WINDOW_LENGTH = 512;
+
+    private static class SetFilter implements RollingScanner.Filter
+    {
+        private final Set<Integer> _rollings = new HashSet<>();
+
+        @Override
+        public boolean mayContain(int rolling)
+        {
+            return _rollings.contains(rolling);
+        }
+    }
+
+    private static void assertScan(ByteBuffer buf, byte[] data,
+                                   SetFilter filter, int start, int maxSteps)
+    {
+        RollingScanner scanner = new RollingScanner(filter);
+        int rolling = Rolling.compute(data, start, WINDOW_LENGTH);
+        int numSteps = scanner.scan(buf, start, WINDOW_LENGTH, maxSteps,
+                                    rolling);
+
+        int expected = 0;
+        while (expected < maxSteps &&
+               !filter.mayContain(Rolling.compute(data, start + expected,
+                                                  WINDOW_LENGTH))) {
+            expected++;
+        }
+        assertEquals(expected, numSteps);
+        assertEquals(Rolling.compute(data, start + numSteps, WINDOW_LENGTH),
+                     scanner.rolling());
+    }
+
+    @Test
+    public void testScan()
+    {
+        byte[] data = new byte[20000];
+        new Random(0).nextBytes(data);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        SetFilter filter = new SetFilter();
+        for (int offset : new int[] { 11, 4000, 9001 }) {
+            filter._rollings.add(Rolling.compute(data, offset,
+                                                 WINDOW_LENGTH));
+        }
+        int maxSteps = data.length - WINDOW_LENGTH - 11;
+
+        for (ByteBuffer buf : new ByteBuffer[] { ByteBuffer.wrap(data),
+                                                 direct }) {
+            assertScan(buf, data, filter, 0, maxSteps);
+            assertScan(buf, data, filter, 11, maxSteps);
+            assertScan(buf, data, filter, 12, maxSteps);
+            assertScan(buf, data, filter, 9002, maxSteps - 9002);
+            assertScan(buf, data, filter, 100, 50);
+            assertScan(buf, data, filter, 100, 0);
+        }
+    }
+
+    @Test
+    public void testScanArrayOffset()
+    {
+        byte[] data = new byte[3000];
+        new Random(1).nextBytes(data);
+        ByteBuffer slice = ByteBuffer.wrap(data, 100, 2900).slice();
+        SetFilter filter = new SetFilter();
+        RollingScanner scanner = new RollingScanner(filter);
+        int rolling = Rolling.compute(data, 100, WINDOW_LENGTH);
+        int numSteps = scanner.scan(slice, 0, WINDOW_LENGTH, 1000, rolling);
+        assertEquals(1000, numSteps);
+        assertEquals(Rolling.compute(data, 1100, WINDOW_LENGTH),
+                     scanner.rolling());
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RollingTest
+{
+    // the previous (4 times unrolled) implementation of Rolling.compute
+    private static int unrolledCompute(byte[] buf, int offset, int length)
+    {
+        int low16 = 0;
+        int high16 = 0;
+        int idx;
+        for (idx = 0; idx < length - 4; idx += 4) {
+            high16 += 4 * (buf[offset + idx + 0] + low16) +
+                      3 * buf[offset + idx + 1] +
+                      2 * buf[offset + idx + 2] +
+                      buf[offset + idx + 3];
+            low16 += buf[offset + idx + 0] + buf[offset + idx + 1] +
+                     buf[offset + idx + 2] + buf[offset + idx + 3];
+        }
+        for (; idx < length; idx++) {
+            low16 += buf[offset + idx];
+            high16 += low16;
+        }
+        return (low16 & 0xFFFF) | (high16 << 16);
+    }
+
+    @Test
+    public void testComputeMatchesAdd()
+    {
+        byte[] data = new byte[70000];
+        new Random(0).nextBytes(data);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        int[] lengths = { 0, 1, 3, 4, 5, 7, 8, 9, 511, 700, 8192, 69990 };
+        for (int length : lengths) {
+            int offset = 7;
+            int expected = 0;
+            for (int i = offset; i < offset + length; i++) {
+                expected = Rolling.add(expected, data[i]);
+            }
+            assertEquals(expected, Rolling.compute(data, offset, length));
+            assertEquals(expected, Rolling.compute(direct, offset, length));
+            assertEquals(expected, Rolling.compute(ByteBuffer.wrap(data),
+                                                   offset, length));
+            assertEquals(expected, unrolledCompute(data, offset, length));
+        }
+    }
+
+    @Test
+    public void testRollingWindow()
+    {
+        byte[] data = new byte[5000];
+        new Random(1).nextBytes(data);
+        int blockLength = 700;
+        int rolling = Rolling.compute(data, 0, blockLength);
+        for (int start = 1; start + blockLength <= data.length; start++) {
+            rolling = Rolling.subtract(rolling, blockLength, data[start - 1]);
+            rolling = Rolling.add(rolling, data[start + blockLength - 1]);
+            assertEquals(Rolling.compute(data, start, blockLength), rolling);
+        }
+    }
+}
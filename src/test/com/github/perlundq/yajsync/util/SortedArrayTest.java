@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SortedArrayTest {
+
+    // compares by key only, to tell equal elements apart
+    private static final class Element implements Comparable<Element>
+    {
+        final int _key;
+
+        Element(int key)
+        {
+            _key = key;
+        }
+
+        @Override
+        public int compareTo(Element other)
+        {
+            return Integer.compare(_key, other._key);
+        }
+    }
+
+    private static <T> List<T> toList(Iterable<T> iterable)
+    {
+        List<T> result = new ArrayList<>();
+        for (T t : iterable) {
+            result.add(t);
+        }
+        return result;
+    }
+
+    @Test
+    public void testSortedAndStable()
+    {
+        Random random = new Random(4711);
+        List<Element> expected = new ArrayList<>();
+        SortedArray<Element> sorted = new SortedArray<>(0);
+        for (int i = 0; i < 10000; i++) {
+            Element e = new Element(random.nextInt(1000));
+            expected.add(e);
+            sorted.add(e);
+        }
+        Collections.sort(expected);
+        List<Element> actual = toList(sorted);
+        assertEquals(expected.size(), sorted.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertSame(expected.get(i), actual.get(i));
+        }
+    }
+
+    @Test
+    public void testContainsAfterAdd()
+    {
+        SortedArray<Integer> sorted = new SortedArray<>();
+        assertTrue(sorted.isEmpty());
+        assertFalse(sorted.contains(1));
+        for (int i = 100; i > 0; i -= 2) {
+            sorted.add(i);
+            assertTrue(sorted.contains(i));
+            assertFalse(sorted.contains(i - 1));
+        }
+        assertEquals(50, sorted.size());
+        sorted.clear();
+        assertTrue(sorted.isEmpty());
+        assertFalse(sorted.contains(100));
+        assertFalse(sorted.iterator().hasNext());
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void testIteratorFailsAfterAdd()
+    {
+        SortedArray<Integer> sorted = new SortedArray<>();
+        sorted.add(1);
+        Iterator<Integer> it = sorted.iterator();
+        sorted.add(0);
+        it.next();
+    }
+}
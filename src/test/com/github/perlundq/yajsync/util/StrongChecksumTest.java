@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class StrongChecksumTest
+{
+    private static final byte[] SEED = BitOps.toLittleEndianBuf(-123456789);
+    private static final byte[] ZERO_SEED = BitOps.toLittleEndianBuf(0);
+
+    private static byte[] ascii(String str)
+    {
+        return str.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] sequence(int length)
+    {
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = (byte) i;
+        }
+        return result;
+    }
+
+    private static String hex(byte[] digest)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest) {
+            sb.append(String.format("%02x", 0xFF & b));
+        }
+        return sb.toString();
+    }
+
+    // xxHash values are presented as 64 bit numbers but stored in little
+    // endian byte order
+    private static String xxh64Hex(MessageDigest md, byte[] data)
+    {
+        byte[] digest = md.digest(data);
+        for (int i = 0; i < digest.length / 2; i++) {
+            byte tmp = digest[i];
+            digest[i] = digest[digest.length - 1 - i];
+            digest[digest.length - 1 - i] = tmp;
+        }
+        return hex(digest);
+    }
+
+    @Test
+    public void testMD4()
+    {
+        MessageDigest md = StrongChecksum.MD4.newFileDigest();
+        assertEquals("31d6cfe0d16ae931b73c59d7e0c089c0",
+                     hex(md.digest(ascii(""))));
+        assertEquals("a448017aaf21d8525fc10ae87aa6729d",
+                     hex(md.digest(ascii("abc"))));
+        assertEquals("d9130a8164549fe818874806e1c7014b",
+                     hex(md.digest(ascii("message digest"))));
+        assertEquals("043f8582f241db351ce627e153e7f0e4",
+                     hex(md.digest(ascii("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdef" +
+                                         "ghijklmnopqrstuvwxyz0123456789"))));
+        assertEquals("e33b4ddc9c38f2199c3e7b164fcc0536",
+                     hex(md.digest(ascii("1234567890123456789012345678901" +
+                                         "234567890123456789012345678901" +
+                                         "2345678901234567890"))));
+    }
+
+    @Test
+    public void testXXH64()
+    {
+        MessageDigest md = StrongChecksum.XXH64.newFileDigest();
+        assertEquals("ef46db3751d8e999", xxh64Hex(md, ascii("")));
+        assertEquals("44bc2cf5ad770999", xxh64Hex(md, ascii("abc")));
+        assertEquals("6ef436b00eba4078", xxh64Hex(md, sequence(1000)));
+
+        int[] lengths = { 0, 7, 31, 32, 33, 1000 };
+        String[] expected = { "84420ad932a4a3bc", "63283ab84b6ba142",
+                              "c5fa5e6b7376ba7e", "1306c9749f98bf75",
+                              "19261b5edb2b5188", "2f3d9bc828a72620" };
+        MessageDigest seeded = StrongChecksum.XXH64.newBlockDigest(SEED);
+        for (int i = 0; i < lengths.length; i++) {
+            assertEquals(expected[i],
+                         xxh64Hex(seeded, sequence(lengths[i])));
+        }
+    }
+
+    @Test
+    public void testSeededBlockDigests()
+    {
+        byte[] data = sequence(100);
+        for (StrongChecksum checksum : new StrongChecksum[] {
+                 StrongChecksum.MD5, StrongChecksum.MD4 }) {
+            MessageDigest file = checksum.newFileDigest();
+            file.update(data);
+            file.update(SEED);
+            assertArrayEquals(file.digest(),
+                              checksum.newBlockDigest(SEED).digest(data));
+            // rsync does not append a zero seed
+            assertArrayEquals(file.digest(data),
+                              checksum.newBlockDigest(ZERO_SEED).
+                                  digest(data));
+        }
+    }
+
+    @Test
+    public void testIncrementalUpdates()
+    {
+        byte[] data = new byte[5000];
+        new Random(0).nextBytes(data);
+        int[] chunkLengths = { 1, 3, 31, 32, 33, 63, 64, 65, 1000 };
+        for (StrongChecksum checksum : StrongChecksum.values()) {
+            byte[] expected = checksum.newBlockDigest(SEED).digest(data);
+            assertEquals(checksum.digestLength(), expected.length);
+
+            MessageDigest md = checksum.newBlockDigest(SEED);
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+            direct.put(data).flip();
+            int offset = 0;
+            for (int i = 0; offset < data.length; i++) {
+                int length = Math.min(chunkLengths[i % chunkLengths.length],
+                                      data.length - offset);
+                if (i % 3 == 0) {
+                    md.update(data, offset, length);
+                } else if (i % 3 == 1) {
+                    direct.limit(offset + length).position(offset);
+                    md.update(direct);
+                } else {
+                    for (int j = offset; j < offset + length; j++) {
+                        md.update(data[j]);
+                    }
+                }
+                offset += length;
+            }
+            assertArrayEquals(checksum.protocolName(), expected, md.digest());
+        }
+    }
+
+    @Test
+    public void testScratchBufferDigests()
+    {
+        byte[] data = new byte[3000];
+        new Random(1).nextBytes(data);
+        ByteBuffer heap = ByteBuffer.wrap(data);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        ByteBuffer littleEndian = ByteBuffer.allocateDirect(data.length).
+            order(ByteOrder.LITTLE_ENDIAN);
+        littleEndian.put(data).flip();
+        int start = 17;
+        int end = 2900;
+
+        for (StrongChecksum checksum : StrongChecksum.values()) {
+            MessageDigest md = checksum.newBlockDigest(SEED);
+            md.update(data, start, end - start);
+            byte[] expected = md.digest();
+
+            byte[] digest = new byte[checksum.digestLength()];
+            for (ByteBuffer buf : new ByteBuffer[] { heap, direct,
+                                                     littleEndian }) {
+                buf.position(5);
+                StrongChecksum.update(md, buf, start, end);
+                StrongChecksum.digestInto(md, digest);
+                assertArrayEquals(checksum.protocolName(), expected, digest);
+                assertEquals(5, buf.position());
+                assertEquals(data.length, buf.limit());
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDigestIntoTooShortBuffer()
+    {
+        MessageDigest md = StrongChecksum.XXH64.newBlockDigest(SEED);
+        StrongChecksum.digestInto(md, new byte[2]);
+    }
+
+    @Test
+    public void testProtocolNames()
+    {
+        for (StrongChecksum checksum : StrongChecksum.values()) {
+            assertEquals(checksum, StrongChecksum.fromProtocolNameOrNull(
+                                       checksum.protocolName()));
+        }
+        assertNull(StrongChecksum.fromProtocolNameOrNull("xxh3"));
+    }
+}